@@ -0,0 +1,99 @@
+package benchmark;
+
+import image.ImageBenchmarks;
+import tag.TagBenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * BenchMain. Runs the microbenchmarks of the model's hot paths (see ImageBenchmarks and TagBenchmarks) at several
+ * library sizes, and prints the average time and allocation of each.
+ *
+ * Options:
+ *
+ *   -sizes 1000,10000,100000,1000000   library sizes to run at
+ *   -warmup 3                          warmup iterations per benchmark
+ *   -iterations 5                      measured iterations per benchmark
+ *   -time 1000                         length of an iteration, in milliseconds
+ *   -filter NAME                       only run benchmarks whose name contains NAME
+ *
+ * Each size gets a fresh library in a temporary directory, which is deleted afterwards. A 1,000,000 image library
+ * needs a few gigabytes of heap (e.g. -Xmx4g).
+ *
+ * To run, from the src directory:
+ *   javac -d ../benchout -sourcepath .:../bench ../bench/benchmark/BenchMain.java
+ *   java -Xmx4g -cp ../benchout benchmark.BenchMain -sizes 1000,10000
+ */
+public class BenchMain {
+    /**
+     * Runs the benchmarks.
+     * @param args Options, as described above.
+     * @throws Exception ..
+     */
+    public static void main(String[] args) throws Exception{
+        ArrayList<Integer> sizes = new ArrayList<>(Arrays.asList(1000, 10000, 100000, 1000000));
+        int warmup = 3;
+        int iterations = 5;
+        long time = 1000;
+        String filter = "";
+        for(int i = 0; i + 1 < args.length; i += 2){
+            switch(args[i]){
+                case "-sizes":
+                    sizes.clear();
+                    for(String size : args[i + 1].split(",")){
+                        sizes.add(Integer.parseInt(size.trim()));
+                    }
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-time":
+                    time = Long.parseLong(args[i + 1]);
+                    break;
+                case "-filter":
+                    filter = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Benchmark benchmark = new Benchmark(warmup, iterations, time, filter, System.out);
+        benchmark.printHeading();
+        for(int size : sizes){
+            File directory = Files.createTempDirectory("bench" + size).toFile();
+            try{
+                ImageBenchmarks.run(benchmark, size, directory);
+                TagBenchmarks.run(benchmark, size);
+            }
+            finally{
+                delete(directory);
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory and everything under it.
+     * @param file File to delete.
+     * @throws IOException ..
+     */
+    private static void delete(File file) throws IOException{
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        if(!file.delete()){
+            throw new IOException("Failed to delete " + file);
+        }
+    }
+}
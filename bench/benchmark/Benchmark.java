@@ -0,0 +1,256 @@
+package benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A Benchmark. Measures the average time and the memory allocated per call of an operation, the way a JMH
+ * benchmark in average-time mode with the GC profiler does: some warmup iterations (not reported) let the JIT
+ * compile the code, then the measurement iterations are timed and the mean and standard deviation over them are
+ * printed.
+ *
+ * An iteration either runs the operation for a fixed time (in growing batches, so that reading the clock does not
+ * dominate very short operations), or a fixed number of times. A setup step can run before every iteration,
+ * untimed. Allocation is read from the JVM's per-thread allocation counter, so it counts only what the calling
+ * thread allocates (not, e.g., the threads of a FileOperationRuntime).
+ */
+public class Benchmark {
+    /**
+     * An operation to measure.
+     */
+    public interface Operation {
+        /**
+         * Runs the operation once.
+         * @param index The number of times the operation has run before in this iteration.
+         * @return Anything the operation computes, so that the JIT cannot remove the work.
+         * @throws Exception ..
+         */
+        Object run(long index) throws Exception;
+    }
+
+    /**
+     * Results are written here, so that the JIT cannot remove the work that computes them.
+     */
+    private static volatile Object sink;
+
+    /**
+     * The number of iterations run before measuring.
+     */
+    private int warmupIterations;
+    /**
+     * The number of iterations measured.
+     */
+    private int measurementIterations;
+    /**
+     * How long a timed iteration runs, in nanoseconds.
+     */
+    private long iterationNanos;
+    /**
+     * Only benchmarks whose name contains this are run.
+     */
+    private String filter;
+    /**
+     * Where results are printed.
+     */
+    private PrintStream out;
+    /**
+     * The JVM's thread statistics, or null if it cannot count allocated bytes.
+     */
+    private com.sun.management.ThreadMXBean allocationCounter;
+
+    /**
+     * Constructs a Benchmark.
+     * @param warmupIterations The number of iterations run before measuring.
+     * @param measurementIterations The number of iterations measured.
+     * @param iterationMillis How long a timed iteration runs, in milliseconds.
+     * @param filter Only benchmarks whose name contains this are run ("" for all).
+     * @param out Where results are printed.
+     */
+    public Benchmark(int warmupIterations, int measurementIterations, long iterationMillis, String filter,
+                     PrintStream out){
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = Math.max(1, measurementIterations);
+        this.iterationNanos = iterationMillis * 1000000L;
+        this.filter = filter;
+        this.out = out;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()){
+            allocationCounter = (com.sun.management.ThreadMXBean) threads;
+            allocationCounter.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * Returns whether a benchmark is selected by the filter.
+     * @param name Name of the benchmark.
+     * @return True iff the benchmark should be run.
+     */
+    public boolean isSelected(String name){
+        return name.contains(filter);
+    }
+
+    /**
+     * Prints the heading of the results table.
+     */
+    public void printHeading(){
+        out.printf("%-36s %9s %5s %14s %12s %8s %14s%n",
+                "Benchmark", "(size)", "Cnt", "Score", "Error (sd)", "Units", "Alloc B/op");
+    }
+
+    /**
+     * Measures an operation, running each iteration for a fixed time, and prints the result.
+     * @param name Name of the benchmark.
+     * @param size The library size it is run at.
+     * @param operation Operation to measure.
+     * @throws Exception ..
+     */
+    public void run(String name, int size, Operation operation) throws Exception{
+        run(name, size, null, 0, operation);
+    }
+
+    /**
+     * Measures an operation and prints the result.
+     * @param name Name of the benchmark.
+     * @param size The library size it is run at.
+     * @param setup Run before each iteration, untimed, or null.
+     * @param opsPerIteration The number of times the operation runs in an iteration, or 0 to run it for the
+     *                        iteration time.
+     * @param operation Operation to measure.
+     * @throws Exception ..
+     */
+    public void run(String name, int size, Runnable setup, int opsPerIteration, Operation operation)
+            throws Exception{
+        if(!isSelected(name)){
+            return;
+        }
+        double[] nanosPerOp = new double[measurementIterations];
+        double allocatedPerOp = 0;
+        for(int i = -warmupIterations; i < measurementIterations; i++){
+            if(setup != null){
+                setup.run();
+            }
+            long allocatedBefore = allocatedBytes();
+            long[] opsAndNanos = opsPerIteration > 0
+                    ? runCount(operation, opsPerIteration) : runTimed(operation);
+            long allocated = allocatedBytes() - allocatedBefore;
+            if(i >= 0){
+                nanosPerOp[i] = (double) opsAndNanos[1] / opsAndNanos[0];
+                allocatedPerOp += (double) allocated / opsAndNanos[0] / measurementIterations;
+            }
+        }
+
+        double mean = 0;
+        for(double value : nanosPerOp){
+            mean += value / nanosPerOp.length;
+        }
+        double variance = 0;
+        for(double value : nanosPerOp){
+            variance += (value - mean) * (value - mean) / Math.max(1, nanosPerOp.length - 1);
+        }
+        String units = "ns/op";
+        double scale = 1;
+        if(mean >= 10000000){
+            units = "ms/op";
+            scale = 1000000;
+        }
+        else if(mean >= 10000){
+            units = "us/op";
+            scale = 1000;
+        }
+        out.printf("%-36s %9d %5d %14.3f %12s %8s %14s%n", name, size, measurementIterations, mean / scale,
+                String.format("\u00b1 %.3f", Math.sqrt(variance) / scale), units,
+                allocationCounter == null ? "n/a" : String.format("%.1f", allocatedPerOp));
+        out.flush();
+    }
+
+    /**
+     * Prints a value measured once, rather than timed, such as a size, in the results table.
+     * @param name Name of the benchmark.
+     * @param size The library size it is measured at.
+     * @param score The value.
+     * @param units The units of the value.
+     */
+    public void report(String name, int size, double score, String units){
+        if(!isSelected(name)){
+            return;
+        }
+        out.printf("%-36s %9d %5d %14.3f %12s %8s %14s%n", name, size, 1, score, "", units, "");
+        out.flush();
+    }
+
+    /**
+     * Returns the number of bytes of heap in use after a full garbage collection, so that only live objects are
+     * counted.
+     * @return The bytes of live objects on the heap.
+     */
+    public static long usedHeapAfterGc(){
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // a collection can leave garbage that a finalizer or reference queue releases; collect until it settles
+        for(int i = 0; i < 5; i++){
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if(now >= used){
+                return Math.min(now, used);
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * Runs an operation for the iteration time.
+     * @param operation Operation to run.
+     * @return The number of times it ran, and how long that took in nanoseconds.
+     * @throws Exception ..
+     */
+    private long[] runTimed(Operation operation) throws Exception{
+        long ops = 0;
+        long batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do{
+            long batchStart = System.nanoTime();
+            for(long i = 0; i < batch; i++){
+                sink = operation.run(ops + i);
+            }
+            ops += batch;
+            long now = System.nanoTime();
+            elapsed = now - start;
+            // grow the batch until reading the clock is a small part of it
+            if(now - batchStart < 1000000){
+                batch *= 2;
+            }
+        } while(elapsed < iterationNanos);
+        return new long[]{ops, elapsed};
+    }
+
+    /**
+     * Runs an operation a given number of times.
+     * @param operation Operation to run.
+     * @param count The number of times to run it.
+     * @return The number of times it ran, and how long that took in nanoseconds.
+     * @throws Exception ..
+     */
+    private static long[] runCount(Operation operation, int count) throws Exception{
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i++){
+            sink = operation.run(i);
+        }
+        return new long[]{count, System.nanoTime() - start};
+    }
+
+    /**
+     * Returns the number of bytes the calling thread has allocated so far.
+     * @return The bytes allocated by the calling thread, or 0 if they cannot be counted.
+     */
+    private long allocatedBytes(){
+        if(allocationCounter == null){
+            return 0;
+        }
+        return allocationCounter.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
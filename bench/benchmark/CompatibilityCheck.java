@@ -0,0 +1,151 @@
+package benchmark;
+
+import image.ImageFile;
+import image.ImageManager;
+import image.ModelSnapshot;
+import tag.Tag;
+import tag.TagManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * CompatibilityCheck. Loads the persistence files in bench/compat, which were written by the first version of the
+ * program (a File, a list of Tags and a list of names per ImageFile), checks that every image, Tag and old name is
+ * still there, then saves them with the current classes, loads them again and checks them once more.
+ *
+ * The files hold three images, taken from a small library:
+ *
+ *   DSC00019_19 @beach @kids.jpeg   tagged beach and kids at once
+ *   DSC00057_57 @beach.png          tagged beach, after being tagged work, then beach, then untagged work
+ *   DSC00062_62 @kids.png           tagged kids
+ *
+ * and the Tags beach, kids and work.
+ *
+ * Exits with status 1 if anything is missing or different.
+ *
+ * To run, from the src directory (see BenchMain for compiling):
+ *   java -cp ../benchout benchmark.CompatibilityCheck ../bench/compat
+ */
+public class CompatibilityCheck {
+    /**
+     * Every image in the files: its name, then its Tags and its old names.
+     */
+    private static final TreeMap<String,List<List<String>>> EXPECTED = new TreeMap<>();
+
+    static{
+        EXPECTED.put("DSC00019_19 @beach @kids.jpeg", Arrays.asList(
+                Arrays.asList("beach", "kids"),
+                Arrays.asList("DSC00019_19")));
+        EXPECTED.put("DSC00057_57 @beach.png", Arrays.asList(
+                Arrays.asList("beach"),
+                Arrays.asList("DSC00057_57", "DSC00057_57 @work", "DSC00057_57 @work @beach")));
+        EXPECTED.put("DSC00062_62 @kids.png", Arrays.asList(
+                Arrays.asList("kids"),
+                Arrays.asList("DSC00062_62")));
+    }
+
+    /**
+     * Runs the check.
+     * @param args The directory holding the persistence files written by the first version.
+     * @throws Exception ..
+     */
+    public static void main(String[] args) throws Exception{
+        File compat = new File(args.length > 0 ? args[0] : "../bench/compat");
+        File directory = Files.createTempDirectory("compat").toFile();
+        try{
+            for(String name : new String[]{"serializedimages.ser", "serializedtags.ser"}){
+                Files.copy(new File(compat, name).toPath(), new File(directory, name).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            ArrayList<String> problems = new ArrayList<>();
+            check("first version", directory, problems);
+
+            // save with the current classes, then load again
+            File saved = new File(directory, "saved");
+            if(!saved.mkdir()){
+                throw new IOException("Failed to create " + saved);
+            }
+            ImageManager imageManager = new ImageManager(new File(directory, "serializedimages.ser").getPath());
+            TagManager tagManager = new TagManager(new File(directory, "serializedtags.ser").getPath());
+            imageManager.saveToFile(new File(saved, "serializedimages.ser").getPath());
+            tagManager.saveToFile(new File(saved, "serializedtags.ser").getPath());
+            check("saved again", saved, problems);
+
+            for(String problem : problems){
+                System.out.println(problem);
+            }
+            System.out.println(problems.isEmpty() ? "OK" : problems.size() + " problems");
+            if(!problems.isEmpty()){
+                System.exit(1);
+            }
+        }
+        finally{
+            delete(directory);
+        }
+    }
+
+    /**
+     * Loads the persistence files in a directory and checks them against what the first version wrote.
+     * @param label Which files these are, for the problems found.
+     * @param directory Directory holding the persistence files.
+     * @param problems Where to add the problems found.
+     */
+    private static void check(String label, File directory, List<String> problems){
+        File images = new File(directory, "serializedimages.ser");
+        File tags = new File(directory, "serializedtags.ser");
+        ImageManager imageManager = new ImageManager(images.getPath());
+        TagManager tagManager = new TagManager(tags.getPath());
+        if(!images.exists() || !tags.exists()){
+            problems.add(label + ": the files could not be read and were set aside");
+            return;
+        }
+
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        TreeMap<String,List<List<String>>> found = new TreeMap<>();
+        for(ImageFile imageFile : snapshot.getKnownImages()){
+            List<String> tagNames = new ArrayList<>();
+            for(Tag tag : snapshot.getTags(imageFile)){
+                tagNames.add(tag.getTagName());
+            }
+            tagNames.sort(null);
+            found.put(snapshot.getFile(imageFile).getName(),
+                    Arrays.asList(tagNames, new ArrayList<>(snapshot.getNameHistory(imageFile))));
+        }
+        if(!found.equals(EXPECTED)){
+            problems.add(label + ": expected images " + EXPECTED + " but found " + found);
+        }
+
+        List<String> tagNames = new ArrayList<>();
+        for(Tag tag : tagManager.getTagList()){
+            tagNames.add(tag.getTagName());
+        }
+        tagNames.sort(null);
+        if(!tagNames.equals(Arrays.asList("beach", "kids", "work"))){
+            problems.add(label + ": expected Tags [beach, kids, work] but found " + tagNames);
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory and everything under it.
+     * @param file File to delete.
+     * @throws IOException ..
+     */
+    private static void delete(File file) throws IOException{
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        if(!file.delete()){
+            throw new IOException("Failed to delete " + file);
+        }
+    }
+}
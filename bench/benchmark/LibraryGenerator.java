@@ -0,0 +1,296 @@
+package benchmark;
+
+import image.ModelTransfer;
+import utils.ImageLibrary;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/**
+ * LibraryGenerator. Creates a synthetic photo library for performance testing: a directory tree of small
+ * placeholder images, some of them tagged, and persistence files describing them, as if they had been tagged with
+ * the program.
+ *
+ * The library looks like a real one:
+ * - Folders are by year, then by month and event (e.g. 2014/07-beach), with a few hundred images each.
+ * - File names follow common camera and phone patterns (IMG_1234, DSC01234, IMG_20140712_101530, PXL_...,
+ *   "Screenshot 2014-07-12 at 10.15.30", ...), with the usual mix of extensions.
+ * - Tag popularity follows a Zipf distribution, so a few Tags are on many images and most are on few.
+ * - Some images are untagged; the others have one or more Tags (usually one or two) in their names, and their
+ *   untagged name in their name history, so that they can be reverted.
+ *
+ * The persistence files are written to ROOT/.imagetags, as an ImageLibrary shard keeps them, so the library can be
+ * used by LoadHarness or main.HttpService directly.
+ *
+ * Options:
+ *
+ *   -root DIR              directory to create the library in (must not exist, or be empty)
+ *   -images 100000         the number of images
+ *   -tags 500              the number of distinct Tags
+ *   -untagged 0.3          the fraction of images without Tags
+ *   -seed 1                random seed, so that a library can be generated again exactly
+ *
+ * To run, from the src directory (see BenchMain for compiling):
+ *   java -cp ../benchout benchmark.LibraryGenerator -root /tmp/library -images 200000
+ */
+public class LibraryGenerator {
+    /**
+     * A 1x1 GIF, written as every placeholder image (image readers look at the content, not the extension).
+     */
+    private static final byte[] PLACEHOLDER_IMAGE = {
+            'G', 'I', 'F', '8', '9', 'a', 1, 0, 1, 0, (byte) 0x80, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff,
+            (byte) 0xff, '!', (byte) 0xf9, 4, 1, 0, 0, 0, 0, ',', 0, 0, 0, 0, 1, 0, 1, 0, 0, 2, 2, 'D', 1, 0, ';'};
+    /**
+     * Words that Tags and event folders are made from.
+     */
+    private static final String[] WORDS = {
+            "family", "kids", "beach", "holiday", "work", "birthday", "wedding", "dog", "cat", "garden", "hiking",
+            "snow", "sunset", "food", "friends", "party", "concert", "museum", "city", "lake", "camping", "school",
+            "graduation", "christmas", "paris", "tokyo", "toronto", "newyork", "roadtrip", "soccer", "skiing",
+            "portrait", "landscape", "architecture", "night", "macro", "flowers", "car", "baby", "grandma"};
+    /**
+     * Extensions of the placeholder images, repeated by how common they are.
+     */
+    private static final String[] EXTENSIONS = {".jpg", ".jpg", ".jpg", ".jpg", ".JPG", ".JPG", ".png", ".jpeg",
+            ".gif"};
+
+    /**
+     * Source of randomness.
+     */
+    private Random random;
+    /**
+     * The Tag names, most popular first.
+     */
+    private ArrayList<String> tagNames = new ArrayList<>();
+    /**
+     * Cumulative Zipf probabilities of the Tags, in the same order.
+     */
+    private double[] tagCumulative;
+
+    /**
+     * Generates a library.
+     * @param args Options, as described above.
+     * @throws IOException ..
+     */
+    public static void main(String[] args) throws IOException{
+        File root = null;
+        int images = 100000;
+        int tags = 500;
+        double untagged = 0.3;
+        long seed = 1;
+        for(int i = 0; i + 1 < args.length; i += 2){
+            switch(args[i]){
+                case "-root": root = new File(args[i + 1]); break;
+                case "-images": images = Integer.parseInt(args[i + 1]); break;
+                case "-tags": tags = Integer.parseInt(args[i + 1]); break;
+                case "-untagged": untagged = Double.parseDouble(args[i + 1]); break;
+                case "-seed": seed = Long.parseLong(args[i + 1]); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if(root == null){
+            System.err.println("Usage: java benchmark.LibraryGenerator -root DIR [-images N] [-tags N] "
+                    + "[-untagged FRACTION] [-seed N]");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        new LibraryGenerator(seed, tags).generate(root, images, untagged);
+        System.err.printf("Generated %d images in %.1f s%n", images, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Constructs a LibraryGenerator.
+     * @param seed Random seed.
+     * @param tagCount The number of distinct Tags.
+     */
+    LibraryGenerator(long seed, int tagCount){
+        random = new Random(seed);
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for(String word : WORDS){
+            if(names.size() < tagCount){
+                names.add(word);
+            }
+        }
+        while(names.size() < tagCount){
+            names.add(WORDS[random.nextInt(WORDS.length)] + (2000 + random.nextInt(30)) + (char) ('a' + random
+                    .nextInt(26)));
+        }
+        tagNames.addAll(names);
+        Collections.shuffle(tagNames.subList(WORDS.length < tagCount ? WORDS.length : tagCount, tagCount), random);
+
+        tagCumulative = new double[tagCount];
+        double total = 0;
+        for(int i = 0; i < tagCount; i++){
+            total += 1.0 / Math.pow(i + 1, 1.1);
+            tagCumulative[i] = total;
+        }
+        for(int i = 0; i < tagCount; i++){
+            tagCumulative[i] /= total;
+        }
+    }
+
+    /**
+     * Generates a library: its images, and its persistence files.
+     * @param root Directory to create the library in.
+     * @param imageCount The number of images.
+     * @param untaggedFraction The fraction of images without Tags.
+     * @throws IOException ..
+     */
+    void generate(File root, int imageCount, double untaggedFraction) throws IOException{
+        String[] existing = root.list();
+        if(existing != null && existing.length > 0){
+            throw new IOException(root + " is not empty");
+        }
+        File persistence = new File(root, ".imagetags");
+        if(!persistence.mkdirs()){
+            throw new IOException("Failed to create " + persistence);
+        }
+
+        // the tagged images are written as an export, then imported into the library's model
+        File export = new File(persistence, "generated.jsonl");
+        try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(export),
+                StandardCharsets.UTF_8))){
+            int made = 0;
+            int year = 2010;
+            int month = 1;
+            while(made < imageCount){
+                File folder = new File(root, year + File.separator
+                        + String.format("%02d-%s", month, WORDS[random.nextInt(WORDS.length)]));
+                if(!folder.isDirectory() && !folder.mkdirs()){
+                    throw new IOException("Failed to create " + folder);
+                }
+                int folderSize = Math.min(imageCount - made, 50 + random.nextInt(350));
+                for(int i = 0; i < folderSize; i++){
+                    makeImage(out, folder, year, month, made + i, untaggedFraction);
+                }
+                made += folderSize;
+                if(++month > 12){
+                    month = 1;
+                    year++;
+                }
+            }
+        }
+
+        ImageLibrary library = new ImageLibrary(Collections.singletonList(root));
+        ImageLibrary.Shard shard = library.getShards().get(0);
+        try(Reader in = new InputStreamReader(new FileInputStream(export), StandardCharsets.UTF_8)){
+            new ModelTransfer(shard.getImageManager(), shard.getTagManager())
+                    .importModel(in, ModelTransfer.Format.JSONL, null);
+        }
+        library.close();
+        if(!export.delete()){
+            System.err.println("Failed to delete " + export);
+        }
+    }
+
+    /**
+     * Creates one placeholder image, and writes its export line if it is tagged.
+     * @param out Writer of the export.
+     * @param folder Folder to create the image in.
+     * @param year Year the image was "taken".
+     * @param month Month the image was "taken".
+     * @param number The number of the image in the library.
+     * @param untaggedFraction The fraction of images without Tags.
+     * @throws IOException ..
+     */
+    private void makeImage(Writer out, File folder, int year, int month, int number, double untaggedFraction)
+            throws IOException{
+        String name = fileName(year, month, number);
+        String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+        LinkedHashSet<String> tags = new LinkedHashSet<>();
+        if(random.nextDouble() >= untaggedFraction){
+            // usually one or two Tags, occasionally more
+            int count = 1;
+            while(count < 6 && random.nextDouble() < 0.45){
+                count++;
+            }
+            while(tags.size() < Math.min(count, tagNames.size())){
+                tags.add(pickTag());
+            }
+        }
+
+        StringBuilder taggedName = new StringBuilder(name);
+        for(String tag : tags){
+            taggedName.append(" @").append(tag);
+        }
+        File file = new File(folder, taggedName + extension);
+        Files.write(file.toPath(), PLACEHOLDER_IMAGE);
+        if(tags.isEmpty()){
+            return;
+        }
+
+        StringBuilder line = new StringBuilder("{\"file\":\"");
+        line.append(file.getAbsolutePath().replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\"tags\":[");
+        boolean first = true;
+        for(String tag : tags){
+            line.append(first ? "" : ",").append('"').append(tag).append('"');
+            first = false;
+        }
+        line.append("],\"names\":[\"").append(name).append("\"]}\n");
+        out.write(line.toString());
+    }
+
+    /**
+     * Returns a camera- or phone-style file name (without extension).
+     * @param year Year the image was "taken".
+     * @param month Month the image was "taken".
+     * @param number The number of the image in the library, which keeps names unique.
+     * @return The file name.
+     */
+    private String fileName(int year, int month, int number){
+        int day = 1 + random.nextInt(28);
+        String time = String.format("%02d%02d%02d", random.nextInt(24), random.nextInt(60), random.nextInt(60));
+        String date = String.format("%d%02d%02d", year, month, day);
+        int style = random.nextInt(10);
+        if(style < 3){
+            return String.format("IMG_%04d_%d", number % 10000, number);
+        }
+        if(style < 5){
+            return String.format("DSC%05d_%d", number % 100000, number);
+        }
+        if(style < 8){
+            return "IMG_" + date + "_" + time + "_" + number;
+        }
+        if(style < 9){
+            return "PXL_" + date + "_" + time + number;
+        }
+        return String.format("Screenshot %d-%02d-%02d at %s.%s.%s %d", year, month, day, time.substring(0, 2),
+                time.substring(2, 4), time.substring(4, 6), number);
+    }
+
+    /**
+     * Picks a Tag, with Zipf-distributed popularity.
+     * @return The name of the Tag.
+     */
+    private String pickTag(){
+        double p = random.nextDouble();
+        int low = 0;
+        int high = tagCumulative.length - 1;
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(tagCumulative[middle] < p){
+                low = middle + 1;
+            }
+            else{
+                high = middle;
+            }
+        }
+        return tagNames.get(low);
+    }
+}
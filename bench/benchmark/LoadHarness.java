@@ -0,0 +1,273 @@
+package benchmark;
+
+import image.ImageFile;
+import image.ModelSnapshot;
+import tag.Tag;
+import tag.TagQuery;
+import utils.ImageLibrary;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * LoadHarness. Drives the workflows of a user (or a script) against a library, such as one made by
+ * LibraryGenerator, and reports the throughput and latency percentiles of each: loading the persistence files,
+ * scanning the roots, tagging images, querying, reverting images to an old name, and saving.
+ *
+ * Tagging, querying and reverting run a number of operations spread over a number of threads, each operation timed
+ * on its own; loading, scanning and saving are timed as a whole, a few times. Every operation works on the real
+ * files, so tagging and reverting rename them on disk.
+ *
+ * Options:
+ *
+ *   -ops 10000             the number of tag and query operations
+ *   -reverts 1000          the number of revert operations (a tenth of -ops by default; each one saves the
+ *                          persistence files, as reverting in the GUI does, so they are much slower)
+ *   -threads 4             the number of threads running them
+ *   -saves 5               the number of times the library is saved
+ *   -seed 1                random seed
+ *   ROOT...                the root directories of the library
+ *
+ * To run, from the src directory (see BenchMain for compiling):
+ *   java -Xmx4g -cp ../benchout benchmark.LoadHarness -ops 20000 /tmp/library
+ */
+public class LoadHarness {
+    /**
+     * An operation to time, given a source of randomness of its thread.
+     */
+    private interface Operation {
+        /**
+         * Runs the operation once.
+         * @param random Source of randomness of the thread running the operation.
+         * @throws Exception ..
+         */
+        void run(Random random) throws Exception;
+    }
+
+    /**
+     * The library driven.
+     */
+    private ImageLibrary library;
+    /**
+     * The number of threads running the tag, query and revert operations.
+     */
+    private int threads;
+    /**
+     * Random seed; each thread of each phase gets its own seed derived from it.
+     */
+    private long seed;
+
+    /**
+     * Runs the workflows against a library.
+     * @param args Options, as described above.
+     * @throws Exception ..
+     */
+    public static void main(String[] args) throws Exception{
+        int ops = 10000;
+        int threads = 4;
+        int reverts = -1;
+        int saves = 5;
+        long seed = 1;
+        ArrayList<File> roots = new ArrayList<>();
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "-ops": ops = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-reverts": reverts = Integer.parseInt(args[++i]); break;
+                case "-saves": saves = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    if(args[i].startsWith("-")){
+                        System.err.println("Unknown option: " + args[i]);
+                        System.exit(2);
+                    }
+                    roots.add(new File(args[i]));
+            }
+        }
+        if(roots.isEmpty()){
+            System.err.println("Usage: java benchmark.LoadHarness [-ops N] [-threads N] [-reverts N] [-saves N] "
+                    + "[-seed N] ROOT...");
+            System.exit(2);
+        }
+
+        System.out.printf("%-8s %8s %11s %10s %10s %10s %10s %10s%n",
+                "Phase", "Ops", "Ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        long start = System.nanoTime();
+        ImageLibrary library = new ImageLibrary(roots);
+        report("load", new long[]{System.nanoTime() - start}, System.nanoTime() - start);
+
+        LoadHarness harness = new LoadHarness(library, threads, seed);
+        try{
+            harness.runWorkflows(ops, reverts < 0 ? ops / 10 : reverts, saves);
+        }finally{
+            library.close();
+        }
+    }
+
+    /**
+     * Constructs a LoadHarness.
+     * @param library The library to drive.
+     * @param threads The number of threads running the tag, query and revert operations.
+     * @param seed Random seed.
+     */
+    LoadHarness(ImageLibrary library, int threads, long seed){
+        this.library = library;
+        this.threads = Math.max(1, threads);
+        this.seed = seed;
+    }
+
+    /**
+     * Runs every workflow after loading, in order, and prints the results.
+     * @param ops The number of tag and query operations.
+     * @param reverts The number of revert operations.
+     * @param saves The number of times the library is saved.
+     * @throws Exception ..
+     */
+    void runWorkflows(int ops, int reverts, int saves) throws Exception{
+        long start = System.nanoTime();
+        library.scan(true);
+        report("scan", new long[]{System.nanoTime() - start}, System.nanoTime() - start);
+
+        // every shard's managed images, with the shard that manages them, and every Tag name
+        ArrayList<ImageFile> images = new ArrayList<>();
+        ArrayList<ImageLibrary.Shard> shardOfImage = new ArrayList<>();
+        ArrayList<String> tagNames = new ArrayList<>();
+        for(ImageLibrary.Shard shard : library.getShards()){
+            for(ImageFile img : shard.getImageManager().getSnapshot().getImages()){
+                images.add(img);
+                shardOfImage.add(shard);
+            }
+            for(Tag tag : shard.getTagManager().getTagList()){
+                tagNames.add(tag.getTagName());
+            }
+        }
+        if(images.isEmpty() || tagNames.isEmpty()){
+            System.err.println("The library has no images or no Tags");
+            return;
+        }
+        System.err.printf("%d images, %d Tags%n", images.size(), tagNames.size());
+
+        runPhase("tag", ops, random -> {
+            int i = random.nextInt(images.size());
+            ImageLibrary.Shard shard = shardOfImage.get(i);
+            Tag tag = shard.getTagManager().getTag(tagNames.get(random.nextInt(tagNames.size())));
+            if(tag != null){
+                shard.getImageManager().retagImages(Collections.singletonList(images.get(i)),
+                        new ArrayList<>(Collections.singletonList(tag)), new ArrayList<>(), false);
+            }
+        });
+
+        runPhase("query", ops, random -> library.query(TagQuery.parse(randomQuery(random, tagNames))));
+
+        runPhase("revert", reverts, random -> {
+            int i = random.nextInt(images.size());
+            ImageFile img = images.get(i);
+            ImageLibrary.Shard shard = shardOfImage.get(i);
+            ModelSnapshot snapshot = shard.getImageManager().getSnapshot();
+            List<String> history = snapshot.getNameHistory(img);
+            if(!history.isEmpty()){
+                shard.getImageManager().setImageToOldName(img, history.get(random.nextInt(history.size())));
+            }
+        });
+
+        long[] saveNanos = new long[Math.max(1, saves)];
+        start = System.nanoTime();
+        for(int i = 0; i < saveNanos.length; i++){
+            long saveStart = System.nanoTime();
+            library.save();
+            saveNanos[i] = System.nanoTime() - saveStart;
+        }
+        report("save", saveNanos, System.nanoTime() - start);
+    }
+
+    /**
+     * Runs an operation a number of times over the threads, timing each run, and prints the results.
+     * @param name Name of the phase.
+     * @param ops The number of times to run the operation.
+     * @param operation Operation to run.
+     * @throws Exception ..
+     */
+    private void runPhase(String name, int ops, Operation operation) throws Exception{
+        if(ops <= 0){
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<long[]>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t++){
+            int count = ops / threads + (t < ops % threads ? 1 : 0);
+            Random random = new Random(seed * 31 + name.hashCode() * 17 + t);
+            results.add(executor.submit(() -> {
+                long[] nanos = new long[count];
+                for(int i = 0; i < count; i++){
+                    long opStart = System.nanoTime();
+                    operation.run(random);
+                    nanos[i] = System.nanoTime() - opStart;
+                }
+                return nanos;
+            }));
+        }
+        long[] all = new long[ops];
+        int filled = 0;
+        for(Future<long[]> result : results){
+            long[] nanos = result.get();
+            System.arraycopy(nanos, 0, all, filled, nanos.length);
+            filled += nanos.length;
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        report(name, all, elapsed);
+    }
+
+    /**
+     * Returns a random query over the Tags: a single Tag, or two or three Tags combined with AND, OR and NOT.
+     * @param random Source of randomness.
+     * @param tagNames The Tag names to choose from.
+     * @return The query.
+     */
+    private static String randomQuery(Random random, List<String> tagNames){
+        String a = tagNames.get(random.nextInt(tagNames.size()));
+        String b = tagNames.get(random.nextInt(tagNames.size()));
+        String c = tagNames.get(random.nextInt(tagNames.size()));
+        switch(random.nextInt(4)){
+            case 0: return a;
+            case 1: return a + " AND " + b;
+            case 2: return a + " OR " + b;
+            default: return "(" + a + " OR " + b + ") AND NOT " + c;
+        }
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of a phase.
+     * @param name Name of the phase.
+     * @param nanos How long each operation took, in nanoseconds.
+     * @param elapsedNanos How long the whole phase took, in nanoseconds.
+     */
+    private static void report(String name, long[] nanos, long elapsedNanos){
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-8s %8d %11.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, sorted.length,
+                sorted.length / (elapsedNanos / 1e9), percentile(sorted, 50), percentile(sorted, 90),
+                percentile(sorted, 99), percentile(sorted, 99.9), sorted[sorted.length - 1] / 1e6);
+        System.out.flush();
+    }
+
+    /**
+     * Returns a percentile of sorted latencies, by the nearest-rank method.
+     * @param sorted Latencies in nanoseconds, sorted.
+     * @param percent The percentile.
+     * @return The percentile, in milliseconds.
+     */
+    private static double percentile(long[] sorted, double percent){
+        int rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1e6;
+    }
+}
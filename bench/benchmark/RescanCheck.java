@@ -0,0 +1,159 @@
+package benchmark;
+
+import image.ImageFile;
+import image.ImageManager;
+import image.ModelSnapshot;
+import tag.TagManager;
+import tag.TagQuery;
+import utils.ImageLibrary;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * RescanCheck. Scans a library, such as one made by LibraryGenerator, again and again, as reopening a directory in
+ * the GUI does, and checks after each scan that
+ *
+ *   - no two images the snapshot knows are the same file,
+ *   - the query NOT * (through the QueryCache) matches exactly the known images with no Tags, each once,
+ *   - a SavedView of NOT * holds exactly the images its query matches.
+ *
+ * Every scan makes a new ImageFile for each untagged file, so the ImageFiles of the scan before have to be dropped.
+ * Every other scan only looks at the images directly in the root, which are none in a generated library, so the
+ * untagged images leave the managed list altogether. The view is saved with the library, so a second run over the
+ * same library also checks that the untagged members it loads are dropped for the ones the first scan makes.
+ *
+ * Exits with status 1 if any check fails. Nothing is renamed on disk.
+ *
+ * Options:
+ *
+ *   -scans 5               the number of scans
+ *   ROOT                   the root directory of the library
+ *
+ * To run, from the src directory (see BenchMain for compiling):
+ *   java -cp ../benchout benchmark.RescanCheck -scans 5 /tmp/library
+ */
+public class RescanCheck {
+    /**
+     * Runs the check.
+     * @param args Options, as described above.
+     * @throws Exception ..
+     */
+    public static void main(String[] args) throws Exception{
+        int scans = 5;
+        File root = null;
+        for(int i = 0; i < args.length; i++){
+            if(args[i].equals("-scans")){
+                scans = Integer.parseInt(args[++i]);
+            }
+            else if(args[i].startsWith("-") || root != null){
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(2);
+            }
+            else{
+                root = new File(args[i]);
+            }
+        }
+        if(root == null){
+            System.err.println("Usage: java benchmark.RescanCheck [-scans N] ROOT");
+            System.exit(2);
+        }
+
+        ArrayList<String> problems = new ArrayList<>();
+        ImageLibrary library = new ImageLibrary(Collections.singletonList(root));
+        try{
+            library.scan(true);
+            ImageLibrary.Shard shard = library.getShards().get(0);
+            ImageManager imageManager = shard.getImageManager();
+            TagManager tagManager = shard.getTagManager();
+            imageManager.saveView("rescan", "NOT *");
+            check(imageManager, tagManager, "the first scan", problems);
+            for(int scan = 1; scan <= scans; scan++){
+                boolean recursive = scan % 2 == 0;
+                library.scan(recursive);
+                check(imageManager, tagManager, (recursive ? "full scan " : "root-only scan ") + scan, problems);
+            }
+            library.scan(true);
+            check(imageManager, tagManager, "the last scan", problems);
+            library.save();
+            System.err.printf("%d images known, %d of them untagged%n",
+                    imageManager.getSnapshot().getKnownImages().size(),
+                    TagQuery.parse("NOT *").evaluate(imageManager.getSnapshot(), tagManager).size());
+        }finally{
+            library.close();
+        }
+
+        for(String problem : problems){
+            System.out.println(problem);
+        }
+        System.out.println(problems.isEmpty() ? "OK" : problems.size() + " problems");
+        if(!problems.isEmpty()){
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks the latest snapshot of an ImageManager after a scan.
+     * @param imageManager ImageManager of the library.
+     * @param tagManager TagManager of the library.
+     * @param after The scan just made, for the problems found.
+     * @param problems Where to add the problems found.
+     */
+    private static void check(ImageManager imageManager, TagManager tagManager, String after,
+                              ArrayList<String> problems){
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        HashSet<String> names = new HashSet<>();
+        Set<ImageFile> untagged = identitySet();
+        for(ImageFile img : snapshot.getKnownImages()){
+            String path = snapshot.getFile(img).getPath();
+            if(!names.add(path)){
+                problems.add("after " + after + ", more than one image is known as " + path);
+            }
+            if(snapshot.getTags(img).isEmpty()){
+                untagged.add(img);
+            }
+        }
+
+        ArrayList<ImageFile> found = TagQuery.parse("NOT *").evaluate(snapshot, tagManager);
+        Set<ImageFile> foundOnce = identitySet();
+        foundOnce.addAll(found);
+        if(foundOnce.size() != found.size()){
+            problems.add("after " + after + ", NOT * matched " + (found.size() - foundOnce.size())
+                    + " images more than once");
+        }
+        if(!foundOnce.equals(untagged)){
+            problems.add("after " + after + ", NOT * matched " + foundOnce.size() + " images, not the "
+                    + untagged.size() + " known images with no Tags");
+        }
+
+        Set<ImageFile> members = identitySet();
+        members.addAll(imageManager.getSavedView("rescan").getImages());
+        if(!members.equals(identitySet(TagQuery.parse("NOT *").evaluate(imageManager.getSnapshot(), tagManager)))){
+            problems.add("after " + after + ", the view of NOT * does not hold the images its query matches");
+        }
+    }
+
+    /**
+     * Makes a set that compares ImageFiles by identity.
+     * @param images ImageFiles to put in the set.
+     * @return The set.
+     */
+    private static Set<ImageFile> identitySet(Collection<ImageFile> images){
+        Set<ImageFile> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(images);
+        return set;
+    }
+
+    /**
+     * Makes an empty set that compares ImageFiles by identity.
+     * @return The set.
+     */
+    private static Set<ImageFile> identitySet(){
+        return identitySet(Collections.emptyList());
+    }
+}
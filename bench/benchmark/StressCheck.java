@@ -0,0 +1,324 @@
+package benchmark;
+
+import image.ImageFile;
+import image.ImageManager;
+import image.ModelSnapshot;
+import tag.Tag;
+import tag.TagManager;
+import tag.TagQuery;
+import utils.ImageLibrary;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StressCheck. Tags, untags and reverts the images of a library, such as one made by LibraryGenerator, on some
+ * threads while others run queries, and checks that every answer is right for the snapshot it was worked out from.
+ *
+ * Writers tag and untag random images with the Tags s1, s2 and s3, and revert random images to a random old name.
+ * Readers take a snapshot, run one of a few queries over those Tags (through the QueryCache), and compare the answer
+ * with the one worked out by hand from the snapshot's postings; they also check that the written images' Tags in the
+ * snapshot are the Tags in their file names, which a revert racing with a tagging breaks. Once the writers are done,
+ * it checks that
+ *
+ *   - every image's Tags in the snapshot are the Tags in its file name,
+ *   - every image is in the postings of its Tags, and the postings hold no other image,
+ *   - every SavedView holds exactly the images its query matches.
+ *
+ * Exits with status 1 if any check fails. The library's files are renamed on disk, as tagging in the GUI does.
+ *
+ * Options:
+ *
+ *   -ops 3000              the number of tag and untag operations of each writer
+ *   -reverts 200           the number of revert operations of each writer (each one saves the persistence files,
+ *                          as reverting in the GUI does, so they are much slower)
+ *   -writers 2             the number of writer threads
+ *   -readers 4             the number of reader threads
+ *   -images 0              the number of images the writers work on, so that they often work on the same images at
+ *                          once (every image by default)
+ *   -seed 1                random seed
+ *   ROOT                   the root directory of the library
+ *
+ * Reverts racing with taggings of the same image are rare unless few images are written by many writers, e.g.
+ * -images 2 -writers 8 -ops 500 -reverts 500, which takes a couple of minutes.
+ *
+ * To run, from the src directory (see BenchMain for compiling):
+ *   java -cp ../benchout benchmark.StressCheck -ops 5000 /tmp/library
+ */
+public class StressCheck {
+    /**
+     * The Tags the writers tag and untag images with.
+     */
+    private static final String[] TAG_NAMES = {"s1", "s2", "s3"};
+    /**
+     * The queries the readers run.
+     */
+    private static final String[] QUERIES = {"s1", "s1 AND s2", "s2 & s1", "NOT s3", "s1 OR s3", "!!s2",
+            "s1 AND NOT s2"};
+    /**
+     * The queries of the SavedViews kept up to date while the writers run.
+     */
+    private static final String[] VIEW_QUERIES = {"NOT *", "s1 AND NOT s2", "s1 OR s3", "*"};
+
+    /**
+     * Runs the check.
+     * @param args Options, as described above.
+     * @throws Exception ..
+     */
+    public static void main(String[] args) throws Exception{
+        int ops = 3000;
+        int reverts = 200;
+        int writers = 2;
+        int readers = 4;
+        int hot = 0;
+        long seed = 1;
+        File root = null;
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "-ops": ops = Integer.parseInt(args[++i]); break;
+                case "-reverts": reverts = Integer.parseInt(args[++i]); break;
+                case "-writers": writers = Integer.parseInt(args[++i]); break;
+                case "-readers": readers = Integer.parseInt(args[++i]); break;
+                case "-images": hot = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    if(args[i].startsWith("-") || root != null){
+                        System.err.println("Unknown option: " + args[i]);
+                        System.exit(2);
+                    }
+                    root = new File(args[i]);
+            }
+        }
+        if(root == null){
+            System.err.println("Usage: java benchmark.StressCheck [-ops N] [-reverts N] [-writers N] [-readers N] "
+                    + "[-images N] [-seed N] ROOT");
+            System.exit(2);
+        }
+
+        ImageLibrary library = new ImageLibrary(Collections.singletonList(root));
+        ArrayList<String> problems;
+        try{
+            library.scan(true);
+            ImageLibrary.Shard shard = library.getShards().get(0);
+            problems = run(shard.getImageManager(), shard.getTagManager(), ops, reverts, writers, readers, hot,
+                    seed);
+            // the writers do not save their taggings, so the persistence files are brought in line with the files
+            // on disk for the next run
+            library.save();
+        }finally{
+            library.close();
+        }
+
+        for(String problem : problems){
+            System.out.println(problem);
+        }
+        System.out.println(problems.isEmpty() ? "OK" : problems.size() + " problems");
+        if(!problems.isEmpty()){
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the writers and readers against an ImageManager, then checks what they left.
+     * @param imageManager ImageManager of the library.
+     * @param tagManager TagManager of the library.
+     * @param ops The number of tag and untag operations of each writer.
+     * @param reverts The number of revert operations of each writer.
+     * @param writers The number of writer threads.
+     * @param readers The number of reader threads.
+     * @param hot The number of images the writers work on, or 0 for every image.
+     * @param seed Random seed.
+     * @return The problems found.
+     * @throws Exception ..
+     */
+    private static ArrayList<String> run(ImageManager imageManager, TagManager tagManager, int ops, int reverts,
+                                         int writers, int readers, int hot, long seed) throws Exception{
+        tagManager.addTags(Arrays.asList(TAG_NAMES));
+        List<ImageFile> images = new ArrayList<>(imageManager.getSnapshot().getImages());
+        List<ImageFile> written = hot > 0 && hot < images.size() ? images.subList(0, hot) : images;
+        for(int v = 0; v < VIEW_QUERIES.length; v++){
+            imageManager.saveView("stress" + v, VIEW_QUERIES[v]);
+        }
+        System.err.printf("%d images, %d of them written%n", images.size(), written.size());
+
+        AtomicLong runningWriters = new AtomicLong(writers);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong checks = new AtomicLong();
+        AtomicLong wrong = new AtomicLong();
+        AtomicLong mismatched = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        ArrayList<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int w = 0; w < writers; w++){
+            Random random = new Random(seed * 31 + w);
+            results.add(executor.submit(() -> {
+                try{
+                    for(int i = 0; i < ops + reverts; i++){
+                        ImageFile img = written.get(random.nextInt(written.size()));
+                        // the reverts are spread among the tag operations
+                        if(random.nextInt(ops + reverts) < reverts){
+                            List<String> history = imageManager.getSnapshot().getNameHistory(img);
+                            if(!history.isEmpty()){
+                                imageManager.setImageToOldName(img, history.get(random.nextInt(history.size())));
+                            }
+                            continue;
+                        }
+                        Tag tag = tagManager.getTag(TAG_NAMES[random.nextInt(TAG_NAMES.length)]);
+                        ArrayList<Tag> tagsToAdd = new ArrayList<>();
+                        ArrayList<Tag> tagsToRemove = new ArrayList<>();
+                        (random.nextBoolean() ? tagsToAdd : tagsToRemove).add(tag);
+                        imageManager.retagImages(Collections.singletonList(img), tagsToAdd, tagsToRemove, false);
+                    }
+                }finally{
+                    if(runningWriters.decrementAndGet() == 0){
+                        stop.set(true);
+                    }
+                }
+                return null;
+            }));
+        }
+        for(int r = 0; r < readers; r++){
+            Random random = new Random(seed * 37 + r);
+            results.add(executor.submit(() -> {
+                while(!stop.get()){
+                    ModelSnapshot snapshot = imageManager.getSnapshot();
+                    int q = random.nextInt(QUERIES.length);
+                    Set<ImageFile> found = identitySet(TagQuery.parse(QUERIES[q]).evaluate(snapshot, tagManager));
+                    checks.incrementAndGet();
+                    if(!found.equals(expected(snapshot, tagManager, q))){
+                        wrong.incrementAndGet();
+                    }
+                    for(ImageFile img : written){
+                        if(!tagNamesOf(snapshot, img).equals(namedTagsOf(snapshot, img))){
+                            mismatched.incrementAndGet();
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        for(Future<?> result : results){
+            result.get();
+        }
+        executor.shutdown();
+        System.err.printf("%d queries checked in %.1f s%n", checks.get(), (System.nanoTime() - start) / 1e9);
+
+        ArrayList<String> problems = new ArrayList<>();
+        if(wrong.get() > 0){
+            problems.add(wrong.get() + " of " + checks.get() + " queries had a wrong answer");
+        }
+        if(mismatched.get() > 0){
+            problems.add(mismatched.get() + " times an image's Tags were not the Tags in its file name");
+        }
+        checkModel(imageManager.getSnapshot(), problems);
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        for(int v = 0; v < VIEW_QUERIES.length; v++){
+            Set<ImageFile> members = identitySet(imageManager.getSavedView("stress" + v).getImages());
+            if(!members.equals(identitySet(TagQuery.parse(VIEW_QUERIES[v]).evaluate(snapshot, tagManager)))){
+                problems.add("view " + VIEW_QUERIES[v] + " does not hold the images its query matches");
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Works out the answer to one of the queries by hand, from a snapshot's postings.
+     * @param snapshot Snapshot to work it out from.
+     * @param tagManager TagManager holding the Tags.
+     * @param query Index of the query in QUERIES.
+     * @return The ImageFiles the query should match.
+     */
+    private static Set<ImageFile> expected(ModelSnapshot snapshot, TagManager tagManager, int query){
+        Set<ImageFile> s1 = identitySet(snapshot.getImagesWithTag(tagManager.getTag("s1")));
+        Set<ImageFile> s2 = identitySet(snapshot.getImagesWithTag(tagManager.getTag("s2")));
+        Set<ImageFile> s3 = identitySet(snapshot.getImagesWithTag(tagManager.getTag("s3")));
+        Set<ImageFile> images = identitySet(Collections.emptyList());
+        switch(query){
+            case 0: images.addAll(s1); break;
+            case 1: case 2: images.addAll(s1); images.retainAll(s2); break;
+            case 3: images.addAll(snapshot.getKnownImages()); images.removeAll(s3); break;
+            case 4: images.addAll(s1); images.addAll(s3); break;
+            case 5: images.addAll(s2); break;
+            default: images.addAll(s1); images.removeAll(s2); break;
+        }
+        return images;
+    }
+
+    /**
+     * Checks that every image's Tags are the Tags in its file name, and that the postings agree with them.
+     * @param snapshot Snapshot to check.
+     * @param problems Where to add the problems found.
+     */
+    private static void checkModel(ModelSnapshot snapshot, List<String> problems){
+        IdentityHashMap<Tag,Set<ImageFile>> postings = new IdentityHashMap<>();
+        for(ImageFile img : snapshot.getKnownImages()){
+            TreeSet<String> tagNames = tagNamesOf(snapshot, img);
+            if(!tagNames.equals(namedTagsOf(snapshot, img))){
+                problems.add(snapshot.getFile(img).getName() + " has the Tags " + tagNames);
+            }
+            for(Tag tag : snapshot.getTags(img)){
+                postings.computeIfAbsent(tag, t -> identitySet(Collections.emptyList())).add(img);
+            }
+        }
+        for(Tag tag : postings.keySet()){
+            if(!identitySet(snapshot.getImagesWithTag(tag)).equals(postings.get(tag))){
+                problems.add("the postings of " + tag.getTagName() + " do not match the images tagged with it");
+            }
+        }
+    }
+
+    /**
+     * Returns the names of an image's Tags in a snapshot.
+     * @param snapshot Snapshot holding the image.
+     * @param img The image.
+     * @return The names of its Tags.
+     */
+    private static TreeSet<String> tagNamesOf(ModelSnapshot snapshot, ImageFile img){
+        TreeSet<String> tagNames = new TreeSet<>();
+        for(Tag tag : snapshot.getTags(img)){
+            tagNames.add(tag.getTagName());
+        }
+        return tagNames;
+    }
+
+    /**
+     * Returns the names of the Tags in an image's file name in a snapshot.
+     * @param snapshot Snapshot holding the image.
+     * @param img The image.
+     * @return The names after each @ in its file name.
+     */
+    private static TreeSet<String> namedTagsOf(ModelSnapshot snapshot, ImageFile img){
+        String name = snapshot.getFile(img).getName();
+        TreeSet<String> tagNames = new TreeSet<>();
+        for(String word : name.substring(0, Math.max(0, name.lastIndexOf('.'))).split("\\s+")){
+            if(word.startsWith("@")){
+                tagNames.add(word.substring(1));
+            }
+        }
+        return tagNames;
+    }
+
+    /**
+     * Returns a set of ImageFiles compared by identity.
+     * @param images ImageFiles to put in the set.
+     * @return A new set holding them.
+     */
+    private static Set<ImageFile> identitySet(Collection<ImageFile> images){
+        Set<ImageFile> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(images);
+        return set;
+    }
+}
@@ -0,0 +1,240 @@
+package image;
+
+import benchmark.Benchmark;
+import tag.TagManager;
+import utils.ConfigurationManager;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * ImageBenchmarks. Benchmarks of the ImageFile and ImageManager hot paths, on a library of a given size.
+ *
+ * The library is built by importing a generated export (see ModelTransfer), so its files do not exist, except for
+ * a small set of real, empty files that the tagImage benchmark renames. Every image has one to three of 100 Tags.
+ * The MemoryReport rows compare the heap the MemoryReport estimates the model retains with the heap actually in use
+ * after loading it, per image. The heap the program keeps once it has loaded any library at all (its classes' static
+ * state, lambdas and the like, which the MemoryReport does not count) is measured apart, with a small throwaway
+ * library before the first size, and reported once as MemoryReport.fixed; otherwise the first size would take it all
+ * on, which is 1,500 bytes per image at 1,000 images.
+ */
+public class ImageBenchmarks {
+    /**
+     * The number of Tags in the library.
+     */
+    private static final int TAG_COUNT = 100;
+    /**
+     * The number of real files the tagImage benchmark renames.
+     */
+    private static final int REAL_FILE_COUNT = 1000;
+    /**
+     * The number of Tags the tagImage benchmark cycles through.
+     */
+    private static final int BENCH_TAG_COUNT = 64;
+    /**
+     * The number of images, and of real files, in the throwaway library loaded to measure the fixed overhead.
+     */
+    private static final int FIXED_LIBRARY_SIZE = 100;
+    /**
+     * Whether the fixed overhead has been measured, which is done before the first size only.
+     */
+    private static boolean fixedMeasured;
+
+    /**
+     * Runs the benchmarks on a library of a given size.
+     * @param benchmark Benchmark to measure with.
+     * @param size The number of images in the library.
+     * @param directory Empty directory for the library's files.
+     * @throws Exception ..
+     */
+    public static void run(Benchmark benchmark, int size, File directory) throws Exception{
+        boolean footprint = benchmark.isSelected("MemoryReport");
+        if(footprint && !fixedMeasured){
+            fixedMeasured = true;
+            long heapBeforeFixed = Benchmark.usedHeapAfterGc();
+            loadThrowawayLibrary(new File(directory, "fixed"));
+            benchmark.report("MemoryReport.fixed", size, Benchmark.usedHeapAfterGc() - heapBeforeFixed, "B");
+        }
+        long heapBefore = footprint ? Benchmark.usedHeapAfterGc() : 0;
+        // the string table shared by every NameHistory is kept from the libraries of earlier sizes
+        long sharedStringsBefore = footprint ? NameHistory.estimateSharedTableBytes() : 0;
+
+        ConfigurationManager configurationManager = new ConfigurationManager(directory);
+        ImageManager imageManager = new ImageManager(configurationManager.getSerializedImagesFile().getPath());
+        TagManager tagManager = new TagManager(configurationManager.getSerializedTagsFile().getPath());
+        imageManager.setTagManager(tagManager);
+        configurationManager.setTagManager(tagManager);
+        configurationManager.setImageManager(imageManager);
+
+        int realFiles = Math.min(size, REAL_FILE_COUNT);
+        File export = new File(directory, "library.jsonl");
+        File realDirectory = new File(directory, "real");
+        writeLibrary(export, new File(directory, "images"), size - realFiles, realDirectory, realFiles);
+        try(Reader reader = new InputStreamReader(new FileInputStream(export), StandardCharsets.UTF_8)){
+            new ModelTransfer(imageManager, tagManager).importModel(reader, ModelTransfer.Format.JSONL, null, false);
+        }
+
+        if(footprint){
+            // the heap the model retains, measured before the benchmarks below make anything else
+            long measured = Benchmark.usedHeapAfterGc() - heapBefore;
+            MemoryReport report = MemoryReport.measure(imageManager, tagManager, null);
+            long estimated = report.getTotalBytes() - sharedStringsBefore;
+            benchmark.report("MemoryReport.estimated", size, (double) estimated / size, "B/image");
+            benchmark.report("MemoryReport.measured", size, (double) measured / size, "B/image");
+            benchmark.report("MemoryReport.error", size, 100.0 * (estimated - measured) / measured, "%");
+            for(String part : new String[]{"image records", "directories", "image indexes", "name histories",
+                    "tag postings", "snapshot"}){
+                benchmark.report("MemoryReport." + part.replace(' ', '.'), size,
+                        (double) report.getBytes(part) / size, "B/image");
+            }
+        }
+
+        ArrayList<ImageFile> images = imageManager.getListOfTaggedImages();
+        // an untagged ImageFile for each image, as the views create when a file is picked
+        ArrayList<ImageFile> untagged = new ArrayList<>(images.size());
+        for(ImageFile img : images){
+            untagged.add(new ImageFile(new File(img.getImageFilePath().getParentFile(),
+                    img.getUntaggedName(true))));
+        }
+        int n = images.size();
+
+        benchmark.run("ImageFile.equals", size, index -> {
+            int i = (int) (index % n);
+            return images.get(i).equals(untagged.get(i));
+        });
+
+        benchmark.run("ImageFile.getUntaggedName", size,
+                index -> images.get((int) (index % n)).getUntaggedName(true));
+
+        benchmark.run("ModelSnapshot.getImagesInDirectory", size,
+                index -> imageManager.getSnapshot().getImagesInDirectory(realDirectory));
+
+        // the snapshot made when one image changes, without renaming its file or saving
+        benchmark.run("ModelSnapshot.withChanges", size, index -> imageManager.getSnapshot()
+                .withChanges(Collections.singletonList(images.get((int) (index % n)))));
+
+        if(benchmark.isSelected("ImageManager.tagImage")){
+            ArrayList<ImageFile> real = new ArrayList<>();
+            for(ImageFile img : images){
+                if(img.getImageFilePath().exists()){
+                    real.add(img);
+                }
+            }
+            ArrayList<String> benchTags = new ArrayList<>();
+            for(int i = 0; i < BENCH_TAG_COUNT; i++){
+                benchTags.add("bench" + i);
+            }
+            tagManager.addTags(benchTags);
+            // each op renames one real file, adding the next bench Tag; then publishes and saves, as the GUI does
+            benchmark.run("ImageManager.tagImage", size, index -> {
+                ImageFile img = real.get((int) (index % real.size()));
+                imageManager.tagImage(img, benchTags.get((int) (index / real.size() % BENCH_TAG_COUNT)));
+                return img;
+            });
+        }
+
+        File saved = new File(directory, "bench.ser");
+        benchmark.run("ImageManager.saveToFile", size, index -> {
+            imageManager.saveToFile(saved.getPath());
+            return saved;
+        });
+
+        if(benchmark.isSelected("ImageManager.readFromFile")){
+            configurationManager.updatePersistenceFiles();
+            String imagesPath = configurationManager.getSerializedImagesFile().getPath();
+            String tagsPath = configurationManager.getSerializedTagsFile().getPath();
+            // reads both persistence files and links them, as loading the program does
+            benchmark.run("ImageManager.readFromFile", size, index -> {
+                ImageManager loaded = new ImageManager(imagesPath);
+                loaded.setTagManager(new TagManager(tagsPath));
+                return loaded;
+            });
+        }
+    }
+
+    /**
+     * Loads a small library, measures its model and drops it, so that everything the program keeps once it has
+     * loaded any library is in the heap before the model of a size is measured.
+     * @param directory Directory for the library's files, which must not exist yet.
+     * @throws Exception ..
+     */
+    private static void loadThrowawayLibrary(File directory) throws Exception{
+        if(!directory.mkdirs()){
+            throw new IOException("Failed to create " + directory);
+        }
+        ConfigurationManager configurationManager = new ConfigurationManager(directory);
+        ImageManager imageManager = new ImageManager(configurationManager.getSerializedImagesFile().getPath());
+        TagManager tagManager = new TagManager(configurationManager.getSerializedTagsFile().getPath());
+        imageManager.setTagManager(tagManager);
+        configurationManager.setTagManager(tagManager);
+        configurationManager.setImageManager(imageManager);
+
+        File export = new File(directory, "library.jsonl");
+        writeLibrary(export, new File(directory, "images"), FIXED_LIBRARY_SIZE, new File(directory, "real"),
+                FIXED_LIBRARY_SIZE);
+        try(Reader reader = new InputStreamReader(new FileInputStream(export), StandardCharsets.UTF_8)){
+            new ModelTransfer(imageManager, tagManager).importModel(reader, ModelTransfer.Format.JSONL, null, false);
+        }
+        MemoryReport.measure(imageManager, tagManager, null);
+    }
+
+    /**
+     * Writes a JSONL export of a generated library.
+     * @param export File to write the export to.
+     * @param imageDirectory Directory the (not existing) images are in.
+     * @param imageCount The number of images that are not real files.
+     * @param realDirectory Directory to create the real files in.
+     * @param realCount The number of real files.
+     * @throws IOException ..
+     */
+    private static void writeLibrary(File export, File imageDirectory, int imageCount, File realDirectory,
+                                     int realCount) throws IOException{
+        if(!realDirectory.mkdirs()){
+            throw new IOException("Failed to create " + realDirectory);
+        }
+        Random random = new Random(42);
+        try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(export),
+                StandardCharsets.UTF_8))){
+            for(int i = 0; i < imageCount; i++){
+                StringBuilder name = new StringBuilder("IMG_" + i);
+                StringBuilder tags = new StringBuilder();
+                int tagCount = 1 + random.nextInt(3);
+                for(int t = 0; t < tagCount; t++){
+                    String tagName = "tag" + random.nextInt(TAG_COUNT);
+                    name.append(" @").append(tagName);
+                    tags.append(t > 0 ? "," : "").append('"').append(tagName).append('"');
+                }
+                File file = new File(imageDirectory, name + ".jpg");
+                out.write("{\"file\":\"" + escape(file.getPath()) + "\",\"tags\":[" + tags
+                        + "],\"names\":[\"IMG_" + i + "\"]}\n");
+            }
+            for(int i = 0; i < realCount; i++){
+                File file = new File(realDirectory, "REAL_" + i + ".jpg");
+                if(!file.createNewFile()){
+                    throw new IOException("Failed to create " + file);
+                }
+                out.write("{\"file\":\"" + escape(file.getPath()) + "\",\"tags\":[],\"names\":[]}\n");
+            }
+        }
+    }
+
+    /**
+     * Escapes a path for a JSON string.
+     * @param path Path to escape.
+     * @return The escaped path.
+     */
+    private static String escape(String path){
+        return path.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,71 @@
+package tag;
+
+import benchmark.Benchmark;
+import image.ImageFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * TagBenchmarks. Benchmarks of the Tag and TagManager hot paths, at a given library size.
+ */
+public class TagBenchmarks {
+    /**
+     * The number of ImageFiles added to a Tag in one iteration of the addImageToTag benchmark.
+     */
+    private static final int ADDS_PER_ITERATION = 10000;
+    /**
+     * The number of Tag names looked up at once by the getTags benchmark.
+     */
+    private static final int NAMES_PER_LOOKUP = 5;
+
+    /**
+     * Runs the benchmarks at a given library size.
+     * @param benchmark Benchmark to measure with.
+     * @param size The number of images in the library.
+     * @throws Exception ..
+     */
+    public static void run(Benchmark benchmark, int size) throws Exception{
+        if(benchmark.isSelected("Tag.addImageToTag")){
+            // a Tag on every image in the library, then ImageFiles that it does not have yet
+            ArrayList<ImageFile> tagged = new ArrayList<>(size);
+            for(int i = 0; i < size; i++){
+                tagged.add(new ImageFile(new File("IMG_" + i + " @bench.jpg")));
+            }
+            ArrayList<ImageFile> added = new ArrayList<>(ADDS_PER_ITERATION);
+            for(int i = 0; i < ADDS_PER_ITERATION; i++){
+                added.add(new ImageFile(new File("NEW_" + i + ".jpg")));
+            }
+            Tag tag = new Tag("bench");
+            benchmark.run("Tag.addImageToTag", size, () -> tag.setTaggedImages(tagged), ADDS_PER_ITERATION,
+                    index -> {
+                        tag.addImageToTag(added.get((int) index));
+                        return tag;
+                    });
+        }
+
+        if(benchmark.isSelected("TagManager.getTags")){
+            // one Tag for every ten images, looked up a few names at a time as tagging several at once does
+            int tagCount = Math.max(1, size / 10);
+            ArrayList<String> tagNames = new ArrayList<>(tagCount);
+            for(int i = 0; i < tagCount; i++){
+                tagNames.add("tag" + i);
+            }
+            TagManager tagManager = new TagManager();
+            tagManager.addTags(tagNames);
+            Random random = new Random(42);
+            ArrayList<ArrayList<String>> lookups = new ArrayList<>();
+            for(int i = 0; i < 1024; i++){
+                ArrayList<String> lookup = new ArrayList<>(NAMES_PER_LOOKUP);
+                for(int j = 0; j < NAMES_PER_LOOKUP; j++){
+                    // one in five names is not a Tag
+                    lookup.add(j == 0 ? "missing" + i : tagNames.get(random.nextInt(tagCount)));
+                }
+                lookups.add(lookup);
+            }
+            benchmark.run("TagManager.getTags", size,
+                    index -> tagManager.getTags(lookups.get((int) (index & 1023))));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+#!/bin/sh
+# Starts the program with an AppCDS (application class data sharing) archive, so that the JVM maps the program's
+# classes from the archive instead of loading, verifying and linking them one by one. Only the classes loaded from the
+# -cp jar are sure to be archived: AppCDS does not archive classes from the module path, so JavaFX classes from a
+# separate JavaFX SDK load as usual. Such an SDK is added with JAVAC_OPTS and JAVA_OPTS both set to
+# "--module-path <sdk>/lib --add-modules javafx.controls".
+#
+#   ./fast-start.sh [--rebuild] [PROGRAM ARGUMENTS...]
+#
+# The first run compiles the program into build/imagetags.jar and records the classes it loads into
+# build/<main class>.jsa when it exits; later runs start from the archive. Run with --rebuild after changing the
+# sources (or the JDK) to make both again. MAIN_CLASS picks another program, e.g. MAIN_CLASS=main.BatchMain,
+# JAVAC_OPTS adds options for the compiler and JAVA_OPTS adds options for the JVM.
+# Needs JDK 13 or later (with JavaFX); the program runs, just without the archive, if the archive does not match.
+
+MAIN_CLASS=${MAIN_CLASS:-main.Main}
+ROOT=$(cd "$(dirname "$0")" && pwd)
+BUILD="$ROOT/build"
+JAR="$BUILD/imagetags.jar"
+ARCHIVE="$BUILD/$MAIN_CLASS.jsa"
+
+if [ "$1" = "--rebuild" ]; then
+    shift
+    rm -rf "$BUILD"
+fi
+
+if [ ! -f "$JAR" ]; then
+    echo "Compiling into $JAR"
+    mkdir -p "$BUILD/classes" || exit 1
+    (cd "$ROOT/src" && javac $JAVAC_OPTS -d "$BUILD/classes" $(find . -name '*.java')) || exit 1
+    # class data sharing only archives classes loaded from JAR files
+    jar cf "$JAR" -C "$BUILD/classes" . || exit 1
+fi
+
+# the program keeps its persistence files in the working directory
+cd "$ROOT/src" || exit 1
+if [ -f "$ARCHIVE" ]; then
+    exec java -XX:SharedArchiveFile="$ARCHIVE" $JAVA_OPTS -cp "$JAR" "$MAIN_CLASS" "$@"
+fi
+echo "Recording the classes used into $ARCHIVE (the next start will use it)"
+exec java -XX:ArchiveClassesAtExit="$ARCHIVE" $JAVA_OPTS -cp "$JAR" "$MAIN_CLASS" "$@"
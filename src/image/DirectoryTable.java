@@ -0,0 +1,112 @@
+package image;
+
+import utils.HeapSize;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A DirectoryTable. Every directory that holds an ImageFile, each stored once and known by an ID, so that an
+ * ImageFile only keeps the ID of its directory and its own file name rather than a whole path.
+ *
+ * A library of a million images usually lives in a few thousand directories, so this holds each directory's path
+ * once instead of once per image, and an image in a given directory is found by comparing IDs rather than paths.
+ * Directories are never removed: an ID stays valid for as long as the program runs. IDs are not saved; they are given
+ * out again as the ImageFiles are loaded.
+ *
+ * Looking up a directory by its ID does not lock, since it happens every time a File or Path of an ImageFile is
+ * made; adding a directory (which is rare) is done under the table's lock.
+ */
+final class DirectoryTable {
+    /**
+     * The path of each directory, indexed by its ID. Is replaced by a larger copy when full, so that readers never
+     * see an array that is being changed. A null path is the directory of files given without one.
+     */
+    private static volatile String[] paths = new String[64];
+    /**
+     * The ID of each directory's path.
+     */
+    private static final HashMap<String,Integer> ids = new HashMap<>();
+
+    /**
+     * Returns the ID of a directory, adding it to the table if it is not in it yet.
+     * @param directory Path of the directory (as given by File.getParent), or null for none.
+     * @return The ID of the directory.
+     */
+    static synchronized int idOf(String directory){
+        Integer id = ids.get(directory);
+        if(id == null){
+            id = ids.size();
+            String[] current = paths;
+            if(id == current.length){
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[id] = directory;
+            // publish the path before the ID can be handed to another thread
+            paths = current;
+            ids.put(directory, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the ID of a directory if it is in the table, without adding it.
+     * @param directory Path of the directory.
+     * @return The ID of the directory, or -1 if no ImageFile has been in it.
+     */
+    static synchronized int find(String directory){
+        Integer id = ids.get(directory);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Makes the File of a file in a directory.
+     * @param id ID of the directory.
+     * @param fileName Name of the file.
+     * @return The File.
+     */
+    static File file(int id, String fileName){
+        String directory = paths[id];
+        return directory == null ? new File(fileName) : new File(directory, fileName);
+    }
+
+    /**
+     * Makes the Path of a file in a directory.
+     * @param id ID of the directory.
+     * @param fileName Name of the file.
+     * @return The Path.
+     */
+    static Path path(int id, String fileName){
+        String directory = paths[id];
+        return directory == null ? Paths.get(fileName) : Paths.get(directory, fileName);
+    }
+
+    /**
+     * Returns the number of directories in the table.
+     * @return The number of directories.
+     */
+    static synchronized int size(){
+        return ids.size();
+    }
+
+    /**
+     * Returns an estimate of the number of bytes the table takes on the heap.
+     * @return The estimated number of bytes of the table.
+     */
+    static synchronized long estimateBytes(){
+        long bytes = HeapSize.referenceArray(paths.length) + HeapSize.hashMap(ids.size());
+        for(String path : ids.keySet()){
+            bytes += HeapSize.string(path);
+        }
+        // IDs from 128 up are boxed into an Integer of their own
+        return bytes + Math.max(0, ids.size() - 128) * HeapSize.object(0, 4);
+    }
+
+    /**
+     * DirectoryTable only holds static methods.
+     */
+    private DirectoryTable(){}
+}
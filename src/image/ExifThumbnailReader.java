@@ -0,0 +1,252 @@
+package image;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An ExifThumbnailReader. Reads the thumbnail that cameras embed in the header of a JPEG file (in the EXIF APP1
+ * segment or a JFIF extension APP0 segment) without reading or decoding the rest of the image.
+ */
+public class ExifThumbnailReader {
+    /**
+     * How far into a file to look for header segments before giving up. Header segments are at most 64KB each, and
+     * the embedded thumbnail is found in the first one or two of them.
+     */
+    private static final int MAX_HEADER_BYTES = 256 * 1024;
+
+    // JPEG markers
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+
+    // TIFF tags of the thumbnail (IFD1) directory
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    // TIFF types of the values of directory entries
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    /**
+     * Value of the compression tag for a JPEG compressed thumbnail.
+     */
+    private static final int JPEG_COMPRESSION = 6;
+    /**
+     * Extension code of a JFXX segment holding a JPEG compressed thumbnail.
+     */
+    private static final int JFXX_JPEG_THUMBNAIL = 0x10;
+
+    /**
+     * This class only has static methods.
+     */
+    private ExifThumbnailReader(){}
+
+    /**
+     * Returns the JPEG encoded thumbnail embedded in the header of an image file.
+     * @param file Image file to read the thumbnail from.
+     * @return The bytes of the embedded JPEG thumbnail, or null if the file is not a JPEG or has no thumbnail.
+     */
+    public static byte[] readThumbnail(File file){
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            return readThumbnail(channel);
+        }
+        catch(IOException e){
+            return null;
+        }
+    }
+
+    /**
+     * Walks the header segments of a JPEG file and returns the first embedded thumbnail found.
+     * @param channel Channel of the JPEG file.
+     * @return The bytes of the embedded JPEG thumbnail, or null if there is none.
+     * @throws IOException ..
+     */
+    private static byte[] readThumbnail(FileChannel channel) throws IOException{
+        ByteBuffer markerBuffer = ByteBuffer.allocate(4);
+        if(!readFully(channel, markerBuffer, 0, 2) || (markerBuffer.get(0) & 0xFF) != 0xFF
+                || (markerBuffer.get(1) & 0xFF) != SOI){
+            return null;
+        }
+
+        long position = 2;
+        while(position < MAX_HEADER_BYTES && readFully(channel, markerBuffer, position, 4)){
+            int marker = markerBuffer.get(1) & 0xFF;
+            if((markerBuffer.get(0) & 0xFF) != 0xFF || marker == SOS || marker == EOI){
+                // the image data (or something we don't understand) starts here, so there is no header thumbnail
+                return null;
+            }
+
+            int segmentLength = markerBuffer.getShort(2) & 0xFFFF;
+            if(segmentLength < 2){
+                return null;
+            }
+
+            if(marker == APP0 || marker == APP1){
+                ByteBuffer segment = ByteBuffer.allocate(segmentLength - 2);
+                if(!readFully(channel, segment, position + 4, segment.capacity())){
+                    return null;
+                }
+                byte[] thumbnail = marker == APP1 ? thumbnailFromExif(segment) : thumbnailFromJfxx(segment);
+                if(thumbnail != null){
+                    return thumbnail;
+                }
+            }
+
+            position += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the thumbnail stored in the IFD1 directory of an EXIF APP1 segment.
+     * @param segment Contents of the APP1 segment.
+     * @return The bytes of the JPEG thumbnail, or null if the segment has none.
+     */
+    private static byte[] thumbnailFromExif(ByteBuffer segment){
+        // "Exif\0\0" followed by a TIFF header
+        if(segment.capacity() < 14 || segment.get(0) != 'E' || segment.get(1) != 'x' || segment.get(2) != 'i'
+                || segment.get(3) != 'f' || segment.get(4) != 0 || segment.get(5) != 0){
+            return null;
+        }
+        segment.position(6);
+        ByteBuffer tiff = segment.slice();
+
+        if(tiff.get(0) == 'I' && tiff.get(1) == 'I'){
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        else if(tiff.get(0) != 'M' || tiff.get(1) != 'M'){
+            return null;
+        }
+        if((tiff.getShort(2) & 0xFFFF) != 42){
+            return null;
+        }
+
+        // skip IFD0 to get to IFD1, which describes the thumbnail
+        int ifd1 = nextDirectory(tiff, tiff.getInt(4));
+        if(ifd1 <= 0 || ifd1 + 2 > tiff.capacity()){
+            return null;
+        }
+
+        int entries = tiff.getShort(ifd1) & 0xFFFF;
+        int compression = JPEG_COMPRESSION;
+        long offset = -1;
+        long length = -1;
+        for(int i = 0; i < entries; i++){
+            int entry = ifd1 + 2 + i * 12;
+            if(entry + 12 > tiff.capacity()){
+                return null;
+            }
+            int tag = tiff.getShort(entry) & 0xFFFF;
+            if(tag == TAG_COMPRESSION){
+                compression = (int) entryValue(tiff, entry);
+            }
+            else if(tag == TAG_THUMBNAIL_OFFSET){
+                offset = entryValue(tiff, entry);
+            }
+            else if(tag == TAG_THUMBNAIL_LENGTH){
+                length = entryValue(tiff, entry);
+            }
+        }
+
+        if(compression != JPEG_COMPRESSION || offset < 0 || length <= 0 || offset + length > tiff.capacity()){
+            return null;
+        }
+        byte[] thumbnail = new byte[(int) length];
+        tiff.position((int) offset);
+        tiff.get(thumbnail);
+        return isJpeg(thumbnail) ? thumbnail : null;
+    }
+
+    /**
+     * Returns the thumbnail stored in a JFIF extension (JFXX) APP0 segment.
+     * @param segment Contents of the APP0 segment.
+     * @return The bytes of the JPEG thumbnail, or null if the segment has none.
+     */
+    private static byte[] thumbnailFromJfxx(ByteBuffer segment){
+        // "JFXX\0" followed by the extension code and the thumbnail itself
+        if(segment.capacity() < 6 || segment.get(0) != 'J' || segment.get(1) != 'F' || segment.get(2) != 'X'
+                || segment.get(3) != 'X' || segment.get(4) != 0 || (segment.get(5) & 0xFF) != JFXX_JPEG_THUMBNAIL){
+            return null;
+        }
+        byte[] thumbnail = new byte[segment.capacity() - 6];
+        segment.position(6);
+        segment.get(thumbnail);
+        return isJpeg(thumbnail) ? thumbnail : null;
+    }
+
+    /**
+     * Returns the value of a TIFF directory entry holding a single SHORT or LONG. The value is stored at the start of
+     * the entry's last four bytes, so a SHORT must be read as two bytes: read as four, it would be shifted left by 16
+     * bits in a big-endian (MM) file.
+     * @param tiff The TIFF structure.
+     * @param entry Offset of the entry.
+     * @return The value of the entry, or -1 if it is not a single SHORT or LONG.
+     */
+    private static long entryValue(ByteBuffer tiff, int entry){
+        int type = tiff.getShort(entry + 2) & 0xFFFF;
+        if(tiff.getInt(entry + 4) != 1){
+            return -1;
+        }
+        if(type == TYPE_SHORT){
+            return tiff.getShort(entry + 8) & 0xFFFF;
+        }
+        if(type == TYPE_LONG){
+            return tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset of the directory that follows a given TIFF image file directory.
+     * @param tiff The TIFF structure.
+     * @param directory Offset of the directory.
+     * @return The offset of the next directory, or 0 if there is none.
+     */
+    private static int nextDirectory(ByteBuffer tiff, int directory){
+        if(directory <= 0 || directory + 2 > tiff.capacity()){
+            return 0;
+        }
+        int next = directory + 2 + (tiff.getShort(directory) & 0xFFFF) * 12;
+        if(next + 4 > tiff.capacity()){
+            return 0;
+        }
+        return tiff.getInt(next);
+    }
+
+    /**
+     * Returns true iff some bytes start with the JPEG start of image marker.
+     * @param bytes Bytes to check.
+     * @return True iff the bytes start like a JPEG file.
+     */
+    private static boolean isJpeg(byte[] bytes){
+        return bytes.length > 2 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == SOI;
+    }
+
+    /**
+     * Reads a number of bytes from a position in a channel into the start of a buffer.
+     * @param channel Channel to read from.
+     * @param buffer Buffer to read into.
+     * @param position Position in the channel to start reading from.
+     * @param length Number of bytes to read.
+     * @return True iff all the bytes could be read.
+     * @throws IOException ..
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException{
+        buffer.clear();
+        buffer.limit(length);
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,45 +1,108 @@
 package image;
 
 import tag.Tag;
-import utils.FileManager;
+import utils.HeapSize;
+import utils.Metrics;
 import utils.NameLogger;
+import utils.TraceEvents;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An ImageFile. Represents an image file and its associated tags and name history.
+ *
+ * An ImageFile is thread safe: its tags and name history are guarded by the ImageFile's own lock, so different
+ * ImageFiles can be tagged in parallel, while changes to one ImageFile (and the renames they cause) happen one at a
+ * time. The file it refers to is volatile, so readers always see the latest name without locking. The lock is a
+ * ReentrantLock rather than the ImageFile's monitor because it is held while the file is renamed: before JDK 24, a
+ * virtual thread blocked on a rename inside a synchronized block would hold on to its carrier thread.
+ *
+ * The file is kept as the ID of its directory in the DirectoryTable and its own name, rather than as a File, so the
+ * path of a directory is held once however many images are in it; a File or Path is only made when one is needed.
+ * It is still saved as a File, so the persistence files do not depend on the directory IDs.
  */
 public class ImageFile implements Serializable{
+    /**
+     * The version of the saved form of an ImageFile, pinned to that of the first persistence files so that they can
+     * still be read.
+     */
+    private static final long serialVersionUID = 4551154603019057104L;
+    /**
+     * The fields that are saved: the file is saved as a File.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("imageFile", File.class),
+            new ObjectStreamField("tagList", ArrayList.class),
+            new ObjectStreamField("nameHistory", NameHistory.class),
+            new ObjectStreamField("nameLogger", NameLogger.class)
+    };
 
     /**
-     * The image file that corresponds to this ImageFile object.
+     * The ID of the directory of the image file that corresponds to this ImageFile object.
      */
-    private File imageFile;
+    private transient volatile int directoryId;
+    /**
+     * The name of the image file that corresponds to this ImageFile object. Is written after directoryId, so a reader
+     * that sees a new name also sees its directory.
+     */
+    private transient volatile String fileName;
     /**
      * The list of all the tags associated with this image File.
      */
     private ArrayList<Tag> tagList = new ArrayList<>();
     /**
-     * The list of every name this image file has had.
+     * Every name this image file has had.
      */
-    private ArrayList<String> nameHistory = new ArrayList<>();
+    private NameHistory nameHistory = new NameHistory();
     /**
      * Global logger for tracking all name changes to this ImageFile.
      */
     private NameLogger nameLogger = NameLogger.getInstance();
+    /**
+     * Guards the file, Tags and name history of this ImageFile (see lock()).
+     */
+    private transient ReentrantLock stateLock = new ReentrantLock();
 
     /**
      * Constructs an ImageFile object from a specified file.
      * @param imageFile ImageFile file
      */
     public ImageFile(File imageFile){
-        this.imageFile = imageFile;
+        setFile(imageFile);
+    }
+
+    /**
+     * Takes this ImageFile's lock, so that a change made up of several steps (e.g. renaming the file and updating
+     * the Tags' postings) is seen as one. Must be followed by unlock(), in a finally block.
+     */
+    void lock(){
+        stateLock.lock();
+    }
+
+    /**
+     * Releases this ImageFile's lock, taken by lock().
+     */
+    void unlock(){
+        stateLock.unlock();
+    }
+
+    /**
+     * Points this ImageFile at a file.
+     * @param file The file this ImageFile refers to.
+     */
+    private void setFile(File file){
+        directoryId = DirectoryTable.idOf(file.getParent());
+        fileName = file.getName();
     }
 
     /**
@@ -47,10 +110,15 @@ public class ImageFile implements Serializable{
      * @param tag Tag to add to this image file.
      */
     void addTag(Tag tag){
-        if(!this.tagList.contains(tag)){
-            this.tagList.add(tag);
-            String nameWithoutExtension = this.getImageFileName(false);
-            this.renameImageFile(nameWithoutExtension+ " @"+tag.getTagName());
+        stateLock.lock();
+        try{
+            if(!this.tagList.contains(tag)){
+                this.tagList.add(tag);
+                String nameWithoutExtension = this.getImageFileName(false);
+                this.renameImageFile(nameWithoutExtension+ " @"+tag.getTagName());
+            }
+        }finally{
+            stateLock.unlock();
         }
     }
 
@@ -59,17 +127,22 @@ public class ImageFile implements Serializable{
      * @param tags List of tags to add to this image file.
      */
     void addTags(ArrayList<Tag> tags){
-        String nameWithoutExtension = this.getImageFileName(false);
-        StringBuilder stringAppendage = new StringBuilder("");
+        stateLock.lock();
+        try{
+            String nameWithoutExtension = this.getImageFileName(false);
+            StringBuilder stringAppendage = new StringBuilder("");
 
-        for(Tag t : tags){
-            if(!this.tagList.contains(t)) {
-                this.tagList.add(t);
-                stringAppendage.append(" @");
-                stringAppendage.append(t.getTagName());
+            for(Tag t : tags){
+                if(!this.tagList.contains(t)) {
+                    this.tagList.add(t);
+                    stringAppendage.append(" @");
+                    stringAppendage.append(t.getTagName());
+                }
             }
+            this.renameImageFile(nameWithoutExtension + stringAppendage.toString());
+        }finally{
+            stateLock.unlock();
         }
-        this.renameImageFile(nameWithoutExtension + stringAppendage.toString());
     }
 
     /**
@@ -77,9 +150,14 @@ public class ImageFile implements Serializable{
      * @param tag Tag to remove from this image file.
      */
     public void removeTag(Tag tag){
-        if(this.tagList.contains(tag)){
-            this.tagList.remove(tag);
-            renameTagChange();
+        stateLock.lock();
+        try{
+            if(this.tagList.contains(tag)){
+                this.tagList.remove(tag);
+                renameTagChange();
+            }
+        }finally{
+            stateLock.unlock();
         }
     }
 
@@ -88,20 +166,44 @@ public class ImageFile implements Serializable{
      * @param tagsToRemove List of Tags to remove from this image file.
      */
     void removeTags(ArrayList<Tag> tagsToRemove){
-        for(Tag tag : tagsToRemove){
-            if(this.tagList.contains(tag)){
-                this.tagList.remove(tag);
+        stateLock.lock();
+        try{
+            for(Tag tag : tagsToRemove){
+                if(this.tagList.contains(tag)){
+                    this.tagList.remove(tag);
+                }
             }
+            renameTagChange();
+        }finally{
+            stateLock.unlock();
         }
-        renameTagChange();
     }
 
     /**
      * Returns all the tags that this image file currently has associated with it.
-     * @return A list of tags associated with this image file.
+     * @return A copy of the list of tags associated with this image file.
      */
     ArrayList<Tag> getTagList(){
-        return this.tagList;
+        stateLock.lock();
+        try{
+            return new ArrayList<>(this.tagList);
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the tags associated with this image file, without renaming it. Is called after the file has been
+     * renamed to a name that already has these tags in it.
+     * @param tags Tags to associate with this image file.
+     */
+    void setTagList(ArrayList<Tag> tags){
+        stateLock.lock();
+        try{
+            this.tagList = new ArrayList<>(tags);
+        }finally{
+            stateLock.unlock();
+        }
     }
 
     /**
@@ -109,34 +211,151 @@ public class ImageFile implements Serializable{
      * @return A list of names this ImageFile has had.
      */
     ArrayList<String> getNameHistory(){
-        return this.nameHistory;
+        stateLock.lock();
+        try{
+            return this.nameHistory.getNames();
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the name history of this ImageFile, still encoded.
+     * @return A copy of the NameHistory.
+     */
+    NameHistory copyNameHistory(){
+        stateLock.lock();
+        try{
+            return nameHistory.copy();
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this ImageFile's record takes on the heap: the ImageFile, its file
+     * name, and its list of Tags (not the Tags themselves, its directory, nor the name history).
+     * @return The estimated number of bytes of this ImageFile's record.
+     */
+    long estimateRecordBytes(){
+        stateLock.lock();
+        try{
+            return HeapSize.object(4, 4) + HeapSize.string(fileName) + HeapSize.arrayList(tagList.size());
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this ImageFile's name history takes on the heap.
+     * @return The estimated number of bytes of the name history.
+     */
+    long estimateNameHistoryBytes(){
+        stateLock.lock();
+        try{
+            return nameHistory.estimateBytes();
+        }finally{
+            stateLock.unlock();
+        }
     }
 
     /**
      * Reverts the name of this ImageFile to an name it has previously had.
      * @param oldName Name to revert to.
+     * @return True iff this ImageFile now has the old name.
      */
-    void revertToHistoricalName(String oldName){
-        if(nameHistory.contains(oldName)){
-            renameImageFile(oldName);
+    boolean revertToHistoricalName(String oldName){
+        stateLock.lock();
+        try{
+            if(nameHistory.contains(oldName)){
+                renameImageFile(oldName);
+            }
+            return getImageFileName(false).equals(oldName);
+        }finally{
+            stateLock.unlock();
         }
     }
 
     /**
-     * Renames the File that this image.ImageFile refers to.
-     * @param new_name The new name of the image.ImageFile file.
+     * Adds and removes Tags, renaming the file once for all of them. If the rename fails, the Tags are left as they
+     * were. Is used by bulk operations, which need to know whether each rename succeeded.
+     * @param tagsToAdd Tags to add to this image file.
+     * @param tagsToRemove Tags to remove from this image file.
+     * @return True iff the Tags of this image file changed.
+     * @throws IOException ..
      */
-    private void renameImageFile(String new_name){
+    boolean applyTagChange(ArrayList<Tag> tagsToAdd, ArrayList<Tag> tagsToRemove) throws IOException{
+        stateLock.lock();
+        try{
+            ArrayList<Tag> newTagList = new ArrayList<>(this.tagList);
+            newTagList.removeAll(tagsToRemove);
+            for(Tag t : tagsToAdd){
+                if(!newTagList.contains(t)){
+                    newTagList.add(t);
+                }
+            }
+            if(newTagList.equals(this.tagList)){
+                return false;
+            }
 
-        Path source = Paths.get(imageFile.getPath());
-        String _ext = this.getImageFileExtension();
+            rename(taggedName(newTagList));
+            this.tagList = newTagList;
+            return true;
+        }finally{
+            stateLock.unlock();
+        }
+    }
 
+    /**
+     * Points this image file at a file it has already been renamed to, and removes Tags, without renaming anything.
+     * Is used to recover from a bulk retag that renamed the file but was interrupted before saving.
+     * @param renamedFile The file this image file was renamed to.
+     * @param removedTags Tags that the rename removed.
+     */
+    void recoverTagChange(File renamedFile, ArrayList<Tag> removedTags){
+        stateLock.lock();
         try{
-            String oldName = imageFile.getName();
             nameHistory.add(getImageFileName(false));
-            Files.move(source, source.resolveSibling(new_name+_ext));
-            imageFile = new File(imageFile.getParent() + "/" + new_name+_ext);
-            nameLogger.logNameChange(oldName, imageFile.getName());
+            setFile(renamedFile);
+            ArrayList<Tag> newTagList = new ArrayList<>(this.tagList);
+            newTagList.removeAll(removedTags);
+            this.tagList = newTagList;
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the file, Tags and name history of this image file with imported ones, without renaming anything.
+     * Is used by bulk imports of a model exported elsewhere, whose files already have the imported names.
+     * @param file The file this image file refers to.
+     * @param tags Tags of this image file.
+     * @param names Names this image file has had, oldest first.
+     * @return The Tags this image file had before.
+     */
+    ArrayList<Tag> importState(File file, ArrayList<Tag> tags, List<String> names){
+        stateLock.lock();
+        try{
+            ArrayList<Tag> oldTags = this.tagList;
+            setFile(file);
+            tagList = new ArrayList<>(tags);
+            nameHistory = new NameHistory();
+            for(String name : names){
+                nameHistory.add(name);
+            }
+            return oldTags;
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Renames the File that this image.ImageFile refers to.
+     * @param new_name The new name of the image.ImageFile file.
+     */
+    private void renameImageFile(String new_name){
+        try{
+            rename(new_name);
         }
 
         catch(IOException e){
@@ -144,12 +363,52 @@ public class ImageFile implements Serializable{
         }
     }
 
+    /**
+     * Renames the File that this image.ImageFile refers to, and records the old name.
+     * @param new_name The new name of the image.ImageFile file.
+     * @throws IOException ..
+     */
+    private void rename(String new_name) throws IOException{
+        Path source = DirectoryTable.path(directoryId, fileName);
+        String _ext = this.getImageFileExtension();
+
+        String oldName = fileName;
+        String oldNameWithoutExtension = getImageFileName(false);
+        Path target = source.resolveSibling(new_name+_ext);
+        TraceEvents.FileRenameEvent event = new TraceEvents.FileRenameEvent();
+        event.begin();
+        long start = System.nanoTime();
+        try{
+            Files.move(source, target);
+        }catch (IOException e){
+            Metrics.getInstance().counter("image.rename.failures").increment();
+            event.commit("rename", source.toString(), target.toString(), false);
+            throw e;
+        }
+        nameHistory.add(oldNameWithoutExtension);
+        // the file stays in the same directory, so only its name changes
+        fileName = new_name + _ext;
+        nameLogger.logNameChange(getOriginalName(), oldName, fileName);
+        // metrics are looked up here, since a static initializer would change the serialized form of ImageFile
+        Metrics.getInstance().histogram("image.rename").recordSince(start);
+        event.commit("rename", source.toString(), target.toString(), true);
+    }
+
     /**
      * Gets the File that this image.ImageFile refers to
      * @return The File that this image refers to.
      */
     File getImageFilePath(){
-        return imageFile;
+        String name = fileName;
+        return DirectoryTable.file(directoryId, name);
+    }
+
+    /**
+     * Returns the ID of the directory of the File that this ImageFile refers to, in the DirectoryTable.
+     * @return The ID of the directory.
+     */
+    int getDirectoryId(){
+        return directoryId;
     }
 
     /**
@@ -158,7 +417,7 @@ public class ImageFile implements Serializable{
      */
     @SuppressWarnings("unused")
     public String getImageFileName(){
-        return this.imageFile.getName();
+        return this.fileName;
     }
 
     /**
@@ -168,11 +427,12 @@ public class ImageFile implements Serializable{
      */
     @SuppressWarnings("all")
     String getImageFileName(boolean withExtension){
+        String name = fileName;
         if(!withExtension){
-            return imageFile.getName().substring(0, imageFile.getName().lastIndexOf("."));
+            return name.substring(0, name.lastIndexOf("."));
         }
         else{
-            return imageFile.getName();
+            return name;
         }
     }
 
@@ -181,7 +441,7 @@ public class ImageFile implements Serializable{
      * @return A string representation of this ImageFile.
      */
     public String toString(){
-        return this.imageFile.getName();
+        return this.fileName;
     }
 
     /**
@@ -240,19 +500,37 @@ public class ImageFile implements Serializable{
         return false;
     }
 
+    /**
+     * Returns a hash code for this ImageFile, consistent with equals.
+     * @return A hash code for this ImageFile.
+     */
+    public int hashCode(){
+        return this.getOriginalName().hashCode();
+    }
+
     /**
      * Get the file extension of associated with this ImageFile (i.e. .jpg, .png)
      * @return The file extension associated with this ImageFile.
      */
      private String getImageFileExtension(){
-        String fileName = imageFile.getName();
-        return fileName.substring(fileName.lastIndexOf("."),fileName.length());
+        String name = fileName;
+        return name.substring(name.lastIndexOf("."),name.length());
     }
 
     /**
      * Renames the ImageFile after a Tag is changed. Is typically called after a Tag is removed.
      */
     private void renameTagChange(){
+        // rename the image file
+        this.renameImageFile(taggedName(tagList));
+    }
+
+    /**
+     * Returns the name (without extension) this ImageFile has when it has a given list of Tags.
+     * @param tags Tags of the ImageFile.
+     * @return The untagged name followed by each of the Tags.
+     */
+    private String taggedName(ArrayList<Tag> tags){
         //get untagged File name without the file extension
         String untaggedFileName = this.getUntaggedName(false);
 
@@ -263,13 +541,12 @@ public class ImageFile implements Serializable{
         newFileName.append(untaggedFileName);
 
         // for every existing tag, append tag to new file name
-        for(Tag t : tagList){
+        for(Tag t : tags){
             newFileName.append(" @");
             newFileName.append(t.toString());
         }
 
-        // rename the image file
-        this.renameImageFile(newFileName.toString());
+        return newFileName.toString();
     }
 
     /**
@@ -277,7 +554,92 @@ public class ImageFile implements Serializable{
      * @param fileToMoveTo Folder to move to.
      */
     void moveFileToLocation(File fileToMoveTo){
-        FileManager.moveFile(imageFile,fileToMoveTo.toString()+"/"+imageFile.getName());
-        imageFile = new File(fileToMoveTo.toString()+"/"+imageFile.getName());
+        stateLock.lock();
+        try{
+            try{
+                moveTo(fileToMoveTo);
+            }
+            catch(IOException e){
+                System.out.println("Move File Failed");
+            }
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Moves this ImageFile to a new parent folder. Is used by bulk operations, which need to know whether each move
+     * succeeded.
+     * @param fileToMoveTo Folder to move to.
+     * @throws IOException ..
+     */
+    void moveTo(File fileToMoveTo) throws IOException{
+        stateLock.lock();
+        try{
+            File target = new File(fileToMoveTo, fileName);
+            File source = getImageFilePath();
+            TraceEvents.FileRenameEvent event = new TraceEvents.FileRenameEvent();
+            event.begin();
+            long start = System.nanoTime();
+            try{
+                Files.move(source.toPath(), target.toPath());
+            }catch (IOException e){
+                Metrics.getInstance().counter("image.move.failures").increment();
+                event.commit("move", source.getPath(), target.getPath(), false);
+                throw e;
+            }
+            setFile(target);
+            Metrics.getInstance().histogram("image.move").recordSince(start);
+            event.commit("move", source.getPath(), target.getPath(), true);
+        }finally{
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Writes this ImageFile to a serialization stream. The fields are copied while holding this ImageFile's lock,
+     * but written after releasing it, so that saving never holds one ImageFile's lock while waiting for another's.
+     * @param output Stream to write to.
+     * @throws IOException ..
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException{
+        ObjectOutputStream.PutField fields = output.putFields();
+        stateLock.lock();
+        try{
+            fields.put("imageFile", getImageFilePath());
+            fields.put("tagList", new ArrayList<>(tagList));
+            fields.put("nameHistory", nameHistory.copy());
+            fields.put("nameLogger", nameLogger);
+        }finally{
+            stateLock.unlock();
+        }
+        output.writeFields();
+    }
+
+    /**
+     * Reads this ImageFile from a serialization stream, finding the ID of its file's directory. A name history saved
+     * as a list of names, as older persistence files hold, is encoded as a NameHistory.
+     * @param input Stream to read from.
+     * @throws IOException ..
+     * @throws ClassNotFoundException ..
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException{
+        ObjectInputStream.GetField fields = input.readFields();
+        stateLock = new ReentrantLock();
+        setFile((File) fields.get("imageFile", null));
+        tagList = (ArrayList<Tag>) fields.get("tagList", null);
+        Object history = fields.get("nameHistory", null);
+        nameHistory = new NameHistory();
+        if(history instanceof NameHistory){
+            nameHistory = (NameHistory) history;
+        }
+        else if(history != null){
+            // older persistence files hold every name in a list
+            for(String name : (ArrayList<String>) history){
+                nameHistory.add(name);
+            }
+        }
+        nameLogger = (NameLogger) fields.get("nameLogger", null);
     }
 }
@@ -48,10 +48,10 @@ public class ImageListCell extends ListCell<ImageFile> {
             setGraphic(null);
             setText(null);
         }
-        // create a new thumbnail and set image view to show it
+        // reuse the stored thumbnail, or create a new one, and set image view to show it
         else{
-            Image thumbnailImage = new Image(item.getImageFilePath().toURI().toString(),cellWidth,
-                    cellWidth/2,true,false);
+            Image thumbnailImage = ThumbnailStore.getInstance().load(item.getImageFilePath(),cellWidth,
+                    cellWidth/2);
             imgView.setImage(thumbnailImage);
             setGraphic(imgView);
             setText(item.getUntaggedName(true));
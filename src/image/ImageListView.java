@@ -2,10 +2,10 @@ package image;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.collections.FXCollections;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.util.Callback;
+import utils.ListChange;
 
 import java.util.ArrayList;
 
@@ -73,8 +73,15 @@ public class ImageListView implements ChangeListener<ImageFile> {
      * @param imageFiles The list of ImageFiles that this ImageListView should display.
      */
     void setItems(ArrayList<ImageFile> imageFiles){
-        imageFileThumbnailList.getItems().clear();
-        imageFileThumbnailList.setItems(FXCollections.observableArrayList(imageFiles));
+        ListChange.update(imageFileThumbnailList.getItems(), imageFiles);
+    }
+
+    /**
+     * Applies a single change to the list of ImageFiles that this ImageListView displays.
+     * @param change Change to apply to the displayed ImageFiles.
+     */
+    void applyChange(ListChange<ImageFile> change){
+        change.applyTo(imageFileThumbnailList.getItems());
     }
 
     /**
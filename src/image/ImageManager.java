@@ -3,9 +3,25 @@ package image;
 import tag.Tag;
 import tag.TagManager;
 import utils.ConfigurationManager;
+import utils.FileOperation;
+import utils.FileOperationResult;
+import utils.FileOperationRuntime;
+import utils.HeapSize;
+import utils.ListChange;
+import utils.Metrics;
+import utils.TraceEvents;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 //**************************************************************************************
 // *    Title: (adatped from) <"Serialize Code" from CSC207 Fall 2017 UofT week 5 notes>
@@ -19,16 +35,86 @@ import java.util.ArrayList;
 /**
  * An ImageManager. The Controller for the ImageFile model. Adds, removes and tags and detags ImageFiles. Also is
  * responsible for saving and loading ImageFiles when the program is opened and closed.
+ *
+ * An ImageManager is thread safe, so ImageFiles can be scanned, tagged and queried from background threads as well
+ * as the FX thread:
+ * - Managed and tagged ImageFiles are indexed by their untagged name in ConcurrentHashMaps, so lookups never lock.
+ * - The list of currently managed ImageFiles is never changed once published; loading a directory publishes a new
+ *   list through a volatile field.
+ * - Tagging and detagging lock only the ImageFile being changed (see ImageFile), then its Tags (see Tag), so
+ *   different ImageFiles can be tagged in parallel without losing updates. Locks are always taken in the order
+ *   TagManager, ImageFile, Tag.
+ * - Everything written before a change is saved (ConfigurationManager.updatePersistenceFiles is synchronized)
+ *   happens-before the save. A save made while other threads are tagging sees each ImageFile and Tag in a
+ *   consistent state, but may see some changes and not others.
+ * - After each change is committed, a new immutable ModelSnapshot is published. Views and queries read the latest
+ *   snapshot (getSnapshot) with a single volatile read, so they never wait for a writer's locks.
+ * - SavedViews are brought up to date with each snapshot before it is published, under the same lock, from the
+ *   ImageFiles the change touched.
  */
 public class ImageManager {
     /**
-     * The list of ImageFiles this manager is currently managing.
+     * The changes a published snapshot made to a saved view, to be told to the view once the snapshot lock is released.
      */
-    private ArrayList<ImageFile> listOfImageFiles;
+    private static class SavedViewChanges {
+        /**
+         * The saved view that changed.
+         */
+        private SavedView view;
+        /**
+         * The changes made to its members, in order.
+         */
+        private ArrayList<ListChange<ImageFile>> changes = new ArrayList<>();
+        /**
+         * The version of its members after the changes.
+         */
+        private long version;
+    }
+
+    /**
+     * Latencies of adding Tags to an ImageFile, including saving.
+     */
+    private static final Metrics.Histogram TAG_LATENCY = Metrics.getInstance().histogram("tag.add");
+    /**
+     * Latencies of removing Tags from an ImageFile, including saving.
+     */
+    private static final Metrics.Histogram DETAG_LATENCY = Metrics.getInstance().histogram("tag.remove");
+    /**
+     * Latencies of bulk retags of many ImageFiles, including saving.
+     */
+    private static final Metrics.Histogram RETAG_LATENCY = Metrics.getInstance().histogram("tag.retag");
     /**
-     * The list of ImageFiles that this manager has tagged.
+     * The number of ImageFiles retagged by bulk retags.
      */
-    private ArrayList<ImageFile> taggedImageFiles = new ArrayList<>();
+    private static final Metrics.Counter RETAGGED_IMAGES = Metrics.getInstance().counter("tag.retag.images");
+    /**
+     * Latencies of reverting an ImageFile to an old name, including saving.
+     */
+    private static final Metrics.Histogram REVERT_LATENCY = Metrics.getInstance().histogram("tag.revert");
+    /**
+     * The list of ImageFiles this manager is currently managing. Replaced, never changed, once published.
+     */
+    private volatile ArrayList<ImageFile> listOfImageFiles;
+    /**
+     * The ImageFiles this manager is currently managing, accessed by their untagged name.
+     */
+    private volatile ConcurrentHashMap<String,ImageFile> managedImageIndex = new ConcurrentHashMap<>();
+    /**
+     * The ImageFiles that this manager has tagged, accessed by their untagged name.
+     */
+    private ConcurrentHashMap<String,ImageFile> taggedImageIndex = new ConcurrentHashMap<>();
+    /**
+     * The latest committed state of the model, for readers that must not take the model's locks.
+     */
+    private volatile ModelSnapshot snapshot = ModelSnapshot.EMPTY;
+    /**
+     * Lock held while a new snapshot is made and published, so that no change is lost between two writers.
+     */
+    private final Object snapshotLock = new Object();
+    /**
+     * The saved views kept up to date with the model, in the order they were saved.
+     */
+    private final CopyOnWriteArrayList<SavedView> savedViews = new CopyOnWriteArrayList<>();
     /**
      * Collaborator TagManager to access Tags.
      */
@@ -41,6 +127,10 @@ public class ImageManager {
      * The View for this ImageManager.
      */
     private ImageManagerView imageManagerView;
+    /**
+     * Runs bulk renames and moves of this manager's ImageFiles.
+     */
+    private FileOperationRuntime fileOperationRuntime = FileOperationRuntime.getInstance();
 
     /**
      * Constructs an ImageManager from a filepath containing persistence files.
@@ -53,12 +143,19 @@ public class ImageManager {
             File file = new File(filePath);
             if (file.exists()) {
                 readFromFile(filePath);
+                // the untagged members of the saved views are known images too, as if they had been scanned
+                Set<ImageFile> loaded = Collections.newSetFromMap(new IdentityHashMap<>());
+                loaded.addAll(taggedImageIndex.values());
+                for(SavedView view : savedViews){
+                    loaded.addAll(view.getImages());
+                }
+                publish(loaded);
             } else {
                 file.createNewFile();
             }
         }
 
-        catch(ClassNotFoundException | IOException e){
+        catch(IOException e){
             System.out.println("Image Manager failed to initialize");
         }
 
@@ -72,6 +169,189 @@ public class ImageManager {
         configManager = cm;
     }
 
+    /**
+     * Sets the FileOperationRuntime running bulk renames and moves of this manager's ImageFiles, so that managers
+     * of ImageFiles on different disks need not share one.
+     * @param runtime FileOperationRuntime to use.
+     */
+    public void setFileOperationRuntime(FileOperationRuntime runtime){
+        fileOperationRuntime = runtime;
+    }
+
+    /**
+     * Returns the latest committed snapshot of the model. Never blocks, even while other threads are changing it.
+     * @return The latest snapshot of the model.
+     */
+    public ModelSnapshot getSnapshot(){
+        return snapshot;
+    }
+
+    /**
+     * Publishes a new snapshot in which some ImageFiles have changed.
+     * @param changed ImageFiles that have changed.
+     */
+    private void publish(Collection<ImageFile> changed){
+        ArrayList<SavedViewChanges> viewChanges;
+        synchronized(snapshotLock){
+            viewChanges = publishSnapshot(snapshot.withChanges(changed), changed);
+        }
+        notifySavedViews(viewChanges);
+    }
+
+    /**
+     * Publishes a snapshot, first dropping the cached TagQuery results it makes stale, so that no reader of the new
+     * snapshot can be given one, and updating the saved views. Must be called while holding the snapshot lock; the
+     * view is told of the saved views' changes by notifySavedViews, once the lock is released.
+     * @param next The new snapshot.
+     * @param changed ImageFiles that changed in the new snapshot.
+     * @return The changes made to each saved view that changed.
+     */
+    private ArrayList<SavedViewChanges> publishSnapshot(ModelSnapshot next, Collection<ImageFile> changed){
+        return publishSnapshot(next, changed, Collections.emptyList());
+    }
+
+    /**
+     * Publishes a new snapshot in which some ImageFiles were dropped, dropping them from the saved views too. Must
+     * be called holding the snapshot lock.
+     * @param next The new snapshot.
+     * @param changed ImageFiles that changed in the new snapshot.
+     * @param dropped ImageFiles the new snapshot no longer knows.
+     * @return The changes made to each saved view that changed, to be passed to notifySavedViews.
+     */
+    private ArrayList<SavedViewChanges> publishSnapshot(ModelSnapshot next, Collection<ImageFile> changed,
+                                                        Collection<ImageFile> dropped){
+        if(tagManager != null && (!next.getChangedTags().isEmpty() || next.hasAddedOrDroppedImages())){
+            ArrayList<String> changedTagNames = new ArrayList<>();
+            for(Tag tag : next.getChangedTags()){
+                changedTagNames.add(tag.getTagName());
+            }
+            tagManager.getQueryCache().invalidate(changedTagNames, next.hasAddedOrDroppedImages(),
+                    next.getVersion());
+        }
+        ArrayList<SavedViewChanges> viewChanges = new ArrayList<>();
+        for(SavedView view : savedViews){
+            SavedViewChanges changes = new SavedViewChanges();
+            // no view is listening before the GUI starts, so the changes are only worked out for one
+            ArrayList<ListChange<ImageFile>> wanted = imageManagerView != null ? changes.changes : null;
+            boolean viewChanged = false;
+            for(ImageFile img : dropped){
+                viewChanged |= view.drop(img, wanted);
+            }
+            if(updateView(view, changed, next, wanted) | viewChanged){
+                changes.view = view;
+                changes.version = view.getVersion();
+                viewChanges.add(changes);
+            }
+        }
+        snapshot = next;
+        return viewChanges;
+    }
+
+    /**
+     * Tells the view of the changes made to saved views. Is called after releasing the snapshot lock, so that the
+     * view is never called while the lock is held.
+     * @param viewChanges The changes made to each saved view that changed.
+     */
+    private void notifySavedViews(ArrayList<SavedViewChanges> viewChanges){
+        ImageManagerView view = imageManagerView;
+        if(view == null){
+            return;
+        }
+        for(SavedViewChanges changes : viewChanges){
+            view.savedViewChanged(changes.view, changes.changes, changes.version);
+        }
+    }
+
+    /**
+     * Matches ImageFiles against a saved view's query, adding them to or removing them from the view.
+     * @param view The saved view.
+     * @param imageFiles ImageFiles to match.
+     * @param model Snapshot holding the ImageFiles' Tags.
+     * @param changes Where to add the changes made to the view's members, in order, or null if they are not wanted.
+     * @return True iff the members of the view changed.
+     */
+    private boolean updateView(SavedView view, Collection<ImageFile> imageFiles, ModelSnapshot model,
+                               ArrayList<ListChange<ImageFile>> changes){
+        boolean changed = false;
+        for(ImageFile img : imageFiles){
+            // an ImageFile replaced by a newer scan of the same image no longer speaks for it
+            ImageFile held = findImage(img);
+            if(held == null || held == img){
+                changed |= view.update(img, model.getTags(img), changes);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Saves a view of the ImageFiles matching a query, replacing any saved view with the same name. The view is
+     * filled from the latest snapshot once, then kept up to date as ImageFiles change.
+     * @param name Name of the view.
+     * @param query Query of the view (see TagQuery).
+     * @return The saved view.
+     * @throws IllegalArgumentException If the query is not well formed.
+     */
+    public SavedView saveView(String name, String query){
+        SavedView view = new SavedView(name, query);
+        synchronized(snapshotLock){
+            updateView(view, snapshot.getKnownImages(), snapshot, null);
+            savedViews.remove(getSavedView(name));
+            savedViews.add(view);
+        }
+        if(configManager != null){
+            configManager.updatePersistenceFiles();
+        }
+        return view;
+    }
+
+    /**
+     * Removes a saved view.
+     * @param name Name of the view.
+     * @return True iff there was a view with the name.
+     */
+    public boolean removeView(String name){
+        SavedView view = getSavedView(name);
+        boolean removed = view != null && savedViews.remove(view);
+        if(removed && configManager != null){
+            configManager.updatePersistenceFiles();
+        }
+        return removed;
+    }
+
+    /**
+     * Returns a saved view.
+     * @param name Name of the view.
+     * @return The saved view with the name, or null if there is none.
+     */
+    public SavedView getSavedView(String name){
+        for(SavedView view : savedViews){
+            if(view.getName().equals(name)){
+                return view;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes the saved views take on the heap.
+     * @return The estimated number of bytes of the saved views.
+     */
+    long estimateViewBytes(){
+        long bytes = HeapSize.object(2, 8) + HeapSize.referenceArray(savedViews.size());
+        for(SavedView view : savedViews){
+            bytes += view.estimateBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the saved views.
+     * @return The saved views, in the order they were saved.
+     */
+    public ArrayList<SavedView> getSavedViews(){
+        return new ArrayList<>(savedViews);
+    }
+
     /**
      * Returns the list of images the manager is currently managing
      * @return A list of images.
@@ -87,21 +367,57 @@ public class ImageManager {
      */
     @SuppressWarnings("unused")
     public ArrayList<ImageFile> getListOfTaggedImages(){
-        return taggedImageFiles;
+        return new ArrayList<>(taggedImageIndex.values());
+    }
+
+    /**
+     * Returns every image that has ever been tagged, without copying them. Iterating over them never fails while
+     * images are being tagged, but may or may not see the images tagged meanwhile.
+     * @return A view of the tagged images.
+     */
+    Collection<ImageFile> getTaggedImages(){
+        return taggedImageIndex.values();
     }
 
     /**
-     * Helper method to add ImageFile to this ImageManager.
-     * @param img ImageFile to add to this ImageManager.
+     * Returns an estimate of the number of bytes this ImageManager's list and indexes of ImageFiles take on the heap,
+     * with their keys, but not counting the ImageFiles.
+     * @return The estimated number of bytes of the list and indexes.
      */
-    private void addImage(ImageFile img){
-        if(taggedImageFiles.contains(img)){
-            this.listOfImageFiles.add(this.taggedImageFiles.get(taggedImageFiles.indexOf(img)));
+    long estimateIndexBytes(){
+        long bytes = HeapSize.arrayList(listOfImageFiles.size());
+        for(ConcurrentHashMap<String,ImageFile> index : Arrays.asList(managedImageIndex, taggedImageIndex)){
+            bytes += HeapSize.concurrentHashMap(index.size());
+            for(String key : index.keySet()){
+                bytes += HeapSize.string(key);
+            }
         }
+        return bytes;
+    }
 
-        else{
-            this.listOfImageFiles.add(img);
+    /**
+     * Returns the key that an ImageFile is indexed by: its untagged name, which is what ImageFile equality is
+     * based on.
+     * @param img ImageFile to get the key of.
+     * @return The key of the ImageFile.
+     */
+    private static String keyOf(ImageFile img){
+        return img.getUntaggedName(true);
+    }
+
+    /**
+     * Returns the ImageFile that this ImageManager holds for a given ImageFile: the tagged ImageFile if it has been
+     * tagged, otherwise the managed ImageFile.
+     * @param img ImageFile to look up.
+     * @return The ImageFile held by this ImageManager, or null if it holds none.
+     */
+    private ImageFile findImage(ImageFile img){
+        String key = keyOf(img);
+        ImageFile found = taggedImageIndex.get(key);
+        if(found == null){
+            found = managedImageIndex.get(key);
         }
+        return found;
     }
 
     /**
@@ -111,7 +427,17 @@ public class ImageManager {
      */
     @SuppressWarnings("unused")
     public ImageFile getImage(ImageFile img){
-        return listOfImageFiles.get(listOfImageFiles.indexOf(img));
+        return managedImageIndex.get(keyOf(img));
+    }
+
+    /**
+     * Returns the ImageFile that this ImageManager holds for a file, whether it is tagged or just managed. The file
+     * may have any tags in its name; ImageFiles are found by their untagged name.
+     * @param file File to look up.
+     * @return The ImageFile held for the file, or null if it holds none.
+     */
+    public ImageFile getImage(File file){
+        return findImage(new ImageFile(file));
     }
 
     /**
@@ -120,28 +446,30 @@ public class ImageManager {
      * @param tag The tag to apply.
      */
     void tagImage(ImageFile imgToTag, String tag){
+        TraceEvents.TagOperationEvent event = new TraceEvents.TagOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
         Tag t = tagManager.getTag(tag);
-        ImageFile imageFileToTag = null;
-
-        if(taggedImageFiles.contains(imgToTag)){
-            imageFileToTag = taggedImageFiles.get(taggedImageFiles.indexOf(imgToTag));
-        }
-
-        else if(listOfImageFiles.contains(imgToTag)){
-            imageFileToTag = listOfImageFiles.get(listOfImageFiles.indexOf(imgToTag));
-        }
+        ImageFile imageFileToTag = findImage(imgToTag);
 
         if (t != null && imageFileToTag != null){
-            //1: add tag to image
-            imageFileToTag.addTag(t);
-            //2 add image to tag
-            t.addImageToTag(imageFileToTag);
-            //3: add image to list of tagged images, if it hasn't already been tagged
-            if(!taggedImageFiles.contains(imageFileToTag)){
-                taggedImageFiles.add(imageFileToTag);
+            imageFileToTag.lock();
+            try{
+                //1: add tag to image
+                imageFileToTag.addTag(t);
+                //2 add image to tag
+                t.addImageToTag(imageFileToTag);
+            }finally{
+                imageFileToTag.unlock();
             }
+            //3: add image to list of tagged images, if it hasn't already been tagged
+            taggedImageIndex.putIfAbsent(keyOf(imageFileToTag), imageFileToTag);
+            publish(Collections.singletonList(imageFileToTag));
             // save files
             configManager.updatePersistenceFiles();
+            TAG_LATENCY.recordSince(start);
+            event.commit("tag", imageFileToTag.getImageFilePath().getPath(), Collections.singletonList(tag),
+                    Collections.emptyList(), 1);
         }
     }
 
@@ -151,28 +479,30 @@ public class ImageManager {
      * @param tagNames Tag(s) to add to Image file.
      */
     void tagImage(ImageFile imgToTag, ArrayList<String> tagNames){
+        TraceEvents.TagOperationEvent event = new TraceEvents.TagOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
         ArrayList<Tag> tagsToAdd = tagManager.getTags(tagNames);
-        ImageFile imageFileToTag = null;
-
-        if(taggedImageFiles.contains(imgToTag)){
-            imageFileToTag = taggedImageFiles.get(taggedImageFiles.indexOf(imgToTag));
-        }
-
-        else if(listOfImageFiles.contains(imgToTag)){
-            imageFileToTag = listOfImageFiles.get(listOfImageFiles.indexOf(imgToTag));
-        }
+        ImageFile imageFileToTag = findImage(imgToTag);
 
         if(!tagsToAdd.isEmpty() && imageFileToTag !=null){
-            imageFileToTag.addTags(tagsToAdd);
-            for(Tag tag : tagsToAdd){
-                tag.addImageToTag(imageFileToTag);
+            imageFileToTag.lock();
+            try{
+                imageFileToTag.addTags(tagsToAdd);
+                for(Tag tag : tagsToAdd){
+                    tag.addImageToTag(imageFileToTag);
+                }
+            }finally{
+                imageFileToTag.unlock();
             }
 
-            if(!taggedImageFiles.contains(imageFileToTag)){
-                taggedImageFiles.add(imageFileToTag);
-            }
+            taggedImageIndex.putIfAbsent(keyOf(imageFileToTag), imageFileToTag);
+            publish(Collections.singletonList(imageFileToTag));
 
             configManager.updatePersistenceFiles();
+            TAG_LATENCY.recordSince(start);
+            event.commit("tag", imageFileToTag.getImageFilePath().getPath(), tagsToAdd, Collections.emptyList(),
+                    1);
         }
     }
 
@@ -182,23 +512,30 @@ public class ImageManager {
      * @param tagToRemove Tag to remove.
      */
     public void removeTagFromImage(ImageFile imgToDetag, String tagToRemove){
+        TraceEvents.TagOperationEvent event = new TraceEvents.TagOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
         Tag t = tagManager.getTag(tagToRemove);
-
-        ImageFile imageFileToDetag = null;
-
-        if(taggedImageFiles.contains(imgToDetag)){
-            imageFileToDetag = taggedImageFiles.get(taggedImageFiles.indexOf(imgToDetag));
-        }
+        ImageFile imageFileToDetag = taggedImageIndex.get(keyOf(imgToDetag));
 
         if (t != null && imageFileToDetag != null){
-            // 1: remove image reference from tag
-            t.removeImageFromTag(imageFileToDetag);
-            // 2 : remove tag reference from image
-            imageFileToDetag.removeTag(t);
+            imageFileToDetag.lock();
+            try{
+                // 1: remove image reference from tag
+                t.removeImageFromTag(imageFileToDetag);
+                // 2 : remove tag reference from image
+                imageFileToDetag.removeTag(t);
+            }finally{
+                imageFileToDetag.unlock();
+            }
+            publish(Collections.singletonList(imageFileToDetag));
             //note: even if an image has no tags associated with it, it is still stored as a tagged image, since it
             //has a tag history.
             // save files
             configManager.updatePersistenceFiles();
+            DETAG_LATENCY.recordSince(start);
+            event.commit("untag", imageFileToDetag.getImageFilePath().getPath(), Collections.emptyList(),
+                    Collections.singletonList(tagToRemove), 1);
         }
     }
 
@@ -208,21 +545,28 @@ public class ImageManager {
      * @param namesOfTagsToRemove Names of image tags to remove.
      */
     public void removeTagsFromImage(ImageFile imgToDetag, ArrayList<String> namesOfTagsToRemove){
+        TraceEvents.TagOperationEvent event = new TraceEvents.TagOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
         ArrayList<Tag> tagsToRemove = tagManager.getTags(namesOfTagsToRemove);
-
-        ImageFile imageFileToDetag = null;
-
-        if(taggedImageFiles.contains(imgToDetag)){
-            imageFileToDetag = taggedImageFiles.get(taggedImageFiles.indexOf(imgToDetag));
-        }
+        ImageFile imageFileToDetag = taggedImageIndex.get(keyOf(imgToDetag));
 
         if (!tagsToRemove.isEmpty() && imageFileToDetag != null){
-            for(Tag tag : tagsToRemove){
-                tag.removeImageFromTag(imageFileToDetag);
-            }
+            imageFileToDetag.lock();
+            try{
+                for(Tag tag : tagsToRemove){
+                    tag.removeImageFromTag(imageFileToDetag);
+                }
 
-            imageFileToDetag.removeTags(tagsToRemove);
+                imageFileToDetag.removeTags(tagsToRemove);
+            }finally{
+                imageFileToDetag.unlock();
+            }
+            publish(Collections.singletonList(imageFileToDetag));
             configManager.updatePersistenceFiles();
+            DETAG_LATENCY.recordSince(start);
+            event.commit("untag", imageFileToDetag.getImageFilePath().getPath(), Collections.emptyList(),
+                    tagsToRemove, 1);
         }
 
     }
@@ -234,8 +578,9 @@ public class ImageManager {
      */
     @SuppressWarnings("unused")
     public ArrayList<String> getImageTagHistory(ImageFile img){
-        if(taggedImageFiles.contains(img)){
-            return taggedImageFiles.get(taggedImageFiles.indexOf(img)).getNameHistory();
+        ImageFile taggedImage = taggedImageIndex.get(keyOf(img));
+        if(taggedImage != null){
+            return taggedImage.getNameHistory();
         }
         else{
             return null;
@@ -247,56 +592,336 @@ public class ImageManager {
      * @param imgToRename ImageFile to rename.
      * @param oldName Old name of image.
      */
-    void setImageToOldName(ImageFile imgToRename, String oldName){
-        if(taggedImageFiles.contains(imgToRename)){
-            imgToRename.revertToHistoricalName(oldName);
-            initializeImageTagsFromNameReversion(imgToRename);
+    public void setImageToOldName(ImageFile imgToRename, String oldName){
+        long start = System.nanoTime();
+        String oldKey = keyOf(imgToRename);
+        if(taggedImageIndex.containsKey(oldKey)){
+            // the old name's Tags are created before the image is locked, since that takes the TagManager's lock
+            ArrayList<Tag> restoredTags = tagManager.addTags(tagNamesOf(oldName));
+            boolean reverted;
+            imgToRename.lock();
+            try{
+                reverted = imgToRename.revertToHistoricalName(oldName);
+                if(reverted){
+                    // the untagged part of the old name may differ, in which case the image is indexed under a new key
+                    String newKey = keyOf(imgToRename);
+                    if(!newKey.equals(oldKey)){
+                        taggedImageIndex.remove(oldKey, imgToRename);
+                        taggedImageIndex.put(newKey, imgToRename);
+                        if(managedImageIndex.remove(oldKey, imgToRename)){
+                            managedImageIndex.put(newKey, imgToRename);
+                        }
+                    }
+                    initializeImageTagsFromNameReversion(imgToRename, restoredTags);
+                }
+            }finally{
+                imgToRename.unlock();
+            }
+            if(!reverted){
+                // the Tags of the old name may have been added back all the same; they are saved without the image's
+                // lock, since saving takes the lock of every ImageFile it writes
+                configManager.updatePersistenceFiles();
+                return;
+            }
+            publish(Collections.singletonList(imgToRename));
+            configManager.updatePersistenceFiles();
+            // the reverted name may differ in more than just its tags, so the view must redraw the image
+            updateView(imgToRename);
+            REVERT_LATENCY.recordSince(start);
         }
     }
 
     /**
-     * Initializes all the tags that correspond to an ImageFile's restored name. Adds deleted tags that the reverted
-     * ImageFile has back to TagManager. Updates ImageFile's taglist to correspond with its reverted name.
-     * @param revertedImageFile ImageFile to initialize tags for.
+     * Tells the view that a managed ImageFile has changed, so that it redraws just that ImageFile.
+     * @param changedImageFile ImageFile that has changed.
      */
-    private void initializeImageTagsFromNameReversion(ImageFile revertedImageFile){
-        String[] splitName = revertedImageFile.getImageFileName(false).split("\\s+");
-        ArrayList<Tag> imageTags = revertedImageFile.getTagList();
-
-        for(Tag t : imageTags){
-            t.removeImageFromTag(revertedImageFile);
+    private void updateView(ImageFile changedImageFile){
+        ArrayList<ImageFile> imageFiles = listOfImageFiles;
+        int index = imageFiles.indexOf(changedImageFile);
+        if(imageManagerView != null && index >= 0){
+            imageManagerView.updateImageFilesToView(
+                    new ListChange<>(ListChange.Type.UPDATED, index, imageFiles.get(index)));
         }
+    }
 
-        revertedImageFile.getTagList().clear();
-
-        for(String s : splitName){
+    /**
+     * Returns the names of the tags in an ImageFile's name.
+     * @param imageFileName Name of the ImageFile, without its extension.
+     * @return The names of its tags, in the order they appear in the name.
+     */
+    private static ArrayList<String> tagNamesOf(String imageFileName){
+        ArrayList<String> tagNames = new ArrayList<>();
+        for(String s : imageFileName.split("\\s+")){
             if(s.startsWith("@")){
-                String tagName = s.replace("@","");
-                tagManager.addTag(tagName);
-
-                Tag toCheck = tagManager.getTag(tagName);
-                // if image doesn't contain tag from tag name, it should be deleted from image
-                revertedImageFile.getTagList().add(toCheck);
-                toCheck.addImageToTag(revertedImageFile);
+                tagNames.add(s.replace("@",""));
             }
         }
-        configManager.updatePersistenceFiles();
+        return tagNames;
     }
 
     /**
-     * Add a collection of ImageFiles to this ImageManager.
+     * Initializes all the tags that correspond to an ImageFile's restored name. Updates ImageFile's taglist to
+     * correspond with its reverted name. Is called holding the ImageFile's lock, so that no tagging of the image can
+     * come between its revert and its new tags.
+     * @param revertedImageFile ImageFile to initialize tags for.
+     * @param restoredTags The Tags in the restored name, which were added back to TagManager if they were deleted.
+     */
+    private void initializeImageTagsFromNameReversion(ImageFile revertedImageFile, ArrayList<Tag> restoredTags){
+        for(Tag t : revertedImageFile.getTagList()){
+            t.removeImageFromTag(revertedImageFile);
+        }
+        for(Tag t : restoredTags){
+            t.addImageToTag(revertedImageFile);
+        }
+        revertedImageFile.setTagList(restoredTags);
+    }
+
+    /**
+     * Add a collection of ImageFiles to this ImageManager, replacing the ones managed (displayed) before, as opening
+     * a directory in the GUI does.
      * @param imageFilesToAdd List of ImageFiles to add.
      */
     public void addImageFiles(ArrayList<File> imageFilesToAdd){
-        this.listOfImageFiles.clear();
+        addImageFiles(imageFilesToAdd, false);
+    }
+
+    /**
+     * Add a collection of ImageFiles to this ImageManager.
+     * @param imageFilesToAdd List of ImageFiles to add.
+     * @param keepManaged True to add them to the ImageFiles managed before, as scripts scanning several directories
+     *                    do (images already managed are not added again); false to replace those.
+     */
+    public void addImageFiles(ArrayList<File> imageFilesToAdd, boolean keepManaged){
+        ArrayList<ImageFile> newImageFiles = keepManaged ? new ArrayList<>(listOfImageFiles)
+                : new ArrayList<>(imageFilesToAdd.size());
+        ConcurrentHashMap<String,ImageFile> newImageIndex = keepManaged ? new ConcurrentHashMap<>(managedImageIndex)
+                : new ConcurrentHashMap<>();
+        ArrayList<ImageFile> addedImageFiles = new ArrayList<>(imageFilesToAdd.size());
         for(File file : imageFilesToAdd){
             ImageFile imageFileToAdd = new ImageFile(file);
-            this.addImage(imageFileToAdd);
+            String key = keyOf(imageFileToAdd);
+            // an image that has been tagged before is managed through its tagged ImageFile
+            ImageFile taggedImageFile = taggedImageIndex.get(key);
+            if(taggedImageFile != null){
+                imageFileToAdd = taggedImageFile;
+            }
+            if(newImageIndex.putIfAbsent(key, imageFileToAdd) != null && keepManaged){
+                continue;
+            }
+            newImageFiles.add(imageFileToAdd);
+            addedImageFiles.add(imageFileToAdd);
+        }
+        // publish the new list and index; readers see either the old ones or the new ones, never a mix
+        this.managedImageIndex = newImageIndex;
+        this.listOfImageFiles = newImageFiles;
+        ArrayList<SavedViewChanges> viewChanges;
+        synchronized(snapshotLock){
+            ArrayList<ImageFile> droppedImageFiles = untaggedImagesLeaving(newImageFiles);
+            viewChanges = publishSnapshot(snapshot.withChanges(new ArrayList<>(newImageFiles), addedImageFiles,
+                    droppedImageFiles), addedImageFiles, droppedImageFiles);
         }
+        notifySavedViews(viewChanges);
         //update view
         if(imageManagerView !=null){
-            imageManagerView.setImageFilesToView(this.listOfImageFiles);
+            imageManagerView.setImageFilesToView(newImageFiles);
+        }
+    }
+
+    /**
+     * Returns the known ImageFiles that leave the model when the managed list is replaced: those that are not in the
+     * new list and are not held as tagged ImageFiles. A rescan makes a new ImageFile for every untagged file, so
+     * without dropping these the snapshot would keep every ImageFile ever scanned. The untagged members of the saved
+     * views, which are known from the moment they are loaded, leave at the first scan, as if an earlier scan had
+     * made them. Must be called holding the snapshot lock, so that no ImageFile is tagged in between.
+     * @param newImageFiles The managed ImageFiles after.
+     * @return The ImageFiles to drop.
+     */
+    private ArrayList<ImageFile> untaggedImagesLeaving(ArrayList<ImageFile> newImageFiles){
+        Set<ImageFile> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        kept.addAll(newImageFiles);
+        ArrayList<ImageFile> leaving = new ArrayList<>();
+        for(ImageFile img : snapshot.getKnownImages()){
+            if(!kept.contains(img) && taggedImageIndex.get(keyOf(img)) != img){
+                leaving.add(img);
+            }
+        }
+        return leaving;
+    }
+
+    /**
+     * Adds and removes Tags on many ImageFiles at once. The files are renamed concurrently by the
+     * FileOperationRuntime, then every change is published and saved once.
+     * @param imagesToRetag ImageFiles to change the Tags of.
+     * @param tagsToAdd Tags to add to each ImageFile.
+     * @param tagsToRemove Tags to remove from each ImageFile.
+     * @return The result of renaming each ImageFile, in the same order as the ImageFiles.
+     */
+    public ArrayList<FileOperationResult> retagImages(Collection<ImageFile> imagesToRetag, ArrayList<Tag> tagsToAdd,
+                                                      ArrayList<Tag> tagsToRemove){
+        return retagImages(imagesToRetag, tagsToAdd, tagsToRemove, true);
+    }
+
+    /**
+     * Adds and removes Tags on many ImageFiles at once, optionally without saving the persistence files. Is used by
+     * jobs that retag ImageFiles in batches and save once at the end.
+     * @param imagesToRetag ImageFiles to change the Tags of.
+     * @param tagsToAdd Tags to add to each ImageFile.
+     * @param tagsToRemove Tags to remove from each ImageFile.
+     * @param save Whether to save the persistence files afterwards.
+     * @return The result of renaming each ImageFile, in the same order as the ImageFiles.
+     */
+    public ArrayList<FileOperationResult> retagImages(Collection<ImageFile> imagesToRetag, ArrayList<Tag> tagsToAdd,
+                                                      ArrayList<Tag> tagsToRemove, boolean save){
+        TraceEvents.TagOperationEvent event = new TraceEvents.TagOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
+        ArrayList<FileOperation> operations = new ArrayList<>(imagesToRetag.size());
+        Collection<ImageFile> changed = new ConcurrentLinkedQueue<>();
+        for(ImageFile img : imagesToRetag){
+            ImageFile imageFileToRetag = findImage(img);
+            if(imageFileToRetag == null){
+                operations.add(new FileOperation(img.getImageFilePath(), () -> {
+                    throw new FileNotFoundException("Image is not managed: " + img);
+                }));
+                continue;
+            }
+            operations.add(new FileOperation(imageFileToRetag.getImageFilePath(), () -> {
+                imageFileToRetag.lock();
+                try{
+                    if(imageFileToRetag.applyTagChange(tagsToAdd, tagsToRemove)){
+                        for(Tag tag : tagsToRemove){
+                            tag.removeImageFromTag(imageFileToRetag);
+                        }
+                        for(Tag tag : tagsToAdd){
+                            tag.addImageToTag(imageFileToRetag);
+                        }
+                        changed.add(imageFileToRetag);
+                    }
+                }finally{
+                    imageFileToRetag.unlock();
+                }
+            }));
+        }
+
+        ArrayList<FileOperationResult> results = fileOperationRuntime.run(operations);
+        for(ImageFile img : changed){
+            taggedImageIndex.putIfAbsent(keyOf(img), img);
         }
+        commitBulkChange(changed, save);
+        RETAG_LATENCY.recordSince(start);
+        RETAGGED_IMAGES.add(changed.size());
+        String firstPath = imagesToRetag.isEmpty() ? null
+                : imagesToRetag.iterator().next().getImageFilePath().getPath();
+        event.commit("retag", firstPath, tagsToAdd, tagsToRemove, changed.size());
+        return results;
+    }
+
+    /**
+     * Moves many ImageFiles to a new parent folder at once. The files are moved concurrently by the
+     * FileOperationRuntime, then every change is published and saved once.
+     * @param imagesToMove ImageFiles to move.
+     * @param folderToMoveTo Folder to move to.
+     * @return The result of moving each ImageFile, in the same order as the ImageFiles.
+     */
+    public ArrayList<FileOperationResult> moveImageFiles(Collection<ImageFile> imagesToMove, File folderToMoveTo){
+        ArrayList<FileOperation> operations = new ArrayList<>(imagesToMove.size());
+        Collection<ImageFile> changed = new ConcurrentLinkedQueue<>();
+        for(ImageFile img : imagesToMove){
+            operations.add(new FileOperation(img.getImageFilePath(), () -> {
+                img.moveTo(folderToMoveTo);
+                changed.add(img);
+            }));
+        }
+
+        ArrayList<FileOperationResult> results = fileOperationRuntime.run(operations);
+        commitBulkChange(changed, true);
+        return results;
+    }
+
+    /**
+     * Returns every tagged ImageFile that has at least one of some Tags. Looks at the ImageFiles' own Tags rather
+     * than the Tags' postings, so it also finds ImageFiles whose Tags have been taken out of the TagManager.
+     * @param tags Tags to look for.
+     * @return The ImageFiles that have any of the Tags.
+     */
+    public ArrayList<ImageFile> getImagesWithTags(Collection<Tag> tags){
+        ArrayList<ImageFile> found = new ArrayList<>();
+        for(ImageFile img : taggedImageIndex.values()){
+            for(Tag tag : img.getTagList()){
+                if(tags.contains(tag)){
+                    found.add(img);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Brings ImageFiles up to date with renames that were made by a bulk retag that was interrupted before it saved
+     * them. Each ImageFile that still refers to its old file, whose new file exists, is pointed at its new file and
+     * loses the removed Tags. Nothing is renamed.
+     * @param renamed The new name of each renamed ImageFile, by the file it had before.
+     * @param removedTags Tags the retag removed.
+     */
+    public void recoverRetags(Map<File,String> renamed, ArrayList<Tag> removedTags){
+        ArrayList<ImageFile> recovered = new ArrayList<>();
+        for(ImageFile img : taggedImageIndex.values()){
+            File oldFile = img.getImageFilePath();
+            String newName = renamed.get(oldFile);
+            if(newName == null){
+                continue;
+            }
+            File newFile = new File(oldFile.getParentFile(), newName);
+            if(!oldFile.exists() && newFile.exists()){
+                img.recoverTagChange(newFile, removedTags);
+                recovered.add(img);
+            }
+        }
+        commitBulkChange(recovered, false);
+    }
+
+    /**
+     * Commits the ImageFiles changed by a bulk operation: publishes one snapshot, redraws them and (optionally) saves
+     * the persistence files once.
+     * @param changed ImageFiles that were changed.
+     * @param save Whether to save the persistence files.
+     */
+    private void commitBulkChange(Collection<ImageFile> changed, boolean save){
+        if(changed.isEmpty()){
+            return;
+        }
+        publish(changed);
+
+        if(imageManagerView != null){
+            // find each changed ImageFile's index once, rather than searching the list for each of them
+            ArrayList<ImageFile> imageFiles = listOfImageFiles;
+            IdentityHashMap<ImageFile,Integer> indexes = new IdentityHashMap<>();
+            for(int i = 0; i < imageFiles.size(); i++){
+                indexes.put(imageFiles.get(i), i);
+            }
+            for(ImageFile img : changed){
+                Integer index = indexes.get(img);
+                if(index != null){
+                    imageManagerView.updateImageFilesToView(
+                            new ListChange<>(ListChange.Type.UPDATED, index, img));
+                }
+            }
+        }
+        if(save){
+            configManager.updatePersistenceFiles();
+        }
+    }
+
+    /**
+     * Moves an ImageFile to a new parent folder.
+     * @param imgToMove ImageFile to move.
+     * @param folderToMoveTo Folder to move to.
+     */
+    void moveImageFile(ImageFile imgToMove, File folderToMoveTo){
+        imgToMove.moveFileToLocation(folderToMoveTo);
+        publish(Collections.singletonList(imgToMove));
+        configManager.updatePersistenceFiles();
     }
 
     /**
@@ -306,6 +931,47 @@ public class ImageManager {
     public void setTagManager(TagManager tagManager){
         this.tagManager = tagManager;
         tagManager.setImageManager(this);
+        linkTags();
+    }
+
+    /**
+     * Adds imported ImageFiles to the tagged ImageFiles, then publishes and saves them once. An ImageFile replaces
+     * any tagged ImageFile with the same untagged name.
+     * @param importedImages ImageFiles to add, whose Tags and postings have already been set, by untagged name.
+     */
+    void addImportedImages(Map<String,ImageFile> importedImages){
+        taggedImageIndex.putAll(importedImages);
+        publish(importedImages.values());
+        if(configManager != null){
+            configManager.updatePersistenceFiles();
+        }
+    }
+
+    /**
+     * Links the tagged ImageFiles with the TagManager's Tags. ImageFiles and Tags are loaded from separate
+     * persistence files, so after loading, an ImageFile's Tags are copies of the TagManager's Tags (equal by name, but
+     * not the same objects), and the Tags' postings are copies of the ImageFiles. This points every ImageFile at the
+     * TagManager's Tags and rebuilds the Tags' postings from the ImageFiles, so that lookups by identity (as in
+     * ModelSnapshot) find them.
+     */
+    private void linkTags(){
+        IdentityHashMap<Tag,ArrayList<ImageFile>> postings = new IdentityHashMap<>();
+        for(ImageFile img : taggedImageIndex.values()){
+            ArrayList<Tag> linkedTags = new ArrayList<>();
+            for(Tag tag : img.getTagList()){
+                Tag linkedTag = tagManager.getTag(tag.getTagName());
+                if(linkedTag == null){
+                    linkedTag = tag;
+                }
+                linkedTags.add(linkedTag);
+                postings.computeIfAbsent(linkedTag, t -> new ArrayList<>()).add(img);
+            }
+            img.setTagList(linkedTags);
+        }
+        for(Tag tag : tagManager.getTagList()){
+            tag.setTaggedImages(postings.getOrDefault(tag, new ArrayList<>()));
+        }
+        publish(taggedImageIndex.values());
     }
 
     /**
@@ -318,30 +984,41 @@ public class ImageManager {
         OutputStream file = new FileOutputStream(filePath);
         OutputStream buffer = new BufferedOutputStream(file);
         ObjectOutput output = new ObjectOutputStream(buffer);
-        // serialize the Map
-        output.writeObject(taggedImageFiles);
+        // serialize the list of tagged images, then the saved views, whose tagged members are written as references
+        // to them
+        output.writeObject(new ArrayList<>(taggedImageIndex.values()));
+        output.writeObject(new ArrayList<>(savedViews));
         output.close();
     }
 
     /**
-     * Loads the contents of this ImageManager from a serialization file.
+     * Loads the contents of this ImageManager from a serialization file. A file that is not empty but cannot be read
+     * is moved aside, and this ImageManager starts empty, so that saving does not overwrite it.
      * @param path Path of Serialization file.
-     * @throws ClassNotFoundException ..
      */
     @SuppressWarnings("unchecked")
-    private void readFromFile(String path) throws ClassNotFoundException {
+    private void readFromFile(String path){
         // adapted from class notes
-        try {
-            InputStream file = new FileInputStream(path);
-            InputStream buffer = new BufferedInputStream(file);
-            ObjectInput input = new ObjectInputStream(buffer);
-
-            taggedImageFiles = (ArrayList<ImageFile>) input.readObject();
-            input.close();
-
-        } catch (IOException ex) {
-            System.out.println("ImageManager load .ser file failed -- persistence files many not yet exist " +
-                    "for ImageManager");
+        File file = new File(path);
+        try (ObjectInput input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            ArrayList<ImageFile> taggedImageFiles = (ArrayList<ImageFile>) input.readObject();
+            for(ImageFile taggedImageFile : taggedImageFiles){
+                taggedImageIndex.put(keyOf(taggedImageFile), taggedImageFile);
+            }
+            try{
+                savedViews.addAll((ArrayList<SavedView>) input.readObject());
+            }catch (EOFException | OptionalDataException e){
+                // older persistence files have no saved views
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            if(file.length() == 0){
+                System.out.println("ImageManager load .ser file failed -- persistence files many not yet exist " +
+                        "for ImageManager");
+                return;
+            }
+            taggedImageIndex.clear();
+            savedViews.clear();
+            ConfigurationManager.setAsideUnreadable(file, ex);
         }
     }
 
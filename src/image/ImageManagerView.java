@@ -1,21 +1,26 @@
 package image;
 
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
-import javafx.scene.image.Image;
+import javafx.scene.control.TextField;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 import tag.Tag;
 import tag.TagListView;
 import tag.TagManagerView;
+import utils.ListChange;
 import utils.StringListView;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 //**************************************************************************************
 // *    Title: (adatped from) <JavaFx Documentation - Using JavaFxControls - Button>
@@ -42,6 +47,10 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
      * The ImageView for the currently selected ImageFile in the program View.
      */
     private ImageView selectedImageView = new ImageView();
+    /**
+     * Loads the preview of the currently selected ImageFile into selectedImageView.
+     */
+    private ImagePreviewLoader previewLoader = new ImagePreviewLoader(selectedImageView);
     /**
      * Button to open the containing directory of currently selected ImageFile in the program View.
      */
@@ -63,6 +72,39 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
      */
     private Button revertToOldNameButton = new Button ("Revert to Old Name...");
 
+    /**
+     * Lists the saved views; choosing one shows its images.
+     */
+    private ComboBox<String> savedViewBox = new ComboBox<>();
+    /**
+     * TextField for the name of a view to save.
+     */
+    private TextField viewNameField = new TextField();
+    /**
+     * TextField for the query of a view to save.
+     */
+    private TextField viewQueryField = new TextField();
+    /**
+     * Button to save the query in viewQueryField as a view.
+     */
+    private Button saveViewButton = new Button("Save View");
+    /**
+     * Button to delete the saved view chosen in savedViewBox.
+     */
+    private Button deleteViewButton = new Button("Delete View");
+    /**
+     * Containing HBox for the saved view controls.
+     */
+    private HBox savedViewControls = new HBox();
+    /**
+     * The saved view whose images are shown, or null if the images of a directory are shown.
+     */
+    private SavedView openView;
+    /**
+     * The version of the open saved view's images that are shown.
+     */
+    private long openViewVersion;
+
     private Label imageTagLabel = new Label("Tags on this Image:");
     private Label nameHistoryLabel = new Label("Image Name History:");
 
@@ -104,6 +146,7 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
         selectedImageView.setPreserveRatio(true);
         setupGridPane();
         setupInputs();
+        updateSavedViewList();
         this.stage = stage;
     }
 
@@ -121,12 +164,80 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
      * @param imageFilesToView List of ImageFiles that this ImageManagerView should display.
      */
     void setImageFilesToView(ArrayList<ImageFile> imageFilesToView){
-        selectedImageFile = null;
-        selectedImageView.setImage(null);
-        directoryThumbnails.clearList();
+        // the model can be changed from background threads, but the view can only be changed on the FX thread
+        if(!Platform.isFxApplicationThread()){
+            Platform.runLater(() -> setImageFilesToView(imageFilesToView));
+            return;
+        }
+        // images that are still listed keep their cells, and stay selected if they were
+        openView = null;
         directoryThumbnails.setItems(imageFilesToView);
     }
 
+    /**
+     * Shows the images of a saved view. They are kept by the view, so they are shown without running its query.
+     * @param view The saved view to show.
+     */
+    void openSavedView(SavedView view){
+        openView = view;
+        ArrayList<ImageFile> images;
+        // the copy and its version are taken together, so that the changes told afterwards can be applied to it
+        synchronized(view){
+            images = view.getImages();
+            openViewVersion = view.getVersion();
+        }
+        directoryThumbnails.setItems(images);
+    }
+
+    /**
+     * Is told that the images of a saved view have changed, and applies the changes if the view is open. Changes
+     * that the shown images already have are skipped; if some changes before them were missed (the model is changed
+     * from many threads, which may tell of their changes out of order), the view's images are shown again instead.
+     * @param view The saved view that changed.
+     * @param changes The changes made to its images, in order.
+     * @param version The version of its images after the changes.
+     */
+    void savedViewChanged(SavedView view, List<ListChange<ImageFile>> changes, long version){
+        if(!Platform.isFxApplicationThread()){
+            Platform.runLater(() -> savedViewChanged(view, changes, version));
+            return;
+        }
+        if(view != openView || version <= openViewVersion){
+            return;
+        }
+        if(version - changes.size() != openViewVersion){
+            openSavedView(view);
+            return;
+        }
+        for(ListChange<ImageFile> change : changes){
+            directoryThumbnails.applyChange(change);
+        }
+        openViewVersion = version;
+    }
+
+    /**
+     * Lists the names of the saved views in savedViewBox.
+     */
+    private void updateSavedViewList(){
+        ArrayList<String> names = new ArrayList<>();
+        for(SavedView view : imageManager.getSavedViews()){
+            names.add(view.getName());
+        }
+        savedViewBox.getItems().setAll(names);
+    }
+
+    /**
+     * Applies a single change of the managed ImageFiles to this ImageManagerView.
+     * @param change Change of the list of managed ImageFiles.
+     */
+    void updateImageFilesToView(ListChange<ImageFile> change){
+        if(!Platform.isFxApplicationThread()){
+            Platform.runLater(() -> updateImageFilesToView(change));
+            return;
+        }
+        directoryThumbnails.applyChange(change);
+    }
+
     /**
      * Sets the ImageFile that this ImageManagerView should display as selected.
      * @param imageFile ImageFile to set as selected in this ImageManagerView.
@@ -135,12 +246,17 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
         selectedImageFile = imageFile;
 
         if(selectedImageFile!=null){
-            Image image = new Image(selectedImageFile.getImageFilePath().toURI().toString());
-            selectedImageView.setImage(image);
-            imageTags.setItems(selectedImageFile.getTagList());
-            nameHistoryOfSelectedImageView.setItems(selectedImageFile.getNameHistory());
+            ModelSnapshot model = imageManager.getSnapshot();
+            File file = model.getFile(selectedImageFile);
+            previewLoader.load(file != null ? file : selectedImageFile.getImageFilePath());
+            imageTags.setItems(model.getTags(selectedImageFile));
+            nameHistoryOfSelectedImageView.setItems(model.getNameHistory(selectedImageFile));
+        }
+        // nothing is selected any more, so stop showing the last selected image
+        else{
+            previewLoader.cancel();
+            selectedImageView.setImage(null);
         }
-
     }
 
     /**
@@ -195,7 +311,41 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
             DirectoryChooser directoryChooser = new DirectoryChooser();
             directoryChooser.setInitialDirectory(new File(selectedImageFile.getImageFilePath().getParent()));
             File fileToMoveTo = directoryChooser.showDialog(stage);
-            selectedImageFile.moveFileToLocation(fileToMoveTo);
+            if(fileToMoveTo != null){
+                imageManager.moveImageFile(selectedImageFile,fileToMoveTo);
+            }
+        }
+        // event from savedViewBox
+        else if(eventSource.equals(savedViewBox)){
+            SavedView view = imageManager.getSavedView(savedViewBox.getValue());
+            if(view != null){
+                openSavedView(view);
+            }
+        }
+        // event from saveViewButton
+        else if(eventSource.equals(saveViewButton)){
+            String name = viewNameField.getText().trim();
+            String query = viewQueryField.getText().trim();
+            if(!name.isEmpty() && !query.isEmpty()){
+                try{
+                    SavedView view = imageManager.saveView(name, query);
+                    updateSavedViewList();
+                    savedViewBox.setValue(name);
+                    openSavedView(view);
+                    viewNameField.clear();
+                    viewQueryField.clear();
+                }catch (IllegalArgumentException ex){
+                    System.out.println("Could not save view " + name + ": " + ex.getMessage());
+                }
+            }
+        }
+        // event from deleteViewButton
+        else if(eventSource.equals(deleteViewButton)){
+            String name = savedViewBox.getValue();
+            if(name != null && imageManager.removeView(name)){
+                savedViewBox.setValue(null);
+                updateSavedViewList();
+            }
         }
         // event from revertToOldNameButton
         else if(eventSource.equals(revertToOldNameButton)){
@@ -225,6 +375,13 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
         GridPane.setConstraints(nameHistoryOfSelectedImageView.getListView(),1,4);
         GridPane.setConstraints(nameHistoryLabel,1,3);
         GridPane.setConstraints(revertToOldNameButton, 1, 5);
+        savedViewBox.setPromptText("Saved Views");
+        viewNameField.setPromptText("View name");
+        viewQueryField.setPromptText("Query, e.g. portfolio AND NOT published, or NOT * for untagged");
+        savedViewControls.getChildren().addAll(savedViewBox, viewNameField, viewQueryField, saveViewButton,
+                deleteViewButton);
+        savedViewControls.setSpacing(12);
+        GridPane.setConstraints(savedViewControls, 0, 7, 2, 1);
         gridPane.setHgap(12);
         gridPane.setVgap(12);
 
@@ -240,7 +397,8 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
                 removeTagButton,
                 nameHistoryOfSelectedImageView.getListView(),
                 nameHistoryLabel,
-                revertToOldNameButton
+                revertToOldNameButton,
+                savedViewControls
         );
 
     }
@@ -254,6 +412,9 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
         addTagButton.setOnAction(this);
         removeTagButton.setOnAction(this);
         revertToOldNameButton.setOnAction(this);
+        savedViewBox.setOnAction(this);
+        saveViewButton.setOnAction(this);
+        deleteViewButton.setOnAction(this);
     }
 
     /**
@@ -265,12 +426,14 @@ public class ImageManagerView implements EventHandler<ActionEvent> {
     }
 
     /**
-     * Updates the view information about the currently selected ImageFile in the program view.
+     * Updates the view information about the currently selected ImageFile in the program view. Reads the latest
+     * snapshot of the model, so it never waits for a background thread that is changing the model.
      */
     public void updateCurrentlySelectedView(){
         if(selectedImageFile !=null){
-            imageTags.setItems(selectedImageFile.getTagList());
-            nameHistoryOfSelectedImageView.setItems(selectedImageFile.getNameHistory());
+            ModelSnapshot model = imageManager.getSnapshot();
+            imageTags.setItems(model.getTags(selectedImageFile));
+            nameHistoryOfSelectedImageView.setItems(model.getNameHistory(selectedImageFile));
         }
     }
 
@@ -0,0 +1,98 @@
+package image;
+
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+/**
+ * An ImagePreviewLoader. Loads the preview of the selected ImageFile into an ImageView in two steps: a low
+ * resolution thumbnail (stored, or embedded in the file's header) is shown straight away, and is replaced once a
+ * background decode at the ImageView's display size has finished. Loads that are still running when another image
+ * is selected are cancelled.
+ */
+class ImagePreviewLoader implements ChangeListener<Number> {
+    /**
+     * The ImageView that previews are loaded into.
+     */
+    private ImageView previewView;
+    /**
+     * The display sized Image that is currently being decoded in the background, or null if nothing is loading.
+     */
+    private Image pendingImage;
+
+    /**
+     * Constructs an ImagePreviewLoader that loads previews into a given ImageView.
+     * @param previewView ImageView to load previews into.
+     */
+    ImagePreviewLoader(ImageView previewView){
+        this.previewView = previewView;
+    }
+
+    /**
+     * Starts loading the preview of an image file. Cancels the load of the previously requested image if it has
+     * not finished yet.
+     * @param file Image file to preview.
+     */
+    void load(File file){
+        cancel();
+        // show the thumbnail (if there is one) while the display sized image is decoded
+        Image placeholder = ThumbnailStore.getInstance().get(file);
+        if(placeholder == null){
+            byte[] embeddedThumbnail = ExifThumbnailReader.readThumbnail(file);
+            if(embeddedThumbnail != null){
+                placeholder = new Image(new ByteArrayInputStream(embeddedThumbnail));
+            }
+        }
+        previewView.setImage(placeholder);
+
+        pendingImage = new Image(file.toURI().toString(), previewView.getFitWidth(), previewView.getFitHeight(),
+                true, true, true);
+        pendingImage.progressProperty().addListener(this);
+        // images that are already decoded don't report any further progress
+        if(pendingImage.getProgress() >= 1.0){
+            finishLoad();
+        }
+    }
+
+    /**
+     * Cancels the preview that is currently loading, if any.
+     */
+    void cancel(){
+        if(pendingImage != null){
+            pendingImage.progressProperty().removeListener(this);
+            pendingImage.cancel();
+            pendingImage = null;
+        }
+    }
+
+    /**
+     * Is called every time the background decode of the pending Image makes progress. Shows the Image once it has
+     * finished loading.
+     * @param progress The progress property of the Image that is loading.
+     * @param lastProgress The previous progress of the load.
+     * @param currentProgress The current progress of the load.
+     */
+    @Override
+    public void changed(ObservableValue<? extends Number> progress, Number lastProgress, Number currentProgress){
+        // progress from a load that has since been cancelled is ignored
+        if(pendingImage != null && progress == pendingImage.progressProperty()
+                && currentProgress.doubleValue() >= 1.0){
+            finishLoad();
+        }
+    }
+
+    /**
+     * Shows the pending Image in the preview ImageView, unless it failed to load.
+     */
+    private void finishLoad(){
+        pendingImage.progressProperty().removeListener(this);
+        if(!pendingImage.isError()){
+            previewView.setImage(pendingImage);
+        }
+        pendingImage = null;
+    }
+}
@@ -0,0 +1,168 @@
+package image;
+
+import tag.Tag;
+import tag.TagManager;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * A MemoryReport. An estimate of how many bytes of heap each part of the model retains, so that the heap a library
+ * needs can be predicted from its number of images (see the sizing guide in help.txt).
+ *
+ * The parts are:
+ *   image records    each ImageFile, its file name, and its list of Tags
+ *   directories      the DirectoryTable, which holds the path of every directory the images are in
+ *   image indexes    the ImageManager's list of managed images and its two indexes by untagged name
+ *   name histories   each ImageFile's encoded names, and the string table they share
+ *   tags             the Tags and their names
+ *   tag postings     the images each Tag has, as a list and (once built) a set
+ *   snapshot         the latest ModelSnapshot, which holds copies of every image's Tags and decoded names
+ *   saved views      the members of each SavedView, by untagged name
+ *   thumbnails       the ThumbnailStore's map and Image objects; their pixels are counted apart, as they are held
+ *                    off the heap
+ *
+ * Sizes are worked out from the object layout of the running JVM (see HeapSize), walking the model rather than
+ * the whole heap, so a report is cheap enough to take on a live program. Objects shared between parts are counted
+ * once, in the first part listed.
+ */
+public class MemoryReport {
+    /**
+     * The name of each part of the model.
+     */
+    private ArrayList<String> parts = new ArrayList<>();
+    /**
+     * The estimated number of bytes of each part.
+     */
+    private ArrayList<Long> bytes = new ArrayList<>();
+    /**
+     * The number of objects (images, Tags, postings or thumbnails) each part holds.
+     */
+    private ArrayList<Long> counts = new ArrayList<>();
+    /**
+     * The number of images in the model.
+     */
+    private int imageCount;
+    /**
+     * The number of bytes of thumbnail pixels held off the heap.
+     */
+    private long offHeapBytes;
+
+    /**
+     * Measures the model of an ImageManager and TagManager.
+     * @param imageManager The ImageManager.
+     * @param tagManager The TagManager linked to the ImageManager.
+     * @param thumbnailStore The ThumbnailStore in use, or null if there are no thumbnails (without a GUI).
+     * @return The report.
+     */
+    public static MemoryReport measure(ImageManager imageManager, TagManager tagManager,
+                                       ThumbnailStore thumbnailStore){
+        MemoryReport report = new MemoryReport();
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        Set<ImageFile> images = snapshot.getKnownImages();
+        report.imageCount = images.size();
+
+        long recordBytes = 0;
+        long historyBytes = NameHistory.estimateSharedTableBytes();
+        for(ImageFile image : images){
+            recordBytes += image.estimateRecordBytes();
+            historyBytes += image.estimateNameHistoryBytes();
+        }
+        report.add("image records", recordBytes, images.size());
+        report.add("directories", DirectoryTable.estimateBytes(), DirectoryTable.size());
+        report.add("image indexes", imageManager.estimateIndexBytes(), images.size());
+        report.add("name histories", historyBytes, images.size());
+
+        ArrayList<Tag> tags = tagManager.getTagList();
+        report.add("tags", tagManager.estimateTagBytes(), tags.size());
+        long postingBytes = 0;
+        long postingCount = 0;
+        for(Tag tag : tags){
+            postingBytes += tag.estimatePostingBytes();
+            postingCount += snapshot.getImagesWithTag(tag).size();
+        }
+        report.add("tag postings", postingBytes, postingCount);
+
+        report.add("snapshot", snapshot.estimateBytes(), images.size());
+        long memberCount = 0;
+        for(SavedView view : imageManager.getSavedViews()){
+            memberCount += view.size();
+        }
+        report.add("saved views", imageManager.estimateViewBytes(), memberCount);
+        if(thumbnailStore != null){
+            report.add("thumbnails", thumbnailStore.estimateHeapBytes(), thumbnailStore.size());
+            report.offHeapBytes = thumbnailStore.getUsedBytes();
+        }
+        return report;
+    }
+
+    /**
+     * Adds a part of the model to this report.
+     * @param part Name of the part.
+     * @param partBytes Estimated number of bytes of the part.
+     * @param count The number of objects the part holds.
+     */
+    private void add(String part, long partBytes, long count){
+        parts.add(part);
+        bytes.add(partBytes);
+        counts.add(count);
+    }
+
+    /**
+     * Returns the estimated number of bytes of a part of the model.
+     * @param part Name of the part, as listed above.
+     * @return The estimated number of bytes of the part, or 0 if it was not measured.
+     */
+    public long getBytes(String part){
+        int index = parts.indexOf(part);
+        return index < 0 ? 0 : bytes.get(index);
+    }
+
+    /**
+     * Returns the estimated number of bytes of heap the whole model retains.
+     * @return The estimated number of bytes of every part.
+     */
+    public long getTotalBytes(){
+        long total = 0;
+        for(long partBytes : bytes){
+            total += partBytes;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of images in the model.
+     * @return The number of images.
+     */
+    public int getImageCount(){
+        return imageCount;
+    }
+
+    /**
+     * Returns the number of bytes of thumbnail pixels held off the heap.
+     * @return The number of off-heap bytes.
+     */
+    public long getOffHeapBytes(){
+        return offHeapBytes;
+    }
+
+    /**
+     * Prints this report as a table: the bytes, count and bytes per image of each part, and the total.
+     * @param out Where to print the report.
+     */
+    public void print(PrintStream out){
+        int perImage = Math.max(1, imageCount);
+        out.printf("%-16s %14s %10s %12s%n", "Part", "Bytes", "Count", "Bytes/image");
+        for(int i = 0; i < parts.size(); i++){
+            out.printf("%-16s %,14d %,10d %,12.1f%n", parts.get(i), bytes.get(i), counts.get(i),
+                    (double) bytes.get(i) / perImage);
+        }
+        out.printf("%-16s %,14d %,10d %,12.1f%n", "total", getTotalBytes(), imageCount,
+                (double) getTotalBytes() / perImage);
+        if(offHeapBytes > 0){
+            out.printf("%-16s %,14d%n", "thumbnail pixels", offHeapBytes);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,360 @@
+package image;
+
+import tag.Tag;
+import utils.HeapSize;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A ModelSnapshot. An immutable view of the ImageFiles and Tags of an ImageManager at one point in time.
+ *
+ * An ImageManager publishes a new ModelSnapshot through a volatile field each time it commits a change, so views and
+ * queries can read a consistent model with a single volatile read and without taking any of the model's locks; a
+ * writer never blocks a reader. A new snapshot is made from the previous one: its maps are PersistentIdentityMaps,
+ * so only the state of the ImageFiles that changed, and the few trie nodes on the paths to them and to their entries
+ * in their Tags' postings, are new; everything else is shared with the previous snapshot. Changing one image costs
+ * about the same however many images the model holds.
+ *
+ * ImageFiles and Tags are keyed by identity, since the name an ImageFile is equal by can change when it is reverted.
+ */
+public final class ModelSnapshot {
+    /**
+     * The snapshot of a model with no ImageFiles.
+     */
+    static final ModelSnapshot EMPTY = new ModelSnapshot(0, Collections.emptyList(),
+            PersistentIdentityMap.empty(), PersistentIdentityMap.empty(), Collections.emptySet(), false);
+
+    /**
+     * The number of changes committed before this snapshot was made.
+     */
+    private final long version;
+    /**
+     * The ImageFiles that were being managed (displayed).
+     */
+    private final List<ImageFile> images;
+    /**
+     * The state of every ImageFile in this snapshot, managed or tagged.
+     */
+    private final PersistentIdentityMap<ImageFile,ImageState> states;
+    /**
+     * The ImageFiles that had each Tag, as sets of them (each ImageFile is its own value).
+     */
+    private final PersistentIdentityMap<Tag,PersistentIdentityMap<ImageFile,ImageFile>> imagesByTag;
+    /**
+     * The Tags whose ImageFiles changed since the snapshot this one was made from.
+     */
+    private final Set<Tag> changedTags;
+    /**
+     * Whether ImageFiles were added since the snapshot this one was made from.
+     */
+    private final boolean imagesAddedOrDropped;
+
+    /**
+     * The state of one ImageFile at the time a snapshot was made. Never changed once made, so it is shared by every
+     * snapshot until the ImageFile changes again.
+     */
+    private static final class ImageState {
+        /**
+         * The ID of the directory of the file the ImageFile referred to, in the DirectoryTable.
+         */
+        private final int directoryId;
+        /**
+         * The name of the file the ImageFile referred to.
+         */
+        private final String fileName;
+        /**
+         * The Tags of the ImageFile.
+         */
+        private final List<Tag> tags;
+        /**
+         * The names the ImageFile had had, in the ImageFile's compact form; decoded only when they are read.
+         */
+        private final NameHistory nameHistory;
+
+        /**
+         * Captures the current state of an ImageFile.
+         * @param imageFile ImageFile to capture.
+         */
+        private ImageState(ImageFile imageFile){
+            // hold the ImageFile's lock so that the file, tags and history are from the same moment
+            imageFile.lock();
+            try{
+                directoryId = imageFile.getDirectoryId();
+                fileName = imageFile.getImageFileName();
+                tags = Collections.unmodifiableList(imageFile.getTagList());
+                nameHistory = imageFile.copyNameHistory();
+            }finally{
+                imageFile.unlock();
+            }
+        }
+    }
+
+    /**
+     * Constructs a ModelSnapshot.
+     * @param version The number of changes committed before this snapshot.
+     * @param images The managed ImageFiles.
+     * @param states The state of every ImageFile.
+     * @param imagesByTag The ImageFiles that have each Tag.
+     * @param changedTags The Tags whose ImageFiles changed since the previous snapshot.
+     * @param imagesAddedOrDropped Whether ImageFiles were added or dropped since the previous snapshot.
+     */
+    private ModelSnapshot(long version, List<ImageFile> images, PersistentIdentityMap<ImageFile,ImageState> states,
+                          PersistentIdentityMap<Tag,PersistentIdentityMap<ImageFile,ImageFile>> imagesByTag,
+                          Set<Tag> changedTags, boolean imagesAddedOrDropped){
+        this.version = version;
+        this.images = images;
+        this.states = states;
+        this.imagesByTag = imagesByTag;
+        this.changedTags = changedTags;
+        this.imagesAddedOrDropped = imagesAddedOrDropped;
+    }
+
+    /**
+     * Returns the number of changes committed before this snapshot was made. A later snapshot has a higher version.
+     * @return The version of this snapshot.
+     */
+    public long getVersion(){
+        return version;
+    }
+
+    /**
+     * Returns the ImageFiles that were being managed.
+     * @return An unmodifiable list of the managed ImageFiles.
+     */
+    public List<ImageFile> getImages(){
+        return images;
+    }
+
+    /**
+     * Returns every ImageFile in this snapshot, managed or tagged.
+     * @return An unmodifiable set of the ImageFiles in this snapshot.
+     */
+    public Set<ImageFile> getKnownImages(){
+        return states.keySet();
+    }
+
+    /**
+     * Returns the Tags an ImageFile had.
+     * @param imageFile ImageFile to get the Tags of.
+     * @return An unmodifiable list of the ImageFile's Tags (empty if the ImageFile is not in this snapshot).
+     */
+    public List<Tag> getTags(ImageFile imageFile){
+        ImageState state = states.get(imageFile);
+        return state == null ? Collections.emptyList() : state.tags;
+    }
+
+    /**
+     * Returns the names an ImageFile had had.
+     * @param imageFile ImageFile to get the name history of.
+     * @return An unmodifiable list of the ImageFile's past names (empty if the ImageFile is not in this snapshot),
+     * decoded on each call.
+     */
+    public List<String> getNameHistory(ImageFile imageFile){
+        ImageState state = states.get(imageFile);
+        return state == null ? Collections.emptyList() : Collections.unmodifiableList(state.nameHistory.getNames());
+    }
+
+    /**
+     * Returns the file an ImageFile referred to.
+     * @param imageFile ImageFile to get the file of.
+     * @return The file of the ImageFile, or null if the ImageFile is not in this snapshot.
+     */
+    public File getFile(ImageFile imageFile){
+        ImageState state = states.get(imageFile);
+        return state == null ? null : DirectoryTable.file(state.directoryId, state.fileName);
+    }
+
+    /**
+     * Returns the ImageFiles whose file was directly in a given directory. Directories are compared by their ID in
+     * the DirectoryTable, so no path is made or compared for each ImageFile.
+     * @param directory Directory to get the ImageFiles of.
+     * @return The ImageFiles in the directory, managed or tagged, in no particular order.
+     */
+    public List<ImageFile> getImagesInDirectory(File directory){
+        int directoryId = DirectoryTable.find(directory.getPath());
+        if(directoryId < 0){
+            return Collections.emptyList();
+        }
+        ArrayList<ImageFile> found = new ArrayList<>();
+        // forEach walks the trie directly, where iterating its keys would look each state up again
+        states.forEach((imageFile, state) -> {
+            if(state.directoryId == directoryId){
+                found.add(imageFile);
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Returns the ImageFiles that had a Tag.
+     * @param tag Tag to get the ImageFiles of.
+     * @return An unmodifiable set of the ImageFiles with the Tag, by identity, in no particular order.
+     */
+    public Set<ImageFile> getImagesWithTag(Tag tag){
+        PersistentIdentityMap<ImageFile,ImageFile> tagged = imagesByTag.get(tag);
+        return tagged == null ? Collections.emptySet() : tagged.keySet();
+    }
+
+    /**
+     * Returns the Tags whose ImageFiles changed (were tagged or untagged with them) since the snapshot this one was
+     * made from.
+     * @return An unmodifiable set of the changed Tags, by identity.
+     */
+    Set<Tag> getChangedTags(){
+        return changedTags;
+    }
+
+    /**
+     * Returns whether ImageFiles were added or dropped since the snapshot this one was made from, which changes the
+     * ImageFiles that match a negated query.
+     * @return True iff ImageFiles were added or dropped.
+     */
+    boolean hasAddedOrDroppedImages(){
+        return imagesAddedOrDropped;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this snapshot takes on the heap, not counting the ImageFiles, Tags
+     * and file names it shares with the model. Each state holds a copy of an ImageFile's Tag list and of its encoded
+     * names. Trie nodes shared with older snapshots are counted as this snapshot's.
+     * @return The estimated number of bytes of this snapshot.
+     */
+    long estimateBytes(){
+        // the snapshot, its unmodifiable list of managed ImageFiles, and its two maps
+        long[] bytes = {HeapSize.object(4, 9) + HeapSize.object(2, 0) + HeapSize.arrayList(images.size())
+                + states.estimateBytes() + imagesByTag.estimateBytes()};
+        states.forEach((imageFile, state) ->
+                // the state, and its copied Tag list in an unmodifiable wrapper
+                bytes[0] += HeapSize.object(3, 4) + HeapSize.object(2, 0) + HeapSize.arrayList(state.tags.size())
+                        + state.nameHistory.estimateBytes());
+        imagesByTag.forEach((tag, postings) -> bytes[0] += postings.estimateBytes());
+        return bytes[0];
+    }
+
+    /**
+     * Returns a new snapshot in which some ImageFiles have changed. The managed ImageFiles stay the same.
+     * @param changed ImageFiles whose current state should replace their state in this snapshot.
+     * @return The new snapshot.
+     */
+    ModelSnapshot withChanges(Collection<ImageFile> changed){
+        return build(images, changed, Collections.emptyList());
+    }
+
+    /**
+     * Returns a new snapshot with a new list of managed ImageFiles, in which some ImageFiles have changed and some
+     * are no longer known.
+     * @param newImages The managed ImageFiles. Must not be changed afterwards.
+     * @param changed ImageFiles whose current state should replace their state in this snapshot.
+     * @param dropped ImageFiles to forget, such as untagged ImageFiles that left the managed list.
+     * @return The new snapshot.
+     */
+    ModelSnapshot withChanges(List<ImageFile> newImages, Collection<ImageFile> changed,
+                              Collection<ImageFile> dropped){
+        return build(Collections.unmodifiableList(newImages), changed, dropped);
+    }
+
+    /**
+     * Returns a new snapshot made from this one.
+     * @param newImages Unmodifiable list of the managed ImageFiles.
+     * @param changed ImageFiles whose current state should replace their state in this snapshot.
+     * @param dropped ImageFiles to remove from this snapshot.
+     * @return The new snapshot.
+     */
+    private ModelSnapshot build(List<ImageFile> newImages, Collection<ImageFile> changed,
+                                Collection<ImageFile> dropped){
+        PersistentIdentityMap.Editor<ImageFile,ImageState> newStates = states.edit();
+        // the postings being changed, one Editor per Tag, so a bulk change copies each trie node at most once
+        IdentityHashMap<Tag,PersistentIdentityMap.Editor<ImageFile,ImageFile>> changedPostings =
+                new IdentityHashMap<>();
+        boolean imagesAddedOrDropped = false;
+
+        for(ImageFile imageFile : changed){
+            ImageState oldState = newStates.get(imageFile);
+            imagesAddedOrDropped |= oldState == null;
+            ImageState newState = new ImageState(imageFile);
+            newStates.put(imageFile, newState);
+
+            List<Tag> oldTags = oldState == null ? Collections.emptyList() : oldState.tags;
+            for(Tag tag : oldTags){
+                if(!containsSame(newState.tags, tag)){
+                    postingsToChange(tag, changedPostings).remove(imageFile);
+                }
+            }
+            for(Tag tag : newState.tags){
+                if(!containsSame(oldTags, tag)){
+                    postingsToChange(tag, changedPostings).put(imageFile, imageFile);
+                }
+            }
+        }
+
+        for(ImageFile imageFile : dropped){
+            ImageState oldState = newStates.get(imageFile);
+            if(oldState == null){
+                continue;
+            }
+            imagesAddedOrDropped = true;
+            newStates.remove(imageFile);
+            for(Tag tag : oldState.tags){
+                postingsToChange(tag, changedPostings).remove(imageFile);
+            }
+        }
+
+        PersistentIdentityMap.Editor<Tag,PersistentIdentityMap<ImageFile,ImageFile>> newImagesByTag =
+                imagesByTag.edit();
+        for(Map.Entry<Tag,PersistentIdentityMap.Editor<ImageFile,ImageFile>> entry : changedPostings.entrySet()){
+            PersistentIdentityMap<ImageFile,ImageFile> postings = entry.getValue().done();
+            if(postings.size() == 0){
+                newImagesByTag.remove(entry.getKey());
+            }
+            else{
+                newImagesByTag.put(entry.getKey(), postings);
+            }
+        }
+
+        // every Tag whose postings changed has an Editor
+        Set<Tag> changedTags = Collections.newSetFromMap(new IdentityHashMap<>());
+        changedTags.addAll(changedPostings.keySet());
+        return new ModelSnapshot(version + 1, newImages, newStates.done(), newImagesByTag.done(),
+                Collections.unmodifiableSet(changedTags), imagesAddedOrDropped);
+    }
+
+    /**
+     * Returns whether a list holds a given Tag itself (not just a Tag equal to it).
+     * @param tags List to search.
+     * @param tag Tag to search for.
+     * @return True iff the list holds the Tag.
+     */
+    private static boolean containsSame(List<Tag> tags, Tag tag){
+        for(Tag t : tags){
+            if(t == tag){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the Editor of a Tag's postings in a snapshot that is being made, starting it the first time they are
+     * changed.
+     * @param tag Tag whose postings will be changed.
+     * @param changedPostings Editors of the postings already being changed.
+     * @return Editor of the Tag's postings.
+     */
+    private PersistentIdentityMap.Editor<ImageFile,ImageFile> postingsToChange(Tag tag,
+            IdentityHashMap<Tag,PersistentIdentityMap.Editor<ImageFile,ImageFile>> changedPostings){
+        PersistentIdentityMap.Editor<ImageFile,ImageFile> postings = changedPostings.get(tag);
+        if(postings == null){
+            PersistentIdentityMap<ImageFile,ImageFile> shared = imagesByTag.get(tag);
+            postings = (shared == null ? PersistentIdentityMap.<ImageFile,ImageFile>empty() : shared).edit();
+            changedPostings.put(tag, postings);
+        }
+        return postings;
+    }
+}
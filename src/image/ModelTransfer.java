@@ -0,0 +1,605 @@
+package image;
+
+import tag.Tag;
+import tag.TagManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A ModelTransfer. Exports the tagged ImageFiles of an ImageManager (their files, Tags and name histories) as lines
+ * of text, and imports them again, e.g. to move tags to another machine or to seed a new library.
+ *
+ * Two formats are supported, one image per line:
+ *
+ *   CSV      file,tags,names         with a header line; Tags are separated by spaces and names by /
+ *   JSONL    {"file": "...", "tags": ["..."], "names": ["..."]}
+ *
+ * Names are the names an image has had before its current one, oldest first, without extension. Files can be
+ * written relative to a base directory, and are then resolved against the base directory given on import.
+ *
+ * Export writes each line as it goes, so it needs no memory beyond the model itself. Import expects the files to
+ * already have the names in the export (it renames nothing), so it only builds the model: every line is parsed
+ * first, then Tags are created and postings are added a batch of rows at a time, and the model is published and
+ * saved once at the end. Entries whose files do not exist are skipped, and can be listed with getSkippedFiles.
+ */
+public class ModelTransfer {
+    /**
+     * Line formats a model can be transferred in.
+     */
+    public enum Format {
+        CSV, JSONL;
+
+        /**
+         * Returns the format of a file, by its extension: CSV for .csv, otherwise JSONL.
+         * @param file File to get the format of.
+         * @return The format of the file.
+         */
+        public static Format of(File file){
+            return file.getName().toLowerCase().endsWith(".csv") ? CSV : JSONL;
+        }
+    }
+
+    /**
+     * The header line of a CSV export.
+     */
+    private static final String CSV_HEADER = "file,tags,names";
+    /**
+     * The number of rows imported at once.
+     */
+    private static final int BATCH_SIZE = 10000;
+    /**
+     * An empty list of Tag names or names.
+     */
+    private static final String[] NO_STRINGS = new String[0];
+
+    /**
+     * ImageManager whose ImageFiles are transferred.
+     */
+    private ImageManager imageManager;
+    /**
+     * TagManager whose Tags the ImageFiles have.
+     */
+    private TagManager tagManager;
+    /**
+     * The files of the last import's entries that were skipped, because they do not exist.
+     */
+    private ArrayList<File> skippedFiles = new ArrayList<>();
+
+    /**
+     * One image of an export: its file, Tag names and earlier names.
+     */
+    private static class Row {
+        /**
+         * The file of the image, as written.
+         */
+        private String file;
+        /**
+         * The names of the image's Tags.
+         */
+        private String[] tags = NO_STRINGS;
+        /**
+         * The names the image has had, oldest first.
+         */
+        private String[] names = NO_STRINGS;
+    }
+
+    /**
+     * Constructs a ModelTransfer.
+     * @param imageManager ImageManager whose ImageFiles are transferred.
+     * @param tagManager TagManager whose Tags the ImageFiles have.
+     */
+    public ModelTransfer(ImageManager imageManager, TagManager tagManager){
+        this.imageManager = imageManager;
+        this.tagManager = tagManager;
+    }
+
+    /**
+     * Writes every tagged ImageFile, as it is in the latest snapshot.
+     * @param out Writer to write to.
+     * @param format Format to write in.
+     * @param base Directory to write files relative to (files outside it are written in full), or null.
+     * @return The number of ImageFiles written.
+     * @throws IOException ..
+     */
+    public int exportModel(Writer out, Format format, File base) throws IOException{
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        Path basePath = base == null ? null : base.toPath().toAbsolutePath().normalize();
+        StringBuilder line = new StringBuilder();
+        int count = 0;
+        if(format == Format.CSV){
+            out.write(CSV_HEADER + "\n");
+        }
+        // the index is iterated as it is, rather than copied, since it may hold millions of images
+        for(ImageFile img : imageManager.getTaggedImages()){
+            File file = snapshot.getFile(img);
+            if(file == null){
+                continue;
+            }
+            String path = file.getPath();
+            if(basePath != null){
+                Path absolute = file.toPath().toAbsolutePath().normalize();
+                if(absolute.startsWith(basePath)){
+                    path = basePath.relativize(absolute).toString();
+                }
+            }
+            ArrayList<String> tagNames = new ArrayList<>();
+            for(Tag tag : snapshot.getTags(img)){
+                tagNames.add(tag.getTagName());
+            }
+
+            line.setLength(0);
+            if(format == Format.CSV){
+                appendCsvField(line, path).append(',');
+                appendCsvField(line, String.join(" ", tagNames)).append(',');
+                appendCsvField(line, String.join("/", snapshot.getNameHistory(img)));
+            }
+            else{
+                line.append("{\"file\":");
+                appendJsonString(line, path).append(",\"tags\":");
+                appendJsonArray(line, tagNames).append(",\"names\":");
+                appendJsonArray(line, snapshot.getNameHistory(img)).append('}');
+            }
+            out.write(line.append('\n').toString());
+            count++;
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Reads ImageFiles written by exportModel into the ImageManager, creating Tags that do not exist yet. An image
+     * that the ImageManager already holds takes the imported file, Tags and names. Entries whose files do not exist
+     * are skipped (see getSkippedFiles). Saves once, at the end.
+     * @param in Reader to read from.
+     * @param format Format to read.
+     * @param base Directory to resolve relative files against, or null for the working directory.
+     * @return The number of ImageFiles read.
+     * @throws IOException ..
+     * @throws IllegalArgumentException If a line is not valid; nothing is imported in that case.
+     */
+    public int importModel(Reader in, Format format, File base) throws IOException{
+        return importModel(in, format, base, true);
+    }
+
+    /**
+     * Reads ImageFiles written by exportModel into the ImageManager, creating Tags that do not exist yet. An image
+     * that the ImageManager already holds takes the imported file, Tags and names. Saves once, at the end.
+     * @param in Reader to read from.
+     * @param format Format to read.
+     * @param base Directory to resolve relative files against, or null for the working directory.
+     * @param skipMissing True to skip entries whose files do not exist, false to import them all the same (as the
+     *                    benchmarks do, to build large libraries without their files).
+     * @return The number of ImageFiles read.
+     * @throws IOException ..
+     * @throws IllegalArgumentException If a line is not valid; nothing is imported in that case.
+     */
+    public int importModel(Reader in, Format format, File base, boolean skipMissing) throws IOException{
+        skippedFiles = new ArrayList<>();
+        // every line is parsed before anything is changed, so that a bad line leaves the model as it was
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        ArrayList<Row> rows = new ArrayList<>();
+        // the few distinct Tag names are shared by all the rows that have them, to keep the rows small
+        HashMap<String,String> tagNames = new HashMap<>();
+        int lineNumber = 0;
+        String line;
+        while((line = reader.readLine()) != null){
+            lineNumber++;
+            if(line.trim().isEmpty() || (format == Format.CSV && lineNumber == 1 && line.equals(CSV_HEADER))){
+                continue;
+            }
+            Row row;
+            try{
+                row = format == Format.CSV ? parseCsv(line) : parseJson(line);
+            }catch (IllegalArgumentException e){
+                throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+            for(int i = 0; i < row.tags.length; i++){
+                String tagName = tagNames.putIfAbsent(row.tags[i], row.tags[i]);
+                if(tagName != null){
+                    row.tags[i] = tagName;
+                }
+            }
+            rows.add(row);
+        }
+
+        // imported images by untagged name (what ImageFiles are equal by), so an image that appears twice is found
+        HashMap<String,ImageFile> imported = new HashMap<>();
+        for(int start = 0; start < rows.size(); start += BATCH_SIZE){
+            List<Row> batch = rows.subList(start, Math.min(start + BATCH_SIZE, rows.size()));
+            importBatch(batch, base, imported, skipMissing);
+            // drop the batch's rows, so that they can be collected while the next batches are imported
+            Collections.fill(batch, null);
+        }
+
+        imageManager.addImportedImages(imported);
+        return imported.size();
+    }
+
+    /**
+     * Returns the files of the last import's entries that were skipped, because they do not exist.
+     * @return The skipped files, in the order of their entries.
+     */
+    public ArrayList<File> getSkippedFiles(){
+        return skippedFiles;
+    }
+
+    /**
+     * Sets the state of a batch of imported images, and adds them to their Tags' postings a Tag at a time.
+     * @param batch Rows to import.
+     * @param base Directory to resolve relative files against, or null.
+     * @param imported The images imported so far; the batch's images are added to it.
+     * @param skipMissing True to skip rows whose files do not exist.
+     */
+    private void importBatch(List<Row> batch, File base, HashMap<String,ImageFile> imported, boolean skipMissing){
+        // rows whose files are missing are dropped first, so that no Tag is made for them alone
+        ArrayList<Row> rows = new ArrayList<>(batch.size());
+        ArrayList<File> files = new ArrayList<>(batch.size());
+        for(Row row : batch){
+            File file = new File(row.file);
+            if(!file.isAbsolute() && base != null){
+                file = new File(base, row.file);
+            }
+            if(skipMissing && !file.exists()){
+                skippedFiles.add(file);
+                continue;
+            }
+            rows.add(row);
+            files.add(file);
+        }
+
+        LinkedHashSet<String> tagNames = new LinkedHashSet<>();
+        for(Row row : rows){
+            tagNames.addAll(Arrays.asList(row.tags));
+        }
+        ArrayList<String> orderedTagNames = new ArrayList<>(tagNames);
+        ArrayList<Tag> tags = tagManager.addTags(orderedTagNames);
+        HashMap<String,Tag> tagsByName = new HashMap<>();
+        for(int i = 0; i < tags.size(); i++){
+            tagsByName.put(orderedTagNames.get(i), tags.get(i));
+        }
+
+        IdentityHashMap<Tag,ArrayList<ImageFile>> added = new IdentityHashMap<>();
+        IdentityHashMap<Tag,ArrayList<ImageFile>> removed = new IdentityHashMap<>();
+        for(int r = 0; r < rows.size(); r++){
+            Row row = rows.get(r);
+            File file = files.get(r);
+            ImageFile img = new ImageFile(file);
+            String key = img.getUntaggedName(true);
+            ImageFile existing = imported.get(key);
+            if(existing == null){
+                existing = imageManager.getImage(file);
+            }
+            if(existing != null){
+                img = existing;
+            }
+
+            ArrayList<Tag> rowTags = new ArrayList<>();
+            for(String tagName : row.tags){
+                Tag tag = tagsByName.get(tagName);
+                if(!rowTags.contains(tag)){
+                    rowTags.add(tag);
+                }
+            }
+            for(Tag oldTag : img.importState(file, rowTags, Arrays.asList(row.names))){
+                removed.computeIfAbsent(oldTag, t -> new ArrayList<>()).add(img);
+            }
+            for(Tag tag : rowTags){
+                added.computeIfAbsent(tag, t -> new ArrayList<>()).add(img);
+            }
+            imported.put(key, img);
+        }
+
+        for(Map.Entry<Tag,ArrayList<ImageFile>> postings : removed.entrySet()){
+            postings.getKey().removeImagesFromTag(postings.getValue());
+        }
+        for(Map.Entry<Tag,ArrayList<ImageFile>> postings : added.entrySet()){
+            postings.getKey().addImagesToTag(postings.getValue());
+        }
+    }
+
+    /**
+     * Parses a CSV line: file, space separated Tags and / separated names.
+     * @param line Line to parse.
+     * @return The row on the line.
+     * @throws IllegalArgumentException If the line is not valid.
+     */
+    private static Row parseCsv(String line){
+        ArrayList<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if(quoted){
+                if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+                    field.append('"');
+                    i++;
+                }
+                else if(c == '"'){
+                    quoted = false;
+                }
+                else{
+                    field.append(c);
+                }
+            }
+            else if(c == '"'){
+                quoted = true;
+            }
+            else if(c == ','){
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else{
+                field.append(c);
+            }
+        }
+        if(quoted){
+            throw new IllegalArgumentException("Unclosed quote");
+        }
+        fields.add(field.toString());
+        if(fields.size() != 3 || fields.get(0).isEmpty()){
+            throw new IllegalArgumentException("Expected " + CSV_HEADER);
+        }
+
+        Row row = new Row();
+        row.file = fields.get(0);
+        row.tags = split(fields.get(1), ' ');
+        row.names = split(fields.get(2), '/');
+        return row;
+    }
+
+    /**
+     * Splits a field into its non-empty parts.
+     * @param field Field to split.
+     * @param separator Separator of the parts.
+     * @return The parts of the field.
+     */
+    private static String[] split(String field, char separator){
+        ArrayList<String> parts = new ArrayList<>();
+        int start = 0;
+        while(start <= field.length()){
+            int end = field.indexOf(separator, start);
+            if(end < 0){
+                end = field.length();
+            }
+            if(end > start){
+                parts.add(field.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return parts.toArray(NO_STRINGS);
+    }
+
+    /**
+     * Parses a JSON line: an object with a "file" string and "tags" and "names" arrays of strings. Other members
+     * are ignored, as long as they are strings or arrays of strings.
+     * @param line Line to parse.
+     * @return The row on the line.
+     * @throws IllegalArgumentException If the line is not valid.
+     */
+    private static Row parseJson(String line){
+        JsonCursor cursor = new JsonCursor(line);
+        Row row = new Row();
+        cursor.expect('{');
+        if(!cursor.skipIf('}')){
+            do{
+                String key = cursor.readString();
+                cursor.expect(':');
+                if(cursor.peek() == '['){
+                    String[] values = cursor.readStringArray();
+                    if(key.equals("tags")){
+                        row.tags = values;
+                    }
+                    else if(key.equals("names")){
+                        row.names = values;
+                    }
+                }
+                else{
+                    String value = cursor.readString();
+                    if(key.equals("file")){
+                        row.file = value;
+                    }
+                }
+            } while(cursor.skipIf(','));
+            cursor.expect('}');
+        }
+        cursor.expectEnd();
+        if(row.file == null || row.file.isEmpty()){
+            throw new IllegalArgumentException("Missing \"file\"");
+        }
+        return row;
+    }
+
+    /**
+     * Reads the strings and arrays of strings on one line of JSON.
+     */
+    private static class JsonCursor {
+        /**
+         * The line being read.
+         */
+        private String line;
+        /**
+         * The index of the next character to read.
+         */
+        private int position;
+
+        /**
+         * Constructs a JsonCursor at the start of a line.
+         * @param line The line to read.
+         */
+        private JsonCursor(String line){
+            this.line = line;
+        }
+
+        /**
+         * Returns the next character that is not white space, without reading it.
+         * @return The next character, or 0 at the end of the line.
+         */
+        private char peek(){
+            while(position < line.length() && Character.isWhitespace(line.charAt(position))){
+                position++;
+            }
+            return position < line.length() ? line.charAt(position) : 0;
+        }
+
+        /**
+         * Reads a character if it is the next one.
+         * @param c Character to read.
+         * @return True iff it was the next character.
+         */
+        private boolean skipIf(char c){
+            if(peek() == c){
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads a character that must be the next one.
+         * @param c Character to read.
+         * @throws IllegalArgumentException If it is not the next character.
+         */
+        private void expect(char c){
+            if(!skipIf(c)){
+                throw new IllegalArgumentException("Expected '" + c + "' at column " + (position + 1));
+            }
+        }
+
+        /**
+         * Checks that nothing but white space is left on the line.
+         * @throws IllegalArgumentException If anything else is left.
+         */
+        private void expectEnd(){
+            if(peek() != 0){
+                throw new IllegalArgumentException("Unexpected text at column " + (position + 1));
+            }
+        }
+
+        /**
+         * Reads an array of strings.
+         * @return The strings in the array.
+         * @throws IllegalArgumentException If the next value is not an array of strings.
+         */
+        private String[] readStringArray(){
+            ArrayList<String> values = new ArrayList<>();
+            expect('[');
+            if(!skipIf(']')){
+                do{
+                    values.add(readString());
+                } while(skipIf(','));
+                expect(']');
+            }
+            return values.toArray(NO_STRINGS);
+        }
+
+        /**
+         * Reads a string, unescaping it.
+         * @return The string.
+         * @throws IllegalArgumentException If the next value is not a string.
+         */
+        private String readString(){
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while(position < line.length()){
+                char c = line.charAt(position++);
+                if(c == '"'){
+                    return value.toString();
+                }
+                if(c != '\\'){
+                    value.append(c);
+                    continue;
+                }
+                if(position >= line.length()){
+                    break;
+                }
+                char escaped = line.charAt(position++);
+                switch(escaped){
+                    case 'n': value.append('\n'); break;
+                    case 't': value.append('\t'); break;
+                    case 'r': value.append('\r'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        if(position + 4 > line.length()){
+                            throw new IllegalArgumentException("Bad escape at column " + position);
+                        }
+                        try{
+                            value.append((char) Integer.parseInt(line.substring(position, position + 4), 16));
+                        }catch (NumberFormatException e){
+                            throw new IllegalArgumentException("Bad escape at column " + position);
+                        }
+                        position += 4;
+                        break;
+                    default: value.append(escaped);
+                }
+            }
+            throw new IllegalArgumentException("Unclosed string");
+        }
+    }
+
+    /**
+     * Appends a CSV field, quoted if it needs to be.
+     * @param line Line to append to.
+     * @param field Field to append.
+     * @return The line.
+     */
+    private static StringBuilder appendCsvField(StringBuilder line, String field){
+        if(field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0){
+            return line.append(field);
+        }
+        return line.append('"').append(field.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * Appends a list of strings as a JSON array.
+     * @param line Line to append to.
+     * @param strings Strings to append.
+     * @return The line.
+     */
+    private static StringBuilder appendJsonArray(StringBuilder line, List<String> strings){
+        line.append('[');
+        for(int i = 0; i < strings.size(); i++){
+            if(i > 0){
+                line.append(',');
+            }
+            appendJsonString(line, strings.get(i));
+        }
+        return line.append(']');
+    }
+
+    /**
+     * Appends a string as a JSON string, quoted and escaped. Is also used by the HttpService.
+     * @param line Line to append to.
+     * @param string String to append.
+     * @return The line.
+     */
+    public static StringBuilder appendJsonString(StringBuilder line, String string){
+        line.append('"');
+        for(int i = 0; i < string.length(); i++){
+            char c = string.charAt(i);
+            if(c == '"' || c == '\\'){
+                line.append('\\').append(c);
+            }
+            else if(c < 0x20){
+                line.append(String.format("\\u%04x", (int) c));
+            }
+            else{
+                line.append(c);
+            }
+        }
+        return line.append('"');
+    }
+}
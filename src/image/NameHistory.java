@@ -0,0 +1,537 @@
+package image;
+
+import utils.HeapSize;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A NameHistory. Every name an ImageFile has had, stored compactly.
+ *
+ * Tagged names are made of an untagged name followed by " @tag" for each tag, and consecutive names usually differ by
+ * a tag or two. So each name is stored as the untagged name plus the tags removed and added since the previous name,
+ * rather than as a whole string. Untagged names and tags are stored as IDs into a string table shared by every
+ * NameHistory, so each distinct string is held once however many histories use it, and is written once when the
+ * histories are serialized together. Names that aren't laid out like this are stored whole. A history can be capped,
+ * in which case it is thinned by dropping its oldest names (but always keeping the first).
+ *
+ * The string table is never emptied, like the DirectoryTable: it holds every untagged name, tag and whole name any
+ * history has held since the program started. That is bounded by the images and tags the program has seen, not by
+ * the number of renames; a rename between known tags adds nothing to it (MemoryReport shows its size). Looking up a
+ * string that is already in the table, which is what nearly every rename does, and turning an ID back into its
+ * string do not lock; only adding a string does, so renames on several threads do not wait on each other.
+ *
+ * Each name is encoded in the codes array as either
+ *   WHOLE, nameId
+ * or
+ *   untaggedNameId, removedCount, removedTagIds..., addedCount, addedTagIds...
+ * where a removedCount of RESET means that the previous name's tags are all dropped (e.g. when tags are reordered).
+ */
+public class NameHistory implements Serializable {
+    /**
+     * The version of the saved form of a NameHistory, pinned to the one computed for the first saved histories so
+     * that they can still be read.
+     */
+    private static final long serialVersionUID = 1882197959706992161L;
+    /**
+     * Code of a name that is stored whole.
+     */
+    private static final int WHOLE = -1;
+    /**
+     * Removed count meaning that none of the previous name's tags are kept.
+     */
+    private static final int RESET = -1;
+
+    /**
+     * The string table shared by every NameHistory: every distinct string, indexed by its ID. Is replaced by a larger
+     * copy when full, so that readers never see an array that is being changed.
+     */
+    private static volatile String[] sharedStrings = new String[64];
+    /**
+     * The ID of every string in the shared string table. A string is only put here once it is in sharedStrings.
+     */
+    private static final ConcurrentHashMap<String,Integer> sharedStringIds = new ConcurrentHashMap<>();
+    /**
+     * The number of strings in the shared string table. Guarded by the NameHistory class's lock.
+     */
+    private static int sharedStringCount;
+
+    /**
+     * The cap given to new NameHistories, or 0 if they keep every name.
+     */
+    private static volatile int defaultMaxNames = 0;
+
+    /**
+     * The encoded names in this history, oldest first.
+     */
+    private transient int[] codes = new int[8];
+    /**
+     * The number of codes used.
+     */
+    private transient int codeCount;
+    /**
+     * The number of names in this history.
+     */
+    private transient int nameCount;
+    /**
+     * The tag IDs of the newest name, which the next name is stored as a change from.
+     */
+    private transient int[] lastTags = new int[0];
+    /**
+     * The maximum number of names this history keeps, or 0 to keep every name.
+     */
+    private int maxNames;
+
+    /**
+     * Constructs an empty NameHistory with the default cap.
+     */
+    NameHistory(){
+        this(defaultMaxNames);
+    }
+
+    /**
+     * Constructs an empty NameHistory that keeps at most a given number of names.
+     * @param maxNames The maximum number of names to keep, or 0 to keep every name.
+     */
+    NameHistory(int maxNames){
+        this.maxNames = maxNames;
+    }
+
+    /**
+     * Adds a name to the end of this history.
+     * @param name Name to add.
+     */
+    void add(String name){
+        String[] parts = name.split(" @", -1);
+
+        if(!isTaggedName(parts)){
+            append(WHOLE, idOf(name));
+            lastTags = new int[0];
+        }
+        else{
+            int[] tags = new int[parts.length - 1];
+            for(int i = 0; i < tags.length; i++){
+                tags[i] = idOf(parts[i + 1]);
+            }
+
+            // the old tags that are kept, in their old order
+            ArrayList<Integer> removed = new ArrayList<>();
+            ArrayList<Integer> kept = new ArrayList<>();
+            for(int tag : lastTags){
+                if(indexOf(tags, tag) >= 0){
+                    kept.add(tag);
+                }
+                else{
+                    removed.add(tag);
+                }
+            }
+            boolean keptInOrder = true;
+            for(int i = 0; i < kept.size(); i++){
+                keptInOrder = keptInOrder && tags[i] == kept.get(i);
+            }
+
+            append(idOf(parts[0]));
+            if(keptInOrder){
+                // the new tags are the old ones, less some, plus some at the end: store only what changed
+                append(removed.size());
+                for(int tag : removed){
+                    append(tag);
+                }
+                append(tags.length - kept.size());
+                for(int i = kept.size(); i < tags.length; i++){
+                    append(tags[i]);
+                }
+            }
+            else{
+                // the tags were reordered: store them all, as a change from no tags
+                append(RESET, tags.length);
+                for(int tag : tags){
+                    append(tag);
+                }
+            }
+            lastTags = tags;
+        }
+        nameCount++;
+
+        if(maxNames > 0 && nameCount > maxNames){
+            thin();
+        }
+    }
+
+    /**
+     * Returns every name in this history, oldest first.
+     * @return A list of the names in this history.
+     */
+    ArrayList<String> getNames(){
+        ArrayList<String> names = new ArrayList<>(nameCount);
+        ArrayList<Integer> tags = new ArrayList<>();
+        int i = 0;
+        while(i < codeCount){
+            if(codes[i] == WHOLE){
+                names.add(stringOf(codes[i + 1]));
+                tags.clear();
+                i += 2;
+                continue;
+            }
+
+            StringBuilder name = new StringBuilder(stringOf(codes[i++]));
+            int removedCount = codes[i++];
+            if(removedCount == RESET){
+                tags.clear();
+            }
+            else{
+                for(int r = 0; r < removedCount; r++){
+                    tags.remove(Integer.valueOf(codes[i++]));
+                }
+            }
+            int addedCount = codes[i++];
+            for(int a = 0; a < addedCount; a++){
+                tags.add(codes[i++]);
+            }
+
+            for(int tag : tags){
+                name.append(" @").append(stringOf(tag));
+            }
+            names.add(name.toString());
+        }
+        return names;
+    }
+
+    /**
+     * Returns a copy of this history.
+     * @return A copy of this history.
+     */
+    NameHistory copy(){
+        NameHistory copy = new NameHistory(maxNames);
+        copy.codes = Arrays.copyOf(codes, codeCount);
+        copy.codeCount = codeCount;
+        copy.nameCount = nameCount;
+        copy.lastTags = lastTags.clone();
+        return copy;
+    }
+
+    /**
+     * Returns true iff a name is in this history.
+     * @param name Name to look for.
+     * @return True iff the name is in this history.
+     */
+    boolean contains(String name){
+        return getNames().contains(name);
+    }
+
+    /**
+     * Returns the number of names in this history.
+     * @return The number of names in this history.
+     */
+    int size(){
+        return nameCount;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this history takes on the heap, not counting the shared string
+     * table (see estimateSharedTableBytes).
+     * @return The estimated number of bytes of this history.
+     */
+    long estimateBytes(){
+        // the codeCount, nameCount and maxNames fields, and the two arrays
+        return HeapSize.object(2, 12) + HeapSize.array(codes.length, 4) + HeapSize.array(lastTags.length, 4);
+    }
+
+    /**
+     * Returns an estimate of the number of bytes the string table shared by every NameHistory takes on the heap.
+     * @return The estimated number of bytes of the shared string table.
+     */
+    static synchronized long estimateSharedTableBytes(){
+        String[] strings = sharedStrings;
+        long bytes = HeapSize.referenceArray(strings.length) + HeapSize.concurrentHashMap(sharedStringCount);
+        for(int id = 0; id < sharedStringCount; id++){
+            bytes += HeapSize.string(strings[id]);
+        }
+        // IDs from 128 up are boxed into an Integer of their own
+        return bytes + Math.max(0, sharedStringCount - 128) * HeapSize.object(0, 4);
+    }
+
+    /**
+     * Sets the cap given to NameHistories created from now on.
+     * @param maxNames The maximum number of names a new history keeps, or 0 to keep every name.
+     */
+    public static void setDefaultMaxNames(int maxNames){
+        defaultMaxNames = maxNames;
+    }
+
+    /**
+     * Returns the number of distinct strings in the table shared by every NameHistory.
+     * @return The number of shared strings.
+     */
+    static synchronized int sharedStringCount(){
+        return sharedStringCount;
+    }
+
+    /**
+     * Drops the oldest names (except the very first) so that this history is back under its cap. A quarter of the
+     * cap is dropped at once so that the history isn't rebuilt on every rename.
+     */
+    private void thin(){
+        ArrayList<String> names = getNames();
+        int toDrop = names.size() - maxNames + maxNames / 4;
+        ArrayList<String> kept = new ArrayList<>();
+        kept.add(names.get(0));
+        kept.addAll(names.subList(Math.min(1 + toDrop, names.size()), names.size()));
+        rebuild(kept);
+    }
+
+    /**
+     * Replaces the names in this history. Names are stored as changes from the name before them, so they are all
+     * encoded again.
+     * @param names Names to store, oldest first.
+     */
+    private void rebuild(List<String> names){
+        int cap = maxNames;
+        maxNames = 0;
+        codes = new int[8];
+        codeCount = 0;
+        nameCount = 0;
+        lastTags = new int[0];
+        for(String name : names){
+            add(name);
+        }
+        maxNames = cap;
+    }
+
+    /**
+     * Appends codes to the encoded names.
+     * @param newCodes Codes to append.
+     */
+    private void append(int... newCodes){
+        if(codeCount + newCodes.length > codes.length){
+            codes = Arrays.copyOf(codes, Math.max(codes.length * 2, codeCount + newCodes.length));
+        }
+        System.arraycopy(newCodes, 0, codes, codeCount, newCodes.length);
+        codeCount += newCodes.length;
+    }
+
+    /**
+     * Returns true iff a name split on " @" is an untagged name followed by distinct tags, so that it can be rebuilt
+     * exactly from its parts.
+     * @param parts The name, split on " @".
+     * @return True iff the name can be stored as an untagged name and tags.
+     */
+    private static boolean isTaggedName(String[] parts){
+        if(parts[0].contains("@")){
+            return false;
+        }
+        HashSet<String> tags = new HashSet<>();
+        for(int i = 1; i < parts.length; i++){
+            if(parts[i].isEmpty() || parts[i].contains(" ") || parts[i].contains("@") || !tags.add(parts[i])){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of a value in an array.
+     * @param values Array to search.
+     * @param value Value to look for.
+     * @return The index of the value, or -1 if it isn't in the array.
+     */
+    private static int indexOf(int[] values, int value){
+        for(int i = 0; i < values.length; i++){
+            if(values[i] == value){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the ID of a string in the shared string table, adding it if it is not in the table yet.
+     * @param string String to get the ID of.
+     * @return The ID of the string.
+     */
+    private static int idOf(String string){
+        Integer id = sharedStringIds.get(string);
+        return id != null ? id : addString(string);
+    }
+
+    /**
+     * Adds a string to the shared string table, unless another thread has just added it.
+     * @param string String to add.
+     * @return The ID of the string.
+     */
+    private static synchronized int addString(String string){
+        Integer id = sharedStringIds.get(string);
+        if(id == null){
+            id = sharedStringCount++;
+            String[] current = sharedStrings;
+            if(id == current.length){
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[id] = string;
+            // publish the string before its ID can be found by another thread
+            sharedStrings = current;
+            sharedStringIds.put(string, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the string with a given ID in the shared string table.
+     * @param id ID of the string.
+     * @return The string with the ID.
+     */
+    private static String stringOf(int id){
+        return sharedStrings[id];
+    }
+
+    /**
+     * Returns a copy of some encoded names with every string ID replaced.
+     * @param encoded Encoded names.
+     * @param length The number of codes used.
+     * @param mapping Gives the replacement of each string ID.
+     * @return A copy of the encoded names with the string IDs replaced.
+     */
+    private static int[] mapIds(int[] encoded, int length, IntUnaryOperator mapping){
+        int[] mapped = Arrays.copyOf(encoded, length);
+        int i = 0;
+        while(i < length){
+            if(mapped[i] == WHOLE){
+                mapped[i + 1] = mapping.applyAsInt(mapped[i + 1]);
+                i += 2;
+                continue;
+            }
+            mapped[i] = mapping.applyAsInt(mapped[i]);
+            i++;
+            int removedCount = mapped[i++];
+            for(int r = 0; r < removedCount; r++, i++){
+                mapped[i] = mapping.applyAsInt(mapped[i]);
+            }
+            int addedCount = mapped[i++];
+            for(int a = 0; a < addedCount; a++, i++){
+                mapped[i] = mapping.applyAsInt(mapped[i]);
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Writes this NameHistory to a serialization stream. IDs into the shared string table are only valid while the
+     * program runs, so the strings this history uses are written first, and the codes refer to them by their
+     * position. The strings come from the shared string table, so a string used by many histories is only written
+     * once per stream. Codes are written as variable length numbers, which are a single byte for most codes.
+     * @param output Stream to write to.
+     * @throws IOException ..
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException{
+        output.defaultWriteObject();
+
+        final HashMap<Integer,Integer> localIds = new HashMap<>();
+        final ArrayList<String> localStrings = new ArrayList<>();
+        IntUnaryOperator toLocal = new IntUnaryOperator(){
+            @Override
+            public int applyAsInt(int id){
+                Integer localId = localIds.get(id);
+                if(localId == null){
+                    localId = localStrings.size();
+                    localStrings.add(stringOf(id));
+                    localIds.put(id, localId);
+                }
+                return localId;
+            }
+        };
+        int[] localCodes = mapIds(codes, codeCount, toLocal);
+        int[] localLastTags = new int[lastTags.length];
+        for(int i = 0; i < lastTags.length; i++){
+            localLastTags[i] = toLocal.applyAsInt(lastTags[i]);
+        }
+
+        output.writeInt(localStrings.size());
+        for(String string : localStrings){
+            output.writeObject(string);
+        }
+        output.writeInt(nameCount);
+        writeCodes(output, localCodes, codeCount);
+        writeCodes(output, localLastTags, localLastTags.length);
+    }
+
+    /**
+     * Reads a NameHistory from a serialization stream, adding its strings to the shared string table.
+     * @param input Stream to read from.
+     * @throws IOException ..
+     * @throws ClassNotFoundException ..
+     */
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException{
+        input.defaultReadObject();
+
+        final int[] globalIds = new int[input.readInt()];
+        for(int i = 0; i < globalIds.length; i++){
+            globalIds[i] = idOf((String) input.readObject());
+        }
+        IntUnaryOperator toGlobal = new IntUnaryOperator(){
+            @Override
+            public int applyAsInt(int localId){
+                return globalIds[localId];
+            }
+        };
+
+        nameCount = input.readInt();
+        int[] localCodes = readCodes(input);
+        codeCount = localCodes.length;
+        codes = mapIds(localCodes, codeCount, toGlobal);
+        lastTags = readCodes(input);
+        for(int i = 0; i < lastTags.length; i++){
+            lastTags[i] = globalIds[lastTags[i]];
+        }
+    }
+
+    /**
+     * Writes codes as a count followed by variable length numbers (7 bits per byte, offset by one so that the
+     * negative marker codes fit).
+     * @param output Stream to write to.
+     * @param values Codes to write.
+     * @param length The number of codes to write.
+     * @throws IOException ..
+     */
+    private static void writeCodes(ObjectOutputStream output, int[] values, int length) throws IOException{
+        output.writeInt(length);
+        for(int i = 0; i < length; i++){
+            int value = values[i] + 1;
+            while((value & ~0x7F) != 0){
+                output.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.writeByte(value);
+        }
+    }
+
+    /**
+     * Reads codes written by writeCodes.
+     * @param input Stream to read from.
+     * @return The codes.
+     * @throws IOException ..
+     */
+    private static int[] readCodes(ObjectInputStream input) throws IOException{
+        int[] values = new int[input.readInt()];
+        for(int i = 0; i < values.length; i++){
+            int value = 0;
+            int shift = 0;
+            int b;
+            do{
+                b = input.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            values[i] = value - 1;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,657 @@
+package image;
+
+import utils.HeapSize;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A PersistentIdentityMap. An immutable map keyed by identity, as a hash array mapped trie: each node holds up to 32
+ * entries or child nodes, chosen by five bits of the keys' identity hash codes, and a bitmap of which it holds.
+ *
+ * A changed map shares every node with the map it was made from except the ones on the path to the changed key, so
+ * changing one key of a map of n keys copies about log32(n) small nodes rather than the whole map. Many changes can
+ * be made at once through an Editor, which changes the nodes it has already copied in place instead of copying them
+ * again; the map it returns is as immutable as any other.
+ *
+ * Keys whose identity hash codes are equal are kept together in a collision node. Values must not be null.
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+final class PersistentIdentityMap<K,V> {
+    /**
+     * The number of bits of a hash code used at each level of the trie.
+     */
+    private static final int BITS = 5;
+    /**
+     * The map with no keys.
+     */
+    private static final PersistentIdentityMap<Object,Object> EMPTY =
+            new PersistentIdentityMap<>(new BitmapNode(null, 0, new Object[0]), 0);
+
+    /**
+     * The root of the trie.
+     */
+    private final Node root;
+    /**
+     * The number of keys in this map.
+     */
+    private final int size;
+
+    /**
+     * Constructs a PersistentIdentityMap.
+     * @param root The root of the trie.
+     * @param size The number of keys in the trie.
+     */
+    private PersistentIdentityMap(Node root, int size){
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the map with no keys.
+     * @param <K> The type of the keys.
+     * @param <V> The type of the values.
+     * @return The empty map.
+     */
+    @SuppressWarnings("unchecked")
+    static <K,V> PersistentIdentityMap<K,V> empty(){
+        return (PersistentIdentityMap<K,V>) EMPTY;
+    }
+
+    /**
+     * Returns the value of a key.
+     * @param key The key.
+     * @return The value of the key itself (not of a key equal to it), or null if it is not in this map.
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key){
+        return (V) root.find(key, System.identityHashCode(key), 0);
+    }
+
+    /**
+     * Returns the number of keys in this map.
+     * @return The number of keys.
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * Returns a map with a key set to a value.
+     * @param key The key.
+     * @param value The value.
+     * @return The changed map.
+     */
+    PersistentIdentityMap<K,V> with(K key, V value){
+        Editor<K,V> editor = edit();
+        editor.put(key, value);
+        return editor.done();
+    }
+
+    /**
+     * Returns a map without a key.
+     * @param key The key.
+     * @return The changed map.
+     */
+    PersistentIdentityMap<K,V> without(K key){
+        Editor<K,V> editor = edit();
+        editor.remove(key);
+        return editor.done();
+    }
+
+    /**
+     * Returns an Editor that makes a changed copy of this map.
+     * @return An Editor starting from this map.
+     */
+    Editor<K,V> edit(){
+        return new Editor<>(root, size);
+    }
+
+    /**
+     * Performs an action for each key and value, in no particular order.
+     * @param action The action.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K,? super V> action){
+        root.forEach((BiConsumer<Object,Object>) action);
+    }
+
+    /**
+     * Returns the keys of this map.
+     * @return An unmodifiable set of the keys, compared by identity.
+     */
+    Set<K> keySet(){
+        return new AbstractSet<K>(){
+            @Override
+            public boolean contains(Object key){
+                return get(key) != null;
+            }
+
+            @Override
+            public Iterator<K> iterator(){
+                return new KeyIterator<>(root);
+            }
+
+            @Override
+            public int size(){
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns an estimate of the number of bytes the nodes of this map take on the heap, not counting its keys and
+     * values. Nodes shared with other maps are counted in full.
+     * @return The estimated number of bytes of this map.
+     */
+    long estimateBytes(){
+        return HeapSize.object(1, 4) + root.estimateBytes();
+    }
+
+    /**
+     * An Editor. Makes a changed copy of a map one change at a time. The nodes it copies are marked as its own, so
+     * that later changes to them are made in place; the nodes it shares are never changed. An Editor is not thread
+     * safe.
+     * @param <K> The type of the keys.
+     * @param <V> The type of the values.
+     */
+    static final class Editor<K,V> {
+        /**
+         * The root of the trie being changed.
+         */
+        private Node root;
+        /**
+         * The number of keys in the trie being changed.
+         */
+        private int size;
+        /**
+         * Marks the nodes this Editor copied, which it may change in place until it is done.
+         */
+        private Object owner = new Object();
+        /**
+         * Set by a node when a change adds or removes a key.
+         */
+        private boolean[] sizeChanged = new boolean[1];
+
+        /**
+         * Constructs an Editor.
+         * @param root The root of the map to change.
+         * @param size The number of keys in the map.
+         */
+        private Editor(Node root, int size){
+            this.root = root;
+            this.size = size;
+        }
+
+        /**
+         * Returns the value of a key in the map being changed.
+         * @param key The key.
+         * @return The value of the key, or null if it is not in the map.
+         */
+        @SuppressWarnings("unchecked")
+        V get(Object key){
+            return (V) root.find(key, System.identityHashCode(key), 0);
+        }
+
+        /**
+         * Sets a key to a value.
+         * @param key The key.
+         * @param value The value; must not be null.
+         */
+        void put(K key, V value){
+            if(value == null){
+                throw new NullPointerException("PersistentIdentityMap values must not be null");
+            }
+            sizeChanged[0] = false;
+            root = root.put(owner, key, System.identityHashCode(key), value, 0, sizeChanged);
+            if(sizeChanged[0]){
+                size++;
+            }
+        }
+
+        /**
+         * Removes a key.
+         * @param key The key.
+         */
+        void remove(Object key){
+            sizeChanged[0] = false;
+            Node newRoot = root.remove(owner, key, System.identityHashCode(key), 0, sizeChanged);
+            root = newRoot == null ? EMPTY.root : newRoot;
+            if(sizeChanged[0]){
+                size--;
+            }
+        }
+
+        /**
+         * Returns the changed map. Changes made afterwards copy its nodes again, so they do not change it.
+         * @return The map with every change made.
+         */
+        PersistentIdentityMap<K,V> done(){
+            // the nodes of the returned map are never changed again
+            owner = new Object();
+            return new PersistentIdentityMap<>(root, size);
+        }
+    }
+
+    /**
+     * A node of the trie.
+     */
+    private abstract static class Node {
+        /**
+         * Returns the value of a key under this node.
+         * @param key The key.
+         * @param hash The key's identity hash code.
+         * @param shift The number of bits of the hash code used above this node.
+         * @return The value, or null if the key is not under this node.
+         */
+        abstract Object find(Object key, int hash, int shift);
+
+        /**
+         * Sets a key under this node to a value.
+         * @param owner The Editor's mark; nodes with it may be changed in place.
+         * @param key The key.
+         * @param hash The key's identity hash code.
+         * @param value The value.
+         * @param shift The number of bits of the hash code used above this node.
+         * @param added Set to true if the key was not under this node.
+         * @return This node, changed in place, or the node that replaces it.
+         */
+        abstract Node put(Object owner, Object key, int hash, Object value, int shift, boolean[] added);
+
+        /**
+         * Removes a key under this node.
+         * @param owner The Editor's mark; nodes with it may be changed in place.
+         * @param key The key.
+         * @param hash The key's identity hash code.
+         * @param shift The number of bits of the hash code used above this node.
+         * @param removed Set to true if the key was under this node.
+         * @return This node, changed in place, the node that replaces it, or null if no keys are left under it.
+         */
+        abstract Node remove(Object owner, Object key, int hash, int shift, boolean[] removed);
+
+        /**
+         * Performs an action for each key and value under this node.
+         * @param action The action.
+         */
+        abstract void forEach(BiConsumer<Object,Object> action);
+
+        /**
+         * Returns an estimate of the number of bytes of this node and the nodes under it.
+         * @return The estimated number of bytes.
+         */
+        abstract long estimateBytes();
+    }
+
+    /**
+     * A node holding keys and child nodes by five bits of their hash codes. Its array holds a pair of slots for each
+     * bit set in its bitmap, in order: a key and its value, or null and a child node.
+     */
+    private static final class BitmapNode extends Node {
+        /**
+         * The Editor that may change this node in place, or null.
+         */
+        private final Object owner;
+        /**
+         * Which of the 32 slots this node holds.
+         */
+        private int bitmap;
+        /**
+         * The keys and values, or nulls and child nodes, of the slots this node holds.
+         */
+        private Object[] array;
+
+        /**
+         * Constructs a BitmapNode.
+         * @param owner The Editor that may change it in place, or null.
+         * @param bitmap Which slots it holds.
+         * @param array The pairs of the slots it holds.
+         */
+        private BitmapNode(Object owner, int bitmap, Object[] array){
+            this.owner = owner;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        /**
+         * Returns the bit of a hash code's slot at a level of the trie.
+         * @param hash The hash code.
+         * @param shift The number of bits of the hash code used above the level.
+         * @return The bit of the slot.
+         */
+        private static int bit(int hash, int shift){
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        /**
+         * Returns where the pair of a slot starts in the array.
+         * @param bit The bit of the slot.
+         * @return The index of the slot's first element.
+         */
+        private int index(int bit){
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        /**
+         * Returns this node, or a copy of it the Editor may change in place.
+         * @param editor The Editor's mark.
+         * @return A node that may be changed in place.
+         */
+        private BitmapNode editable(Object editor){
+            return owner == editor ? this : new BitmapNode(editor, bitmap, array.clone());
+        }
+
+        @Override
+        Object find(Object key, int hash, int shift){
+            int bit = bit(hash, shift);
+            if((bitmap & bit) == 0){
+                return null;
+            }
+            int index = index(bit);
+            Object slotKey = array[index];
+            if(slotKey == null){
+                return ((Node) array[index + 1]).find(key, hash, shift + BITS);
+            }
+            return slotKey == key ? array[index + 1] : null;
+        }
+
+        @Override
+        Node put(Object editor, Object key, int hash, Object value, int shift, boolean[] added){
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if((bitmap & bit) == 0){
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = key;
+                newArray[index + 1] = value;
+                System.arraycopy(array, index, newArray, index + 2, array.length - index);
+                added[0] = true;
+                if(owner == editor){
+                    bitmap |= bit;
+                    array = newArray;
+                    return this;
+                }
+                return new BitmapNode(editor, bitmap | bit, newArray);
+            }
+
+            Object slotKey = array[index];
+            Object slotValue = array[index + 1];
+            Object newKey = slotKey;
+            Object newValue;
+            if(slotKey == null){
+                newValue = ((Node) slotValue).put(editor, key, hash, value, shift + BITS, added);
+            }
+            else if(slotKey == key){
+                newValue = value;
+            }
+            else if(System.identityHashCode(slotKey) == hash){
+                // two keys that no level of the trie can tell apart
+                newValue = new CollisionNode(hash, new Object[]{slotKey, slotValue, key, value});
+                newKey = null;
+                added[0] = true;
+            }
+            else{
+                // two keys in one slot: move both into a new node a level down, where their hash codes differ
+                newValue = new BitmapNode(editor, bit(System.identityHashCode(slotKey), shift + BITS),
+                        new Object[]{slotKey, slotValue}).put(editor, key, hash, value, shift + BITS, added);
+                newKey = null;
+            }
+            if(newKey == slotKey && newValue == slotValue){
+                return this;
+            }
+            BitmapNode changed = editable(editor);
+            changed.array[index] = newKey;
+            changed.array[index + 1] = newValue;
+            return changed;
+        }
+
+        @Override
+        Node remove(Object editor, Object key, int hash, int shift, boolean[] removed){
+            int bit = bit(hash, shift);
+            if((bitmap & bit) == 0){
+                return this;
+            }
+            int index = index(bit);
+            Object slotKey = array[index];
+            if(slotKey == null){
+                Node child = (Node) array[index + 1];
+                Node newChild = child.remove(editor, key, hash, shift + BITS, removed);
+                if(newChild == child){
+                    return this;
+                }
+                if(newChild != null){
+                    BitmapNode changed = editable(editor);
+                    changed.array[index + 1] = newChild;
+                    return changed;
+                }
+            }
+            else if(slotKey != key){
+                return this;
+            }
+            else{
+                removed[0] = true;
+            }
+
+            // the slot is now empty
+            if(bitmap == bit){
+                return null;
+            }
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+            if(owner == editor){
+                bitmap &= ~bit;
+                array = newArray;
+                return this;
+            }
+            return new BitmapNode(editor, bitmap & ~bit, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object,Object> action){
+            for(int i = 0; i < array.length; i += 2){
+                if(array[i] == null){
+                    ((Node) array[i + 1]).forEach(action);
+                }
+                else{
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        @Override
+        long estimateBytes(){
+            long bytes = HeapSize.object(2, 4) + HeapSize.referenceArray(array.length);
+            for(int i = 0; i < array.length; i += 2){
+                if(array[i] == null){
+                    bytes += ((Node) array[i + 1]).estimateBytes();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * A node holding keys whose identity hash codes are all the same, in pairs of a key and its value.
+     */
+    private static final class CollisionNode extends Node {
+        /**
+         * The hash code of every key in this node.
+         */
+        private final int hash;
+        /**
+         * The keys and their values.
+         */
+        private final Object[] array;
+
+        /**
+         * Constructs a CollisionNode.
+         * @param hash The hash code of its keys.
+         * @param array The keys and their values.
+         */
+        private CollisionNode(int hash, Object[] array){
+            this.hash = hash;
+            this.array = array;
+        }
+
+        /**
+         * Returns where a key is in the array.
+         * @param key The key.
+         * @return The index of the key, or -1 if it is not in this node.
+         */
+        private int indexOf(Object key){
+            for(int i = 0; i < array.length; i += 2){
+                if(array[i] == key){
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(Object key, int hash, int shift){
+            int index = hash == this.hash ? indexOf(key) : -1;
+            return index < 0 ? null : array[index + 1];
+        }
+
+        @Override
+        Node put(Object editor, Object key, int hash, Object value, int shift, boolean[] added){
+            if(hash != this.hash){
+                // a key with another hash code: put this node and the key under a node that tells them apart
+                return new BitmapNode(editor, BitmapNode.bit(this.hash, shift), new Object[]{null, this})
+                        .put(editor, key, hash, value, shift, added);
+            }
+            int index = indexOf(key);
+            if(index >= 0){
+                if(array[index + 1] == value){
+                    return this;
+                }
+                Object[] newArray = array.clone();
+                newArray[index + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node remove(Object editor, Object key, int hash, int shift, boolean[] removed){
+            int index = hash == this.hash ? indexOf(key) : -1;
+            if(index < 0){
+                return this;
+            }
+            removed[0] = true;
+            if(array.length == 2){
+                return null;
+            }
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object,Object> action){
+            for(int i = 0; i < array.length; i += 2){
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+
+        @Override
+        long estimateBytes(){
+            return HeapSize.object(1, 4) + HeapSize.referenceArray(array.length);
+        }
+    }
+
+    /**
+     * Iterates over the keys of a trie, depth first, keeping the node and position of each level on a stack.
+     * @param <K> The type of the keys.
+     */
+    private static final class KeyIterator<K> implements Iterator<K> {
+        /**
+         * The arrays of the nodes being walked, one per level.
+         */
+        private Object[][] arrays = new Object[8][];
+        /**
+         * The position in each array.
+         */
+        private int[] positions = new int[8];
+        /**
+         * The level being walked, or -1 when every key has been returned.
+         */
+        private int depth;
+        /**
+         * The next key, or null if there are no more.
+         */
+        private Object next;
+
+        /**
+         * Constructs a KeyIterator.
+         * @param root The root of the trie.
+         */
+        private KeyIterator(Node root){
+            arrays[0] = arrayOf(root);
+            advance();
+        }
+
+        /**
+         * Returns the array of pairs of a node.
+         * @param node The node.
+         * @return The node's array.
+         */
+        private static Object[] arrayOf(Node node){
+            return node instanceof BitmapNode ? ((BitmapNode) node).array : ((CollisionNode) node).array;
+        }
+
+        /**
+         * Finds the next key.
+         */
+        private void advance(){
+            next = null;
+            while(depth >= 0){
+                Object[] array = arrays[depth];
+                int position = positions[depth];
+                if(position >= array.length){
+                    depth--;
+                    continue;
+                }
+                positions[depth] = position + 2;
+                if(array[position] != null){
+                    next = array[position];
+                    return;
+                }
+                depth++;
+                if(depth == arrays.length){
+                    arrays = Arrays.copyOf(arrays, depth * 2);
+                    positions = Arrays.copyOf(positions, depth * 2);
+                }
+                arrays[depth] = arrayOf((Node) array[position + 1]);
+                positions[depth] = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K next(){
+            if(next == null){
+                throw new NoSuchElementException();
+            }
+            K key = (K) next;
+            advance();
+            return key;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package image;
+
+import tag.Tag;
+import tag.TagQuery;
+import utils.HeapSize;
+import utils.ListChange;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A SavedView. A named TagQuery whose matching ImageFiles are kept, such as "untagged" (NOT *) or "to publish"
+ * (portfolio AND NOT published), so that opening it shows its images at once instead of running the query.
+ *
+ * The ImageManager keeps its SavedViews up to date as it publishes each snapshot: only the ImageFiles that changed
+ * (were tagged, untagged, moved, reverted or scanned) are matched against the query, one at a time. Finding the index
+ * of a member for a ListChange takes log(size) steps, through a count of the members in each slot of the view's
+ * order, so a change costs little more for a view of a million images than for one of a hundred. Members are kept by untagged name, like the ImageManager's indexes,
+ * so an image scanned again replaces the ImageFile it was scanned as before rather than being listed twice.
+ *
+ * SavedViews are saved with the ImageManager's tagged ImageFiles, in the same file, so their tagged members are the
+ * same objects once loaded. A SavedView is thread safe: it is changed under the ImageManager's snapshot lock and
+ * read from any thread.
+ */
+public class SavedView implements Serializable {
+    /**
+     * The version of the saved form of a SavedView, pinned to the one computed for the first saved views so that they
+     * can still be read.
+     */
+    private static final long serialVersionUID = -5918214712053787515L;
+    /**
+     * The number of slots of an empty view.
+     */
+    private static final int MIN_SLOTS = 16;
+    /**
+     * The name of this view.
+     */
+    private String name;
+    /**
+     * The query of this view, as it was written.
+     */
+    private String query;
+    /**
+     * The parsed query.
+     */
+    private transient TagQuery parsedQuery;
+    /**
+     * The ImageFiles matching the query, by untagged name, in the order they joined the view.
+     */
+    private transient LinkedHashMap<String,ImageFile> members = new LinkedHashMap<>();
+    /**
+     * The untagged name each member is kept under, which changes when the member is reverted to an old name.
+     */
+    private transient IdentityHashMap<ImageFile,String> memberKeys = new IdentityHashMap<>();
+    /**
+     * The slot of each member in the order of the view, by untagged name. A member joining the view takes the next
+     * free slot and a member leaving it leaves a gap, so the index of a member is the number of members in the slots
+     * before its own. The slots are numbered again, without gaps, when they run out.
+     */
+    private transient HashMap<String,Integer> slots;
+    /**
+     * A Fenwick tree of the number of members in each slot: entry i holds the count of the (i AND -i) slots up to
+     * slot i - 1, so that the members before a slot are counted, and a slot filled or emptied, in log(slots) steps.
+     */
+    private transient int[] slotCounts;
+    /**
+     * The next free slot.
+     */
+    private transient int nextSlot;
+    /**
+     * The number of changes made to the members so far, so that a copy of them can be kept up to date with the
+     * changes made after it was taken.
+     */
+    private transient long version;
+
+    /**
+     * Constructs an empty SavedView.
+     * @param name Name of the view.
+     * @param query Query of the view.
+     * @throws IllegalArgumentException If the query is not well formed.
+     */
+    SavedView(String name, String query){
+        this.name = name;
+        this.query = query;
+        this.parsedQuery = TagQuery.parse(query);
+        numberSlots();
+    }
+
+    /**
+     * Returns the name of this view.
+     * @return The name of this view.
+     */
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * Returns the query of this view.
+     * @return The query, as it was written.
+     */
+    public String getQuery(){
+        return query;
+    }
+
+    /**
+     * Returns the ImageFiles in this view.
+     * @return A copy of the members of this view, in the order they joined it.
+     */
+    public synchronized ArrayList<ImageFile> getImages(){
+        return new ArrayList<>(members.values());
+    }
+
+    /**
+     * Returns the number of changes made to the members of this view so far. A copy taken by getImages while holding
+     * this view's lock is up to date with the changes up to this version.
+     * @return The version of the members.
+     */
+    public synchronized long getVersion(){
+        return version;
+    }
+
+    /**
+     * Returns the number of ImageFiles in this view.
+     * @return The number of members.
+     */
+    public synchronized int size(){
+        return members.size();
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this view takes on the heap, not counting the ImageFiles it holds.
+     * @return The estimated number of bytes of this view.
+     */
+    synchronized long estimateBytes(){
+        // a LinkedHashMap entry is a HashMap node with links to the entries before and after it
+        long bytes = HeapSize.object(5, 0) + HeapSize.string(name) + HeapSize.string(query)
+                + HeapSize.hashMap(members.size()) + HeapSize.identityHashMap(memberKeys.size())
+                + members.size() * (HeapSize.object(5, 4) - HeapSize.object(3, 4))
+                // the slots share their keys with the members, but box their numbers
+                + HeapSize.hashMap(slots.size()) + slots.size() * HeapSize.object(0, 4)
+                + HeapSize.array(slotCounts.length, 4);
+        for(String key : members.keySet()){
+            bytes += HeapSize.string(key);
+        }
+        return bytes;
+    }
+
+    /**
+     * Matches a changed ImageFile against the query, adding it to or removing it from this view.
+     * @param imageFile ImageFile that changed.
+     * @param tags The ImageFile's Tags in the snapshot being published.
+     * @param changes Where to add the changes made to the members, in order, or null if they are not wanted.
+     * @return True iff the members of this view changed.
+     */
+    synchronized boolean update(ImageFile imageFile, List<Tag> tags, List<ListChange<ImageFile>> changes){
+        String key = imageFile.getUntaggedName(true);
+        long versionBefore = version;
+        // a reverted image may have a new untagged name
+        String oldKey = memberKeys.get(imageFile);
+        if(oldKey != null && !oldKey.equals(key)){
+            record(changes, ListChange.Type.REMOVED, oldKey, imageFile);
+            members.remove(oldKey);
+            memberKeys.remove(imageFile);
+            freeSlot(oldKey);
+        }
+
+        if(parsedQuery.matches(tags)){
+            ImageFile replaced = members.put(key, imageFile);
+            if(replaced != imageFile){
+                if(replaced != null){
+                    memberKeys.remove(replaced);
+                }
+                memberKeys.put(imageFile, key);
+                if(replaced == null){
+                    takeSlot(key);
+                }
+                // a new member joins at the end; a replaced one keeps its place
+                record(changes, replaced == null ? ListChange.Type.ADDED : ListChange.Type.UPDATED, key, imageFile);
+            }
+        }
+        else if(members.containsKey(key)){
+            // the changed ImageFile is the one held for its name, so an older ImageFile for it is dropped too
+            ImageFile removed = members.get(key);
+            record(changes, ListChange.Type.REMOVED, key, removed);
+            members.remove(key);
+            memberKeys.remove(removed);
+            freeSlot(key);
+        }
+        return version != versionBefore;
+    }
+
+    /**
+     * Removes an ImageFile the model no longer knows from this view, if it is a member.
+     * @param imageFile ImageFile that was dropped.
+     * @param changes Where to add the change made to the members, or null if it is not wanted.
+     * @return True iff the members of this view changed.
+     */
+    synchronized boolean drop(ImageFile imageFile, List<ListChange<ImageFile>> changes){
+        String key = memberKeys.get(imageFile);
+        if(key == null){
+            return false;
+        }
+        record(changes, ListChange.Type.REMOVED, key, imageFile);
+        members.remove(key);
+        memberKeys.remove(imageFile);
+        freeSlot(key);
+        return true;
+    }
+
+    /**
+     * Counts a change to the members and adds it to a list of changes. Is called before a member is removed, but
+     * after it is added or replaced, so that its index is its place in the list of members the change is made to.
+     * @param changes Where to add the change, or null if it is not wanted.
+     * @param type The kind of change.
+     * @param key The untagged name of the member.
+     * @param imageFile The member added, removed or replacing another.
+     */
+    private void record(List<ListChange<ImageFile>> changes, ListChange.Type type, String key, ImageFile imageFile){
+        version++;
+        if(changes == null){
+            return;
+        }
+        int index = type == ListChange.Type.ADDED ? members.size() - 1 : membersBefore(slots.get(key));
+        changes.add(new ListChange<>(type, index, imageFile));
+    }
+
+    /**
+     * Gives a member that just joined this view the next free slot, numbering the slots again if there is none.
+     * @param key The untagged name of the member, which is already the last of the members.
+     */
+    private void takeSlot(String key){
+        if(nextSlot == slotCounts.length){
+            numberSlots();
+            return;
+        }
+        slots.put(key, nextSlot);
+        countSlot(nextSlot++, 1);
+    }
+
+    /**
+     * Empties the slot of a member that left this view.
+     * @param key The untagged name of the member.
+     */
+    private void freeSlot(String key){
+        countSlot(slots.remove(key), -1);
+    }
+
+    /**
+     * Adds to the number of members in a slot.
+     * @param slot The slot.
+     * @param count The number of members to add, 1 or -1.
+     */
+    private void countSlot(int slot, int count){
+        for(int i = slot + 1; i <= slotCounts.length; i += i & -i){
+            slotCounts[i - 1] += count;
+        }
+    }
+
+    /**
+     * Counts the members in the slots before a slot.
+     * @param slot The slot.
+     * @return The number of members before it, which is the index in this view of the member in the slot.
+     */
+    private int membersBefore(int slot){
+        int count = 0;
+        for(int i = slot; i > 0; i -= i & -i){
+            count += slotCounts[i - 1];
+        }
+        return count;
+    }
+
+    /**
+     * Gives the members the first slots, in order, with room for as many members again to join before the slots have
+     * to be numbered again. Takes a time proportional to the number of members, which is at least the number of
+     * changes since the slots were last numbered.
+     */
+    private void numberSlots(){
+        slots = new HashMap<>();
+        slotCounts = new int[Math.max(MIN_SLOTS, 2 * members.size())];
+        nextSlot = 0;
+        for(String key : members.keySet()){
+            slots.put(key, nextSlot++);
+        }
+        // builds the tree from a count of 1 in each filled slot, passing each entry's count on to its parent
+        for(int i = 1; i <= slotCounts.length; i++){
+            if(i <= nextSlot){
+                slotCounts[i - 1]++;
+            }
+            int parent = i + (i & -i);
+            if(parent <= slotCounts.length){
+                slotCounts[parent - 1] += slotCounts[i - 1];
+            }
+        }
+    }
+
+    /**
+     * Serializes this view: its name and query, then its members.
+     * @param output Stream to write to.
+     * @throws IOException ..
+     */
+    private synchronized void writeObject(ObjectOutputStream output) throws IOException{
+        output.defaultWriteObject();
+        output.writeObject(new ArrayList<>(members.values()));
+    }
+
+    /**
+     * Deserializes this view, parsing its query again and indexing its members by untagged name.
+     * @param input Stream to read from.
+     * @throws IOException ..
+     * @throws ClassNotFoundException ..
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException{
+        input.defaultReadObject();
+        parsedQuery = TagQuery.parse(query);
+        members = new LinkedHashMap<>();
+        memberKeys = new IdentityHashMap<>();
+        for(ImageFile imageFile : (ArrayList<ImageFile>) input.readObject()){
+            String key = imageFile.getUntaggedName(true);
+            members.put(key, imageFile);
+            memberKeys.put(imageFile, key);
+        }
+        numberSlots();
+    }
+}
@@ -0,0 +1,206 @@
+package image;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import utils.HeapSize;
+import utils.Metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A ThumbnailStore. Keeps the most recently used thumbnails so that they can be shown again (in a list cell or as a
+ * placeholder for the selected image) without decoding the image file a second time. The pixels of the thumbnails
+ * are kept outside the Java heap, in direct ByteBuffers that back the Images through a PixelBuffer, and the store
+ * evicts the least recently used thumbnails to stay within a fixed number of pixel bytes. The heap only holds a few
+ * small objects per thumbnail however large the browsed folder is.
+ */
+public class ThumbnailStore {
+    /**
+     * The default maximum number of bytes of thumbnail pixels the store holds.
+     */
+    private static final long DEFAULT_CAPACITY_BYTES = 32L * 1024 * 1024;
+    /**
+     * Singleton instance for global access to a ThumbnailStore.
+     */
+    private static final ThumbnailStore instance = new ThumbnailStore(DEFAULT_CAPACITY_BYTES);
+    /**
+     * The format thumbnail pixels are stored in (4 bytes per pixel).
+     */
+    private static final WritablePixelFormat<ByteBuffer> PIXEL_FORMAT = PixelFormat.getByteBgraPreInstance();
+    /**
+     * A rough number of bytes of the heap objects of one stored thumbnail: the WritableImage with its properties,
+     * PixelBuffer and ByteBuffer, but not its pixels.
+     */
+    private static final long THUMBNAIL_OBJECT_BYTES = 1024;
+    /**
+     * Latencies of decoding thumbnails that were not stored yet.
+     */
+    private static final Metrics.Histogram DECODE_LATENCY = Metrics.getInstance().histogram("thumbnail.decode");
+    /**
+     * The number of thumbnails decoded from the whole image, because the file had no usable embedded thumbnail.
+     */
+    private static final Metrics.Counter FULL_DECODES = Metrics.getInstance().counter("thumbnail.decode.full");
+
+    /**
+     * Thumbnails in least recently used order, accessed by the path of their image file.
+     */
+    private LinkedHashMap<String,Image> thumbnails = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The maximum number of bytes of thumbnail pixels this store holds.
+     */
+    private long capacityBytes;
+    /**
+     * The number of bytes of thumbnail pixels this store currently holds.
+     */
+    private long usedBytes;
+
+    /**
+     * Constructs a ThumbnailStore that holds at most a given number of bytes of thumbnail pixels.
+     * @param capacityBytes Maximum number of bytes of thumbnail pixels to hold.
+     */
+    private ThumbnailStore(long capacityBytes){
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Returns the stored thumbnail of a given image file.
+     * @param file Image file to get the thumbnail of.
+     * @return The stored thumbnail, or null if this file has no stored thumbnail.
+     */
+    public synchronized Image get(File file){
+        return thumbnails.get(file.getPath());
+    }
+
+    /**
+     * Returns the thumbnail of a given image file, creating and storing it if it is not stored yet. A thumbnail
+     * embedded in the file's header is used if there is one; otherwise the whole image is decoded.
+     * @param file Image file to get the thumbnail of.
+     * @param width Width to fit the thumbnail in.
+     * @param height Height to fit the thumbnail in.
+     * @return The thumbnail of the image file.
+     */
+    public Image load(File file, double width, double height){
+        Image thumbnail = get(file);
+        if(thumbnail == null){
+            long start = System.nanoTime();
+            byte[] embeddedThumbnail = ExifThumbnailReader.readThumbnail(file);
+            if(embeddedThumbnail != null){
+                thumbnail = new Image(new ByteArrayInputStream(embeddedThumbnail), width, height, true, false);
+            }
+            // fall back to a full decode if there is no usable embedded thumbnail
+            if(thumbnail == null || thumbnail.isError()){
+                thumbnail = new Image(file.toURI().toString(), width, height, true, false);
+                FULL_DECODES.increment();
+            }
+            DECODE_LATENCY.recordSince(start);
+            thumbnail = put(file, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Stores the thumbnail of a given image file. The thumbnail's pixels are copied out of the Java heap, and the
+     * least recently used thumbnails are evicted if the store is over its capacity.
+     * @param file Image file the thumbnail was made from.
+     * @param thumbnail Decoded thumbnail to store.
+     * @return The stored thumbnail, backed by off-heap pixels, or the given thumbnail if it could not be stored.
+     */
+    public Image put(File file, Image thumbnail){
+        int width = (int) thumbnail.getWidth();
+        int height = (int) thumbnail.getHeight();
+        long size = 4L * width * height;
+        if(thumbnail.isError() || width == 0 || height == 0 || size > capacityBytes){
+            return thumbnail;
+        }
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect((int) size);
+        thumbnail.getPixelReader().getPixels(0, 0, width, height, PIXEL_FORMAT, pixels, width * 4);
+        Image storedThumbnail = new WritableImage(new PixelBuffer<>(width, height, pixels, PIXEL_FORMAT));
+
+        synchronized(this){
+            Image replaced = thumbnails.put(file.getPath(), storedThumbnail);
+            if(replaced != null){
+                usedBytes -= sizeOf(replaced);
+            }
+            usedBytes += size;
+            evictToCapacity();
+        }
+        return storedThumbnail;
+    }
+
+    /**
+     * Evicts the least recently used thumbnails until this store is within its capacity. The pixels of an evicted
+     * thumbnail are freed once no cell is displaying it any more.
+     */
+    private void evictToCapacity(){
+        Iterator<Map.Entry<String,Image>> leastRecentlyUsed = thumbnails.entrySet().iterator();
+        while(usedBytes > capacityBytes && leastRecentlyUsed.hasNext()){
+            usedBytes -= sizeOf(leastRecentlyUsed.next().getValue());
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of pixels of a stored thumbnail.
+     * @param thumbnail Stored thumbnail.
+     * @return The number of bytes of pixels of the thumbnail.
+     */
+    private static long sizeOf(Image thumbnail){
+        return 4L * (long) thumbnail.getWidth() * (long) thumbnail.getHeight();
+    }
+
+    /**
+     * Returns the number of bytes of thumbnail pixels this store currently holds.
+     * @return The number of bytes of thumbnail pixels held (off the Java heap).
+     */
+    public synchronized long getUsedBytes(){
+        return usedBytes;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this store takes on the Java heap. The pixels are held off the heap
+     * (see getUsedBytes), so this is the map of thumbnails, the paths they are kept by, and their Image objects.
+     * @return The estimated number of bytes of the store on the heap.
+     */
+    public synchronized long estimateHeapBytes(){
+        // a LinkedHashMap entry links to the entries before and after it as well
+        long bytes = HeapSize.hashMap(thumbnails.size()) + thumbnails.size() * (HeapSize.object(5, 4)
+                - HeapSize.object(3, 4) + THUMBNAIL_OBJECT_BYTES);
+        for(String path : thumbnails.keySet()){
+            bytes += HeapSize.string(path);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the maximum number of bytes of thumbnail pixels this store holds.
+     * @return The capacity of this store in bytes.
+     */
+    public long getCapacityBytes(){
+        return capacityBytes;
+    }
+
+    /**
+     * Returns the number of thumbnails this store currently holds.
+     * @return The number of stored thumbnails.
+     */
+    public synchronized int size(){
+        return thumbnails.size();
+    }
+
+    /**
+     * Returns the singleton instance of the ThumbnailStore class.
+     * @return The singleton instance of the ThumbnailStore class.
+     */
+    public static ThumbnailStore getInstance(){
+        return instance;
+    }
+}
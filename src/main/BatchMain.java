@@ -0,0 +1,594 @@
+package main;
+
+import image.ImageFile;
+import image.ImageManager;
+import image.MemoryReport;
+import image.ModelSnapshot;
+import image.ModelTransfer;
+import image.SavedView;
+import tag.Tag;
+import tag.TagManager;
+import tag.TagQuery;
+import utils.ConfigurationManager;
+import utils.FileManager;
+import utils.FileOperationResult;
+import utils.NameLogger;
+import utils.RenameRecord;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BatchMain. A headless entry point for scripted tagging, which drives the FileManager, ImageManager and TagManager
+ * without creating any views (and without starting JavaFX).
+ *
+ * Commands are read one per line from the files named on the command line, or from standard input if none are
+ * given (or "-" is given). Arguments are separated by spaces; an argument with spaces in it (like most tagged file
+ * names) is put in double quotes. Lines starting with # are comments.
+ *
+ *   scan [-r] DIRECTORY          manage the images in (with -r, under) a directory, as well as those scanned
+ *                                before
+ *   tag FILE TAG...              tag an image, creating Tags that do not exist yet
+ *   untag FILE TAG...            remove Tags from an image
+ *   query EXPRESSION             print the files of the images matching a TagQuery, e.g. kids AND NOT work
+ *   view NAME EXPRESSION         save a view of the images matching a TagQuery (see SavedView), kept up to date as
+ *                                images change, e.g. view untagged NOT *
+ *   show NAME                    print the files of the images in a saved view
+ *   revert FILE OLDNAME          rename an image to a name it had before (without extension)
+ *   save                         save the persistence files now
+ *   export FILE [BASEDIR]        write every tagged image to a .csv or .jsonl file (see ModelTransfer), with files
+ *                                relative to BASEDIR if given
+ *   import FILE [BASEDIR]        read tagged images from a .csv or .jsonl export, with relative files resolved
+ *                                against BASEDIR if given; the files must already have the exported names, and
+ *                                entries whose files do not exist are skipped (and listed on standard error)
+ *   memory                       print an estimate of the heap each part of the model retains (see MemoryReport),
+ *                                and the heap in use after a garbage collection
+ *   renames NAME                 print every logged rename of an image, by its untagged file name (e.g. cat.jpg)
+ *   renames -between FROM TO     print the renames logged in a time range, with local times like 2024-05-01T09:30
+ *   renames -page N              print page N (from 0) of the logged renames, 100 to a page, oldest first
+ *
+ * Renames are printed one per line as the time, the image, the old name and the new name, separated by tabs. They
+ * come from the name log's RenameLog, which only holds the renames since it was last rotated.
+ *
+ * Tag and untag commands are gathered into batches, which are renamed concurrently and saved once, so scripts can
+ * tag many files quickly. The persistence files are always saved at the end. Throughput statistics are printed to
+ * standard error when all the commands have run.
+ *
+ * To run: java main.BatchMain [COMMANDFILE...]
+ */
+public class BatchMain {
+    /**
+     * The number of tag and untag commands gathered before they are run.
+     */
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * The number of renames on a page printed by renames -page.
+     */
+    private static final int RENAME_PAGE_SIZE = 100;
+    /**
+     * Formats and parses the times of renames.
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    /**
+     * ConfigurationManager saving the persistence files.
+     */
+    private ConfigurationManager configurationManager;
+    /**
+     * FileManager loading images from directories.
+     */
+    private FileManager fileManager;
+    /**
+     * ImageManager managing the images.
+     */
+    private ImageManager imageManager;
+    /**
+     * TagManager managing the Tags.
+     */
+    private TagManager tagManager;
+    /**
+     * Where query results are printed.
+     */
+    private PrintStream out;
+
+    /**
+     * Tag and untag commands waiting to be run, grouped by the Tags they add and remove.
+     */
+    private LinkedHashMap<String,PendingRetag> pendingRetags = new LinkedHashMap<>();
+    /**
+     * The images in pendingRetags. A command for an image that is already waiting runs the waiting ones first, so
+     * that commands on the same image run in order.
+     */
+    private Set<ImageFile> pendingImages = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * The number of commands run.
+     */
+    private long commandCount;
+    /**
+     * The number of images renamed by tag and untag commands.
+     */
+    private long retaggedCount;
+    /**
+     * The number of commands or image renames that failed.
+     */
+    private long failureCount;
+    /**
+     * The number of images printed by query commands.
+     */
+    private long queryResultCount;
+    /**
+     * The number of images managed by scan commands.
+     */
+    private long scannedCount;
+    /**
+     * The number of images exported or imported.
+     */
+    private long transferredCount;
+
+    /**
+     * Tag and untag commands that add and remove the same Tags, waiting to be run together.
+     */
+    private static class PendingRetag {
+        /**
+         * Tags the commands add.
+         */
+        private ArrayList<Tag> tagsToAdd;
+        /**
+         * Tags the commands remove.
+         */
+        private ArrayList<Tag> tagsToRemove;
+        /**
+         * Images the commands change.
+         */
+        private ArrayList<ImageFile> images = new ArrayList<>();
+
+        /**
+         * Constructs a PendingRetag.
+         * @param tagsToAdd Tags the commands add.
+         * @param tagsToRemove Tags the commands remove.
+         */
+        private PendingRetag(ArrayList<Tag> tagsToAdd, ArrayList<Tag> tagsToRemove){
+            this.tagsToAdd = tagsToAdd;
+            this.tagsToRemove = tagsToRemove;
+        }
+    }
+
+    /**
+     * Runs the commands in the given files (or standard input).
+     * @param args Names of command files; "-" or none for standard input.
+     */
+    public static void main(String[] args){
+        BatchMain batch = new BatchMain(System.out);
+        long start = System.nanoTime();
+
+        if(args.length == 0){
+            batch.runCommands(System.in, "standard input");
+        }
+        for(String arg : args){
+            if(arg.equals("-")){
+                batch.runCommands(System.in, "standard input");
+                continue;
+            }
+            try(InputStream input = new FileInputStream(arg)){
+                batch.runCommands(input, arg);
+            }catch (IOException e){
+                System.err.println("Failed to read command file " + arg);
+                batch.failureCount++;
+            }
+        }
+
+        batch.finish();
+        batch.printStatistics(System.nanoTime() - start, System.err);
+        System.exit(batch.failureCount == 0 ? 0 : 1);
+    }
+
+    /**
+     * Constructs a BatchMain, loading the program's persistence files like the GUI does.
+     * @param out Where query results are printed.
+     */
+    BatchMain(PrintStream out){
+        this.out = out;
+        configurationManager = new ConfigurationManager();
+        fileManager = new FileManager();
+        imageManager = new ImageManager("serializedimages.ser");
+        tagManager = new TagManager("serializedtags.ser");
+
+        imageManager.setTagManager(tagManager);
+        fileManager.setImageManager(imageManager);
+        configurationManager.setTagManager(tagManager);
+        configurationManager.setImageManager(imageManager);
+    }
+
+    /**
+     * Runs every command read from a stream.
+     * @param input Stream to read commands from.
+     * @param inputName Name of the stream, for error messages.
+     */
+    void runCommands(InputStream input, String inputName){
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        int lineNumber = 0;
+        try{
+            String line;
+            while((line = reader.readLine()) != null){
+                lineNumber++;
+                try{
+                    runCommand(line);
+                }catch (IllegalArgumentException e){
+                    System.err.println(inputName + ":" + lineNumber + ": " + e.getMessage());
+                    failureCount++;
+                }
+            }
+        }catch (IOException e){
+            System.err.println("Failed to read commands from " + inputName);
+            failureCount++;
+        }
+    }
+
+    /**
+     * Runs a single command.
+     * @param line The command line.
+     * @throws IllegalArgumentException If the command is not valid.
+     */
+    void runCommand(String line){
+        ArrayList<String> args = splitArguments(line);
+        if(args.isEmpty() || args.get(0).startsWith("#")){
+            return;
+        }
+        String command = args.get(0);
+        commandCount++;
+
+        switch(command){
+            case "scan":
+                runPendingRetags();
+                boolean recursive = args.size() > 1 && args.get(1).equals("-r");
+                int directoryArg = recursive ? 2 : 1;
+                requireArguments(args, directoryArg + 1, "scan [-r] DIRECTORY");
+                File directory = new File(args.get(directoryArg));
+                if(!directory.isDirectory()){
+                    throw new IllegalArgumentException("Not a directory: " + directory);
+                }
+                int managedCount = imageManager.getListOfImageFiles().size();
+                fileManager.loadImagesToImageManager(directory, recursive, true);
+                scannedCount += imageManager.getListOfImageFiles().size() - managedCount;
+                break;
+            case "tag":
+            case "untag":
+                requireArguments(args, 3, command + " FILE TAG...");
+                queueRetag(args.get(1), args.subList(2, args.size()), command.equals("tag"));
+                break;
+            case "query":
+                requireArguments(args, 2, "query EXPRESSION");
+                runPendingRetags();
+                runQuery(line.trim().substring(command.length()));
+                break;
+            case "view":
+                requireArguments(args, 3, "view NAME EXPRESSION");
+                runPendingRetags();
+                imageManager.saveView(args.get(1), String.join(" ", args.subList(2, args.size())));
+                break;
+            case "show":
+                requireArguments(args, 2, "show NAME");
+                runPendingRetags();
+                showView(args.get(1));
+                break;
+            case "revert":
+                requireArguments(args, 3, "revert FILE OLDNAME");
+                runPendingRetags();
+                ImageFile imageToRevert = findImage(args.get(1));
+                imageManager.setImageToOldName(imageToRevert, args.get(2));
+                break;
+            case "save":
+                runPendingRetags();
+                configurationManager.updatePersistenceFiles();
+                break;
+            case "export":
+            case "import":
+                requireArguments(args, 2, command + " FILE [BASEDIR]");
+                runPendingRetags();
+                transferModel(new File(args.get(1)), args.size() > 2 ? new File(args.get(2)) : null,
+                        command.equals("import"));
+                break;
+            case "memory":
+                runPendingRetags();
+                printMemoryReport();
+                break;
+            case "renames":
+                requireArguments(args, 2, "renames NAME | renames -between FROM TO | renames -page N");
+                runPendingRetags();
+                printRenames(args);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    /**
+     * Adds a tag or untag command to the waiting batch, running the batch if it is full.
+     * @param fileName File of the image to change.
+     * @param tagNames Names of the Tags to add or remove.
+     * @param add True to add the Tags, false to remove them.
+     */
+    private void queueRetag(String fileName, List<String> tagNames, boolean add){
+        ImageFile image = findImage(fileName);
+        ArrayList<String> validTagNames = new ArrayList<>();
+        for(String tagName : tagNames){
+            validTagNames.add(TagManager.validTagName(tagName));
+        }
+        // new Tags are not saved one by one, but with the batch, at the next save command or at the end
+        ArrayList<Tag> tags = new ArrayList<>();
+        for(Tag tag : add ? tagManager.addTags(validTagNames) : tagManager.getTags(validTagNames)){
+            if(!tags.contains(tag)){
+                tags.add(tag);
+            }
+        }
+        if(tags.isEmpty()){
+            return;
+        }
+
+        if(pendingImages.contains(image)){
+            runPendingRetags();
+        }
+        ArrayList<Tag> noTags = new ArrayList<>();
+        String key = (add ? "+" : "-") + tags;
+        PendingRetag pending = pendingRetags.get(key);
+        if(pending == null){
+            pending = add ? new PendingRetag(tags, noTags) : new PendingRetag(noTags, tags);
+            pendingRetags.put(key, pending);
+        }
+        pending.images.add(image);
+        pendingImages.add(image);
+        if(pendingImages.size() >= BATCH_SIZE){
+            runPendingRetags();
+        }
+    }
+
+    /**
+     * Runs the waiting tag and untag commands. They are saved at the next save command, or at the end.
+     */
+    private void runPendingRetags(){
+        for(PendingRetag pending : pendingRetags.values()){
+            for(FileOperationResult result :
+                    imageManager.retagImages(pending.images, pending.tagsToAdd, pending.tagsToRemove, false)){
+                if(result.isSucceeded()){
+                    retaggedCount++;
+                }
+                else{
+                    System.err.println("Failed to retag " + result);
+                    failureCount++;
+                }
+            }
+        }
+        pendingRetags.clear();
+        pendingImages.clear();
+    }
+
+    /**
+     * Exports the tagged images to a file, or imports them from one.
+     * @param file File to export to or import from; its extension gives the format.
+     * @param base Directory that files in the export are relative to, or null.
+     * @param importing True to import, false to export.
+     * @throws IllegalArgumentException If the file cannot be read or written, or is not a valid export.
+     */
+    private void transferModel(File file, File base, boolean importing){
+        ModelTransfer transfer = new ModelTransfer(imageManager, tagManager);
+        ModelTransfer.Format format = ModelTransfer.Format.of(file);
+        try{
+            if(importing){
+                try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)){
+                    transferredCount += transfer.importModel(reader, format, base);
+                }
+                for(File skipped : transfer.getSkippedFiles()){
+                    System.err.println("Skipped " + skipped + ": the file does not exist");
+                }
+            }
+            else{
+                try(Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                        StandardCharsets.UTF_8))){
+                    transferredCount += transfer.exportModel(writer, format, base);
+                }
+            }
+        }catch (IOException e){
+            throw new IllegalArgumentException("Failed to " + (importing ? "read " : "write ") + file + ": " + e);
+        }
+    }
+
+    /**
+     * Prints the files of the images matching a query.
+     * @param query The query.
+     */
+    private void runQuery(String query){
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        for(ImageFile image : TagQuery.parse(query).evaluate(snapshot, tagManager)){
+            out.println(snapshot.getFile(image));
+            queryResultCount++;
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the files of the images in a saved view.
+     * @param name Name of the view.
+     * @throws IllegalArgumentException If there is no view with the name.
+     */
+    private void showView(String name){
+        SavedView view = imageManager.getSavedView(name);
+        if(view == null){
+            throw new IllegalArgumentException("No saved view: " + name);
+        }
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        for(ImageFile image : view.getImages()){
+            out.println(snapshot.getFile(image));
+            queryResultCount++;
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the MemoryReport of the model, and how much of the heap is in use after a garbage collection.
+     */
+    private void printMemoryReport(){
+        MemoryReport.measure(imageManager, tagManager, null).print(out);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        out.printf("%-16s %,14d%n", "heap in use", runtime.totalMemory() - runtime.freeMemory());
+        out.flush();
+    }
+
+    /**
+     * Prints the logged renames of an image, of a time range or of a page of the name log.
+     * @param args The renames command and its arguments.
+     * @throws IllegalArgumentException If a time or page number is not valid.
+     */
+    private void printRenames(ArrayList<String> args){
+        NameLogger nameLogger = NameLogger.getInstance();
+        ArrayList<RenameRecord> renames;
+        try{
+            if(args.get(1).equals("-between")){
+                requireArguments(args, 4, "renames -between FROM TO");
+                renames = nameLogger.getRenamesBetween(epochMillis(args.get(2)), epochMillis(args.get(3)));
+            }
+            else if(args.get(1).equals("-page")){
+                requireArguments(args, 3, "renames -page N");
+                int page = Integer.parseInt(args.get(2));
+                if(page < 0){
+                    throw new IllegalArgumentException("Not a page number: " + page);
+                }
+                renames = nameLogger.getRenamePage(page, RENAME_PAGE_SIZE);
+            }
+            else{
+                renames = nameLogger.getRenameHistory(args.get(1));
+            }
+        }catch (NumberFormatException | DateTimeParseException e){
+            throw new IllegalArgumentException("Not a valid page number or time: " + e.getMessage());
+        }
+
+        for(RenameRecord rename : renames){
+            String time = LocalDateTime.ofInstant(Instant.ofEpochMilli(rename.getTimestamp()), ZoneId.systemDefault())
+                    .format(TIME_FORMAT);
+            out.println(time + "\t" + rename.getImageName() + "\t" + rename.getOldName() + "\t"
+                    + rename.getNewName());
+            queryResultCount++;
+        }
+        out.flush();
+    }
+
+    /**
+     * Converts a local time, like 2024-05-01T09:30, to milliseconds since the epoch.
+     * @param time The time, in the ISO local date-time format.
+     * @return The time in milliseconds since the epoch.
+     * @throws DateTimeParseException If the time is not valid.
+     */
+    private static long epochMillis(String time){
+        return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Runs any waiting commands, saves the persistence files, and waits for the name log to be written.
+     */
+    void finish(){
+        runPendingRetags();
+        configurationManager.updatePersistenceFiles();
+        NameLogger.getInstance().flush();
+    }
+
+    /**
+     * Prints how many commands ran, and how fast.
+     * @param elapsedNanos How long the commands took, in nanoseconds.
+     * @param statistics Where to print the statistics.
+     */
+    void printStatistics(long elapsedNanos, PrintStream statistics){
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        statistics.printf("%d commands in %.3f s (%.0f commands/s)%n", commandCount, seconds,
+                commandCount / seconds);
+        statistics.printf("%d images scanned, %d images retagged (%.0f images/s), %d images exported or imported, "
+                + "%d query results, %d failures%n", scannedCount, retaggedCount, retaggedCount / seconds,
+                transferredCount, queryResultCount, failureCount);
+    }
+
+    /**
+     * Returns the ImageFile held for a file.
+     * @param fileName Name of the file.
+     * @return The ImageFile held for the file.
+     * @throws IllegalArgumentException If the file is not a managed or tagged image.
+     */
+    private ImageFile findImage(String fileName){
+        ImageFile image = imageManager.getImage(new File(fileName));
+        if(image == null){
+            throw new IllegalArgumentException("Not a scanned or tagged image: " + fileName);
+        }
+        return image;
+    }
+
+    /**
+     * Checks that a command has enough arguments.
+     * @param args The command and its arguments.
+     * @param count The number of words the command needs, including its name.
+     * @param usage How the command is used, for the error message.
+     * @throws IllegalArgumentException If the command has too few arguments.
+     */
+    private static void requireArguments(ArrayList<String> args, int count, String usage){
+        if(args.size() < count){
+            throw new IllegalArgumentException("Usage: " + usage);
+        }
+    }
+
+    /**
+     * Splits a command line into arguments at spaces, keeping double-quoted arguments together.
+     * @param line The command line.
+     * @return The arguments.
+     * @throws IllegalArgumentException If a quote is not closed.
+     */
+    static ArrayList<String> splitArguments(String line){
+        ArrayList<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean quoted = false;
+        boolean inArg = false;
+        for(char c : line.toCharArray()){
+            if(c == '"'){
+                quoted = !quoted;
+                inArg = true;
+            }
+            else if(Character.isWhitespace(c) && !quoted){
+                if(inArg){
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            }
+            else{
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if(quoted){
+            throw new IllegalArgumentException("Unclosed quote");
+        }
+        if(inArg){
+            args.add(arg.toString());
+        }
+        return args;
+    }
+}
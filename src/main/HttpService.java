@@ -0,0 +1,491 @@
+package main;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.ImageFile;
+import image.ImageManager;
+import image.ModelSnapshot;
+import image.ModelTransfer;
+import tag.Tag;
+import tag.TagManager;
+import tag.TagQuery;
+import utils.FileOperationResult;
+import utils.ImageLibrary;
+import utils.NameLogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * HttpService. A local HTTP service that lets other tools query and change the tag model without parsing file names.
+ * Like BatchMain, it drives the managers without creating any views.
+ *
+ * Endpoints (all responses are JSON; FILE is the path of an image, with or without its tags):
+ *
+ *   GET  /query?q=EXPRESSION          images matching a TagQuery: [{"file": ..., "tags": [...]}, ...]
+ *   GET  /tags                        every Tag and how many images have it: [{"tag": ..., "images": N}, ...]
+ *   GET  /history?file=FILE           the names an image has had: {"file": ..., "names": [...]}
+ *   POST /tag?file=FILE&amp;tags=A,B      tag an image, creating Tags that do not exist yet: {"file": ..., "tags": [...]}
+ *   POST /untag?file=FILE&amp;tags=A,B    remove Tags from an image
+ *
+ * Reads are answered from the latest ModelSnapshot, so they never wait for writers. Lists are streamed as they are
+ * written (chunked), so a large query result is never built up in memory. Connections are kept alive between
+ * requests. Requests are handled by a bounded pool of worker threads; when its queue is full, a request is
+ * answered at once with 503 Service Unavailable (and Retry-After), so clients back off instead of every connection
+ * waiting behind the slowest requests.
+ * Changes are saved to the persistence files in the background every few seconds (and when the service stops),
+ * rather than once per request.
+ *
+ * The images are held in an ImageLibrary, with one shard per root directory given, so queries run on every root at
+ * once and each root keeps its own persistence files. Every root is scanned (recursively) for images when the
+ * service starts. With no root directories, the program's own persistence files in the working directory are used.
+ *
+ * The service only listens on the loopback address. To run: java main.HttpService [PORT [ROOT...]]
+ */
+public class HttpService {
+    /**
+     * The port listened on when none is given.
+     */
+    private static final int DEFAULT_PORT = 8207;
+    /**
+     * The number of requests that may wait for a worker thread.
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+    /**
+     * How often changes are saved, in milliseconds.
+     */
+    private static final long SAVE_INTERVAL_MILLIS = 2000;
+    /**
+     * Set on the thread accepting connections while it turns away a request the workers have no room for.
+     */
+    private static final ThreadLocal<Boolean> REJECTING = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    /**
+     * ImageLibrary holding the images, one Shard per root directory.
+     */
+    private ImageLibrary library;
+    /**
+     * The HTTP server.
+     */
+    private HttpServer server;
+    /**
+     * Worker threads handling requests.
+     */
+    private ThreadPoolExecutor workers;
+    /**
+     * Saves changes in the background.
+     */
+    private ScheduledExecutorService saver;
+    /**
+     * Whether the model has changed since it was last saved.
+     */
+    private AtomicBoolean unsaved = new AtomicBoolean();
+
+    /**
+     * Starts the service.
+     * @param args The port to listen on, then the root directories of the library.
+     * @throws IOException ..
+     */
+    public static void main(String[] args) throws IOException{
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ArrayList<File> roots = new ArrayList<>();
+        for(int i = 1; i < args.length; i++){
+            roots.add(new File(args[i]));
+        }
+        HttpService service = new HttpService(roots);
+        service.library.scan(true);
+        service.start(port, Runtime.getRuntime().availableProcessors() * 2);
+        Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+        System.out.println("Listening on http://localhost:" + service.server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Constructs an HttpService, loading the persistence files of each root directory. With no root directories, the
+     * program's own persistence files are loaded, like the GUI does.
+     * @param roots The root directories of the library.
+     */
+    HttpService(List<File> roots){
+        library = new ImageLibrary(roots);
+    }
+
+    /**
+     * Starts listening for requests.
+     * @param port Port to listen on (0 for any free port).
+     * @param threads The number of worker threads.
+     * @throws IOException ..
+     */
+    void start(int port, int threads) throws IOException{
+        // streamed responses end in several small writes; without TCP_NODELAY, each request on a kept-alive
+        // connection waits for the client's delayed ACK
+        if(System.getProperty("sun.net.httpserver.nodelay") == null){
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), QUEUE_CAPACITY);
+        server.createContext("/query", exchange -> handle(exchange, "GET", this::query));
+        server.createContext("/tags", exchange -> handle(exchange, "GET", this::tags));
+        server.createContext("/history", exchange -> handle(exchange, "GET", this::history));
+        server.createContext("/tag", exchange -> handle(exchange, "POST", e -> retag(e, true)));
+        server.createContext("/untag", exchange -> handle(exchange, "POST", e -> retag(e, false)));
+
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), task -> {
+                    Thread thread = new Thread(task, "HTTP worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, executor) -> {
+                    // the task answers its request; marked as rejected, it only sends a 503, which is quick
+                    REJECTING.set(Boolean.TRUE);
+                    try{
+                        task.run();
+                    }finally{
+                        REJECTING.set(Boolean.FALSE);
+                    }
+                });
+        server.setExecutor(workers);
+
+        saver = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "HTTP saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::saveIfChanged, SAVE_INTERVAL_MILLIS, SAVE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        server.start();
+    }
+
+    /**
+     * Stops the service, saving any unsaved changes.
+     */
+    void stop(){
+        server.stop(1);
+        workers.shutdown();
+        saver.shutdown();
+        saveIfChanged();
+        library.close();
+        NameLogger.getInstance().flush();
+    }
+
+    /**
+     * Returns the port the service is listening on.
+     * @return The port the service is listening on.
+     */
+    int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Saves the persistence files if the model has changed since they were last saved.
+     */
+    private void saveIfChanged(){
+        if(unsaved.getAndSet(false)){
+            library.save();
+        }
+    }
+
+    /**
+     * Handles one endpoint of the service.
+     */
+    private interface Endpoint {
+        /**
+         * Answers a request.
+         * @param exchange The request and its response.
+         * @throws IOException ..
+         */
+        void answer(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Answers a request: checks its method, reads its body (so that the connection can be reused), and turns bad
+     * requests into error responses. A request the workers had no room for is answered with 503.
+     * @param exchange The request and its response.
+     * @param method The method the endpoint accepts.
+     * @param endpoint The endpoint answering the request.
+     */
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint){
+        if(REJECTING.get()){
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, "Too many requests waiting; try again later");
+            exchange.close();
+            return;
+        }
+        try(InputStream body = exchange.getRequestBody()){
+            byte[] discard = new byte[4096];
+            while(body.read(discard) >= 0){
+                // the body is not used, but must be read to keep the connection alive
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            if(!exchange.getRequestMethod().equalsIgnoreCase(method)){
+                exchange.getResponseHeaders().set("Allow", method);
+                sendError(exchange, 405, "Use " + method);
+            }
+            else{
+                endpoint.answer(exchange);
+            }
+        }catch (IllegalArgumentException e){
+            sendError(exchange, 400, e.getMessage());
+        }catch (IOException e){
+            // the client went away; nothing can be sent
+        }finally{
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers GET /query: the images matching a TagQuery, with their files and Tags.
+     * @param exchange The request and its response.
+     * @throws IOException ..
+     */
+    private void query(HttpExchange exchange) throws IOException{
+        String query = parameters(exchange).get("q");
+        if(query == null){
+            throw new IllegalArgumentException("Missing parameter q");
+        }
+        ArrayList<ImageLibrary.ShardMatches> matches = library.query(TagQuery.parse(query));
+
+        try(Writer out = streamResponse(exchange)){
+            out.write('[');
+            boolean first = true;
+            for(ImageLibrary.ShardMatches shardMatches : matches){
+                for(ImageFile image : shardMatches.getImages()){
+                    if(!first){
+                        out.write(',');
+                    }
+                    writeImage(out, shardMatches.getSnapshot(), image);
+                    first = false;
+                }
+            }
+            out.write(']');
+        }
+    }
+
+    /**
+     * Answers GET /tags: every Tag and how many images have it, over all the shards.
+     * @param exchange The request and its response.
+     * @throws IOException ..
+     */
+    private void tags(HttpExchange exchange) throws IOException{
+        LinkedHashMap<String,Integer> counts = library.countImagesByTag();
+        try(Writer out = streamResponse(exchange)){
+            out.write('[');
+            boolean first = true;
+            for(Map.Entry<String,Integer> count : counts.entrySet()){
+                if(!first){
+                    out.write(',');
+                }
+                out.write("{\"tag\":");
+                writeString(out, count.getKey());
+                out.write(",\"images\":" + count.getValue() + "}");
+                first = false;
+            }
+            out.write(']');
+        }
+    }
+
+    /**
+     * Answers GET /history: the names an image has had.
+     * @param exchange The request and its response.
+     * @throws IOException ..
+     */
+    private void history(HttpExchange exchange) throws IOException{
+        HashMap<String,String> parameters = parameters(exchange);
+        ImageFile image = findImage(exchange, parameters);
+        if(image == null){
+            return;
+        }
+        ModelSnapshot snapshot = library.getShard(new File(parameters.get("file"))).getImageManager().getSnapshot();
+        try(Writer out = streamResponse(exchange)){
+            out.write("{\"file\":");
+            writeString(out, String.valueOf(snapshot.getFile(image)));
+            out.write(",\"names\":");
+            writeStrings(out, snapshot.getNameHistory(image));
+            out.write('}');
+        }
+    }
+
+    /**
+     * Answers POST /tag and POST /untag: adds Tags to, or removes Tags from, an image.
+     * @param exchange The request and its response.
+     * @param add True to add the Tags, false to remove them.
+     * @throws IOException ..
+     */
+    private void retag(HttpExchange exchange, boolean add) throws IOException{
+        HashMap<String,String> parameters = parameters(exchange);
+        String tagNames = parameters.get("tags");
+        if(tagNames == null){
+            throw new IllegalArgumentException("Missing parameter tags");
+        }
+        ImageFile image = findImage(exchange, parameters);
+        if(image == null){
+            return;
+        }
+        // Tags belong to the shard of the image
+        ImageLibrary.Shard shard = library.getShard(new File(parameters.get("file")));
+        ImageManager imageManager = shard.getImageManager();
+        TagManager tagManager = shard.getTagManager();
+
+        ArrayList<String> validTagNames = new ArrayList<>();
+        for(String tagName : tagNames.split(",")){
+            String validTagName = TagManager.validTagName(tagName);
+            if(!validTagName.isEmpty()){
+                validTagNames.add(validTagName);
+            }
+        }
+        // new Tags are saved with the change, by the saver
+        ArrayList<Tag> tags = add ? tagManager.addTags(validTagNames) : tagManager.getTags(validTagNames);
+
+        ArrayList<Tag> noTags = new ArrayList<>();
+        FileOperationResult result = imageManager.retagImages(Collections.singletonList(image),
+                add ? tags : noTags, add ? noTags : tags, false).get(0);
+        if(!result.isSucceeded()){
+            sendError(exchange, 500, result.getError());
+            return;
+        }
+        unsaved.set(true);
+
+        ModelSnapshot snapshot = imageManager.getSnapshot();
+        try(Writer out = streamResponse(exchange)){
+            writeImage(out, snapshot, image);
+        }
+    }
+
+    /**
+     * Returns the image named by the file parameter of a request, or sends a 404 response if there is none.
+     * @param exchange The request and its response.
+     * @param parameters The parameters of the request.
+     * @return The image, or null if a response has been sent instead.
+     * @throws IOException ..
+     */
+    private ImageFile findImage(HttpExchange exchange, HashMap<String,String> parameters) throws IOException{
+        String fileName = parameters.get("file");
+        if(fileName == null){
+            throw new IllegalArgumentException("Missing parameter file");
+        }
+        ImageFile image = library.getImage(new File(fileName));
+        if(image == null){
+            sendError(exchange, 404, "Not a scanned or tagged image: " + fileName);
+        }
+        return image;
+    }
+
+    /**
+     * Starts a streamed (chunked) 200 response.
+     * @param exchange The request and its response.
+     * @return Writer for the body of the response.
+     * @throws IOException ..
+     */
+    private static Writer streamResponse(HttpExchange exchange) throws IOException{
+        exchange.sendResponseHeaders(200, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends an error response.
+     * @param exchange The request and its response.
+     * @param status HTTP status code.
+     * @param message What went wrong.
+     */
+    private static void sendError(HttpExchange exchange, int status, String message){
+        StringBuilder json = new StringBuilder("{\"error\":");
+        ModelTransfer.appendJsonString(json, String.valueOf(message));
+        byte[] body = json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+        try{
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        }catch (IOException e){
+            // the client went away; nothing can be sent
+        }
+    }
+
+    /**
+     * Writes an image, with its file and Tags, as a JSON object.
+     * @param out Writer to write to.
+     * @param snapshot Snapshot to read the image from.
+     * @param image Image to write.
+     * @throws IOException ..
+     */
+    private static void writeImage(Writer out, ModelSnapshot snapshot, ImageFile image) throws IOException{
+        out.write("{\"file\":");
+        writeString(out, String.valueOf(snapshot.getFile(image)));
+        out.write(",\"tags\":");
+        ArrayList<String> tagNames = new ArrayList<>();
+        for(Tag tag : snapshot.getTags(image)){
+            tagNames.add(tag.getTagName());
+        }
+        writeStrings(out, tagNames);
+        out.write('}');
+    }
+
+    /**
+     * Writes a list of strings as a JSON array.
+     * @param out Writer to write to.
+     * @param strings Strings to write.
+     * @throws IOException ..
+     */
+    private static void writeStrings(Writer out, List<String> strings) throws IOException{
+        out.write('[');
+        for(int i = 0; i < strings.size(); i++){
+            if(i > 0){
+                out.write(',');
+            }
+            writeString(out, strings.get(i));
+        }
+        out.write(']');
+    }
+
+    /**
+     * Writes a string as a JSON string.
+     * @param out Writer to write to.
+     * @param string String to write.
+     * @throws IOException ..
+     */
+    private static void writeString(Writer out, String string) throws IOException{
+        out.write(ModelTransfer.appendJsonString(new StringBuilder(string.length() + 2), string).toString());
+    }
+
+    /**
+     * Returns the query parameters of a request.
+     * @param exchange The request.
+     * @return The value of each parameter, by name.
+     */
+    private static HashMap<String,String> parameters(HttpExchange exchange){
+        HashMap<String,String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query == null){
+            return parameters;
+        }
+        try{
+            for(String parameter : query.split("&")){
+                int equals = parameter.indexOf('=');
+                if(equals > 0){
+                    parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }catch (UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+        return parameters;
+    }
+}
@@ -3,9 +3,12 @@ package main;
 
 import image.ImageManager;
 import image.ImageManagerView;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
+import javafx.scene.control.Label;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.VBox;
@@ -15,8 +18,14 @@ import tag.TagManagerView;
 import utils.ConfigurationManager;
 import utils.FileManager;
 import utils.FileManagerView;
+import utils.Metrics;
 import utils.NameLogger;
 
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 //**************************************************************************************
 // *    Title: (adatped from) <JavaFx Documentation - Hello World, JavaFx Style>
 // *    Author: Gail Chappell
@@ -26,30 +35,81 @@ import utils.NameLogger;
 // *
 // ***************************************************************************************/
 
+/**
+ * Main. Starts the GUI.
+ *
+ * The window is shown first, with a loading message, while the ImageManager and TagManager load their persistence
+ * files in parallel on background threads; the views are built once both have loaded. The time from the JVM
+ * starting to the first frame, and to the views being ready to use, is printed and kept in the Metrics
+ * ("startup.firstFrame" and "startup.interactive"). See fast-start.sh for starting with a class data sharing archive.
+ */
 public class Main extends Application{
+    /**
+     * When the JVM started, in milliseconds since the epoch.
+     */
+    private static final long JVM_START_MILLIS = ProcessHandle.current().info().startInstant()
+            .map(Instant::toEpochMilli).orElse(System.currentTimeMillis());
 
 
     public static void main(String[] args) { Application.launch(args); }
 
     @Override
-    @SuppressWarnings("unused")
     public void start(final Stage stage){
 
         stage.setTitle("ImageTagger Phase1 --- Group 0577");
 
-        final GridPane mainGridPane = new GridPane();
         final Pane rootGroup = new VBox(12);
-
-        NameLogger nameLogger = NameLogger.getInstance();
+        rootGroup.getChildren().add(new Label("Loading images and tags..."));
+        rootGroup.setPadding(new Insets(12, 12, 12, 12));
 
         ConfigurationManager configurationManager = new ConfigurationManager();
 
-        FileManager fileManager = new FileManager();
+        // the managers read their persistence files at the same time, while the window is shown
+        ExecutorService loader = Executors.newFixedThreadPool(2, task -> {
+            Thread thread = new Thread(task, "Startup loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture<ImageManager> imagesLoaded = CompletableFuture.supplyAsync(
+                () -> new ImageManager("serializedimages.ser"), loader);
+        CompletableFuture<TagManager> tagsLoaded = CompletableFuture.supplyAsync(
+                () -> new TagManager("serializedtags.ser"), loader);
+        // opens the name log, which the first rename would otherwise wait for
+        loader.execute(NameLogger::getInstance);
+
+        imagesLoaded.thenCombine(tagsLoaded, (imageManager, tagManager) -> {
+            imageManager.setTagManager(tagManager);
+            return tagManager;
+        }).whenComplete((tagManager, error) -> {
+            loader.shutdown();
+            Platform.runLater(() -> {
+                if(error != null){
+                    System.out.println("Failed to load the persistence files");
+                    rootGroup.getChildren().setAll(new Label("Failed to load images and tags"));
+                    return;
+                }
+                showViews(stage, rootGroup, configurationManager, imagesLoaded.join(), tagManager);
+            });
+        });
 
-        ImageManager imageManager = new ImageManager("serializedimages.ser");
-        TagManager tagManager = new TagManager("serializedtags.ser");
+        stage.setScene(new Scene(rootGroup));
+        reportNextFrame("startup.firstFrame", "first frame");
+        stage.show();
+    }
+
+    /**
+     * Builds the views, once the managers have loaded, and shows them in place of the loading message.
+     * @param stage The window.
+     * @param rootGroup The root of the window's scene.
+     * @param configurationManager ConfigurationManager saving the persistence files.
+     * @param imageManager The loaded ImageManager, already linked to the TagManager.
+     * @param tagManager The loaded TagManager.
+     */
+    private void showViews(Stage stage, Pane rootGroup, ConfigurationManager configurationManager,
+                           ImageManager imageManager, TagManager tagManager){
+        final GridPane mainGridPane = new GridPane();
 
-        imageManager.setTagManager(tagManager);
+        FileManager fileManager = new FileManager();
         fileManager.setImageManager(imageManager);
 
         configurationManager.setTagManager(tagManager);
@@ -61,6 +121,9 @@ public class Main extends Application{
 
         imageManagerView.setSiblingTagManagerView(tagManagerView);
 
+        // finish a tag deletion that was interrupted when the program was last closed
+        tagManager.resumeTagDeletion(tagManagerView::showDeletionProgress);
+
         GridPane.setConstraints(fileManagerView.getGridPane(),0,0);
         GridPane.setConstraints(imageManagerView.getGridPane(),0,1);
         GridPane.setConstraints(tagManagerView.getGridPane(),1, 1);
@@ -75,15 +138,34 @@ public class Main extends Application{
 
         );
 
-
-        rootGroup.getChildren().addAll(
+        rootGroup.getChildren().setAll(
                 mainGridPane
         );
+        stage.sizeToScene();
+        reportNextFrame("startup.interactive", "interactive");
+    }
 
-        rootGroup.setPadding(new Insets(12, 12, 12, 12));
+    /**
+     * Reports how long after the JVM started the next frame is drawn.
+     * @param metricName Name of the Metrics histogram to record the time in.
+     * @param description What the frame shows, for the printed report.
+     */
+    private static void reportNextFrame(String metricName, String description){
+        new AnimationTimer(){
+            @Override
+            public void handle(long now){
+                stop();
+                long elapsedMillis = System.currentTimeMillis() - JVM_START_MILLIS;
+                Metrics.getInstance().histogram(metricName).record(elapsedMillis * 1000000L);
+                System.out.println("Startup: " + description + " after " + elapsedMillis + " ms");
+            }
+        }.start();
+    }
 
-        stage.setScene(new Scene(rootGroup));
-        stage.show();
+    @Override
+    public void stop(){
+        // name changes are logged in the background; make sure they all reach the log file before exiting
+        NameLogger.getInstance().flush();
     }
 
 
@@ -0,0 +1,272 @@
+package tag;
+
+import image.ImageFile;
+import utils.Metrics;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A QueryCache. Keeps the results of recent TagQueries, by their normalized text, so that a query that is run again
+ * (as gallery users do all day) is answered without intersecting the Tags' postings again.
+ *
+ * Each result remembers the Tags it depends on, and is dropped as soon as any of them changes: when an image is
+ * tagged or untagged with one (see ImageManager) or the Tag is added, renamed, merged or removed (see TagManager).
+ * A negated query also depends on every image, so it is dropped when images are added. Results that depend on other
+ * Tags are kept. A query with the term * depends on every Tag. The cache holds at most a number of results, and a
+ * number of images over all of them, evicting the least recently used results first.
+ *
+ * A change to the ImageManager's images is recorded here before its snapshot is published, so no reader can find a
+ * result that the change has made stale. A result is only stored if none of its Tags changed while it was being
+ * worked out, and a result is only given for a snapshot at least as new as the one it was worked out from.
+ *
+ * Hits, misses, evictions and invalidations are counted in the Metrics ("query.cache.hits" and so on); the hit rate
+ * is hits / (hits + misses).
+ */
+public class QueryCache {
+    /**
+     * The name a query that matches any Tag depends on; a change to any Tag is a change to it.
+     */
+    static final String ANY_TAG = "*";
+    /**
+     * The number of queries answered from the cache.
+     */
+    private static final Metrics.Counter HITS = Metrics.getInstance().counter("query.cache.hits");
+    /**
+     * The number of queries that had to be worked out.
+     */
+    private static final Metrics.Counter MISSES = Metrics.getInstance().counter("query.cache.misses");
+    /**
+     * The number of results dropped to keep the cache within its bounds.
+     */
+    private static final Metrics.Counter EVICTIONS = Metrics.getInstance().counter("query.cache.evictions");
+    /**
+     * The number of results dropped because a Tag they depend on changed.
+     */
+    private static final Metrics.Counter INVALIDATIONS = Metrics.getInstance().counter("query.cache.invalidations");
+
+    /**
+     * A cached query result.
+     */
+    private static class Entry {
+        /**
+         * The names of the Tags the query depends on.
+         */
+        private Set<String> tagNames;
+        /**
+         * Whether the query has a NOT in it, and so depends on every image.
+         */
+        private boolean negated;
+        /**
+         * The version of the snapshot the result was worked out from.
+         */
+        private long version;
+        /**
+         * The ImageFiles matching the query.
+         */
+        private List<ImageFile> images;
+    }
+
+    /**
+     * Cached results in least recently used order, by normalized query.
+     */
+    private LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * When each Tag name last changed: the generation and the snapshot version of its last change. The null key
+     * stands for every image (images being added).
+     */
+    private HashMap<String,long[]> changes = new HashMap<>();
+    /**
+     * The number of changes recorded so far.
+     */
+    private long generation;
+    /**
+     * The generation when every result was last dropped; a result worked out from before then is not stored.
+     */
+    private long clearedGeneration;
+    /**
+     * The number of ImageFiles in all the cached results.
+     */
+    private long cachedImages;
+    /**
+     * The maximum number of results held.
+     */
+    private int maxEntries;
+    /**
+     * The maximum number of ImageFiles held over all the results.
+     */
+    private long maxImages;
+
+    /**
+     * Constructs an empty QueryCache.
+     * @param maxEntries The maximum number of results to hold.
+     * @param maxImages The maximum number of ImageFiles to hold over all the results.
+     */
+    QueryCache(int maxEntries, long maxImages){
+        this.maxEntries = maxEntries;
+        this.maxImages = maxImages;
+    }
+
+    /**
+     * Returns the number of changes recorded so far. A query being worked out takes this before it starts, so that
+     * its result is not stored if a Tag it depends on changes in the meantime.
+     * @return The current generation.
+     */
+    synchronized long getGeneration(){
+        return generation;
+    }
+
+    /**
+     * Returns a cached result.
+     * @param query Normalized query.
+     * @param version Version of the snapshot the query is run against.
+     * @return The ImageFiles matching the query, or null if there is no result for the snapshot.
+     */
+    synchronized List<ImageFile> get(String query, long version){
+        Entry entry = entries.get(query);
+        // a result from a newer snapshot may have changes an older snapshot does not have
+        if(entry == null || entry.version > version){
+            MISSES.increment();
+            return null;
+        }
+        HITS.increment();
+        return entry.images;
+    }
+
+    /**
+     * Stores a result, unless a Tag it depends on changed while it was being worked out.
+     * @param query Normalized query.
+     * @param tagNames Names of the Tags the query depends on.
+     * @param negated Whether the query has a NOT in it.
+     * @param images The ImageFiles matching the query. Must not be changed afterwards.
+     * @param version Version of the snapshot the result was worked out from.
+     * @param startGeneration The generation when the query started being worked out.
+     */
+    synchronized void put(String query, Set<String> tagNames, boolean negated, List<ImageFile> images,
+                          long version, long startGeneration){
+        if(images.size() > maxImages || startGeneration < clearedGeneration
+                || changedSince(null, negated, version, startGeneration)){
+            return;
+        }
+        for(String tagName : tagNames){
+            if(changedSince(tagName, true, version, startGeneration)){
+                return;
+            }
+        }
+        Entry entry = new Entry();
+        entry.tagNames = tagNames;
+        entry.negated = negated;
+        entry.version = version;
+        entry.images = images;
+        Entry replaced = entries.put(query, entry);
+        if(replaced != null){
+            cachedImages -= replaced.images.size();
+        }
+        cachedImages += images.size();
+        evictToCapacity();
+    }
+
+    /**
+     * Returns whether a Tag changed after a result started being worked out, or in a snapshot newer than the one it
+     * was worked out from.
+     * @param tagName Name of the Tag, or null for every image.
+     * @param dependsOn Whether the result depends on it at all.
+     * @param version Version of the snapshot the result was worked out from.
+     * @param startGeneration The generation when the result started being worked out.
+     * @return True iff the result may be stale.
+     */
+    private boolean changedSince(String tagName, boolean dependsOn, long version, long startGeneration){
+        long[] change = dependsOn ? changes.get(tagName) : null;
+        return change != null && (change[0] > startGeneration || change[1] > version);
+    }
+
+    /**
+     * Drops the results that depend on Tags an ImageManager is about to publish a change to. Is called before the
+     * new snapshot can be read.
+     * @param tagNames Names of the Tags whose images changed.
+     * @param imagesChanged Whether images were added or dropped, which changes the results of negated queries.
+     * @param version Version of the new snapshot.
+     */
+    public synchronized void invalidate(Collection<String> tagNames, boolean imagesChanged, long version){
+        generation++;
+        for(String tagName : tagNames){
+            recordChange(tagName, version);
+        }
+        if(!tagNames.isEmpty()){
+            recordChange(ANY_TAG, version);
+        }
+        if(imagesChanged){
+            recordChange(null, version);
+        }
+
+        Iterator<Entry> cached = entries.values().iterator();
+        while(cached.hasNext()){
+            Entry entry = cached.next();
+            boolean stale = imagesChanged && entry.negated || !tagNames.isEmpty() && entry.tagNames.contains(ANY_TAG);
+            for(String tagName : tagNames){
+                stale = stale || entry.tagNames.contains(tagName);
+            }
+            if(stale){
+                cachedImages -= entry.images.size();
+                cached.remove();
+                INVALIDATIONS.increment();
+            }
+        }
+    }
+
+    /**
+     * Drops the results that depend on Tags that were just added, renamed, merged or removed in the TagManager.
+     * @param tagNames Names of the Tags.
+     */
+    void invalidate(Collection<String> tagNames){
+        // the TagManager's Tags are not versioned like snapshots; only the generation guards against stale results
+        invalidate(tagNames, false, Long.MIN_VALUE);
+    }
+
+    /**
+     * Drops every result, as when the TagManager's Tags are all replaced.
+     */
+    synchronized void clear(){
+        generation++;
+        INVALIDATIONS.add(entries.size());
+        entries.clear();
+        cachedImages = 0;
+        clearedGeneration = generation;
+    }
+
+    /**
+     * Records that a Tag changed.
+     * @param tagName Name of the Tag, or null for every image.
+     * @param version Version of the snapshot with the change.
+     */
+    private void recordChange(String tagName, long version){
+        long[] change = changes.computeIfAbsent(tagName, name -> new long[]{0, Long.MIN_VALUE});
+        change[0] = generation;
+        change[1] = Math.max(change[1], version);
+    }
+
+    /**
+     * Evicts the least recently used results until this cache is within its bounds.
+     */
+    private void evictToCapacity(){
+        Iterator<Map.Entry<String,Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+        while((entries.size() > maxEntries || cachedImages > maxImages) && leastRecentlyUsed.hasNext()){
+            cachedImages -= leastRecentlyUsed.next().getValue().images.size();
+            leastRecentlyUsed.remove();
+            EVICTIONS.increment();
+        }
+    }
+
+    /**
+     * Returns the number of results held.
+     * @return The number of cached results.
+     */
+    public synchronized int size(){
+        return entries.size();
+    }
+}
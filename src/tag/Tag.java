@@ -1,11 +1,27 @@
 package tag;
 
 import image.ImageFile;
+import utils.HeapSize;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 
+/**
+ * A Tag. A name that ImageFiles can be tagged with, and the ImageFiles that are tagged with it (its postings).
+ *
+ * A Tag is thread safe: its postings are guarded by the Tag's own lock. A Tag never calls into an ImageFile while
+ * holding its lock, so ImageFiles (which call into their Tags while holding their own lock) can't deadlock with it.
+ */
 public class Tag implements Serializable{
+    /**
+     * The version of the saved form of a Tag, pinned to that of the first persistence files so that they can still
+     * be read.
+     */
+    private static final long serialVersionUID = 101517526299465332L;
 
     /**
      * The name of this tag.
@@ -13,9 +29,14 @@ public class Tag implements Serializable{
     private String tagName;
 
     /**
-     * A list of all ImageFiles that are tagged with this tag.
+     * A list of all ImageFiles that are tagged with this tag, in no particular order.
      */
     private ArrayList<ImageFile> imagesWithThisTag = new ArrayList<>();
+    /**
+     * The position of each ImageFile in imagesWithThisTag, by identity, so that checking whether an ImageFile has this
+     * Tag, and removing it, does not search the list. Built again when needed after this Tag is deserialized.
+     */
+    private transient IdentityHashMap<ImageFile,Integer> postingIndex;
 
     /**
      * Constructs a Tag with the specified name.
@@ -35,10 +56,10 @@ public class Tag implements Serializable{
 
     /**
      * Gets all ImageFiles that are tagged with this Tag.
-     * @return A list of all ImageFiles that are tagged with this Tag.
+     * @return A copy of the list of all ImageFiles that are tagged with this Tag.
      */
-    ArrayList<ImageFile> getTaggedImages() {
-        return this.imagesWithThisTag;
+    synchronized ArrayList<ImageFile> getTaggedImages() {
+        return new ArrayList<>(this.imagesWithThisTag);
     }
 
     /**
@@ -53,9 +74,17 @@ public class Tag implements Serializable{
      * Sets an ImageFile to be associated with this Tag.
      * @param img ImageFile to associate with this Tag.
      */
-    public void addImageToTag(ImageFile img) {
-        if (!imagesWithThisTag.contains(img)){
-            imagesWithThisTag.add(img);
+    public synchronized void addImageToTag(ImageFile img) {
+        addPosting(img);
+    }
+
+    /**
+     * Sets many ImageFiles to be associated with this Tag at once.
+     * @param images ImageFiles to associate with this Tag.
+     */
+    public synchronized void addImagesToTag(Collection<ImageFile> images) {
+        for(ImageFile img : images){
+            addPosting(img);
         }
     }
 
@@ -63,22 +92,114 @@ public class Tag implements Serializable{
      * Removes an ImageFile that is associated with this Tag.
      * @param img ImageFile to remove from this Tag.
      */
-    public void removeImageFromTag(ImageFile img) {
-        if (imagesWithThisTag.contains(img)){
-            imagesWithThisTag.remove(img);
+    public synchronized void removeImageFromTag(ImageFile img) {
+        removePosting(img);
+    }
+
+    /**
+     * Removes many ImageFiles that are associated with this Tag at once.
+     * @param images ImageFiles to remove from this Tag.
+     */
+    public synchronized void removeImagesFromTag(Collection<ImageFile> images) {
+        for(ImageFile img : images){
+            removePosting(img);
+        }
+    }
+
+    /**
+     * Adds an ImageFile to the postings, unless it is already in them.
+     * @param img ImageFile to add.
+     */
+    private void addPosting(ImageFile img){
+        if(postingIndex().putIfAbsent(img, imagesWithThisTag.size()) == null){
+            imagesWithThisTag.add(img);
+        }
+    }
+
+    /**
+     * Removes an ImageFile from the postings, moving the last ImageFile into its place, so that removing costs the
+     * same however many ImageFiles have this Tag.
+     * @param img ImageFile to remove.
+     */
+    private void removePosting(ImageFile img){
+        Integer position = postingIndex().remove(img);
+        if(position == null){
+            return;
+        }
+        ImageFile last = imagesWithThisTag.remove(imagesWithThisTag.size() - 1);
+        if(last != img){
+            imagesWithThisTag.set(position, last);
+            postingIndex.put(last, position);
+        }
+    }
+
+    /**
+     * Returns the position of each ImageFile with this Tag, building it from the postings list if needed.
+     * @return The position of each ImageFile in the postings list, by identity.
+     */
+    private IdentityHashMap<ImageFile,Integer> postingIndex(){
+        if(postingIndex == null){
+            postingIndex = new IdentityHashMap<>();
+            // a list read from an old persistence file may hold an ImageFile twice; keep its first position
+            ArrayList<ImageFile> postings = imagesWithThisTag;
+            imagesWithThisTag = new ArrayList<>(postings.size());
+            for(ImageFile img : postings){
+                if(postingIndex.putIfAbsent(img, imagesWithThisTag.size()) == null){
+                    imagesWithThisTag.add(img);
+                }
+            }
         }
+        return postingIndex;
+    }
+
+    /**
+     * Replaces the postings of this Tag. Is used to link Tags and ImageFiles after they are loaded from their
+     * separate persistence files.
+     * @param images ImageFiles that are tagged with this Tag.
+     */
+    public synchronized void setTaggedImages(Collection<ImageFile> images){
+        imagesWithThisTag = new ArrayList<>();
+        postingIndex = null;
+        addImagesToTag(images);
+    }
+
+    /**
+     * Drops all the postings of this Tag at once, without untagging the ImageFiles. Is used when the ImageFiles are
+     * untagged afterwards in bulk.
+     */
+    synchronized void clearPostings(){
+        imagesWithThisTag = new ArrayList<>();
+        postingIndex = null;
     }
 
     /**
      * Removes all images associated with this tag from this tag.
      */
     void clearTag(){
-        // first untag all images with this tag
-        for(ImageFile img : this.imagesWithThisTag){
+        // first untag all images with this tag (without holding this tag's lock, since the images lock themselves)
+        for(ImageFile img : getTaggedImages()){
             img.removeTag(this);
         }
         // clear all images associated with this tag
-        imagesWithThisTag.clear();
+        synchronized(this){
+            imagesWithThisTag.clear();
+            postingIndex = null;
+        }
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this Tag's postings take on the heap: the list of ImageFiles, and
+     * the index of their positions if it has been built (not the ImageFiles themselves).
+     * @return The estimated number of bytes of the postings.
+     */
+    public synchronized long estimatePostingBytes(){
+        long bytes = HeapSize.arrayList(imagesWithThisTag.size());
+        if(postingIndex != null){
+            // the positions are boxed Integers, cached only up to 127
+            bytes += HeapSize.identityHashMap(postingIndex.size())
+                    + Math.max(0, postingIndex.size() - 128) * HeapSize.object(0, 4);
+        }
+        return bytes;
     }
 
     /**
@@ -94,4 +215,26 @@ public class Tag implements Serializable{
         return false;
     }
 
+    /**
+     * Returns a hash code for this Tag, consistent with equals.
+     * @return A hash code for this Tag.
+     */
+    public int hashCode(){
+        return this.tagName.hashCode();
+    }
+
+    /**
+     * Writes this Tag to a serialization stream, without its postings. The postings are rebuilt from the ImageFiles'
+     * Tags when the model is loaded (see ImageManager.setTagManager). Writing them would also make serialization
+     * recurse from ImageFile to Tag to ImageFile through the whole library, overflowing the stack on large ones.
+     * @param output Stream to write to.
+     * @throws IOException ..
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException{
+        ObjectOutputStream.PutField fields = output.putFields();
+        fields.put("tagName", tagName);
+        fields.put("imagesWithThisTag", new ArrayList<ImageFile>());
+        output.writeFields();
+    }
+
 }
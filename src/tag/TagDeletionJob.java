@@ -0,0 +1,291 @@
+package tag;
+
+import image.ImageFile;
+import image.ImageManager;
+import utils.FileOperationResult;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A TagDeletionJob. Deletes Tags in the background, however many ImageFiles they are on.
+ *
+ * The Tags are taken out of the TagManager and their postings dropped in one step. The affected ImageFiles are then
+ * renamed in batches (each batch concurrently, by ImageManager.retagImages), and the persistence files are saved
+ * once at the end, instead of once per ImageFile.
+ *
+ * Because nothing is saved until the end, the job keeps a journal: the names of the Tags being deleted, then each
+ * ImageFile renamed so far (its old file and new name), forced to disk after every batch. If the program stops
+ * before the job finishes, the journal is still there on the next start, and resuming the job first brings the
+ * renamed ImageFiles' saved state up to date with their files, then carries on with the rest. The journal is deleted
+ * once the job has saved.
+ *
+ * An ImageFile that could not be renamed keeps the deleted Tags, in its name and in the model, and is reported as a
+ * failure (see getFailures). Those Tags are put back in the TagManager, so that they can still be seen and removed,
+ * and the journal is kept, so that the deletion is tried again when it is next resumed.
+ */
+public class TagDeletionJob implements Runnable {
+    /**
+     * Is told how far a TagDeletionJob has got.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each batch of ImageFiles, and when the job ends.
+         * @param done The number of ImageFiles handled so far.
+         * @param total The number of ImageFiles the job has to handle.
+         * @param failed The number of ImageFiles handled so far that could not be renamed.
+         * @param finished Whether the job has ended (completed or interrupted).
+         */
+        void progress(int done, int total, int failed, boolean finished);
+    }
+
+    /**
+     * The number of ImageFiles renamed at once.
+     */
+    private static final int BATCH_SIZE = 512;
+    /**
+     * Journal line naming a Tag to delete.
+     */
+    private static final String TAG_ENTRY = "tag";
+    /**
+     * Journal line recording an ImageFile that has been renamed.
+     */
+    private static final String DONE_ENTRY = "done";
+    /**
+     * Last field of every journal line, so that a line cut short by a crash can be told apart from a whole one.
+     */
+    private static final String END_OF_ENTRY = ".";
+
+    /**
+     * TagManager the Tags are deleted from.
+     */
+    private TagManager tagManager;
+    /**
+     * ImageManager managing the ImageFiles to rename.
+     */
+    private ImageManager imageManager;
+    /**
+     * Names of the Tags to delete.
+     */
+    private ArrayList<String> tagNames;
+    /**
+     * The journal of this job.
+     */
+    private File journalFile;
+    /**
+     * Whether this job continues the work recorded in an existing journal.
+     */
+    private boolean resuming;
+    /**
+     * Told how far this job has got, or null.
+     */
+    private volatile ProgressListener listener;
+    /**
+     * The number of ImageFiles handled so far.
+     */
+    private volatile int done;
+    /**
+     * The number of ImageFiles this job has to handle.
+     */
+    private volatile int total;
+    /**
+     * The results of the ImageFiles that could not be renamed.
+     */
+    private final ArrayList<FileOperationResult> failures = new ArrayList<>();
+
+    /**
+     * Constructs a job that deletes Tags.
+     * @param tagManager TagManager to delete the Tags from.
+     * @param imageManager ImageManager managing the tagged ImageFiles.
+     * @param tagNames Names of the Tags to delete.
+     * @param journalFile File to keep the journal of the job in.
+     */
+    TagDeletionJob(TagManager tagManager, ImageManager imageManager, ArrayList<String> tagNames, File journalFile){
+        this.tagManager = tagManager;
+        this.imageManager = imageManager;
+        this.tagNames = new ArrayList<>(tagNames);
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Constructs a job that resumes the deletion recorded in a journal.
+     * @param tagManager TagManager to delete the Tags from.
+     * @param imageManager ImageManager managing the tagged ImageFiles.
+     * @param journalFile Journal of the interrupted job.
+     * @return The job, or null if the journal could not be read.
+     */
+    static TagDeletionJob resume(TagManager tagManager, ImageManager imageManager, File journalFile){
+        ArrayList<String> tagNames = new ArrayList<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                StandardCharsets.UTF_8))){
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] entry = line.split("\t");
+                if(entry.length == 3 && entry[0].equals(TAG_ENTRY) && entry[2].equals(END_OF_ENTRY)){
+                    tagNames.add(entry[1]);
+                }
+            }
+        }catch (IOException e){
+            System.out.println("Failed to read tag deletion journal");
+            return null;
+        }
+        TagDeletionJob job = new TagDeletionJob(tagManager, imageManager, tagNames, journalFile);
+        job.resuming = true;
+        return job;
+    }
+
+    /**
+     * Sets the listener told how far this job has got.
+     * @param listener Listener to tell, or null.
+     */
+    public void setProgressListener(ProgressListener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the number of ImageFiles handled so far.
+     * @return The number of ImageFiles handled so far.
+     */
+    public int getDone(){
+        return done;
+    }
+
+    /**
+     * Returns the number of ImageFiles this job has to handle (0 until the job has found them).
+     * @return The number of ImageFiles this job has to handle.
+     */
+    public int getTotal(){
+        return total;
+    }
+
+    /**
+     * Returns the ImageFiles that could not be renamed so far, and why. They keep the deleted Tags.
+     * @return The result of each ImageFile that could not be renamed.
+     */
+    public synchronized ArrayList<FileOperationResult> getFailures(){
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Runs this job. If the thread running it is interrupted, the job stops after the current batch and leaves its
+     * journal, so that it can be resumed.
+     */
+    @Override
+    public void run(){
+        try(FileOutputStream journalStream = new FileOutputStream(journalFile, resuming);
+            Writer journal = new OutputStreamWriter(journalStream, StandardCharsets.UTF_8)){
+            HashMap<File,String> renamedBefore = resuming ? readRenamed() : new HashMap<>();
+            if(resuming){
+                // the journal may end in a line cut short by a crash; start on a new line
+                journal.write("\n");
+            }
+            else{
+                for(String tagName : tagNames){
+                    journal.write(TAG_ENTRY + "\t" + tagName + "\t" + END_OF_ENTRY + "\n");
+                }
+                journal.flush();
+                journalStream.getFD().sync();
+            }
+
+            ArrayList<Tag> tags = tagManager.detachTags(tagNames);
+            if(!renamedBefore.isEmpty()){
+                imageManager.recoverRetags(renamedBefore, tags);
+            }
+
+            ArrayList<ImageFile> affected = imageManager.getImagesWithTags(tags);
+            total = affected.size();
+            ArrayList<Tag> noTags = new ArrayList<>();
+            ArrayList<ImageFile> notRenamed = new ArrayList<>();
+            for(int start = 0; start < affected.size(); start += BATCH_SIZE){
+                if(Thread.currentThread().isInterrupted()){
+                    report(true);
+                    return;
+                }
+                List<ImageFile> batch = affected.subList(start, Math.min(start + BATCH_SIZE, affected.size()));
+                ArrayList<FileOperationResult> results = imageManager.retagImages(batch, noTags, tags, false);
+                for(int i = 0; i < batch.size(); i++){
+                    FileOperationResult result = results.get(i);
+                    if(result.isSucceeded()){
+                        journal.write(DONE_ENTRY + "\t" + result.getFile().getPath() + "\t"
+                                + batch.get(i).getImageFileName() + "\t" + END_OF_ENTRY + "\n");
+                    }
+                    else{
+                        notRenamed.add(batch.get(i));
+                        synchronized(this){
+                            failures.add(result);
+                        }
+                    }
+                }
+                journal.flush();
+                journalStream.getFD().sync();
+                done += batch.size();
+                report(false);
+            }
+
+            if(!notRenamed.isEmpty()){
+                tagManager.reattachTags(tags, notRenamed);
+            }
+            tagManager.updatePersistenceFiles();
+            if(!notRenamed.isEmpty()){
+                // the journal is left for the next resume to try the ImageFiles that kept the Tags again
+                report(true);
+                return;
+            }
+        }catch (IOException e){
+            System.out.println("Failed to write tag deletion journal");
+            report(true);
+            return;
+        }
+
+        if(!journalFile.delete()){
+            System.out.println("Failed to delete tag deletion journal");
+        }
+        report(true);
+    }
+
+    /**
+     * Reads the ImageFiles that an interrupted job had already renamed from its journal.
+     * @return The new name of each renamed ImageFile, by the file it had before.
+     * @throws IOException ..
+     */
+    private HashMap<File,String> readRenamed() throws IOException{
+        HashMap<File,String> renamed = new HashMap<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                StandardCharsets.UTF_8))){
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] entry = line.split("\t");
+                // a line cut short by a crash is ignored
+                if(entry.length == 4 && entry[0].equals(DONE_ENTRY) && entry[3].equals(END_OF_ENTRY)){
+                    renamed.put(new File(entry[1]), entry[2]);
+                }
+            }
+        }
+        return renamed;
+    }
+
+    /**
+     * Tells the listener how far this job has got.
+     * @param finished Whether the job has ended.
+     */
+    private void report(boolean finished){
+        ProgressListener current = listener;
+        if(current != null){
+            int failed;
+            synchronized(this){
+                failed = failures.size();
+            }
+            current.progress(done, total, failed, finished);
+        }
+    }
+}
@@ -14,11 +14,6 @@ import javafx.scene.control.ListCell;
  * A TagListCell. How an Tag appears in a ListView.
  */
 public class TagListCell extends ListCell<Tag> {
-    /**
-     * Tag to display as cell.
-     */
-    private Tag tag;
-
     /**
      * Update method for cell. Sets Tag or empties cell.
      * @param item Tag to update cell with.
@@ -29,14 +24,11 @@ public class TagListCell extends ListCell<Tag> {
         super.updateItem(item,empty);
 
         if(item == null || empty){
-            tag = null;
             setText(null);
         }
+        // cells are reused for different Tags as the list changes, so always show the current item
         else{
-            if(tag == null){
-                tag = item;
-            }
-            setText(tag.toString());
+            setText(item.toString());
         }
     }
 
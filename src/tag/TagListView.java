@@ -2,11 +2,12 @@ package tag;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.collections.FXCollections;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.SelectionMode;
 import javafx.util.Callback;
+import utils.ListChange;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -82,9 +83,16 @@ public class TagListView implements ChangeListener<Tag> {
      * Sets a list of Tags that this TagListView should display.
      * @param tags The list of Tags that this TagListView should display.
      */
-    public void setItems(ArrayList<Tag> tags){
-        tagListView.getItems().clear();
-        tagListView.setItems(FXCollections.observableArrayList(tags));
+    public void setItems(List<Tag> tags){
+        ListChange.update(tagListView.getItems(), tags);
+    }
+
+    /**
+     * Applies a single change to the list of Tags that this TagListView displays.
+     * @param change Change to apply to the displayed Tags.
+     */
+    void applyChange(ListChange<Tag> change){
+        change.applyTo(tagListView.getItems());
     }
 
     /**
@@ -3,9 +3,19 @@ package tag;
 import image.ImageFile;
 import image.ImageManager;
 import utils.ConfigurationManager;
+import utils.FileOperationResult;
+import utils.HeapSize;
+import utils.ListChange;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 //**************************************************************************************
 // *    Title: (adatped from) <"Serialize Code" from CSC207 Fall 2017 UofT week 5 notes>
@@ -19,12 +29,24 @@ import java.util.HashMap;
 /**
  * A TagManager. Is responsible for creating and removing Tags. Also is responsible for opening and saving Tags from
  * persistence files.
+ *
+ * A TagManager is thread safe. Tags are looked up in a ConcurrentHashMap without locking. Creating and removing Tags
+ * is rare, so it is done under the TagManager's lock, which is always taken before any ImageFile or Tag lock.
  */
 public class TagManager {
+    /**
+     * The characters a Tag name cannot hold: whitespace, and the @ that starts each Tag in a file name.
+     */
+    private static final Pattern INVALID_TAG_CHARACTERS = Pattern.compile("[\\s@]+");
+
     /**
      * Stores all the Tag objects. Tags are accessed by their String name.
      */
-    private HashMap<String,Tag> tagMap = new HashMap<>();
+    private ConcurrentHashMap<String,Tag> tagMap = new ConcurrentHashMap<>();
+    /**
+     * All the Tag objects, in the order they are displayed in the view.
+     */
+    private ArrayList<Tag> orderedTags = new ArrayList<>();
     /**
      * Collaborator ConfigurationManager for this TagManager.
      */
@@ -37,6 +59,22 @@ public class TagManager {
      * The collaborator ImageManager for this TagManager.
      */
     private ImageManager imageManager;
+    /**
+     * The journal of the running (or interrupted) tag deletion, kept next to the persistence file.
+     */
+    private File deletionJournal = new File("tagdeletion.journal");
+    /**
+     * Runs tag deletions, renames and merges in the background, one at a time.
+     */
+    private ExecutorService tagJobExecutor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Tag job");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * The results of recent TagQueries, dropped as the Tags they depend on change.
+     */
+    private QueryCache queryCache = new QueryCache(256, 1000000);
 
     /**
      * Constructs an empty TagManager.
@@ -50,6 +88,7 @@ public class TagManager {
     @SuppressWarnings("all")
     public TagManager(String filePath){
         File file = new File(filePath);
+        deletionJournal = new File(file.getParentFile(), "tagdeletion.journal");
 
         //adapted from class notes
         try{
@@ -85,11 +124,7 @@ public class TagManager {
      * @return The Tag with the given name (if it exists).
      */
     public Tag getTag(String tagName){
-        if(tagMap.containsKey(tagName)){
-            return tagMap.get(tagName);
-        }
-
-        return null;
+        return tagMap.get(tagName);
     }
 
     /**
@@ -100,89 +135,346 @@ public class TagManager {
     public ArrayList<Tag> getTags(ArrayList<String> tagNames){
         ArrayList<Tag> tagsToReturn = new ArrayList<>();
         for(String tagName : tagNames){
-            if(tagMap.containsKey(tagName)){
-                tagsToReturn.add(tagMap.get(tagName));
+            Tag tag = tagMap.get(tagName);
+            if(tag != null){
+                tagsToReturn.add(tag);
             }
         }
         return tagsToReturn;
     }
 
+    /**
+     * Returns a name as a Tag would be named: without spaces or @. Is used wherever a name typed by a user or read
+     * from a file becomes a Tag, so that the same name always finds the same Tag.
+     * @param tagName Name to clean up.
+     * @return The name without whitespace or @ (possibly empty).
+     */
+    public static String validTagName(String tagName){
+        return INVALID_TAG_CHARACTERS.matcher(tagName).replaceAll("");
+    }
+
     /**
      * Creates/adds a tag with the given String name. Removes spaces and invalid characters if present in string.
      * @param tagName Name of Tag to add/create.
      */
-    public void addTag(String tagName){
-        String spaceLessTagName = tagName.replaceAll("\\s+","");
-        String validTagName = spaceLessTagName.replaceAll("@","");
+    public synchronized void addTag(String tagName){
+        String validTagName = validTagName(tagName);
         if(!tagMap.containsKey(validTagName)){
             Tag new_tag = new Tag(validTagName);
             tagMap.put(validTagName,new_tag);
+            orderedTags.add(new_tag);
+            queryCache.invalidate(Collections.singletonList(validTagName));
             // update view
-            tagManagerView.updateTagList(new ArrayList<>(tagMap.values()));
+            if(tagManagerView != null){
+                tagManagerView.updateTagList(
+                        new ListChange<>(ListChange.Type.ADDED, orderedTags.size() - 1, new_tag));
+            }
             // save files
             configManager.updatePersistenceFiles();
         }
     }
 
+    /**
+     * Adds many Tags at once, without saving the persistence files; names are cleaned up as in addTag. Is used by
+     * bulk imports, which save once at the end.
+     * @param tagNames Names of the Tags to add.
+     * @return The Tag with each name, whether it was just added or already existed, in the same order.
+     */
+    public synchronized ArrayList<Tag> addTags(Collection<String> tagNames){
+        ArrayList<Tag> tags = new ArrayList<>(tagNames.size());
+        ArrayList<String> added = new ArrayList<>();
+        for(String tagName : tagNames){
+            String validTagName = validTagName(tagName);
+            Tag tag = tagMap.get(validTagName);
+            if(tag == null){
+                tag = new Tag(validTagName);
+                tagMap.put(validTagName, tag);
+                orderedTags.add(tag);
+                added.add(validTagName);
+                // the view is told of each new Tag, as addTag does, rather than sent the whole list again
+                if(tagManagerView != null){
+                    tagManagerView.updateTagList(new ListChange<>(ListChange.Type.ADDED, orderedTags.size() - 1, tag));
+                }
+            }
+            tags.add(tag);
+        }
+        queryCache.invalidate(added);
+        return tags;
+    }
+
     /**
      * Removes a Tag of a given String name from this TagManager.
      * @param tagName Name of Tag to remove.
+     * @return The background job removing the Tag.
      */
-    void removeTag(String tagName){
-        if (tagMap.containsKey(tagName)){
+    @SuppressWarnings("unused")
+    TagDeletionJob removeTag(String tagName){
+        ArrayList<String> tagNames = new ArrayList<>();
+        tagNames.add(tagName);
+        return removeTags(tagNames, null);
+    }
 
-            // todo : a bit messy; we should use a helper in phase 2?
-            Tag toRemove = tagMap.get(tagName);
-            for(int i = 0; i < toRemove.getTaggedImages().size();i++){
-                ImageFile img = toRemove.getTaggedImages().get(i);
-                imageManager.removeTagFromImage(img,toRemove.toString());
+    /**
+     * Removes a set of Tags from this TagManager specified by a list of String tag names. The Tags are removed by a
+     * background TagDeletionJob; jobs run one at a time, in the order they were started.
+     * @param tagNames Names of Tags to remove.
+     * @param listener Told how far the job has got, or null.
+     * @return The background job removing the Tags.
+     */
+    TagDeletionJob removeTags(ArrayList<String> tagNames, TagDeletionJob.ProgressListener listener){
+        TagDeletionJob job = new TagDeletionJob(this, imageManager, tagNames, deletionJournal);
+        job.setProgressListener(listener);
+        tagJobExecutor.execute(job);
+        return job;
+    }
+
+    /**
+     * Resumes a tag deletion that was interrupted (e.g. by the program being closed), if there is one.
+     * @param listener Told how far the job has got, or null.
+     * @return The background job resuming the deletion, or null if there is none.
+     */
+    public TagDeletionJob resumeTagDeletion(TagDeletionJob.ProgressListener listener){
+        if(!deletionJournal.exists()){
+            return null;
+        }
+        TagDeletionJob job = TagDeletionJob.resume(this, imageManager, deletionJournal);
+        if(job != null){
+            job.setProgressListener(listener);
+            tagJobExecutor.execute(job);
+        }
+        return job;
+    }
+
+    /**
+     * The outcome of merging or renaming Tags: how many images were renamed, and which could not be.
+     */
+    public static class MergeResult {
+        /**
+         * The number of images renamed (or that would be renamed, in a dry run).
+         */
+        private int renamedCount;
+        /**
+         * The results of the images that could not be renamed; they keep the merged Tags.
+         */
+        private ArrayList<FileOperationResult> failures = new ArrayList<>();
+
+        /**
+         * Returns the number of images renamed.
+         * @return The number of images renamed (or that would be renamed, in a dry run).
+         */
+        public int getRenamedCount(){
+            return renamedCount;
+        }
+
+        /**
+         * Returns the images that could not be renamed, and why.
+         * @return The result of each image that could not be renamed.
+         */
+        public ArrayList<FileOperationResult> getFailures(){
+            return failures;
+        }
+    }
+
+    /**
+     * Renames a Tag, or merges it into another Tag if one with the new name exists already. See mergeTags.
+     * @param tagName Name of the Tag to rename.
+     * @param newTagName New name of the Tag.
+     * @param dryRun If true, nothing is changed; only the number of images that would be renamed is counted.
+     * @return How many images were renamed (or would be, in a dry run), and which could not be.
+     */
+    public MergeResult renameTag(String tagName, String newTagName, boolean dryRun){
+        ArrayList<String> tagNames = new ArrayList<>();
+        tagNames.add(tagName);
+        return mergeTags(tagNames, newTagName, dryRun);
+    }
+
+    /**
+     * Merges Tags into one Tag, e.g. @kid into @kids. Every image with any of the merged Tags ends up with the
+     * target Tag instead. If the target Tag does not exist it is created; when a single Tag is merged into a new
+     * Tag, this renames the Tag, and it keeps its place in the list of Tags.
+     *
+     * The images are renamed concurrently (see ImageManager.retagImages), which moves each image that is renamed
+     * from the merged Tags' postings to the target Tag's, then the persistence files are saved once. An image that
+     * could not be renamed keeps its merged Tag, in its name and in the model, and is returned as a failure; a
+     * merged Tag is only removed once no image has it.
+     * @param tagNames Names of the Tags to merge.
+     * @param targetTagName Name of the Tag to merge them into. Spaces and @ are removed, as in addTag.
+     * @param dryRun If true, nothing is changed; only the number of images that would be renamed is counted.
+     * @return How many images were renamed (or would be, in a dry run), and which could not be.
+     */
+    public MergeResult mergeTags(ArrayList<String> tagNames, String targetTagName, boolean dryRun){
+        MergeResult mergeResult = new MergeResult();
+        String validTargetName = validTagName(targetTagName);
+        ArrayList<Tag> sources = new ArrayList<>();
+        for(Tag tag : getTags(tagNames)){
+            if(!tag.getTagName().equals(validTargetName) && !sources.contains(tag)){
+                sources.add(tag);
             }
-            toRemove.clearTag();
+        }
+        if(sources.isEmpty() || validTargetName.isEmpty()){
+            return mergeResult;
+        }
+        if(dryRun){
+            // every image with a merged Tag loses it, so every one of them is renamed
+            mergeResult.renamedCount = imageManager.getImagesWithTags(sources).size();
+            return mergeResult;
+        }
 
-            tagMap.remove(tagName);
-            // update view
-            tagManagerView.updateTagList(new ArrayList<>(tagMap.values()));
-            // save files
-            configManager.updatePersistenceFiles();
+        Tag target = addMergeTarget(sources, validTargetName);
+        ArrayList<Tag> tagsToAdd = new ArrayList<>();
+        tagsToAdd.add(target);
+        for(FileOperationResult result :
+                imageManager.retagImages(imageManager.getImagesWithTags(sources), tagsToAdd, sources, false)){
+            if(result.isSucceeded()){
+                mergeResult.renamedCount++;
+            }
+            else{
+                mergeResult.failures.add(result);
+                System.out.println("Failed to merge tags of " + result);
+            }
         }
+        removeMergedTags(sources);
+        updatePersistenceFiles();
+        return mergeResult;
     }
 
     /**
-     * Removes a set of Tags from this TagManager specified by a list of String tag names.
-     * @param tagNames
+     * Runs mergeTags in the background, after any tag jobs that are already running.
+     * @param tagNames Names of the Tags to merge.
+     * @param targetTagName Name of the Tag to merge them into.
+     * @param whenDone Given the outcome (on the background thread) once the merge is done, or null.
      */
-    @SuppressWarnings("all")
-    void removeTags(ArrayList<String> tagNames){
-        if(!tagNames.isEmpty()) {
-            ArrayList<ImageFile> affectedImageFiles = new ArrayList<>();
-
-            for (String tagName : tagNames) {
-                if (tagMap.containsKey(tagName)) {
-                    Tag toRemove = tagMap.get(tagName);
-                    affectedImageFiles.addAll(toRemove.getTaggedImages());
-                }
+    void mergeTagsInBackground(ArrayList<String> tagNames, String targetTagName, Consumer<MergeResult> whenDone){
+        tagJobExecutor.execute(() -> {
+            MergeResult result = mergeTags(tagNames, targetTagName, false);
+            if(whenDone != null){
+                whenDone.accept(result);
             }
+        });
+    }
 
-            for (int i = 0; i < affectedImageFiles.size(); i++) {
-                ImageFile img = affectedImageFiles.get(i);
-                imageManager.removeTagsFromImage(img, tagNames);
+    /**
+     * First step of a merge: finds the target Tag, creating it if needed. A Tag created for a single merged Tag (a
+     * rename) is put in the merged Tag's place in the list.
+     * @param sources Tags to merge.
+     * @param targetTagName Name of the Tag to merge them into.
+     * @return The target Tag.
+     */
+    private synchronized Tag addMergeTarget(ArrayList<Tag> sources, String targetTagName){
+        Tag target = tagMap.get(targetTagName);
+        if(target == null){
+            target = new Tag(targetTagName);
+            tagMap.put(targetTagName, target);
+            int index = sources.size() == 1 ? orderedTags.indexOf(sources.get(0)) : -1;
+            if(index < 0){
+                index = orderedTags.size();
             }
+            orderedTags.add(index, target);
+            queryCache.invalidate(Collections.singletonList(targetTagName));
+            if(tagManagerView != null){
+                tagManagerView.updateTagList(new ListChange<>(ListChange.Type.ADDED, index, target));
+            }
+        }
+        return target;
+    }
 
+    /**
+     * Last step of a merge: takes the merged Tags that no image has any more out of this TagManager. The images have
+     * been moved to the target Tag by renaming them; a merged Tag that an image could not be renamed away from is
+     * kept.
+     * @param sources Tags that were merged.
+     */
+    private synchronized void removeMergedTags(ArrayList<Tag> sources){
+        ArrayList<String> removedTagNames = new ArrayList<>();
+        for(Tag source : sources){
+            if(source.getTaggedImages().isEmpty() && tagMap.remove(source.getTagName(), source)){
+                removeFromOrderedTags(source);
+                removedTagNames.add(source.getTagName());
+            }
+        }
+        queryCache.invalidate(removedTagNames);
+    }
 
-            for (int i = 0; i < tagNames.size(); i++) {
-                String tagName = tagNames.get(i);
-                if (tagMap.containsKey(tagName)) {
-                    Tag toRemove = tagMap.get(tagName);
-                    toRemove.clearTag();
-                    tagMap.remove(tagName);
-                }
+    /**
+     * Takes Tags out of this TagManager and drops their postings, without untagging the ImageFiles. Is the first
+     * step of a TagDeletionJob.
+     * @param tagNames Names of the Tags to take out.
+     * @return The Tags taken out. A Tag that is not in this TagManager (e.g. when resuming a deletion that had
+     * already saved it as removed) is returned as a new Tag with the same name, which is equal to it.
+     */
+    synchronized ArrayList<Tag> detachTags(ArrayList<String> tagNames){
+        ArrayList<Tag> detached = new ArrayList<>();
+        for(String tagName : tagNames){
+            Tag toRemove = tagMap.remove(tagName);
+            if(toRemove == null){
+                detached.add(new Tag(tagName));
+                continue;
             }
+            toRemove.clearPostings();
+            detached.add(toRemove);
+            // update view
+            removeFromOrderedTags(toRemove);
+        }
+        queryCache.invalidate(tagNames);
+        return detached;
+    }
 
-            tagManagerView.updateTagList(new ArrayList<>(tagMap.values()));
-            // save files
-            configManager.updatePersistenceFiles();
+    /**
+     * Puts Tags taken out by a TagDeletionJob back into this TagManager, for the ImageFiles that could not be renamed
+     * and so still have them. Each Tag that some of those ImageFiles have gets them back in its postings, and goes
+     * back at the end of the list of Tags unless a Tag with its name has been added since.
+     * @param tags Tags that were taken out.
+     * @param keptBy ImageFiles that could not be renamed.
+     */
+    synchronized void reattachTags(ArrayList<Tag> tags, Collection<ImageFile> keptBy){
+        ArrayList<String> reattachedTagNames = new ArrayList<>();
+        for(Tag tag : tags){
+            // an ImageFile's own Tag is put back, which is the Tag taken out unless a deletion is being resumed
+            Tag kept = null;
+            ArrayList<ImageFile> images = new ArrayList<>();
+            for(ImageFile img : keptBy){
+                for(Tag imageTag : imageManager.getSnapshot().getTags(img)){
+                    if(imageTag.equals(tag)){
+                        kept = imageTag;
+                        images.add(img);
+                    }
+                }
+            }
+            if(kept == null){
+                continue;
+            }
+            kept.addImagesToTag(images);
+            if(tagMap.putIfAbsent(kept.getTagName(), kept) == null){
+                orderedTags.add(kept);
+                if(tagManagerView != null){
+                    tagManagerView.updateTagList(new ListChange<>(ListChange.Type.ADDED, orderedTags.size() - 1,
+                            kept));
+                }
+            }
+            reattachedTagNames.add(kept.getTagName());
         }
+        queryCache.invalidate(reattachedTagNames);
+    }
+
+    /**
+     * Saves all the persistence files of the program.
+     */
+    void updatePersistenceFiles(){
+        configManager.updatePersistenceFiles();
+    }
 
+    /**
+     * Removes a Tag from the display order of Tags, and tells the view which index it was removed from.
+     * @param removedTag Tag that was removed.
+     */
+    private void removeFromOrderedTags(Tag removedTag){
+        int index = orderedTags.indexOf(removedTag);
+        if(index >= 0){
+            orderedTags.remove(index);
+            if(tagManagerView != null){
+                tagManagerView.updateTagList(new ListChange<>(ListChange.Type.REMOVED, index, removedTag));
+            }
+        }
     }
 
     /**
@@ -190,8 +482,22 @@ public class TagManager {
      * @return All the Tags in this TagManager.
      */
     @SuppressWarnings("unused")
-    public ArrayList<Tag> getTagList(){
-        return new ArrayList<>(tagMap.values());
+    public synchronized ArrayList<Tag> getTagList(){
+        return new ArrayList<>(orderedTags);
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this TagManager's Tags take on the heap: the map and list of them,
+     * and each Tag with its name, but not their postings (see Tag.estimatePostingBytes).
+     * @return The estimated number of bytes of the Tags.
+     */
+    public synchronized long estimateTagBytes(){
+        long bytes = HeapSize.concurrentHashMap(tagMap.size()) + HeapSize.arrayList(orderedTags.size());
+        for(Tag tag : orderedTags){
+            // the map shares each Tag's name as its key
+            bytes += HeapSize.object(3, 0) + HeapSize.string(tag.getTagName());
+        }
+        return bytes;
     }
 
     /**
@@ -209,32 +515,42 @@ public class TagManager {
     }
 
     /**
-     * Saves the contents of this TagManager to a serialization files. Only tagged images need to be stored.
+     * Loads the contents of this TagManager from a serialization file. A file that is not empty but cannot be read is
+     * moved aside, and this TagManager keeps its Tags, so that saving does not overwrite it.
      * @param path Path of Serialization file.
      * @throws ClassNotFoundException ..
      */
     @SuppressWarnings("all")
     public void readFromFile(String path) throws ClassNotFoundException {
-
-        try {
-            InputStream file = new FileInputStream(path);
-            InputStream buffer = new BufferedInputStream(file);
-            ObjectInput input = new ObjectInputStream(buffer);
-            tagMap = (HashMap<String,Tag>) input.readObject();
-            input.close();
-
-        } catch (IOException ex) {
-
+        File file = new File(path);
+        try (ObjectInput input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            // older persistence files hold a HashMap
+            tagMap = new ConcurrentHashMap<>((Map<String,Tag>) input.readObject());
+            orderedTags = new ArrayList<>(tagMap.values());
+            queryCache.clear();
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            // an empty file was just created and has nothing to load
+            if(file.length() > 0){
+                ConfigurationManager.setAsideUnreadable(file, ex);
+            }
         }
     }
 
+    /**
+     * Returns the cache of TagQuery results of this TagManager's Tags.
+     * @return The QueryCache.
+     */
+    public QueryCache getQueryCache(){
+        return queryCache;
+    }
+
     /**
      * Sets the TagManagerView (View) for this TagManager (controller)
      * @param tagManagerView TagManagerView to set for this TagManager
      */
-    public void setView(TagManagerView tagManagerView){
+    public synchronized void setView(TagManagerView tagManagerView){
          this.tagManagerView = tagManagerView;
-         tagManagerView.updateTagList(new ArrayList<>(tagMap.values()));
+         tagManagerView.updateTagList(new ArrayList<>(orderedTags));
     }
 
 
@@ -1,6 +1,7 @@
 package tag;
 
 import image.ImageManagerView;
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.control.Button;
@@ -8,6 +9,7 @@ import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
+import utils.ListChange;
 
 
 //**************************************************************************************
@@ -39,8 +41,21 @@ public class TagManagerView implements EventHandler<ActionEvent>{
      * Button to delete currently selected Tag in program view.
      */
     private Button deleteTagButton = new Button("Delete Tag");
+    /**
+     * Button to rename the currently selected Tag, or merge the currently selected Tags, into the Tag named in the
+     * text field.
+     */
+    private Button mergeTagButton = new Button("Rename/Merge Into Tag");
 
     private Label label = new Label("Create Tag");
+    /**
+     * Shows how far the running tag deletion has got.
+     */
+    private Label deletionProgressLabel = new Label();
+    /**
+     * Shows how many images the last merge could not rename.
+     */
+    private Label mergeResultLabel = new Label();
     /**
      * TextField to create a Tag for a specified text input.
      */
@@ -97,10 +112,27 @@ public class TagManagerView implements EventHandler<ActionEvent>{
 //            }
 
             if(!tagsToDelete.isEmpty()){
-                tagManager.removeTags(tagsToDelete);
-                imageManagerView.updateCurrentlySelectedView();
+                // tags are deleted in the background; show progress, and redraw the selected image once done
+                tagManager.removeTags(tagsToDelete, this::showDeletionProgress);
             }
 
+        // event from mergeTagButton
+        }else if (eventsource.equals(mergeTagButton)){
+            ArrayList<String> tagsToMerge = tagListView.getCurrentlySelectedTags();
+            String targetTagName = textField.getText();
+
+            if(!tagsToMerge.isEmpty() && !targetTagName.trim().isEmpty()){
+                // images are renamed in the background; redraw the selected image once done
+                tagManager.mergeTagsInBackground(tagsToMerge, targetTagName, result -> Platform.runLater(() -> {
+                    int failed = result.getFailures().size();
+                    mergeResultLabel.setText(failed == 0 ? "" : failed + " images could not be renamed and "
+                            + "keep their tags");
+                    if(imageManagerView != null){
+                        imageManagerView.updateCurrentlySelectedView();
+                    }
+                }));
+                textField.clear();
+            }
         }
     }
 
@@ -114,10 +146,14 @@ public class TagManagerView implements EventHandler<ActionEvent>{
         hb.getChildren().addAll(label, textField);
         hb.setSpacing(12);
         GridPane.setConstraints(deleteTagButton, 0, 1);
+        GridPane.setConstraints(deletionProgressLabel, 1, 1);
+        GridPane.setConstraints(mergeTagButton, 0, 3);
+        GridPane.setConstraints(mergeResultLabel, 1, 3);
         gridPane.setHgap(12);
         gridPane.setVgap(12);
         GridPane.setConstraints(tagListView.getListView(), 0, 2);
-        gridPane.getChildren().addAll(hb, deleteTagButton, tagListView.getListView());
+        gridPane.getChildren().addAll(hb, deleteTagButton, deletionProgressLabel, tagListView.getListView(),
+                mergeTagButton, mergeResultLabel);
 
     }
 
@@ -126,6 +162,7 @@ public class TagManagerView implements EventHandler<ActionEvent>{
      */
     private void setupInputs(){
         deleteTagButton.setOnAction(this);
+        mergeTagButton.setOnAction(this);
         textField.setOnAction(this);
     }
 
@@ -142,9 +179,48 @@ public class TagManagerView implements EventHandler<ActionEvent>{
      * @param tagArrayList List of Tags to display in the program view.
      */
     void updateTagList(ArrayList<Tag> tagArrayList){
+        // the model can be changed from background threads, but the view can only be changed on the FX thread
+        if(!Platform.isFxApplicationThread()){
+            Platform.runLater(() -> updateTagList(tagArrayList));
+            return;
+        }
         tagListView.setItems(tagArrayList);
     }
 
+    /**
+     * Applies a single change of the list of Tags to the program view.
+     * @param change Change of the list of Tags to apply.
+     */
+    void updateTagList(ListChange<Tag> change){
+        if(!Platform.isFxApplicationThread()){
+            Platform.runLater(() -> updateTagList(change));
+            return;
+        }
+        tagListView.applyChange(change);
+    }
+
+    /**
+     * Shows how far a tag deletion has got. Is called from the thread running the deletion.
+     * @param done The number of images untagged so far.
+     * @param total The number of images to untag.
+     * @param failed The number of images that could not be renamed, and keep their tags.
+     * @param finished Whether the deletion has ended.
+     */
+    public void showDeletionProgress(int done, int total, int failed, boolean finished){
+        Platform.runLater(() -> {
+            if(finished){
+                deletionProgressLabel.setText(failed == 0 ? "" : failed + " images could not be renamed and keep "
+                        + "their tags");
+                if(imageManagerView != null){
+                    imageManagerView.updateCurrentlySelectedView();
+                }
+            }
+            else{
+                deletionProgressLabel.setText("Deleting tags: " + done + "/" + total + " images");
+            }
+        });
+    }
+
     /**
      * Get the Tag that is currently selected in the program view.
      * @return The Tag that is currently selected in the program view.
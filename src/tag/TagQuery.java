@@ -0,0 +1,399 @@
+package tag;
+
+import image.ImageFile;
+import image.ModelSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A TagQuery. A boolean query over Tags, such as "kids AND (beach OR sea) AND NOT work", that finds the ImageFiles
+ * matching it in a ModelSnapshot.
+ *
+ * Terms are Tag names (a leading @ is allowed). Operators are AND, OR and NOT (in any case, or written &amp;, | and !)
+ * and parentheses; NOT binds tightest, then AND, then OR. Two terms next to each other are ANDed. A Tag that does not
+ * exist matches no ImageFiles. The term * matches the ImageFiles with any Tag, so "NOT *" finds the untagged ones.
+ *
+ * Results are kept in the TagManager's QueryCache by the query's normalized form, so that the same query written
+ * another way ("sea | beach" for "beach OR sea") is found there too.
+ */
+public class TagQuery {
+    /**
+     * Kinds of node in a parsed query.
+     */
+    private enum Kind {TAG, ANY, AND, OR, NOT}
+
+    /**
+     * The kind of this node.
+     */
+    private Kind kind;
+    /**
+     * The Tag name, if this is a TAG node.
+     */
+    private String tagName;
+    /**
+     * The operands, if this is an AND, OR or NOT node.
+     */
+    private ArrayList<TagQuery> operands = new ArrayList<>();
+
+    /**
+     * Constructs a query node.
+     * @param kind The kind of node.
+     * @param tagName The Tag name, if this is a TAG node.
+     */
+    private TagQuery(Kind kind, String tagName){
+        this.kind = kind;
+        this.tagName = tagName;
+    }
+
+    /**
+     * Parses a query.
+     * @param query Query to parse.
+     * @return The parsed query.
+     * @throws IllegalArgumentException If the query is not well formed.
+     */
+    public static TagQuery parse(String query){
+        Parser parser = new Parser(tokenize(query));
+        TagQuery parsed = parser.parseOr();
+        if(parser.position < parser.tokens.size()){
+            throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.position) + "' in query");
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the ImageFiles in a snapshot that match this query.
+     * @param snapshot Snapshot of the model to search.
+     * @param tagManager TagManager to look up Tags in.
+     * @return The matching ImageFiles.
+     */
+    public ArrayList<ImageFile> evaluate(ModelSnapshot snapshot, TagManager tagManager){
+        QueryCache cache = tagManager.getQueryCache();
+        String key = normalize();
+        List<ImageFile> cached = cache.get(key, snapshot.getVersion());
+        if(cached != null){
+            return new ArrayList<>(cached);
+        }
+        long generation = cache.getGeneration();
+        List<ImageFile> result = Collections.unmodifiableList(new ArrayList<>(matches(snapshot, tagManager)));
+        Set<String> tagNames = new HashSet<>();
+        collectTagNames(tagNames);
+        cache.put(key, tagNames, isNegated(), result, snapshot.getVersion(), generation);
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns whether an ImageFile with the given Tags matches this query. Is used to keep the members of a saved
+     * view up to date one changed ImageFile at a time, without searching the whole snapshot.
+     * @param tags The Tags of the ImageFile.
+     * @return True iff the ImageFile matches.
+     */
+    public boolean matches(List<Tag> tags){
+        switch(kind){
+            case TAG:
+                for(Tag tag : tags){
+                    if(tag.getTagName().equals(tagName)){
+                        return true;
+                    }
+                }
+                return false;
+            case ANY:
+                return !tags.isEmpty();
+            case OR:
+                for(TagQuery operand : operands){
+                    if(operand.matches(tags)){
+                        return true;
+                    }
+                }
+                return false;
+            case AND:
+                for(TagQuery operand : operands){
+                    if(!operand.matches(tags)){
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return !operands.get(0).matches(tags);
+        }
+    }
+
+    /**
+     * Returns the normalized form of this query: ANDs in ANDs and ORs in ORs are flattened, their operands sorted and
+     * duplicates dropped, and double negations removed. Queries with the same normalized form match the same
+     * ImageFiles.
+     * @return The normalized query.
+     */
+    String normalize(){
+        switch(kind){
+            case TAG:
+                return tagName;
+            case ANY:
+                return QueryCache.ANY_TAG;
+            case NOT:
+                TagQuery operand = operands.get(0);
+                return operand.kind == Kind.NOT ? operand.operands.get(0).normalize() : "NOT " + operand.normalize();
+            default:
+                TreeSet<String> normalized = new TreeSet<>();
+                collectOperands(kind, normalized);
+                if(normalized.size() == 1){
+                    return normalized.first();
+                }
+                return "(" + String.join(" " + kind + " ", normalized) + ")";
+        }
+    }
+
+    /**
+     * Adds the normalized operands of this node to a set, looking into nested nodes of the same kind.
+     * @param parentKind Kind of the node being flattened (AND or OR).
+     * @param normalized Set to add the normalized operands to.
+     */
+    private void collectOperands(Kind parentKind, Set<String> normalized){
+        for(TagQuery operand : operands){
+            if(operand.kind == parentKind){
+                operand.collectOperands(parentKind, normalized);
+            }
+            else{
+                normalized.add(operand.normalize());
+            }
+        }
+    }
+
+    /**
+     * Adds the names of the Tags this query depends on to a set.
+     * @param tagNames Set to add the Tag names to.
+     */
+    private void collectTagNames(Set<String> tagNames){
+        if(kind == Kind.TAG){
+            tagNames.add(tagName);
+        }
+        else if(kind == Kind.ANY){
+            tagNames.add(QueryCache.ANY_TAG);
+        }
+        for(TagQuery operand : operands){
+            operand.collectTagNames(tagNames);
+        }
+    }
+
+    /**
+     * Returns whether this query has a NOT in it, so that its result depends on every image and not only on the
+     * images of its Tags.
+     * @return True iff the query has a NOT node.
+     */
+    private boolean isNegated(){
+        if(kind == Kind.NOT){
+            return true;
+        }
+        for(TagQuery operand : operands){
+            if(operand.isNegated()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the ImageFiles in a snapshot that match this node.
+     * @param snapshot Snapshot of the model to search.
+     * @param tagManager TagManager to look up Tags in.
+     * @return The matching ImageFiles, by identity.
+     */
+    private Set<ImageFile> matches(ModelSnapshot snapshot, TagManager tagManager){
+        Set<ImageFile> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        switch(kind){
+            case TAG:
+                Tag tag = tagManager.getTag(tagName);
+                if(tag != null){
+                    result.addAll(snapshot.getImagesWithTag(tag));
+                }
+                break;
+            case ANY:
+                for(Tag anyTag : tagManager.getTagList()){
+                    result.addAll(snapshot.getImagesWithTag(anyTag));
+                }
+                break;
+            case OR:
+                for(TagQuery operand : operands){
+                    result.addAll(operand.matches(snapshot, tagManager));
+                }
+                break;
+            case AND:
+                // ANDed TAG terms are intersected starting from the smallest postings list
+                ArrayList<Set<ImageFile>> sets = new ArrayList<>();
+                for(TagQuery operand : operands){
+                    sets.add(operand.matches(snapshot, tagManager));
+                }
+                sets.sort((a, b) -> Integer.compare(a.size(), b.size()));
+                result.addAll(sets.get(0));
+                for(int i = 1; i < sets.size() && !result.isEmpty(); i++){
+                    result.retainAll(sets.get(i));
+                }
+                break;
+            case NOT:
+                result.addAll(snapshot.getKnownImages());
+                result.removeAll(operands.get(0).matches(snapshot, tagManager));
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a string representation of this TagQuery, fully parenthesized.
+     * @return A string representation of this TagQuery.
+     */
+    public String toString(){
+        if(kind == Kind.TAG){
+            return tagName;
+        }
+        if(kind == Kind.ANY){
+            return "*";
+        }
+        if(kind == Kind.NOT){
+            return "NOT " + operands.get(0);
+        }
+        StringBuilder string = new StringBuilder("(");
+        for(int i = 0; i < operands.size(); i++){
+            if(i > 0){
+                string.append(" ").append(kind).append(" ");
+            }
+            string.append(operands.get(i));
+        }
+        return string.append(")").toString();
+    }
+
+    /**
+     * Splits a query into tokens: parentheses, operators and Tag names.
+     * @param query Query to split.
+     * @return The tokens of the query.
+     */
+    private static ArrayList<String> tokenize(String query){
+        ArrayList<String> tokens = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for(char c : query.toCharArray()){
+            if(Character.isWhitespace(c) || "()&|!".indexOf(c) >= 0){
+                if(term.length() > 0){
+                    tokens.add(term.toString());
+                    term.setLength(0);
+                }
+                if(!Character.isWhitespace(c)){
+                    tokens.add(String.valueOf(c));
+                }
+            }
+            else{
+                term.append(c);
+            }
+        }
+        if(term.length() > 0){
+            tokens.add(term.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * A recursive descent parser over the tokens of a query.
+     */
+    private static class Parser {
+        /**
+         * The tokens of the query.
+         */
+        private ArrayList<String> tokens;
+        /**
+         * The index of the next token to read.
+         */
+        private int position;
+
+        /**
+         * Constructs a Parser.
+         * @param tokens The tokens of the query.
+         */
+        private Parser(ArrayList<String> tokens){
+            this.tokens = tokens;
+        }
+
+        /**
+         * Parses terms joined by OR.
+         * @return The parsed node.
+         */
+        private TagQuery parseOr(){
+            TagQuery first = parseAnd();
+            if(!nextIs("OR", "|")){
+                return first;
+            }
+            TagQuery or = new TagQuery(Kind.OR, null);
+            or.operands.add(first);
+            while(nextIs("OR", "|")){
+                position++;
+                or.operands.add(parseAnd());
+            }
+            return or;
+        }
+
+        /**
+         * Parses terms joined by AND (or just written next to each other).
+         * @return The parsed node.
+         */
+        private TagQuery parseAnd(){
+            TagQuery first = parseNot();
+            TagQuery and = null;
+            while(position < tokens.size() && !nextIs("OR", "|") && !tokens.get(position).equals(")")){
+                if(nextIs("AND", "&")){
+                    position++;
+                }
+                if(and == null){
+                    and = new TagQuery(Kind.AND, null);
+                    and.operands.add(first);
+                }
+                and.operands.add(parseNot());
+            }
+            return and == null ? first : and;
+        }
+
+        /**
+         * Parses a term, a negated term, or a parenthesized query.
+         * @return The parsed node.
+         */
+        private TagQuery parseNot(){
+            if(position >= tokens.size()){
+                throw new IllegalArgumentException("Query ends too early");
+            }
+            String token = tokens.get(position++);
+            if(token.equalsIgnoreCase("NOT") || token.equals("!")){
+                TagQuery not = new TagQuery(Kind.NOT, null);
+                not.operands.add(parseNot());
+                return not;
+            }
+            if(token.equals("(")){
+                TagQuery inner = parseOr();
+                if(position >= tokens.size() || !tokens.get(position).equals(")")){
+                    throw new IllegalArgumentException("Missing ')' in query");
+                }
+                position++;
+                return inner;
+            }
+            if(token.equals(")") || token.equalsIgnoreCase("AND") || token.equals("&")
+                    || token.equalsIgnoreCase("OR") || token.equals("|")){
+                throw new IllegalArgumentException("Unexpected '" + token + "' in query");
+            }
+            if(token.equals("*")){
+                return new TagQuery(Kind.ANY, null);
+            }
+            return new TagQuery(Kind.TAG, token.startsWith("@") ? token.substring(1) : token);
+        }
+
+        /**
+         * Returns whether the next token is an operator.
+         * @param word The operator as a word.
+         * @param symbol The operator as a symbol.
+         * @return True iff the next token is the operator.
+         */
+        private boolean nextIs(String word, String symbol){
+            return position < tokens.size()
+                    && (tokens.get(position).equalsIgnoreCase(word) || tokens.get(position).equals(symbol));
+        }
+    }
+}
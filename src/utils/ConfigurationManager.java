@@ -18,6 +18,22 @@ import java.io.*;
  * A ConfigurationManager. Responsible for updating ConfigurationFiles (persistence for the Manager classes)
  */
 public class ConfigurationManager {
+    /**
+     * Latencies of saving the persistence files.
+     */
+    private static final Metrics.Histogram SAVE_LATENCY = Metrics.getInstance().histogram("persistence.save");
+    /**
+     * The number of persistence files that failed to save.
+     */
+    private static final Metrics.Counter SAVE_FAILURES = Metrics.getInstance().counter("persistence.save.failures");
+    /**
+     * The number of bytes of persistence files saved.
+     */
+    private static final Metrics.Counter SAVED_BYTES = Metrics.getInstance().counter("persistence.save.bytes");
+    /**
+     * Directory the persistence files are kept in, or null for the working directory.
+     */
+    private File directory;
     /**
      * Persistence file for ImageManager
      */
@@ -39,6 +55,16 @@ public class ConfigurationManager {
      * Constructs a new ConfigurationManager. loads
      */
     public ConfigurationManager(){
+        this(null);
+    }
+
+    /**
+     * Constructs a new ConfigurationManager keeping its persistence files in a given directory, which is created if
+     * it does not exist.
+     * @param directory Directory for the persistence files, or null for the working directory.
+     */
+    public ConfigurationManager(File directory){
+        this.directory = directory;
         // if configuration don't exist/have been deleted, create config files:
         try{
             openConfigurationFiles();
@@ -73,8 +99,11 @@ public class ConfigurationManager {
      */
     @SuppressWarnings("all")
     private void openConfigurationFiles() throws IOException{
-        serializedImages = new File("serializedimages.ser");
-        serializedTags = new File("serializedtags.ser");
+        if(directory != null && !directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Failed to create " + directory);
+        }
+        serializedImages = new File(directory, "serializedimages.ser");
+        serializedTags = new File(directory, "serializedtags.ser");
 
         if(!serializedImages.exists()){
             serializedImages.createNewFile();
@@ -86,21 +115,71 @@ public class ConfigurationManager {
     }
 
     /**
-     * Updates all the persistence files for the program.
+     * Moves a persistence file that could not be read out of the way, so that the next save starts a new file
+     * instead of overwriting the one holding the user's tags.
+     * @param file The persistence file.
+     * @param cause Why it could not be read.
+     */
+    public static void setAsideUnreadable(File file, Exception cause){
+        File setAside = new File(file.getPath() + ".unreadable");
+        for(int i = 1; setAside.exists(); i++){
+            setAside = new File(file.getPath() + ".unreadable." + i);
+        }
+        if(file.renameTo(setAside)){
+            System.out.println("Could not read " + file + " (" + cause + "); it was moved to " + setAside);
+        }
+        else{
+            System.out.println("Could not read " + file + " (" + cause + ") or move it aside; copy it somewhere "
+                    + "safe before the program saves over it");
+        }
+    }
+
+    /**
+     * Returns the persistence file for ImageManager.
+     * @return The persistence file for ImageManager.
+     */
+    public File getSerializedImagesFile(){
+        return serializedImages;
+    }
+
+    /**
+     * Returns the persistence file for TagManager.
+     * @return The persistence file for TagManager.
+     */
+    public File getSerializedTagsFile(){
+        return serializedTags;
+    }
+
+    /**
+     * Updates all the persistence files for the program. Saves from different threads happen one at a time.
      */
-    public void updatePersistenceFiles(){
+    public synchronized void updatePersistenceFiles(){
+        TraceEvents.PersistenceSaveEvent event = new TraceEvents.PersistenceSaveEvent();
+        event.begin();
+        long start = System.nanoTime();
+        boolean saved = true;
         try {
             imageManager.saveToFile(serializedImages.getPath());
         } catch (IOException e){
+            saved = false;
+            SAVE_FAILURES.increment();
             System.out.println("Fatal Error in saving persistence files: ImageManager failed to save");
         }
 
         try{
             tagManager.saveToFile(serializedTags.getPath());
         } catch (IOException e){
+            saved = false;
+            SAVE_FAILURES.increment();
             System.out.println("Fatal Error in saving persistence files: TagManager failed to save");
 
         }
+        SAVE_LATENCY.recordSince(start);
+        long imageBytes = serializedImages.length();
+        long tagBytes = serializedTags.length();
+        SAVED_BYTES.add(imageBytes + tagBytes);
+        event.commit(serializedImages.getPath(), imageManager.getSnapshot().getKnownImages().size(), imageBytes,
+                tagBytes, saved);
     }
 
 }
@@ -12,6 +12,14 @@ import java.util.ArrayList;
  * A FileManager. Responsible for loading Files from directories into the program.
  */
 public class FileManager {
+    /**
+     * Latencies of scanning a directory and loading its images into the ImageManager.
+     */
+    private static final Metrics.Histogram SCAN_LATENCY = Metrics.getInstance().histogram("scan.directory");
+    /**
+     * The number of image files found by scans.
+     */
+    private static final Metrics.Counter SCANNED_FILES = Metrics.getInstance().counter("scan.files");
     /**
      * The collaborator ImageManager for this FileManager.
      */
@@ -85,7 +93,18 @@ public class FileManager {
      * @param fileToLoadFrom File/Directory to load image files from.
      * @param listAllUnderDirectory Whether or not to load all image files under a directory.
      */
-    void loadImagesToImageManager(File fileToLoadFrom, boolean listAllUnderDirectory){
+    public void loadImagesToImageManager(File fileToLoadFrom, boolean listAllUnderDirectory){
+        loadImagesToImageManager(fileToLoadFrom, listAllUnderDirectory, false);
+    }
+
+    /**
+     * Loads image files in or under a specified directory into this FileManager's collaborator ImageManager.
+     * @param fileToLoadFrom File/Directory to load image files from.
+     * @param listAllUnderDirectory Whether or not to load all image files under a directory.
+     * @param keepManaged True to add the image files to the ones the ImageManager already manages, false to
+     *                    replace those.
+     */
+    public void loadImagesToImageManager(File fileToLoadFrom, boolean listAllUnderDirectory, boolean keepManaged){
 
         FilenameFilter filter = new FilenameFilter(){
             private String[] imageExtensions = new String[]{"gif","png","bmp","JPG","jpeg","jpg"};
@@ -103,6 +122,9 @@ public class FileManager {
         if(imageManager!=null){
             ArrayList<File> imageFiles;
 
+            TraceEvents.DirectoryScanEvent event = new TraceEvents.DirectoryScanEvent();
+            event.begin();
+            long start = System.nanoTime();
             if(listAllUnderDirectory){
                 imageFiles = listFilesUnderDirectory(fileToLoadFrom,filter);
             }
@@ -111,7 +133,10 @@ public class FileManager {
                 imageFiles = listFilesInDirectory(fileToLoadFrom,filter);
             }
 
-            imageManager.addImageFiles(imageFiles);
+            imageManager.addImageFiles(imageFiles, keepManaged);
+            SCAN_LATENCY.recordSince(start);
+            SCANNED_FILES.add(imageFiles.size());
+            event.commit(fileToLoadFrom.getPath(), listAllUnderDirectory, imageFiles.size());
         }
     }
 
@@ -0,0 +1,56 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A FileOperation. A single I/O-bound operation on a file (such as a rename or a move), to be run by a
+ * FileOperationRuntime.
+ */
+public class FileOperation {
+    /**
+     * The work done by a FileOperation.
+     */
+    public interface Action {
+        /**
+         * Does the work of the operation.
+         * @throws IOException ..
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * The file the operation works on. Decides which filesystem's concurrency limit the operation counts against.
+     */
+    private File file;
+    /**
+     * The work done by the operation.
+     */
+    private Action action;
+
+    /**
+     * Constructs a FileOperation.
+     * @param file The file the operation works on.
+     * @param action The work done by the operation.
+     */
+    public FileOperation(File file, Action action){
+        this.file = file;
+        this.action = action;
+    }
+
+    /**
+     * Returns the file this operation works on.
+     * @return The file this operation works on.
+     */
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * Does the work of this operation.
+     * @throws IOException ..
+     */
+    void run() throws IOException{
+        action.run();
+    }
+}
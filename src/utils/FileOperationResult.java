@@ -0,0 +1,78 @@
+package utils;
+
+import java.io.File;
+
+/**
+ * A FileOperationResult. The outcome of one FileOperation run by a FileOperationRuntime.
+ */
+public class FileOperationResult {
+    /**
+     * The file the operation worked on.
+     */
+    private File file;
+    /**
+     * Whether the operation succeeded.
+     */
+    private boolean succeeded;
+    /**
+     * Why the operation failed, or null if it succeeded.
+     */
+    private String error;
+    /**
+     * How long the operation took to run (not counting time spent waiting to run), in nanoseconds.
+     */
+    private long elapsedNanos;
+
+    /**
+     * Constructs a FileOperationResult.
+     * @param file The file the operation worked on.
+     * @param error Why the operation failed, or null if it succeeded.
+     * @param elapsedNanos How long the operation took to run, in nanoseconds.
+     */
+    FileOperationResult(File file, String error, long elapsedNanos){
+        this.file = file;
+        this.succeeded = error == null;
+        this.error = error;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the file the operation worked on.
+     * @return The file the operation worked on.
+     */
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * Returns whether the operation succeeded.
+     * @return True iff the operation succeeded.
+     */
+    public boolean isSucceeded(){
+        return succeeded;
+    }
+
+    /**
+     * Returns why the operation failed.
+     * @return Why the operation failed, or null if it succeeded.
+     */
+    public String getError(){
+        return error;
+    }
+
+    /**
+     * Returns how long the operation took to run.
+     * @return How long the operation took to run, in nanoseconds.
+     */
+    public long getElapsedNanos(){
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns a string representation of this FileOperationResult.
+     * @return A string representation of this FileOperationResult.
+     */
+    public String toString(){
+        return file + (succeeded ? " - OK" : " - Failed: " + error);
+    }
+}
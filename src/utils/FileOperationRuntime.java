@@ -0,0 +1,274 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FileOperationRuntime. Runs bulk file operations (renames and moves of many ImageFiles) concurrently.
+ *
+ * These operations spend nearly all their time waiting on the filesystem, which on a network mount can take tens of
+ * milliseconds per rename, so they are run one per thread rather than on a small pool sized for the CPU. On a JDK
+ * with virtual threads (21 and later) every operation gets its own virtual thread; on older JDKs each gets a daemon
+ * platform thread, from a pool per filesystem (FileStore) no bigger than its cap. Either way, the number of operations
+ * running at once on one filesystem is capped, so that a bulk job cannot flood a slow mount, while operations on other
+ * filesystems carry on: each operation waits for its filesystem's permit on its own thread, never on the caller's.
+ * The cap bounds the throughput too: 2000 renames of 20 ms each on one filesystem take at least 2000 * 20 / 32 =
+ * 1250 ms with the default cap of 32.
+ *
+ * The executor of each filesystem is made the first time it is used and kept for the life of the runtime; pooled
+ * platform threads that have been idle for a minute exit.
+ *
+ * Operations should not block inside a synchronized block: before JDK 24 a virtual thread that does holds on to its
+ * carrier thread. ImageFiles are locked with a ReentrantLock while they are renamed for this reason.
+ *
+ * On JDK 19 and 20, Executors.newVirtualThreadPerTaskExecutor exists but fails unless preview features are enabled.
+ * That is found out once, when the class is loaded: the reason is printed and counted (metric
+ * fileops.virtual.unavailable), can be read with getVirtualThreadFailure(), and platform threads are used.
+ */
+public class FileOperationRuntime {
+    /**
+     * The default number of operations that may run at once on one filesystem. Can be set with the
+     * "fileops.concurrency" system property.
+     */
+    private static final int DEFAULT_CONCURRENCY = Integer.getInteger("fileops.concurrency", 32);
+    /**
+     * How long a pooled platform thread may be idle before it exits, in seconds.
+     */
+    private static final long IDLE_SECONDS = 60;
+    /**
+     * Why virtual threads could not be used although this JDK has them, or null.
+     */
+    private static String virtualThreadFailure;
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor, or null if this JDK has no virtual threads or they cannot be used.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+    /**
+     * Singleton instance for global access to a FileOperationRuntime.
+     */
+    private static final FileOperationRuntime instance = new FileOperationRuntime(DEFAULT_CONCURRENCY);
+
+    /**
+     * The number of operations that may run at once on one filesystem.
+     */
+    private int concurrencyPerStore;
+    /**
+     * The permits of each filesystem, limiting how many operations run on it at once.
+     */
+    private ConcurrentHashMap<FileStore,Semaphore> storeLimits = new ConcurrentHashMap<>();
+    /**
+     * The filesystem each directory is on, since looking it up is itself a (possibly slow) filesystem call.
+     */
+    private ConcurrentHashMap<Path,FileStore> directoryStores = new ConcurrentHashMap<>();
+    /**
+     * Limits operations on files whose filesystem could not be found.
+     */
+    private Semaphore unknownStoreLimit;
+    /**
+     * The executor of each filesystem, by its permits, so that operations waiting on a slow filesystem never hold up
+     * the others.
+     */
+    private ConcurrentHashMap<Semaphore,ExecutorService> executors = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a FileOperationRuntime.
+     * @param concurrencyPerStore The number of operations that may run at once on one filesystem.
+     */
+    public FileOperationRuntime(int concurrencyPerStore){
+        this.concurrencyPerStore = Math.max(1, concurrencyPerStore);
+        this.unknownStoreLimit = new Semaphore(this.concurrencyPerStore);
+    }
+
+    /**
+     * Returns the singleton instance of the FileOperationRuntime class.
+     * @return The singleton instance of the FileOperationRuntime class.
+     */
+    public static FileOperationRuntime getInstance(){
+        return instance;
+    }
+
+    /**
+     * Returns whether operations are run on virtual threads.
+     * @return True iff this JDK has virtual threads and they can be used.
+     */
+    public static boolean usesVirtualThreads(){
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Returns why virtual threads are not used although this JDK has them.
+     * @return The reason, or null if virtual threads are used or this JDK has none.
+     */
+    public static String getVirtualThreadFailure(){
+        return virtualThreadFailure;
+    }
+
+    /**
+     * Returns the number of operations that may run at once on one filesystem.
+     * @return The concurrency limit per filesystem.
+     */
+    public int getConcurrencyPerStore(){
+        return concurrencyPerStore;
+    }
+
+    /**
+     * Runs file operations concurrently and waits for all of them to finish. An operation that fails does not stop
+     * the others. If the calling thread is interrupted, operations that have not started yet are not run.
+     * @param operations Operations to run.
+     * @return The result of each operation, in the same order as the operations.
+     */
+    public ArrayList<FileOperationResult> run(List<FileOperation> operations){
+        ArrayList<Future<FileOperationResult>> running = new ArrayList<>(operations.size());
+        for(FileOperation operation : operations){
+            if(Thread.currentThread().isInterrupted()){
+                break;
+            }
+            Semaphore limit = limitFor(operation.getFile());
+            ExecutorService executor = executors.computeIfAbsent(limit, l -> newExecutor());
+            // the permit is taken by the task, so the caller never waits on one filesystem to submit the rest
+            running.add(executor.submit(() -> {
+                limit.acquire();
+                try{
+                    return perform(operation);
+                }
+                finally{
+                    limit.release();
+                }
+            }));
+        }
+
+        ArrayList<FileOperationResult> results = new ArrayList<>(operations.size());
+        boolean interrupted = false;
+        for(int i = 0; i < operations.size(); i++){
+            File file = operations.get(i).getFile();
+            if(i >= running.size() || running.get(i).isCancelled()){
+                results.add(new FileOperationResult(file, "Not started: interrupted", 0));
+                continue;
+            }
+            if(interrupted && !running.get(i).isDone()){
+                results.add(new FileOperationResult(file, "Not finished: interrupted", 0));
+                continue;
+            }
+            try{
+                results.add(running.get(i).get());
+            }catch (InterruptedException e){
+                // the operations already running carry on, but those still waiting are not run
+                interrupted = true;
+                for(int j = i + 1; j < running.size(); j++){
+                    running.get(j).cancel(false);
+                }
+                results.add(new FileOperationResult(file, "Not finished: interrupted", 0));
+            }catch (ExecutionException e){
+                results.add(new FileOperationResult(file, String.valueOf(e.getCause()), 0));
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * Runs a single operation, timing it and catching its failure.
+     * @param operation Operation to run.
+     * @return The result of the operation.
+     */
+    private static FileOperationResult perform(FileOperation operation){
+        long start = System.nanoTime();
+        String error = null;
+        try{
+            operation.run();
+        }catch (IOException | RuntimeException e){
+            error = e.toString();
+        }
+        return new FileOperationResult(operation.getFile(), error, System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the permits of the filesystem a file is on.
+     * @param file File to get the permits for.
+     * @return The permits limiting operations on the file's filesystem.
+     */
+    private Semaphore limitFor(File file){
+        File directory = file == null ? null : file.getAbsoluteFile().getParentFile();
+        if(directory == null){
+            return unknownStoreLimit;
+        }
+        FileStore store = directoryStores.get(directory.toPath());
+        if(store == null){
+            try{
+                store = Files.getFileStore(directory.toPath());
+            }catch (IOException e){
+                return unknownStoreLimit;
+            }
+            directoryStores.putIfAbsent(directory.toPath(), store);
+        }
+        return storeLimits.computeIfAbsent(store, s -> new Semaphore(concurrencyPerStore));
+    }
+
+    /**
+     * Returns a new executor for the operations on one filesystem: one that runs each task on its own virtual thread
+     * if this JDK has them, otherwise a pool of as many daemon platform threads as the filesystem has permits, so that
+     * a huge job never has more platform threads than permits.
+     * @return A new executor.
+     */
+    private ExecutorService newExecutor(){
+        if(NEW_VIRTUAL_THREAD_EXECUTOR != null){
+            try{
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            }catch (ReflectiveOperationException e){
+                // it worked when the class was loaded, so this is not a JDK that lacks them
+                throw new IllegalStateException("Failed to start virtual threads", e);
+            }
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrencyPerStore, concurrencyPerStore, IDLE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "File operation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor, which only exists on JDK 21 and later (and on 19 and 20,
+     * where it only works with preview features enabled), and checks that it works.
+     * @return The method, or null if this JDK has no virtual threads or they cannot be used.
+     */
+    private static Method findVirtualThreadExecutor(){
+        Method method;
+        try{
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }catch (NoSuchMethodException e){
+            return null;
+        }
+        try{
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        }catch (ReflectiveOperationException | RuntimeException e){
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+            virtualThreadFailure = String.valueOf(cause);
+            Metrics.getInstance().counter("fileops.virtual.unavailable").increment();
+            System.out.println("Virtual threads cannot be used (" + virtualThreadFailure + "); file operations run "
+                    + "on platform threads");
+            return null;
+        }
+    }
+}
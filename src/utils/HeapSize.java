@@ -0,0 +1,182 @@
+package utils;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.VMOption;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * HeapSize. Estimates of how many bytes objects take on the heap of this JVM, for the MemoryReport.
+ *
+ * The estimates follow the object layout of HotSpot: an object header, then its fields, padded to a multiple of 8
+ * bytes; an array also has a length in its header. References and class pointers take 4 bytes with compressed oops
+ * (the default for heaps under 32 GB) and 8 bytes without, which is read from the running JVM. Field packing is not
+ * modelled exactly, so an object can be estimated a few bytes over its real size, but never by more than its padding.
+ */
+public final class HeapSize {
+    /**
+     * Every object is padded to a multiple of this many bytes.
+     */
+    private static final int ALIGNMENT = 8;
+    /**
+     * Whether references take 4 bytes.
+     */
+    private static final boolean COMPRESSED_OOPS = isEnabled("UseCompressedOops");
+    /**
+     * The number of bytes of a reference.
+     */
+    public static final int REFERENCE = COMPRESSED_OOPS ? 4 : 8;
+    /**
+     * The number of bytes of an object's header: a mark word and a class pointer.
+     */
+    public static final int HEADER = isEnabled("UseCompressedClassPointers") ? 12 : 16;
+    /**
+     * The number of bytes of an array's header: an object header and the array's length, padded so the elements
+     * of a long or reference array are aligned.
+     */
+    public static final int ARRAY_HEADER = align(HEADER + 4);
+
+    /**
+     * Returns the number of bytes of an object, with its padding.
+     * @param references The number of reference fields of the object (including those of its superclasses).
+     * @param primitiveBytes The number of bytes of its primitive fields.
+     * @return The number of bytes the object takes.
+     */
+    public static long object(int references, int primitiveBytes){
+        return align((long) HEADER + (long) references * REFERENCE + primitiveBytes);
+    }
+
+    /**
+     * Returns the number of bytes of an array of primitives.
+     * @param length The length of the array.
+     * @param elementBytes The number of bytes of each element.
+     * @return The number of bytes the array takes.
+     */
+    public static long array(int length, int elementBytes){
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    /**
+     * Returns the number of bytes of an array of references.
+     * @param length The length of the array.
+     * @return The number of bytes the array takes (not counting the objects it refers to).
+     */
+    public static long referenceArray(int length){
+        return array(length, REFERENCE);
+    }
+
+    /**
+     * Returns the number of bytes of a String and its characters. Strings of only Latin-1 characters are stored
+     * with one byte per character, others with two.
+     * @param string The string, or null.
+     * @return The number of bytes the string takes (0 for null).
+     */
+    public static long string(String string){
+        if(string == null){
+            return 0;
+        }
+        boolean latin1 = true;
+        for(int i = 0; i < string.length() && latin1; i++){
+            latin1 = string.charAt(i) < 256;
+        }
+        // a String has its byte array, an int hash, a byte coder and a boolean hashIsZero
+        return object(1, 6) + array(string.length(), latin1 ? 1 : 2);
+    }
+
+    /**
+     * Returns the number of bytes of an ArrayList and its array, not counting the elements.
+     * @param capacity The length of the list's array (at least its size).
+     * @return The number of bytes the list takes.
+     */
+    public static long arrayList(int capacity){
+        // an ArrayList has its array, an int size and the int modCount of AbstractList
+        return object(1, 8) + (capacity == 0 ? 0 : referenceArray(capacity));
+    }
+
+    /**
+     * Returns the number of bytes of a HashMap (or a HashSet's map) and its table, not counting the keys and values.
+     * @param size The number of entries.
+     * @return The number of bytes the map takes.
+     */
+    public static long hashMap(int size){
+        // a node has an int hash and references to its key, value and next node
+        return object(6, 16) + referenceArray(tableLength(size)) + (long) size * object(3, 4);
+    }
+
+    /**
+     * Returns the number of bytes of a ConcurrentHashMap and its table, not counting the keys and values.
+     * @param size The number of entries.
+     * @return The number of bytes the map takes.
+     */
+    public static long concurrentHashMap(int size){
+        // laid out like a HashMap, with a few more counters
+        return object(7, 20) + referenceArray(tableLength(size)) + (long) size * object(3, 4);
+    }
+
+    /**
+     * Returns the number of bytes of an IdentityHashMap and its table, not counting the keys and values. Keys and
+     * values are stored next to each other in one array, with no entry objects, which is kept at least a third
+     * empty.
+     * @param size The number of entries.
+     * @return The number of bytes the map takes.
+     */
+    public static long identityHashMap(int size){
+        int length = 64;
+        while(length < 3L * size){
+            length *= 2;
+        }
+        return object(4, 8) + referenceArray(length);
+    }
+
+    /**
+     * Returns the length of the table of a hash map grown to a given size by its default load factor of 3/4.
+     * @param size The number of entries.
+     * @return The length of the table.
+     */
+    private static int tableLength(int size){
+        int length = 16;
+        while(length * 3L / 4 < size){
+            length *= 2;
+        }
+        return length;
+    }
+
+    /**
+     * Rounds a number of bytes up to the alignment of objects.
+     * @param bytes Number of bytes.
+     * @return The number of bytes padded to the alignment.
+     */
+    private static long align(long bytes){
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Rounds a number of bytes up to the alignment of objects.
+     * @param bytes Number of bytes.
+     * @return The number of bytes padded to the alignment.
+     */
+    private static int align(int bytes){
+        return (int) align((long) bytes);
+    }
+
+    /**
+     * Returns whether a boolean option of the JVM is on.
+     * @param option Name of the option.
+     * @return True iff the option is on, or cannot be read (it is on by default on 64-bit JVMs with small heaps).
+     */
+    private static boolean isEnabled(String option){
+        try{
+            HotSpotDiagnosticMXBean diagnostics =
+                    ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            VMOption value = diagnostics.getVMOption(option);
+            return Boolean.parseBoolean(value.getValue());
+        }catch (RuntimeException e){
+            return true;
+        }
+    }
+
+    /**
+     * HeapSize only holds static methods.
+     */
+    private HeapSize(){}
+}
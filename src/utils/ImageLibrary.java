@@ -0,0 +1,364 @@
+package utils;
+
+import image.ImageFile;
+import image.ImageManager;
+import image.ModelSnapshot;
+import tag.Tag;
+import tag.TagManager;
+import tag.TagQuery;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * An ImageLibrary. Manages images under several independent root directories (typically on different disks), as
+ * one Shard per root.
+ *
+ * Each Shard has its own ImageManager, TagManager and FileOperationRuntime, and keeps its own persistence files in a
+ * directory inside its root, so shards never wait on each other's locks, saves or disks. Scans, queries and saves
+ * run on every shard at once and their results are merged in the order the roots were given.
+ *
+ * An ImageLibrary with no roots has a single Shard that keeps its persistence files in the working directory, as
+ * the GUI does, and holds images from anywhere.
+ */
+public class ImageLibrary {
+    /**
+     * The directory, inside each root, that a Shard keeps its persistence files in.
+     */
+    static final String SHARD_DIRECTORY = ".imagetags";
+
+    /**
+     * The shards of this library, in the order of their roots.
+     */
+    private ArrayList<Shard> shards = new ArrayList<>();
+    /**
+     * Runs work on every shard but one at once; the thread asking for the work runs the last shard itself. Has
+     * enough threads for every processor to be fanning out at the same time.
+     */
+    private ExecutorService shardExecutor;
+
+    /**
+     * The images under one root directory, with their own managers and persistence files.
+     */
+    public static class Shard {
+        /**
+         * The root directory of this shard, or null if it holds images from anywhere.
+         */
+        private File root;
+        /**
+         * ConfigurationManager saving this shard's persistence files.
+         */
+        private ConfigurationManager configurationManager;
+        /**
+         * FileManager loading images into this shard.
+         */
+        private FileManager fileManager;
+        /**
+         * ImageManager managing this shard's images.
+         */
+        private ImageManager imageManager;
+        /**
+         * TagManager managing this shard's Tags.
+         */
+        private TagManager tagManager;
+
+        /**
+         * Constructs a Shard, loading its persistence files.
+         * @param root The root directory of the shard, or null for a shard kept in the working directory.
+         */
+        private Shard(File root){
+            this.root = root;
+            configurationManager = new ConfigurationManager(root == null ? null : new File(root, SHARD_DIRECTORY));
+            fileManager = new FileManager();
+            imageManager = new ImageManager(configurationManager.getSerializedImagesFile().getPath());
+            tagManager = new TagManager(configurationManager.getSerializedTagsFile().getPath());
+            imageManager.setFileOperationRuntime(
+                    new FileOperationRuntime(FileOperationRuntime.getInstance().getConcurrencyPerStore()));
+
+            imageManager.setTagManager(tagManager);
+            fileManager.setImageManager(imageManager);
+            configurationManager.setTagManager(tagManager);
+            configurationManager.setImageManager(imageManager);
+        }
+
+        /**
+         * Returns the root directory of this shard.
+         * @return The root directory, or null if this shard holds images from anywhere.
+         */
+        public File getRoot(){
+            return root;
+        }
+
+        /**
+         * Returns the ImageManager managing this shard's images.
+         * @return The ImageManager of this shard.
+         */
+        public ImageManager getImageManager(){
+            return imageManager;
+        }
+
+        /**
+         * Returns the TagManager managing this shard's Tags.
+         * @return The TagManager of this shard.
+         */
+        public TagManager getTagManager(){
+            return tagManager;
+        }
+
+        /**
+         * Returns the ConfigurationManager saving this shard's persistence files.
+         * @return The ConfigurationManager of this shard.
+         */
+        public ConfigurationManager getConfigurationManager(){
+            return configurationManager;
+        }
+
+        /**
+         * Returns whether a file is under this shard's root.
+         * @param file File to check.
+         * @return True iff the file is under the root (always true for a shard with no root).
+         */
+        boolean contains(File file){
+            return root == null || normalize(file).startsWith(normalize(root));
+        }
+    }
+
+    /**
+     * The images in one Shard that match a query.
+     */
+    public static class ShardMatches {
+        /**
+         * The Shard searched.
+         */
+        private Shard shard;
+        /**
+         * The snapshot of the shard that was searched.
+         */
+        private ModelSnapshot snapshot;
+        /**
+         * The matching images.
+         */
+        private ArrayList<ImageFile> images;
+
+        /**
+         * Constructs a ShardMatches.
+         * @param shard The Shard searched.
+         * @param snapshot The snapshot of the shard that was searched.
+         * @param images The matching images.
+         */
+        private ShardMatches(Shard shard, ModelSnapshot snapshot, ArrayList<ImageFile> images){
+            this.shard = shard;
+            this.snapshot = snapshot;
+            this.images = images;
+        }
+
+        /**
+         * Returns the Shard searched.
+         * @return The Shard searched.
+         */
+        public Shard getShard(){
+            return shard;
+        }
+
+        /**
+         * Returns the snapshot that was searched, to read the matching images' files and Tags from.
+         * @return The snapshot that was searched.
+         */
+        public ModelSnapshot getSnapshot(){
+            return snapshot;
+        }
+
+        /**
+         * Returns the matching images.
+         * @return The matching images.
+         */
+        public ArrayList<ImageFile> getImages(){
+            return images;
+        }
+    }
+
+    /**
+     * Constructs an ImageLibrary, loading every shard's persistence files at once.
+     * @param roots The root directory of each shard; none for a single shard kept in the working directory.
+     */
+    public ImageLibrary(List<File> roots){
+        int threads = Math.max(1, (roots.size() - 1) * Runtime.getRuntime().availableProcessors());
+        shardExecutor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "Library shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ArrayList<Callable<Shard>> loads = new ArrayList<>();
+        if(roots.isEmpty()){
+            loads.add(() -> new Shard(null));
+        }
+        for(File root : roots){
+            loads.add(() -> new Shard(root));
+        }
+        shards.addAll(runAll(loads));
+    }
+
+    /**
+     * Returns the shards of this library, in the order of their roots.
+     * @return The shards of this library.
+     */
+    public ArrayList<Shard> getShards(){
+        return new ArrayList<>(shards);
+    }
+
+    /**
+     * Returns the Shard a file belongs to: the one with the deepest root the file is under.
+     * @param file File to find the Shard of.
+     * @return The Shard of the file, or null if it is under none of the roots.
+     */
+    public Shard getShard(File file){
+        Shard found = null;
+        for(Shard shard : shards){
+            if(shard.contains(file) && (found == null || found.root == null
+                    || (shard.root != null && normalize(shard.root).startsWith(normalize(found.root))))){
+                found = shard;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the image held for a file, by the Shard the file belongs to.
+     * @param file File of the image.
+     * @return The image, or null if no Shard manages or has tagged it.
+     */
+    public ImageFile getImage(File file){
+        Shard shard = getShard(file);
+        return shard == null ? null : shard.imageManager.getImage(file);
+    }
+
+    /**
+     * Scans every shard's root for images, all at once. Shards with no root are left as they are.
+     * @param recursive True to scan everything under each root, false for only the images directly in it.
+     */
+    public void scan(boolean recursive){
+        forEachShard(shard -> {
+            if(shard.root != null){
+                shard.fileManager.loadImagesToImageManager(shard.root, recursive);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Finds the images matching a query in every shard at once.
+     * @param query Query to evaluate.
+     * @return The matches in each shard, in the order of the shards.
+     */
+    public ArrayList<ShardMatches> query(TagQuery query){
+        return forEachShard(shard -> {
+            ModelSnapshot snapshot = shard.imageManager.getSnapshot();
+            return new ShardMatches(shard, snapshot, query.evaluate(snapshot, shard.tagManager));
+        });
+    }
+
+    /**
+     * Counts the images with each Tag, over every shard.
+     * @return The number of images with each Tag, by Tag name, in the order the Tags were first found.
+     */
+    public LinkedHashMap<String,Integer> countImagesByTag(){
+        ArrayList<LinkedHashMap<String,Integer>> counts = forEachShard(shard -> {
+            ModelSnapshot snapshot = shard.imageManager.getSnapshot();
+            LinkedHashMap<String,Integer> shardCounts = new LinkedHashMap<>();
+            for(Tag tag : shard.tagManager.getTagList()){
+                shardCounts.put(tag.getTagName(), snapshot.getImagesWithTag(tag).size());
+            }
+            return shardCounts;
+        });
+        LinkedHashMap<String,Integer> total = new LinkedHashMap<>();
+        for(LinkedHashMap<String,Integer> shardCounts : counts){
+            shardCounts.forEach((tagName, count) -> total.merge(tagName, count, Integer::sum));
+        }
+        return total;
+    }
+
+    /**
+     * Saves every shard's persistence files, all at once.
+     */
+    public void save(){
+        forEachShard(shard -> {
+            shard.configurationManager.updatePersistenceFiles();
+            return null;
+        });
+    }
+
+    /**
+     * Stops the threads of this library. Its shards can still be used from the calling thread.
+     */
+    public void close(){
+        shardExecutor.shutdown();
+    }
+
+    /**
+     * Runs work on every shard at once and waits for all of it.
+     * @param work Work to run on each shard.
+     * @param <T> The type of result of the work.
+     * @return The result for each shard, in the order of the shards.
+     */
+    private <T> ArrayList<T> forEachShard(Function<Shard,T> work){
+        ArrayList<Callable<T>> tasks = new ArrayList<>();
+        for(Shard shard : shards){
+            tasks.add(() -> work.apply(shard));
+        }
+        return runAll(tasks);
+    }
+
+    /**
+     * Runs tasks on the shard threads and waits for all of them. The last task is run on the calling thread.
+     * @param tasks Tasks to run.
+     * @param <T> The type of result of the tasks.
+     * @return The result of each task, in order.
+     * @throws IllegalStateException If a task failed, or the calling thread was interrupted.
+     */
+    private <T> ArrayList<T> runAll(List<Callable<T>> tasks){
+        ArrayList<T> results = new ArrayList<>(tasks.size());
+        ArrayList<Future<T>> running = new ArrayList<>(tasks.size());
+        try{
+            for(Callable<T> task : tasks.subList(0, tasks.size() - 1)){
+                running.add(shardExecutor.submit(task));
+            }
+            T last = tasks.get(tasks.size() - 1).call();
+            for(Future<T> result : running){
+                results.add(result.get());
+            }
+            results.add(last);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for library shards", e);
+        }catch (ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }catch (RuntimeException e){
+            throw e;
+        }catch (Exception e){
+            throw new IllegalStateException(e);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the absolute, normalized path of a file, so that paths can be compared.
+     * @param file File to normalize.
+     * @return The normalized path.
+     */
+    private static Path normalize(File file){
+        return file.toPath().toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,198 @@
+package utils;
+
+import javafx.collections.ObservableList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A ListChange. A single change to an ordered list of model objects: an item added, removed or updated at an index.
+ * Models emit ListChanges so that their views can apply them to the lists they display without rebuilding them.
+ * @param <T> Type of the items in the changed list.
+ */
+public class ListChange<T> {
+    /**
+     * The kinds of change that can be made to a list.
+     */
+    public enum Type { ADDED, REMOVED, UPDATED }
+
+    /**
+     * The kind of change.
+     */
+    private Type type;
+    /**
+     * Index of the list that was changed.
+     */
+    private int index;
+    /**
+     * The item that was added, removed or updated.
+     */
+    private T item;
+
+    /**
+     * Constructs a ListChange.
+     * @param type The kind of change.
+     * @param index Index of the list that was changed.
+     * @param item The item that was added, removed or updated.
+     */
+    public ListChange(Type type, int index, T item){
+        this.type = type;
+        this.index = index;
+        this.item = item;
+    }
+
+    /**
+     * Returns the kind of this change.
+     * @return The kind of this change.
+     */
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * Returns the index of the list that was changed.
+     * @return The index of the list that was changed.
+     */
+    public int getIndex(){
+        return index;
+    }
+
+    /**
+     * Returns the item that was added, removed or updated.
+     * @return The item that was added, removed or updated.
+     */
+    public T getItem(){
+        return item;
+    }
+
+    /**
+     * Makes this change to a list.
+     * @param list List to make this change to.
+     */
+    public void applyTo(List<T> list){
+        switch(type){
+            case ADDED:
+                list.add(index, item);
+                break;
+            case REMOVED:
+                list.remove(index);
+                break;
+            case UPDATED:
+                list.set(index, item);
+                break;
+        }
+    }
+
+    /**
+     * Returns the changes that turn one list into another. Items that are in both lists are kept where possible,
+     * so applying the changes one after another in order only touches the items that actually differ.
+     *
+     * Equal items are matched up through a hash map, in order, and the longest run of matched items that is in the
+     * same order in both lists is kept; every other item is removed (from the back, so indices stay valid) and then
+     * added at its place in the target. This takes O(n log n) time, however the lists differ.
+     * @param current List to change.
+     * @param target List to turn the current list into.
+     * @param <T> Type of the items in the lists.
+     * @return The changes to make, in order.
+     */
+    public static <T> ArrayList<ListChange<T>> diff(List<T> current, List<T> target){
+        // 1: match each target item to the first unmatched equal item of the current list
+        HashMap<T,ArrayDeque<Integer>> positions = new HashMap<>();
+        for(int i = 0; i < current.size(); i++){
+            positions.computeIfAbsent(current.get(i), item -> new ArrayDeque<>()).add(i);
+        }
+        int[] matched = new int[target.size()];
+        for(int i = 0; i < target.size(); i++){
+            ArrayDeque<Integer> itemPositions = positions.get(target.get(i));
+            matched[i] = itemPositions == null || itemPositions.isEmpty() ? -1 : itemPositions.poll();
+        }
+
+        // 2: keep the longest subsequence of matched items whose current positions increase
+        boolean[] keptTarget = keptInOrder(matched);
+        boolean[] keptCurrent = new boolean[current.size()];
+        for(int i = 0; i < target.size(); i++){
+            if(keptTarget[i]){
+                keptCurrent[matched[i]] = true;
+            }
+        }
+
+        // 3: remove every other item, from the back, so the kept items are left in order
+        ArrayList<ListChange<T>> changes = new ArrayList<>();
+        for(int i = current.size() - 1; i >= 0; i--){
+            if(!keptCurrent[i]){
+                changes.add(new ListChange<>(Type.REMOVED, i, current.get(i)));
+            }
+        }
+
+        // 4: walk the target list: the items before each index are in place, so each item goes at its own index
+        for(int i = 0; i < target.size(); i++){
+            T item = target.get(i);
+            if(!keptTarget[i]){
+                changes.add(new ListChange<>(Type.ADDED, i, item));
+            }
+            else if(current.get(matched[i]) != item){
+                changes.add(new ListChange<>(Type.UPDATED, i, item));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Finds a longest increasing subsequence of positions, by patience sorting.
+     * @param positions Positions, or -1 for none; the positions that are not -1 are all different.
+     * @return Whether each position is in the subsequence.
+     */
+    private static boolean[] keptInOrder(int[] positions){
+        // tails[k] is the index (into positions) of the smallest last position of an increasing run of length k + 1
+        int[] tails = new int[positions.length];
+        int[] previous = new int[positions.length];
+        int length = 0;
+        for(int i = 0; i < positions.length; i++){
+            if(positions[i] < 0){
+                continue;
+            }
+            int low = 0;
+            int high = length;
+            while(low < high){
+                int middle = (low + high) >>> 1;
+                if(positions[tails[middle]] < positions[i]){
+                    low = middle + 1;
+                }
+                else{
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            length = Math.max(length, low + 1);
+        }
+
+        boolean[] kept = new boolean[positions.length];
+        for(int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]){
+            kept[i] = true;
+        }
+        return kept;
+    }
+
+    /**
+     * Updates an ObservableList to hold the items of another list using as few edits as possible, so that the
+     * selection and cells of a ListView showing it survive. If most of the list changes, it is replaced in one go
+     * instead, which is cheaper for the ListView than many separate edits.
+     * @param list ObservableList to update.
+     * @param target Items the ObservableList should hold.
+     * @param <T> Type of the items in the lists.
+     */
+    public static <T> void update(ObservableList<T> list, List<T> target){
+        ArrayList<ListChange<T>> changes = diff(list, target);
+        if(changes.size() > Math.max(list.size(), target.size()) / 2){
+            list.setAll(target);
+        }
+        else{
+            for(ListChange<T> change : changes){
+                change.applyTo(list);
+            }
+        }
+    }
+}
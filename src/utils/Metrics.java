@@ -0,0 +1,428 @@
+package utils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Metrics registry. Keeps named Counters and latency Histograms for the model and I/O operations (renames,
+ * persistence saves, directory scans, thumbnail decodes and tag operations), so that it can be seen where time goes.
+ *
+ * Recording is cheap enough for every operation: a Counter is a LongAdder, and a Histogram adds to one of a fixed
+ * set of log-linear buckets, as an HDR histogram does, so percentiles are accurate to about 3% whatever the range of
+ * latencies. Nothing is allocated per recording.
+ *
+ * Every metric is registered with the platform MBean server as imagetags:type=Counter,name=NAME or
+ * imagetags:type=Histogram,name=NAME, so it can be read with jconsole or any JMX client. If the "metrics.dump"
+ * system property names a file, every metric is also appended to it as text every "metrics.dump.interval" seconds
+ * (60 by default) and once more on shutdown.
+ */
+public class Metrics {
+    /**
+     * The JMX domain the metrics are registered in.
+     */
+    private static final String JMX_DOMAIN = "imagetags";
+    /**
+     * Formats the time of a dump.
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+    /**
+     * Singleton instance for global access to the Metrics.
+     */
+    private static final Metrics instance = new Metrics();
+
+    /**
+     * The Counters, by name.
+     */
+    private ConcurrentHashMap<String,Counter> counters = new ConcurrentHashMap<>();
+    /**
+     * The Histograms, by name.
+     */
+    private ConcurrentHashMap<String,Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * The attributes of a Counter that are readable through JMX.
+     */
+    public interface CounterMXBean {
+        /**
+         * Returns the count.
+         * @return The count.
+         */
+        long getCount();
+    }
+
+    /**
+     * The attributes of a Histogram that are readable through JMX. Latencies are in milliseconds.
+     */
+    public interface HistogramMXBean {
+        /**
+         * Returns the number of latencies recorded.
+         * @return The number of latencies recorded.
+         */
+        long getCount();
+
+        /**
+         * Returns the mean latency.
+         * @return The mean latency in milliseconds.
+         */
+        double getMeanMillis();
+
+        /**
+         * Returns the median latency.
+         * @return The median latency in milliseconds.
+         */
+        double getP50Millis();
+
+        /**
+         * Returns the 90th percentile latency.
+         * @return The 90th percentile latency in milliseconds.
+         */
+        double getP90Millis();
+
+        /**
+         * Returns the 99th percentile latency.
+         * @return The 99th percentile latency in milliseconds.
+         */
+        double getP99Millis();
+
+        /**
+         * Returns the 99.9th percentile latency.
+         * @return The 99.9th percentile latency in milliseconds.
+         */
+        double getP999Millis();
+
+        /**
+         * Returns the highest latency.
+         * @return The highest latency in milliseconds.
+         */
+        double getMaxMillis();
+    }
+
+    /**
+     * A Counter. Counts events, such as failed renames or files found by scans.
+     */
+    public static class Counter implements CounterMXBean {
+        /**
+         * The count.
+         */
+        private LongAdder count = new LongAdder();
+
+        /**
+         * Adds one to the count.
+         */
+        public void increment(){
+            count.increment();
+        }
+
+        /**
+         * Adds to the count.
+         * @param amount Amount to add.
+         */
+        public void add(long amount){
+            count.add(amount);
+        }
+
+        @Override
+        public long getCount(){
+            return count.sum();
+        }
+    }
+
+    /**
+     * A Histogram. Records latencies in nanoseconds into log-linear buckets: every value below 64 has its own bucket,
+     * and above that every power of two is split into 32 buckets, so a bucket is never wider than 1/32 of the values
+     * in it.
+     */
+    public static class Histogram implements HistogramMXBean {
+        /**
+         * The number of bits of a value that pick its bucket within its power of two.
+         */
+        private static final int SUB_BUCKET_BITS = 5;
+        /**
+         * The number of buckets in each power of two.
+         */
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        /**
+         * The number of buckets, enough for every positive long.
+         */
+        private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        /**
+         * The number of values recorded in each bucket.
+         */
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        /**
+         * The number of values recorded.
+         */
+        private LongAdder count = new LongAdder();
+        /**
+         * The sum of the values recorded.
+         */
+        private LongAdder sum = new LongAdder();
+        /**
+         * The highest value recorded.
+         */
+        private AtomicLong max = new AtomicLong();
+
+        /**
+         * Records a latency.
+         * @param nanos The latency in nanoseconds.
+         */
+        public void record(long nanos){
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            long highest = max.get();
+            while(value > highest && !max.compareAndSet(highest, value)){
+                highest = max.get();
+            }
+        }
+
+        /**
+         * Records the latency of an operation that started at a given time.
+         * @param startNanos The System.nanoTime() at which the operation started.
+         */
+        public void recordSince(long startNanos){
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Returns a percentile of the recorded latencies.
+         * @param percent The percentile, from 0 to 100.
+         * @return The percentile in nanoseconds (the middle of its bucket), or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percent){
+            long total = 0;
+            long[] counts = new long[BUCKET_COUNT];
+            for(int i = 0; i < BUCKET_COUNT; i++){
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if(total == 0){
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for(int i = 0; i < BUCKET_COUNT; i++){
+                seen += counts[i];
+                if(seen >= rank){
+                    long low = lowestValueOf(i);
+                    long high = lowestValueOf(i + 1) - 1;
+                    return Math.min(low + (high - low) / 2, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public long getCount(){
+            return count.sum();
+        }
+
+        @Override
+        public double getMeanMillis(){
+            long recorded = count.sum();
+            return recorded == 0 ? 0 : sum.sum() / 1e6 / recorded;
+        }
+
+        @Override
+        public double getP50Millis(){
+            return getPercentile(50) / 1e6;
+        }
+
+        @Override
+        public double getP90Millis(){
+            return getPercentile(90) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis(){
+            return getPercentile(99) / 1e6;
+        }
+
+        @Override
+        public double getP999Millis(){
+            return getPercentile(99.9) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis(){
+            return max.get() / 1e6;
+        }
+
+        /**
+         * Returns the bucket a value is counted in.
+         * @param value Value to find the bucket of (not negative).
+         * @return The index of the bucket.
+         */
+        private static int bucketOf(long value){
+            if(value < 2 * SUB_BUCKETS){
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        /**
+         * Returns the lowest value counted in a bucket.
+         * @param bucket The index of the bucket.
+         * @return The lowest value of the bucket (Long.MAX_VALUE past the last bucket).
+         */
+        private static long lowestValueOf(int bucket){
+            if(bucket < 2 * SUB_BUCKETS){
+                return bucket;
+            }
+            if(bucket >= BUCKET_COUNT){
+                return Long.MAX_VALUE;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        }
+    }
+
+    /**
+     * Constructs the Metrics, and starts dumping them if the "metrics.dump" system property is set.
+     */
+    private Metrics(){
+        String dumpPath = System.getProperty("metrics.dump");
+        if(dumpPath != null && !dumpPath.isEmpty()){
+            startDump(dumpPath, Long.getLong("metrics.dump.interval", 60));
+        }
+    }
+
+    /**
+     * Returns the singleton instance of the Metrics class.
+     * @return The singleton instance of the Metrics class.
+     */
+    public static Metrics getInstance(){
+        return instance;
+    }
+
+    /**
+     * Returns the Counter with a given name, creating and registering it if there is none yet.
+     * @param name Name of the Counter, such as "image.rename.failures".
+     * @return The Counter.
+     */
+    public Counter counter(String name){
+        Counter counter = counters.get(name);
+        if(counter == null){
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if(counter == null){
+                counter = created;
+                register("Counter", name, created);
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the Histogram with a given name, creating and registering it if there is none yet.
+     * @param name Name of the Histogram, such as "image.rename".
+     * @return The Histogram.
+     */
+    public Histogram histogram(String name){
+        Histogram histogram = histograms.get(name);
+        if(histogram == null){
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if(histogram == null){
+                histogram = created;
+                register("Histogram", name, created);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Writes every metric as text, one per line, in order of name.
+     * @param out Writer to write to.
+     */
+    public void dump(PrintWriter out){
+        out.println("# metrics at " + LocalDateTime.now().format(DATE_FORMAT));
+        for(Map.Entry<String,Counter> entry : new TreeMap<>(counters).entrySet()){
+            out.printf("%-32s count=%d%n", entry.getKey(), entry.getValue().getCount());
+        }
+        for(Map.Entry<String,Histogram> entry : new TreeMap<>(histograms).entrySet()){
+            Histogram histogram = entry.getValue();
+            out.printf("%-32s count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms%n",
+                    entry.getKey(), histogram.getCount(), histogram.getMeanMillis(), histogram.getP50Millis(),
+                    histogram.getP90Millis(), histogram.getP99Millis(), histogram.getP999Millis(),
+                    histogram.getMaxMillis());
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns every metric as text, one per line, in order of name.
+     * @return The metrics as text.
+     */
+    public String dump(){
+        StringWriter text = new StringWriter();
+        dump(new PrintWriter(text));
+        return text.toString();
+    }
+
+    /**
+     * Appends every metric to a file periodically, and once more on shutdown.
+     * @param path Path of the file to append to.
+     * @param periodSeconds Seconds between dumps.
+     */
+    private void startDump(String path, long periodSeconds){
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Metrics dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, periodSeconds);
+        dumper.scheduleAtFixedRate(() -> appendDump(path), period, period, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> appendDump(path), "Metrics dump on shutdown"));
+    }
+
+    /**
+     * Appends every metric to a file.
+     * @param path Path of the file to append to.
+     */
+    private void appendDump(String path){
+        try(PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(path, true),
+                StandardCharsets.UTF_8))){
+            dump(out);
+        }catch (IOException e){
+            System.out.println("Failed to write metrics to " + path);
+        }
+    }
+
+    /**
+     * Registers a metric with the platform MBean server.
+     * @param type The type of metric, "Counter" or "Histogram".
+     * @param name Name of the metric.
+     * @param metric The metric.
+     */
+    private static void register(String type, String name, Object metric){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(metric, new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + name));
+        }catch (JMException | SecurityException e){
+            System.out.println("Failed to register metric " + name + " with JMX");
+        }
+    }
+}
@@ -3,21 +3,75 @@ package utils;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * A NameLogger. Is responsible for logging all instances where ImageFile's are renamed.
+ *
+ * Name changes are logged asynchronously: logNameChange puts the change in a bounded queue, and a single writer thread
+ * drains the queue in batches into a text log file that it keeps open, and into a RenameLog that can be queried for
+ * the renames of an image or of a time range. When the text log file, or the RenameLog's files, grow past a maximum
+ * size they are rotated, so the RenameLog only answers for the renames since it was last rotated. Call flush() to
+ * wait until every logged change is on disk (e.g. on shutdown).
  */
 public class NameLogger implements Serializable {
+    /**
+     * The version of the saved form of a NameLogger, pinned to that of the first persistence files so that they can
+     * still be read.
+     */
+    private static final long serialVersionUID = -3226645840692400866L;
+    /**
+     * The maximum number of name changes waiting to be written. Loggers block when the queue is full.
+     */
+    private static final int QUEUE_CAPACITY = 8192;
+    /**
+     * The maximum number of name changes written to the log files at once.
+     */
+    private static final int MAX_BATCH = 512;
+    /**
+     * The size the log file, and the RenameLog's files together, may grow to before they are rotated.
+     */
+    private static final long MAX_LOG_BYTES = 8L * 1024 * 1024;
+    /**
+     * Formats the time of a name change. DateTimeFormatters are immutable, so one can be shared by all threads.
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+
     /**
      * The file to log changes to.
      */
     private File fileNameLog;
+    /**
+     * Name changes that are waiting to be written to the log files.
+     */
+    private transient ArrayBlockingQueue<RenameRecord> pendingChanges;
+    /**
+     * The structured, queryable log of name changes.
+     */
+    private transient RenameLog renameLog;
+    /**
+     * The log file, kept open by the writer thread.
+     */
+    private transient volatile FileChannel logChannel;
+    /**
+     * The number of name changes that have been logged.
+     */
+    private transient long loggedCount;
+    /**
+     * The number of name changes that have been written to the log file.
+     */
+    private transient long writtenCount;
     /**
      * Singleton instance for global access to a NameLogger.
      */
@@ -38,24 +92,189 @@ public class NameLogger implements Serializable {
                 System.out.println("Failed to create Name Log File");
             }
         }
+
+        try{
+            renameLog = new RenameLog(new File(filePath + ".bin"), new File(filePath + ".names"));
+        }catch (IOException e){
+            System.out.println("Failed to open Rename Log Files");
+        }
+
+        pendingChanges = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Thread writer = new Thread(this::writeMessages, "NameLogger writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     /**
-     * Logs a name change from an old name to a new name.
+     * Logs a name change of an image from an old name to a new name.
+     * @param imageName Name that identifies the renamed image (its untagged name).
      * @param oldName Old name to log.
      * @param newName New name to log.
      */
-    public void logNameChange(String oldName, String newName){
-        // todo : redo format for NameLoggerView
+    public void logNameChange(String imageName, String oldName, String newName){
+        TraceEvents.NameLogEvent event = new TraceEvents.NameLogEvent();
+        event.begin();
         try{
-            DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-            Date date = new Date();
-            String message = dateFormat.format(date) + " - Old Name " + oldName + " - New Name: " + newName + "\n";
-            Files.write(Paths.get(fileNameLog.getName()), message.getBytes(), StandardOpenOption.APPEND);
-        }catch (IOException e){
+            pendingChanges.put(new RenameRecord(System.currentTimeMillis(), imageName, oldName, newName));
+            // counted only once queued, so that flush never waits for a change that was not; the writer may count
+            // it as written first, which flush does not mind
+            synchronized(this){
+                loggedCount++;
+            }
+            event.commit(imageName, oldName, newName, pendingChanges);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
             System.out.println("Failed to log name change");
         }
+    }
+
+    /**
+     * Returns every logged name change of an image, oldest first. Waits for pending name changes to be written.
+     * @param imageName Name that identifies the image (its untagged name).
+     * @return The logged name changes of the image.
+     */
+    public ArrayList<RenameRecord> getRenameHistory(String imageName){
+        flush();
+        return renameLog == null ? new ArrayList<>() : renameLog.getHistory(imageName);
+    }
+
+    /**
+     * Returns every name change logged in a time range, oldest first. Waits for pending name changes to be written.
+     * @param from Start of the range (inclusive), in milliseconds since the epoch.
+     * @param to End of the range (exclusive), in milliseconds since the epoch.
+     * @return The logged name changes in the time range.
+     */
+    public ArrayList<RenameRecord> getRenamesBetween(long from, long to){
+        flush();
+        return renameLog == null ? new ArrayList<>() : renameLog.getRenamesBetween(from, to);
+    }
+
+    /**
+     * Returns one page of logged name changes, for viewing the log a page at a time. Waits for pending name changes
+     * to be written.
+     * @param page Index of the page to return.
+     * @param pageSize The number of name changes on a page.
+     * @return The name changes on the page, oldest first.
+     */
+    public ArrayList<RenameRecord> getRenamePage(int page, int pageSize){
+        flush();
+        return renameLog == null ? new ArrayList<>() : renameLog.getPage(page, pageSize);
+    }
+
+    /**
+     * Blocks until every name change logged so far has been written to the log files.
+     */
+    public synchronized void flush(){
+        long toWait = loggedCount;
+        try{
+            while(writtenCount < toWait){
+                wait();
+            }
+            FileChannel channel = logChannel;
+            if(channel != null){
+                channel.force(false);
+            }
+            if(renameLog != null){
+                renameLog.force();
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch (IOException e){
+            System.out.println("Failed to flush name log");
+        }
+    }
+
+    /**
+     * Body of the writer thread. Drains queued name changes in batches and writes each batch to the log files.
+     */
+    private void writeMessages(){
+        ArrayList<RenameRecord> batch = new ArrayList<>(MAX_BATCH);
+        while(true){
+            try{
+                batch.add(pendingChanges.take());
+            }catch (InterruptedException e){
+                return;
+            }
+            pendingChanges.drainTo(batch, MAX_BATCH - 1);
+
+            // todo : redo format for NameLoggerView
+            StringBuilder messages = new StringBuilder();
+            for(RenameRecord change : batch){
+                messages.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(change.getTimestamp()),
+                        ZoneId.systemDefault()).format(DATE_FORMAT));
+                messages.append(" - Old Name ").append(change.getOldName());
+                messages.append(" - New Name: ").append(change.getNewName()).append("\n");
+            }
+            TraceEvents.NameLogWriteEvent event = new TraceEvents.NameLogWriteEvent();
+            event.begin();
+            byte[] bytes = messages.toString().getBytes(StandardCharsets.UTF_8);
+            try{
+                writeToLog(ByteBuffer.wrap(bytes));
+            }catch (IOException e){
+                System.out.println("Failed to log name change");
+                closeLog();
+            }
+
+            if(renameLog != null){
+                try{
+                    if(renameLog.byteSize() > MAX_LOG_BYTES){
+                        renameLog.rotate();
+                    }
+                    renameLog.append(batch);
+                }catch (IOException e){
+                    System.out.println("Failed to log name change");
+                }
+            }
+            event.commit(fileNameLog.getPath(), batch.size(), bytes.length);
+
+            synchronized(this){
+                writtenCount += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Appends bytes to the log file, opening it if needed and rotating it if it has grown too large.
+     * @param bytes Bytes to append.
+     * @throws IOException ..
+     */
+    private void writeToLog(ByteBuffer bytes) throws IOException{
+        if(logChannel != null && logChannel.size() + bytes.remaining() > MAX_LOG_BYTES){
+            rotateLog();
+        }
+        if(logChannel == null){
+            logChannel = FileChannel.open(fileNameLog.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        while(bytes.hasRemaining()){
+            logChannel.write(bytes);
+        }
+    }
+
+    /**
+     * Moves the current log file aside (replacing the previously rotated one) so that a new log file is started.
+     * @throws IOException ..
+     */
+    private void rotateLog() throws IOException{
+        closeLog();
+        Files.move(fileNameLog.toPath(), new File(fileNameLog.getPath() + ".1").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
 
+    /**
+     * Closes the log file, if it is open.
+     */
+    private void closeLog(){
+        if(logChannel != null){
+            try{
+                logChannel.close();
+            }catch (IOException e){
+                System.out.println("Failed to close name log");
+            }
+            logChannel = null;
+        }
     }
 
     /**
@@ -66,6 +285,13 @@ public class NameLogger implements Serializable {
         return instance;
     }
 
-
+    /**
+     * ImageFiles are serialized with a reference to the NameLogger, so deserializing one must give back the
+     * singleton (which owns the writer thread) rather than a new NameLogger.
+     * @return The singleton instance of the NameLogger class.
+     */
+    private Object readResolve(){
+        return instance;
+    }
 
 }
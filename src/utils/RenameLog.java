@@ -0,0 +1,402 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A RenameLog. A structured, binary log of every rename, which (unlike the text name log) can be queried.
+ *
+ * The log is made of two files. The record file holds one fixed-size record per rename: the timestamp, and the IDs of
+ * the image, its old name and its new name. The name file is the string table those IDs refer to, so each distinct
+ * name is stored once. Records are appended in time order, so time range queries binary search the record file, and
+ * an in-memory index from each image to its record numbers answers per-image history queries. Records are read back
+ * through a memory map of the record file. Renames are appended a batch at a time, with one write to each file.
+ *
+ * Neither file is ever shortened, so the owner of a RenameLog rotates it (see rotate()) once it is large enough, which
+ * also bounds the string table and the index held in memory.
+ */
+public class RenameLog {
+    /**
+     * The size of a record: timestamp (8 bytes), image ID, old name ID and new name ID (4 bytes each).
+     */
+    private static final int RECORD_BYTES = 20;
+
+    /**
+     * The path of the record file.
+     */
+    private final File recordFile;
+    /**
+     * The path of the name file.
+     */
+    private final File nameFile;
+    /**
+     * The file holding the rename records.
+     */
+    private FileChannel recordChannel;
+    /**
+     * The file holding the string table.
+     */
+    private FileChannel nameChannel;
+    /**
+     * Read-only memory map of the record file. Remapped when records have been appended since it was made.
+     */
+    private MappedByteBuffer recordMap;
+    /**
+     * The number of records in the log.
+     */
+    private int recordCount;
+    /**
+     * The timestamp of the last record, so that records stay in time order.
+     */
+    private long lastTimestamp;
+    /**
+     * The string table: every distinct name, indexed by its ID.
+     */
+    private ArrayList<String> names = new ArrayList<>();
+    /**
+     * The ID of every distinct name.
+     */
+    private HashMap<String,Integer> nameIds = new HashMap<>();
+    /**
+     * The record numbers of the renames of each image, accessed by image ID. The first element of each array is the
+     * number of record numbers that follow it.
+     */
+    private HashMap<Integer,int[]> recordsByImage = new HashMap<>();
+
+    /**
+     * Opens (or creates) a RenameLog stored in a given record file and name file, and indexes its records.
+     * @param recordFile File holding the rename records.
+     * @param nameFile File holding the string table.
+     * @throws IOException ..
+     */
+    public RenameLog(File recordFile, File nameFile) throws IOException{
+        this.recordFile = recordFile;
+        this.nameFile = nameFile;
+        open();
+    }
+
+    /**
+     * Opens the files of this log, and reads its string table and indexes its records.
+     * @throws IOException ..
+     */
+    private void open() throws IOException{
+        recordChannel = FileChannel.open(recordFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        nameChannel = FileChannel.open(nameFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        loadNames();
+        loadRecords();
+    }
+
+    /**
+     * Appends renames to this log. The names not yet in the string table are written first, in one write, and then
+     * the records, in another, so that a record on disk never refers to a name that is not.
+     * @param renames The renames, in the order they were logged.
+     * @throws IOException ..
+     */
+    public synchronized void append(List<RenameRecord> renames) throws IOException{
+        int namesBefore = names.size();
+        long nameFileSize = nameChannel.size();
+        ByteBuffer records = ByteBuffer.allocate(renames.size() * RECORD_BYTES);
+        int[] imageIds = new int[renames.size()];
+        try{
+            ArrayList<byte[]> newNames = new ArrayList<>();
+            int newNameBytes = 0;
+            long timestamp = lastTimestamp;
+            for(int i = 0; i < renames.size(); i++){
+                RenameRecord rename = renames.get(i);
+                // renames from different threads can be logged slightly out of order; keep the records sorted by time
+                timestamp = Math.max(timestamp, rename.getTimestamp());
+                imageIds[i] = nameId(rename.getImageName(), newNames);
+                records.putLong(timestamp).putInt(imageIds[i]).putInt(nameId(rename.getOldName(), newNames))
+                        .putInt(nameId(rename.getNewName(), newNames));
+            }
+            for(byte[] bytes : newNames){
+                newNameBytes += 4 + bytes.length;
+            }
+
+            ByteBuffer entries = ByteBuffer.allocate(newNameBytes);
+            for(byte[] bytes : newNames){
+                entries.putInt(bytes.length).put(bytes);
+            }
+            entries.flip();
+            writeFully(nameChannel, entries, nameFileSize);
+            records.flip();
+            writeFully(recordChannel, records, (long) recordCount * RECORD_BYTES);
+            lastTimestamp = timestamp;
+        }catch (IOException e){
+            // forget the names that did not make it to the name file; a partly written record is dropped on loading
+            while(names.size() > namesBefore){
+                nameIds.remove(names.remove(names.size() - 1));
+            }
+            nameChannel.truncate(nameFileSize);
+            throw e;
+        }
+
+        for(int imageId : imageIds){
+            index(imageId, recordCount);
+            recordCount++;
+        }
+    }
+
+    /**
+     * Returns every rename of an image, oldest first.
+     * @param imageName The name that identifies the image.
+     * @return The renames of the image.
+     */
+    public synchronized ArrayList<RenameRecord> getHistory(String imageName){
+        ArrayList<RenameRecord> history = new ArrayList<>();
+        Integer imageId = nameIds.get(imageName);
+        int[] records = imageId == null ? null : recordsByImage.get(imageId);
+        if(records != null){
+            ByteBuffer map = currentMap();
+            for(int i = 1; i <= records[0]; i++){
+                history.add(readRecord(map, records[i]));
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Returns every rename that happened in a time range, oldest first.
+     * @param from Start of the range (inclusive), in milliseconds since the epoch.
+     * @param to End of the range (exclusive), in milliseconds since the epoch.
+     * @return The renames in the time range.
+     */
+    public synchronized ArrayList<RenameRecord> getRenamesBetween(long from, long to){
+        ArrayList<RenameRecord> renames = new ArrayList<>();
+        ByteBuffer map = currentMap();
+        for(int record = firstRecordAtOrAfter(map, from); record < recordCount; record++){
+            if(map.getLong(record * RECORD_BYTES) >= to){
+                break;
+            }
+            renames.add(readRecord(map, record));
+        }
+        return renames;
+    }
+
+    /**
+     * Returns one page of renames, for viewing the log a page at a time.
+     * @param page Index of the page to return.
+     * @param pageSize The number of renames on a page.
+     * @return The renames on the page, oldest first (empty if the page is past the end of the log).
+     */
+    public synchronized ArrayList<RenameRecord> getPage(int page, int pageSize){
+        ArrayList<RenameRecord> renames = new ArrayList<>();
+        ByteBuffer map = currentMap();
+        long first = (long) page * pageSize;
+        for(long record = first; record < recordCount && record < first + pageSize; record++){
+            renames.add(readRecord(map, (int) record));
+        }
+        return renames;
+    }
+
+    /**
+     * Returns the number of renames in this log.
+     * @return The number of renames in this log.
+     */
+    public synchronized int size(){
+        return recordCount;
+    }
+
+    /**
+     * Returns the number of bytes in the files of this log.
+     * @return The size of the record file and the name file together.
+     * @throws IOException ..
+     */
+    public synchronized long byteSize() throws IOException{
+        return recordChannel.size() + nameChannel.size();
+    }
+
+    /**
+     * Moves the files of this log aside (replacing the previously rotated ones) and starts this log again, empty.
+     * Queries then only see the renames appended after the rotation.
+     * @throws IOException ..
+     */
+    public synchronized void rotate() throws IOException{
+        close();
+        try{
+            Files.move(recordFile.toPath(), new File(recordFile.getPath() + ".1").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.move(nameFile.toPath(), new File(nameFile.getPath() + ".1").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }finally{
+            // whatever could not be moved aside is read back in, so the log stays usable
+            recordCount = 0;
+            lastTimestamp = 0;
+            names = new ArrayList<>();
+            nameIds = new HashMap<>();
+            recordsByImage = new HashMap<>();
+            open();
+        }
+    }
+
+    /**
+     * Forces everything appended to this log onto the disk.
+     * @throws IOException ..
+     */
+    public synchronized void force() throws IOException{
+        nameChannel.force(false);
+        recordChannel.force(false);
+    }
+
+    /**
+     * Closes the files of this log.
+     * @throws IOException ..
+     */
+    public synchronized void close() throws IOException{
+        recordMap = null;
+        nameChannel.close();
+        recordChannel.close();
+    }
+
+    /**
+     * Returns the ID of a name, adding the name to the string table if it is not in it yet.
+     * @param name Name to get the ID of.
+     * @param newNames Where to add the encoded name if it is new, to be written to the name file.
+     * @return The ID of the name.
+     */
+    private int nameId(String name, ArrayList<byte[]> newNames){
+        Integer id = nameIds.get(name);
+        if(id == null){
+            newNames.add(name.getBytes(StandardCharsets.UTF_8));
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Writes all of a buffer to a file at a given position.
+     * @param channel File to write to.
+     * @param buffer Bytes to write.
+     * @param position Where in the file to write them.
+     * @throws IOException ..
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+        while(buffer.hasRemaining()){
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads the string table from the name file.
+     * @throws IOException ..
+     */
+    private void loadNames() throws IOException{
+        ByteBuffer map = nameChannel.map(FileChannel.MapMode.READ_ONLY, 0, nameChannel.size());
+        while(map.remaining() >= 4){
+            int length = map.getInt();
+            if(length < 0 || length > map.remaining()){
+                // a partly written entry (e.g. from a crash) is dropped
+                nameChannel.truncate(map.position() - 4);
+                break;
+            }
+            byte[] bytes = new byte[length];
+            map.get(bytes);
+            String name = new String(bytes, StandardCharsets.UTF_8);
+            nameIds.put(name, names.size());
+            names.add(name);
+        }
+    }
+
+    /**
+     * Indexes the records of the record file by image.
+     * @throws IOException ..
+     */
+    private void loadRecords() throws IOException{
+        // a partly written record (e.g. from a crash) is dropped
+        recordCount = (int) (recordChannel.size() / RECORD_BYTES);
+        recordChannel.truncate((long) recordCount * RECORD_BYTES);
+
+        ByteBuffer map = currentMap();
+        for(int record = 0; record < recordCount; record++){
+            index(map.getInt(record * RECORD_BYTES + 8), record);
+        }
+        if(recordCount > 0){
+            lastTimestamp = map.getLong((recordCount - 1) * RECORD_BYTES);
+        }
+    }
+
+    /**
+     * Adds a record to the index of an image's records.
+     * @param imageId ID of the image.
+     * @param record Number of the record.
+     */
+    private void index(int imageId, int record){
+        int[] records = recordsByImage.get(imageId);
+        if(records == null){
+            records = new int[4];
+            recordsByImage.put(imageId, records);
+        }
+        else if(records[0] + 1 == records.length){
+            records = Arrays.copyOf(records, records.length * 2);
+            recordsByImage.put(imageId, records);
+        }
+        records[0]++;
+        records[records[0]] = record;
+    }
+
+    /**
+     * Returns a memory map of every record in the record file, remapping the file if records have been appended
+     * since it was last mapped.
+     * @return A memory map of the record file.
+     */
+    private ByteBuffer currentMap(){
+        long size = (long) recordCount * RECORD_BYTES;
+        if(recordMap == null || recordMap.capacity() < size){
+            try{
+                recordMap = recordChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }catch (IOException e){
+                System.out.println("Failed to map rename log");
+                return ByteBuffer.allocate(0);
+            }
+        }
+        return recordMap;
+    }
+
+    /**
+     * Returns the number of the first record with a timestamp at or after a given time.
+     * @param map Memory map of the record file.
+     * @param timestamp Time to search for, in milliseconds since the epoch.
+     * @return The number of the first record at or after the time (recordCount if there is none).
+     */
+    private int firstRecordAtOrAfter(ByteBuffer map, long timestamp){
+        int low = 0;
+        int high = recordCount;
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(map.getLong(middle * RECORD_BYTES) < timestamp){
+                low = middle + 1;
+            }
+            else{
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads a record from the record file.
+     * @param map Memory map of the record file.
+     * @param record Number of the record to read.
+     * @return The record.
+     */
+    private RenameRecord readRecord(ByteBuffer map, int record){
+        int position = record * RECORD_BYTES;
+        return new RenameRecord(map.getLong(position), names.get(map.getInt(position + 8)),
+                names.get(map.getInt(position + 12)), names.get(map.getInt(position + 16)));
+    }
+}
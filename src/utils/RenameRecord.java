@@ -0,0 +1,77 @@
+package utils;
+
+/**
+ * A RenameRecord. A single rename read back from a RenameLog.
+ */
+public class RenameRecord {
+    /**
+     * When the rename happened, in milliseconds since the epoch.
+     */
+    private long timestamp;
+    /**
+     * The name that identifies the renamed image (its untagged name).
+     */
+    private String imageName;
+    /**
+     * The name of the image before the rename.
+     */
+    private String oldName;
+    /**
+     * The name of the image after the rename.
+     */
+    private String newName;
+
+    /**
+     * Constructs a RenameRecord.
+     * @param timestamp When the rename happened, in milliseconds since the epoch.
+     * @param imageName The name that identifies the renamed image.
+     * @param oldName The name of the image before the rename.
+     * @param newName The name of the image after the rename.
+     */
+    RenameRecord(long timestamp, String imageName, String oldName, String newName){
+        this.timestamp = timestamp;
+        this.imageName = imageName;
+        this.oldName = oldName;
+        this.newName = newName;
+    }
+
+    /**
+     * Returns when the rename happened.
+     * @return When the rename happened, in milliseconds since the epoch.
+     */
+    public long getTimestamp(){
+        return timestamp;
+    }
+
+    /**
+     * Returns the name that identifies the renamed image.
+     * @return The name that identifies the renamed image.
+     */
+    public String getImageName(){
+        return imageName;
+    }
+
+    /**
+     * Returns the name of the image before the rename.
+     * @return The name of the image before the rename.
+     */
+    public String getOldName(){
+        return oldName;
+    }
+
+    /**
+     * Returns the name of the image after the rename.
+     * @return The name of the image after the rename.
+     */
+    public String getNewName(){
+        return newName;
+    }
+
+    /**
+     * Returns a string representation of this RenameRecord.
+     * @return A string representation of this RenameRecord.
+     */
+    public String toString(){
+        return timestamp + " - " + imageName + " - Old Name " + oldName + " - New Name: " + newName;
+    }
+}
@@ -2,10 +2,9 @@ package utils;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.collections.FXCollections;
 import javafx.scene.control.ListView;
 
-import java.util.ArrayList;
+import java.util.List;
 
 //**************************************************************************************
 // *    Title: (adatped from) <JavaFx Documentation - Using JavaFxControls - ListView>
@@ -55,9 +54,8 @@ public class StringListView implements ChangeListener<String>{
      * Sets a list of strings that this StringListView should display.
      * @param stringList List of strings that this StringListView should display.
      */
-    public void setItems(ArrayList<String> stringList){
-        stringViewList.getItems().clear();
-        stringViewList.setItems(FXCollections.observableArrayList(stringList));
+    public void setItems(List<String> stringList){
+        ListChange.update(stringViewList.getItems(), stringList);
     }
 
     /**
@@ -0,0 +1,339 @@
+package utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Collection;
+
+/**
+ * TraceEvents. The JDK Flight Recorder events of the program, so that a slow tag, rename, scan or save can be lined
+ * up with GC, I/O and thread activity in a recording.
+ *
+ * Each event is timed from begin() to its commit method, which only fills in the event's fields if the event is
+ * being recorded and took longer than its threshold. When no recording is running an event costs next to nothing:
+ * the JIT removes the allocation and the timing. The profile imagetags.jfc (in the program's folder) enables every
+ * event with thresholds suited to running in production; see help.txt.
+ */
+public class TraceEvents {
+    /**
+     * The category the events are shown under in JDK Mission Control.
+     */
+    private static final String CATEGORY = "Image Tags";
+
+    /**
+     * Tags being added to or removed from images.
+     */
+    @Name("imagetags.TagOperation")
+    @Label("Tag Operation")
+    @Category(CATEGORY)
+    @Description("Tags added to or removed from images, including renaming the files and saving")
+    public static class TagOperationEvent extends Event {
+        /**
+         * The operation: tag, untag or retag.
+         */
+        @Label("Operation")
+        private String operation;
+        /**
+         * The path of the image, or of the first image of a bulk retag.
+         */
+        @Label("Path")
+        private String path;
+        /**
+         * The names of the Tags added, separated by commas.
+         */
+        @Label("Added Tags")
+        private String addedTags;
+        /**
+         * The names of the Tags removed, separated by commas.
+         */
+        @Label("Removed Tags")
+        private String removedTags;
+        /**
+         * The number of images changed.
+         */
+        @Label("Images")
+        private int imageCount;
+
+        /**
+         * Ends this event, and records it if it should be.
+         * @param operation The operation: tag, untag or retag.
+         * @param path The path of the image, or of the first image of a bulk retag.
+         * @param addedTags The Tags (or Tag names) added (only joined if the event is recorded).
+         * @param removedTags The Tags (or Tag names) removed (only joined if the event is recorded).
+         * @param imageCount The number of images changed.
+         */
+        public void commit(String operation, String path, Collection<?> addedTags, Collection<?> removedTags,
+                           int imageCount){
+            end();
+            if(shouldCommit()){
+                this.operation = operation;
+                this.path = path;
+                this.addedTags = join(addedTags);
+                this.removedTags = join(removedTags);
+                this.imageCount = imageCount;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * An image file being renamed or moved.
+     */
+    @Name("imagetags.FileRename")
+    @Label("Image File Rename")
+    @Category(CATEGORY)
+    @Description("An image file renamed (to change its Tags) or moved to another folder")
+    public static class FileRenameEvent extends Event {
+        /**
+         * The operation: rename or move.
+         */
+        @Label("Operation")
+        private String operation;
+        /**
+         * The path of the file before.
+         */
+        @Label("Old Path")
+        private String oldPath;
+        /**
+         * The path of the file after.
+         */
+        @Label("New Path")
+        private String newPath;
+        /**
+         * Whether the file was renamed.
+         */
+        @Label("Succeeded")
+        private boolean succeeded;
+
+        /**
+         * Ends this event, and records it if it should be.
+         * @param operation The operation: rename or move.
+         * @param oldPath The path of the file before.
+         * @param newPath The path of the file after.
+         * @param succeeded Whether the file was renamed.
+         */
+        public void commit(String operation, String oldPath, String newPath, boolean succeeded){
+            end();
+            if(shouldCommit()){
+                this.operation = operation;
+                this.oldPath = oldPath;
+                this.newPath = newPath;
+                this.succeeded = succeeded;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A directory being scanned for images.
+     */
+    @Name("imagetags.DirectoryScan")
+    @Label("Directory Scan")
+    @Category(CATEGORY)
+    @Description("A directory scanned for images, which are then added to the ImageManager")
+    public static class DirectoryScanEvent extends Event {
+        /**
+         * The path of the directory.
+         */
+        @Label("Directory")
+        private String directory;
+        /**
+         * Whether everything under the directory was scanned.
+         */
+        @Label("Recursive")
+        private boolean recursive;
+        /**
+         * The number of image files found.
+         */
+        @Label("Images")
+        private int imageCount;
+
+        /**
+         * Ends this event, and records it if it should be.
+         * @param directory The path of the directory.
+         * @param recursive Whether everything under the directory was scanned.
+         * @param imageCount The number of image files found.
+         */
+        public void commit(String directory, boolean recursive, int imageCount){
+            end();
+            if(shouldCommit()){
+                this.directory = directory;
+                this.recursive = recursive;
+                this.imageCount = imageCount;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A name change being queued for the name log. Is only slow when the queue is full.
+     */
+    @Name("imagetags.NameLog")
+    @Label("Name Change Logged")
+    @Category(CATEGORY)
+    @Description("A name change queued for the name log; takes long only when the writer has fallen behind")
+    @StackTrace(false)
+    public static class NameLogEvent extends Event {
+        /**
+         * The untagged name of the image.
+         */
+        @Label("Image")
+        private String imageName;
+        /**
+         * The old name of the file.
+         */
+        @Label("Old Name")
+        private String oldName;
+        /**
+         * The new name of the file.
+         */
+        @Label("New Name")
+        private String newName;
+        /**
+         * The number of name changes waiting to be written, after this one.
+         */
+        @Label("Queued")
+        private int queued;
+
+        /**
+         * Ends this event, and records it if it should be.
+         * @param imageName The untagged name of the image.
+         * @param oldName The old name of the file.
+         * @param newName The new name of the file.
+         * @param queue The name changes waiting to be written (only counted if the event is recorded).
+         */
+        public void commit(String imageName, String oldName, String newName, Collection<?> queue){
+            end();
+            if(shouldCommit()){
+                this.imageName = imageName;
+                this.oldName = oldName;
+                this.newName = newName;
+                this.queued = queue.size();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A batch of name changes being written to the name log files.
+     */
+    @Name("imagetags.NameLogWrite")
+    @Label("Name Log Write")
+    @Category(CATEGORY)
+    @Description("A batch of name changes written to the name log files by the writer thread")
+    @StackTrace(false)
+    public static class NameLogWriteEvent extends Event {
+        /**
+         * The path of the text log file.
+         */
+        @Label("Path")
+        private String path;
+        /**
+         * The number of name changes written.
+         */
+        @Label("Name Changes")
+        private int changeCount;
+        /**
+         * The number of bytes written to the text log file.
+         */
+        @Label("Bytes")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * Ends this event, and records it if it should be.
+         * @param path The path of the text log file.
+         * @param changeCount The number of name changes written.
+         * @param bytes The number of bytes written to the text log file.
+         */
+        public void commit(String path, int changeCount, long bytes){
+            end();
+            if(shouldCommit()){
+                this.path = path;
+                this.changeCount = changeCount;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The persistence files being saved.
+     */
+    @Name("imagetags.PersistenceSave")
+    @Label("Persistence Save")
+    @Category(CATEGORY)
+    @Description("The ImageManager and TagManager persistence files saved")
+    public static class PersistenceSaveEvent extends Event {
+        /**
+         * The path of the ImageManager's persistence file.
+         */
+        @Label("Path")
+        private String path;
+        /**
+         * The number of images in the model.
+         */
+        @Label("Images")
+        private int imageCount;
+        /**
+         * The size of the ImageManager's persistence file.
+         */
+        @Label("Image Bytes")
+        @DataAmount
+        private long imageBytes;
+        /**
+         * The size of the TagManager's persistence file.
+         */
+        @Label("Tag Bytes")
+        @DataAmount
+        private long tagBytes;
+        /**
+         * Whether both files were saved.
+         */
+        @Label("Succeeded")
+        private boolean succeeded;
+
+        /**
+         * Ends this event, and records it if it should be.
+         * @param path The path of the ImageManager's persistence file.
+         * @param imageCount The number of images in the model.
+         * @param imageBytes The size of the ImageManager's persistence file.
+         * @param tagBytes The size of the TagManager's persistence file.
+         * @param succeeded Whether both files were saved.
+         */
+        public void commit(String path, int imageCount, long imageBytes, long tagBytes, boolean succeeded){
+            end();
+            if(shouldCommit()){
+                this.path = path;
+                this.imageCount = imageCount;
+                this.imageBytes = imageBytes;
+                this.tagBytes = tagBytes;
+                this.succeeded = succeeded;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Joins Tags or Tag names with commas.
+     * @param tags Tags or Tag names to join.
+     * @return The joined names.
+     */
+    private static String join(Collection<?> tags){
+        StringBuilder joined = new StringBuilder();
+        for(Object tag : tags){
+            joined.append(joined.length() > 0 ? "," : "").append(tag);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * TraceEvents only holds the event classes.
+     */
+    private TraceEvents(){}
+}